@@ -0,0 +1,31 @@
+-- Materialized values of the QC metrics, so that QC plots and outlier calculations don't have to re-run every
+-- metric's query over the folder's entire history
+CREATE TABLE targetedms.QCMetricValue
+(
+    Id                   BIGSERIAL NOT NULL,
+    Container            ENTITYID NOT NULL,
+    SampleFileId         BIGINT NOT NULL,
+    PrecursorChromInfoId BIGINT,
+    MetricId             INT NOT NULL,
+    MetricSeriesIndex    INT NOT NULL,
+    SeriesLabel          VARCHAR(4000),
+    MetricValue          DOUBLE PRECISION,
+
+    CONSTRAINT PK_QCMetricValue PRIMARY KEY (Id),
+    CONSTRAINT FK_QCMetricValue_Container FOREIGN KEY (Container) REFERENCES core.Containers(EntityId),
+    CONSTRAINT FK_QCMetricValue_SampleFile FOREIGN KEY (SampleFileId) REFERENCES targetedms.SampleFile(Id)
+);
+
+CREATE INDEX IX_QCMetricValue_Container_Metric ON targetedms.QCMetricValue(Container, MetricId);
+CREATE INDEX IX_QCMetricValue_SampleFile ON targetedms.QCMetricValue(SampleFileId);
+
+-- Which metrics have been materialized in each folder, and the metric configuration they were calculated with
+CREATE TABLE targetedms.QCMetricValueState
+(
+    Container            ENTITYID NOT NULL,
+    MetricId             INT NOT NULL,
+    Signature            VARCHAR(100) NOT NULL,
+
+    CONSTRAINT PK_QCMetricValueState PRIMARY KEY (Container, MetricId),
+    CONSTRAINT FK_QCMetricValueState_Container FOREIGN KEY (Container) REFERENCES core.Containers(EntityId)
+);
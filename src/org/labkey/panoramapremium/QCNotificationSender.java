@@ -1,8 +1,14 @@
 package org.labkey.panoramapremium;
 
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
 import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerManager;
 import org.labkey.api.data.DbSchema;
 import org.labkey.api.data.DbSchemaType;
+import org.labkey.api.data.DbScope;
 import org.labkey.api.data.SQLFragment;
 import org.labkey.api.data.SqlSelector;
 import org.labkey.api.security.User;
@@ -17,6 +23,8 @@
 import org.labkey.api.util.ExceptionUtil;
 import org.labkey.api.util.MailHelper;
 import org.labkey.api.util.PageFlowUtil;
+import org.labkey.api.util.ShutdownListener;
+import org.labkey.api.util.logging.LogHelper;
 import org.labkey.panoramapremium.model.UserSubscription;
 import org.labkey.targetedms.TargetedMSManager;
 
@@ -24,63 +32,246 @@
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
-
-public class QCNotificationSender implements SkylineDocumentImportListener
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Emails subscribed users about outliers in newly imported QC data. The check runs on a background thread after the
+ * import commits, rather than inside the import, so that imports don't wait for the outlier calculation. Imports into
+ * the same folder in quick succession, as when AutoQC uploads a batch of files, are coalesced into a single check.
+ */
+public class QCNotificationSender implements SkylineDocumentImportListener, ShutdownListener
 {
     private static final QCNotificationSender _instance = new QCNotificationSender();
     private static final int QC_SAMPLE_FILE_LIMIT = 5;
 
+    /** Wait this long after a folder's most recent import before checking it */
+    private static final long DEBOUNCE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    /** But don't let a steady stream of imports put off the check for longer than this */
+    private static final long MAX_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final Logger LOG = LogHelper.getLogger(QCNotificationSender.class, "Sends QC outlier notification emails");
+
+    @Nullable
+    private final ScheduledExecutorService _executor;
+    private final Scheduler _scheduler;
+    private final LongSupplier _clock;
+    /** Runs the check for a folder, given its id and the user who most recently imported into it */
+    private final BiConsumer<String, User> _check;
+
+    /** Container id to the imports waiting to be checked */
+    private final Map<String, PendingCheck> _pendingChecks = new ConcurrentHashMap<>();
+
     public static QCNotificationSender get()
     {
         return _instance;
     }
 
+    private QCNotificationSender()
+    {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "QC notification sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _executor = executor;
+        _scheduler = (task, delayMillis) -> executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        _clock = System::currentTimeMillis;
+        _check = this::sendNotifications;
+    }
+
+    /** For tests, which control the passage of time and see what would be sent */
+    private QCNotificationSender(Scheduler scheduler, LongSupplier clock, BiConsumer<String, User> check)
+    {
+        _executor = null;
+        _scheduler = scheduler;
+        _clock = clock;
+        _check = check;
+    }
+
+    @FunctionalInterface
+    private interface Scheduler
+    {
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    private static class PendingCheck
+    {
+        private final long _firstImport;
+        private long _lastImport;
+        private User _user;
+
+        private PendingCheck(User user, long now)
+        {
+            _firstImport = now;
+            _lastImport = now;
+            _user = user;
+        }
+
+        private long getDueTime()
+        {
+            return Math.min(_lastImport + DEBOUNCE_MILLIS, _firstImport + MAX_DELAY_MILLIS);
+        }
+    }
+
     @Override
     public void onDocumentImport(Container container, User user, ITargetedMSRun run)
     {
         //check for QC folder
         if(TargetedMSService.get().getFolderType(container) == TargetedMSService.FolderType.QC)
         {
-            //check if the user is subscribed to receive qc notifications
-            List<UserSubscription> userSubscriptions = getUserSubscriptions(container);
+            // Wait for the import to commit so that the check sees its data. Nothing to send if it rolls back.
+            TargetedMSManager.getSchema().getScope().addCommitTask(() -> queueCheck(container.getId(), user), DbScope.CommitTaskOption.POSTCOMMIT);
+        }
+    }
+
+    private void queueCheck(String containerId, User user)
+    {
+        long now = _clock.getAsLong();
+        boolean[] added = new boolean[1];
+        _pendingChecks.compute(containerId, (id, pending) -> {
+            if (pending == null)
+            {
+                added[0] = true;
+                return new PendingCheck(user, now);
+            }
+            pending._lastImport = now;
+            pending._user = user;
+            return pending;
+        });
+        if (added[0])
+        {
+            _scheduler.schedule(() -> runCheck(containerId), DEBOUNCE_MILLIS);
+        }
+    }
 
-            if (!userSubscriptions.isEmpty())
+    private void runCheck(String containerId)
+    {
+        long now = _clock.getAsLong();
+        PendingCheck[] ready = new PendingCheck[1];
+        long[] remaining = new long[1];
+        _pendingChecks.computeIfPresent(containerId, (id, pending) -> {
+            long dueTime = pending.getDueTime();
+            if (now < dueTime)
+            {
+                // More imports arrived since this was scheduled, so give them a chance to finish too
+                remaining[0] = dueTime - now;
+                return pending;
+            }
+            ready[0] = pending;
+            return null;
+        });
+
+        if (ready[0] == null)
+        {
+            if (remaining[0] > 0)
             {
-                List<SampleFileInfo> sampleFiles = TargetedMSService.get().getSampleFiles(container, user, QC_SAMPLE_FILE_LIMIT);
+                _scheduler.schedule(() -> runCheck(containerId), remaining[0]);
+            }
+            return;
+        }
+
+        _check.accept(containerId, ready[0]._user);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "QC notification sender";
+    }
+
+    @Override
+    public void shutdownPre()
+    {
+    }
+
+    /**
+     * Drops the checks that haven't run yet rather than calculating outliers and sending email while the server is
+     * going down. The imports that queued them have committed, so their data will be in the next check for the folder.
+     */
+    @Override
+    public void shutdownStarted()
+    {
+        if (_executor != null)
+        {
+            _executor.shutdownNow();
+        }
+        if (!_pendingChecks.isEmpty())
+        {
+            LOG.info("Skipping QC notification checks for " + _pendingChecks.size() + " folder(s) due to shutdown");
+            _pendingChecks.clear();
+        }
+    }
+
+    private void sendNotifications(String containerId, User user)
+    {
+        Container container = ContainerManager.getForId(containerId);
+        if (container == null)
+        {
+            // Deleted while we were waiting
+            return;
+        }
+
+        try
+        {
+            sendNotifications(container, user);
+        }
+        catch (Exception e)
+        {
+            LOG.error("Failed to send QC notifications for " + container.getPath(), e);
+            ExceptionUtil.logExceptionToMothership(null, e);
+        }
+    }
+
+    /** Calculates the outliers once and checks every subscription in the folder against them */
+    private void sendNotifications(Container container, User user)
+    {
+        //check if the user is subscribed to receive qc notifications
+        List<UserSubscription> userSubscriptions = getUserSubscriptions(container);
+
+        if (!userSubscriptions.isEmpty())
+        {
+            List<SampleFileInfo> sampleFiles = TargetedMSService.get().getSampleFiles(container, user, QC_SAMPLE_FILE_LIMIT);
+
+            //sorting the map to show latest run first
+            sampleFiles.sort(Comparator.comparing(SampleFileInfo::getAcquiredTime).reversed());
 
-                //sorting the map to show latest run first
-                sampleFiles.sort(Comparator.comparing(SampleFileInfo::getAcquiredTime).reversed());
+            userSubscriptions.forEach(userSubscription -> {
+                int totalOutliers = 0;
+                int totalOutlierSubscribed = userSubscription.getOutliers() == null ? 0 : userSubscription.getOutliers();
+                int sampleCount = 0;
 
-                userSubscriptions.forEach(userSubscription -> {
-                    int totalOutliers = 0;
-                    int totalOutlierSubscribed = userSubscription.getOutliers() == null ? 0 : userSubscription.getOutliers();
-                    int sampleCount = 0;
+                List<SampleFileInfo> samplesToEmail = new ArrayList<>();
 
-                    List<SampleFileInfo> samplesToEmail = new ArrayList<>();
+                for (SampleFileInfo sampleFileInfoDetails : sampleFiles)
+                {
+                    sampleCount++;
 
-                    for (SampleFileInfo sampleFileInfoDetails : sampleFiles)
+                    if (sampleFileInfoDetails.getValue() > 0)
                     {
-                        sampleCount++;
-
-                        if (sampleFileInfoDetails.getValue() > 0)
-                        {
-                            totalOutliers += sampleFileInfoDetails.getValue();
-                            samplesToEmail.add(sampleFileInfoDetails);
-                        }
-
-                        if(sampleCount == userSubscription.getSamples())
-                        {
-                            break;
-                        }
+                        totalOutliers += sampleFileInfoDetails.getValue();
+                        samplesToEmail.add(sampleFileInfoDetails);
                     }
 
-                    //send email
-                    if (totalOutliers >= totalOutlierSubscribed)
+                    if(sampleCount == userSubscription.getSamples())
                     {
-                        sendQCNotification(container, userSubscription, samplesToEmail);
+                        break;
                     }
-                });
-            }
+                }
+
+                //send email
+                if (totalOutliers >= totalOutlierSubscribed)
+                {
+                    sendQCNotification(container, userSubscription, samplesToEmail);
+                }
+            });
         }
     }
 
@@ -226,4 +417,84 @@ public List<UserSubscription> getUserSubscriptions(Container container)
         DbSchema query = DbSchema.get("targetedms", DbSchemaType.Module);
         return new SqlSelector(query, sql).getArrayList(UserSubscription.class);
     }
- }
+
+    public static class TestCase extends Assert
+    {
+        private long _now;
+        /** Tasks waiting to run, keyed by when they're due */
+        private final TreeMap<Long, List<Runnable>> _scheduled = new TreeMap<>();
+        private final List<String> _checked = new ArrayList<>();
+
+        private QCNotificationSender createSender()
+        {
+            _now = 0;
+            _scheduled.clear();
+            _checked.clear();
+            return new QCNotificationSender(
+                    (task, delayMillis) -> _scheduled.computeIfAbsent(_now + delayMillis, t -> new ArrayList<>()).add(task),
+                    () -> _now,
+                    (containerId, user) -> _checked.add(containerId));
+        }
+
+        /** Moves the clock forward, running whatever comes due along the way */
+        private void advanceTo(long time)
+        {
+            while (!_scheduled.isEmpty() && _scheduled.firstKey() <= time)
+            {
+                Map.Entry<Long, List<Runnable>> due = _scheduled.pollFirstEntry();
+                _now = due.getKey();
+                due.getValue().forEach(Runnable::run);
+            }
+            _now = time;
+        }
+
+        @Test
+        public void testDebounce()
+        {
+            QCNotificationSender sender = createSender();
+            sender.queueCheck("A", User.guest);
+            advanceTo(20_000);
+            sender.queueCheck("A", User.guest);
+            sender.queueCheck("B", User.guest);
+
+            // A's first check comes due, but is put off because of the second import
+            advanceTo(DEBOUNCE_MILLIS);
+            assertTrue(_checked.isEmpty());
+
+            // Both folders are checked once, 30 seconds after their last import
+            advanceTo(20_000 + DEBOUNCE_MILLIS);
+            assertEquals(2, _checked.size());
+            assertEquals(Set.of("A", "B"), Set.copyOf(_checked));
+            assertTrue(sender._pendingChecks.isEmpty());
+
+            // A later import starts over
+            sender.queueCheck("A", User.guest);
+            advanceTo(_now + DEBOUNCE_MILLIS);
+            assertEquals(3, _checked.size());
+            assertEquals("A", _checked.get(2));
+        }
+
+        @Test
+        public void testMaxDelay()
+        {
+            QCNotificationSender sender = createSender();
+            // An import every 20 seconds would put off the check forever without the cap
+            for (long time = 0; time <= MAX_DELAY_MILLIS; time += 20_000)
+            {
+                advanceTo(time);
+                assertEquals("Wrong number of checks at " + time, time < MAX_DELAY_MILLIS ? 0 : 1, _checked.size());
+                sender.queueCheck("A", User.guest);
+            }
+        }
+
+        @Test
+        public void testShutdown()
+        {
+            QCNotificationSender sender = createSender();
+            sender.queueCheck("A", User.guest);
+            sender.shutdownStarted();
+            advanceTo(MAX_DELAY_MILLIS);
+            assertTrue(_checked.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2024 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms;
+
+import org.labkey.api.collections.CaseInsensitiveHashMap;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ObjectFactory;
+import org.labkey.api.data.RuntimeSQLException;
+import org.labkey.api.data.Table;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.security.User;
+import org.labkey.api.util.GUID;
+import org.labkey.targetedms.parser.SkylineEntity;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inserts a list of beans into a single table with one reusable prepared statement, sending the rows to the database
+ * as a JDBC batch instead of preparing and executing a statement per row through Table.insert(). Used for the
+ * high-volume entities in the document hierarchy (precursors and transitions) during Skyline document import.
+ *
+ * When generateIds is true the table's Id column is database-assigned and the generated values are set back on the
+ * beans. Only PostgreSQL's driver returns the keys for every row in a batch, so other databases fall back to
+ * Table.insert(). When generateIds is false the Id must already be set on the beans, as it is for the tables that
+ * share their Id with a parent table (e.g. Transition and GeneralTransition).
+ */
+class BeanBatchInserter<K extends SkylineEntity>
+{
+    private static final String OWNER = "Owner";
+    private static final String CREATED = "Created";
+    private static final String CREATED_BY = "CreatedBy";
+    private static final String MODIFIED = "Modified";
+    private static final String MODIFIED_BY = "ModifiedBy";
+    private static final String ENTITY_ID = "EntityId";
+
+    private final User _user;
+    private final TableInfo _table;
+    private final boolean _generateIds;
+
+    private List<ColumnInfo> _columns;
+    private PreparedStatement _stmt;
+
+    BeanBatchInserter(User user, TableInfo table, boolean generateIds)
+    {
+        _user = user;
+        _table = table;
+        _generateIds = generateIds;
+    }
+
+    public void insert(List<? extends K> beans)
+    {
+        if (beans.isEmpty())
+        {
+            return;
+        }
+
+        if (_generateIds && !TargetedMSManager.getSqlDialect().isPostgreSQL())
+        {
+            beans.forEach(bean -> Table.insert(_user, _table, bean));
+            return;
+        }
+
+        try
+        {
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            List<Map<String, Object>> rows = new ArrayList<>(beans.size());
+            for (K bean : beans)
+            {
+                Map<String, Object> row = toMap(bean);
+                setSpecialFields(row, now);
+                rows.add(row);
+            }
+            ensureStatement(rows.get(0));
+
+            for (Map<String, Object> row : rows)
+            {
+                int index = 1;
+                for (ColumnInfo col : _columns)
+                {
+                    Object value = toJdbcValue(col, row.get(col.getName()));
+                    if (value == null)
+                    {
+                        _stmt.setNull(index++, col.getJdbcType().sqlType);
+                    }
+                    else
+                    {
+                        _stmt.setObject(index++, value, col.getJdbcType().sqlType);
+                    }
+                }
+                _stmt.addBatch();
+            }
+            _stmt.executeBatch();
+
+            if (_generateIds)
+            {
+                try (ResultSet rs = _stmt.getGeneratedKeys())
+                {
+                    for (K bean : beans)
+                    {
+                        if (!rs.next())
+                        {
+                            throw new IllegalStateException("Expected " + beans.size() + " generated ids from batch insert into " + _table.getName() + " but got fewer");
+                        }
+                        bean.setId(rs.getLong(1));
+                    }
+                }
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeSQLException(e);
+        }
+    }
+
+    public void close()
+    {
+        if (_stmt != null) { try { _stmt.close(); } catch (SQLException ignored) {} }
+        _stmt = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> toMap(K bean)
+    {
+        ObjectFactory<K> factory = ObjectFactory.Registry.getFactory((Class<K>) bean.getClass());
+        return new CaseInsensitiveHashMap<>(factory.toMap(bean, null));
+    }
+
+    /**
+     * Fills in the columns that Table.insert() manages itself, which the beans usually don't have properties for:
+     * the creating and modifying user, the created and modified dates, and a new EntityId
+     */
+    private void setSpecialFields(Map<String, Object> row, Timestamp now)
+    {
+        if (_user != null)
+        {
+            for (String userColumn : List.of(OWNER, CREATED_BY, MODIFIED_BY))
+            {
+                if (_table.getColumn(userColumn) != null)
+                    row.put(userColumn, _user.getUserId());
+            }
+        }
+        if (_table.getColumn(CREATED) != null && (!(row.get(CREATED) instanceof Date created) || created.getTime() == 0))
+            row.put(CREATED, now);
+        if (_table.getColumn(MODIFIED) != null)
+            row.put(MODIFIED, now);
+        if (_table.getColumn(ENTITY_ID) != null && row.get(ENTITY_ID) == null)
+            row.put(ENTITY_ID, GUID.makeGUID());
+    }
+
+    /** Same conversions that Table.insert() applies to bean properties that don't map directly to a JDBC type */
+    private static Object toJdbcValue(ColumnInfo col, Object value)
+    {
+        if (value instanceof Container c)
+            return c.getId();
+        if (value instanceof GUID g)
+            return g.toString();
+        // Enums such as RepresentativeDataState are stored by ordinal in integer columns, and by name otherwise
+        if (value instanceof Enum<?> e)
+            return col.getJdbcType().isInteger() ? e.ordinal() : e.name();
+        if (value instanceof Date d && !(value instanceof java.sql.Date) && !(value instanceof Timestamp))
+            return new Timestamp(d.getTime());
+        return value;
+    }
+
+    /**
+     * The column list comes from the table's columns that have a matching bean property, so it's computed once from
+     * the first row. All the beans inserted through an instance are expected to be of the same class.
+     */
+    private void ensureStatement(Map<String, Object> firstRow) throws SQLException
+    {
+        if (_stmt != null)
+        {
+            return;
+        }
+
+        _columns = new ArrayList<>();
+        StringBuilder names = new StringBuilder();
+        StringBuilder params = new StringBuilder();
+        String separator = "";
+        for (ColumnInfo col : _table.getColumns())
+        {
+            if (col.isAutoIncrement() || (_generateIds && "Id".equalsIgnoreCase(col.getName())) || !firstRow.containsKey(col.getName()))
+            {
+                continue;
+            }
+            _columns.add(col);
+            names.append(separator).append(col.getSelectName());
+            params.append(separator).append("?");
+            separator = ", ";
+        }
+
+        String sql = "INSERT INTO " + _table.getSelectName() + " (" + names + ") VALUES (" + params + ")";
+
+        assert TargetedMSManager.getSchema().getScope().isTransactionActive();
+        Connection c = TargetedMSManager.getSchema().getScope().getConnection();
+        _stmt = _generateIds ? c.prepareStatement(sql, new String[]{"id"}) : c.prepareStatement(sql);
+    }
+}
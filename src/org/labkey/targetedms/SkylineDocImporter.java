@@ -62,9 +62,12 @@
 import org.labkey.targetedms.calculations.RunQuantifier;
 import org.labkey.targetedms.calculations.quantification.RegressionFit;
 import org.labkey.api.targetedms.model.QCMetricConfiguration;
+import org.labkey.targetedms.outliers.QCMetricValueManager;
+import org.labkey.targetedms.outliers.TraceMetricCalculator;
 import org.labkey.targetedms.parser.*;
 import org.labkey.targetedms.parser.list.ListData;
 import org.labkey.targetedms.parser.skyaudit.AuditLogException;
+import org.labkey.targetedms.parser.speclib.LibConnectionPool;
 import org.labkey.targetedms.query.ConflictResultsManager;
 import org.labkey.targetedms.query.ReplicateManager;
 import org.labkey.targetedms.query.RepresentativeStateManager;
@@ -100,6 +103,7 @@
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ObjLongConsumer;
 
 import static org.labkey.targetedms.TargetedMSManager.getTableInfoTransitionChromInfo;
 
@@ -157,10 +161,24 @@
     private transient PreparedStatement _precursorChromInfoStmt;
     private File _auditLogFile;
 
+    /** Maximum number of chrom info rows sent to the database in a single JDBC batch */
+    private static final int CHROM_INFO_BATCH_SIZE = 1000;
+
+    // TransitionChromInfos are buffered per precursor and written in batches. See flushTransitionChromInfos()
+    private final List<TransitionChromInfo> _pendingTransitionChromInfos = new ArrayList<>();
+
+    // Precursors are inserted in batches per peptide, and transitions in batches per precursor
+    private transient BeanBatchInserter<GeneralPrecursor<?>> _generalPrecursorInserter;
+    private transient BeanBatchInserter<Precursor> _precursorInserter;
+    private transient BeanBatchInserter<GeneralTransition> _generalTransitionInserter;
+    private transient BeanBatchInserter<Transition> _transitionInserter;
+
     private final Set<String> _missingLibraries = new HashSet<>();
     private boolean _hasDayAnnotation;
 
     private boolean _shouldSaveTransitionChromInfos = true;
+    private int _maxTransitionChromInfos;
+    private int _maxPrecursors;
 
     @JsonCreator
     private SkylineDocImporter(@JsonProperty("_expData") ExpData expData, @JsonProperty("_context") XarContext context,
@@ -316,11 +334,18 @@ private void importSkylineDoc(TargetedMSRun run, File f) throws XMLStreamExcepti
         NetworkDrive.ensureDrive(f.getPath());
         f = extractIfZip(f);
 
+        _generalPrecursorInserter = new BeanBatchInserter<>(_user, TargetedMSManager.getTableInfoGeneralPrecursor(), true);
+        _precursorInserter = new BeanBatchInserter<>(_user, TargetedMSManager.getTableInfoPrecursor(), false);
+        _generalTransitionInserter = new BeanBatchInserter<>(_user, TargetedMSManager.getTableInfoGeneralTransition(), true);
+        _transitionInserter = new BeanBatchInserter<>(_user, TargetedMSManager.getTableInfoTransition(), false);
+
         TargetedMSService.FolderType folderType = TargetedMSManager.getFolderType(run.getContainer());
 
         // To prevent giant DIA documents from overwhelming the DB, we skip importing TransitionChromInfos if the
-        // the TransitionChromInfos and precursors in the document exceed the set limit.
-        _shouldSaveTransitionChromInfos = documentIsWithinLimits(f, run.getContainer(), _log);
+        // the TransitionChromInfos and precursors in the document exceed the set limit. The counts are checked as
+        // the document is parsed. See checkTransitionChromInfoLimits()
+        _shouldSaveTransitionChromInfos = true;
+        readTransitionChromInfoLimits(run.getContainer(), _log);
 
         try (SkylineDocumentParser parser = new SkylineDocumentParser(f, _log, run.getContainer(), _progressMonitor.getParserProgressTracker()))
         {
@@ -392,7 +417,7 @@ private void importSkylineDoc(TargetedMSRun run, File f) throws XMLStreamExcepti
             int peptideGroupCount = 0;
             while (parser.hasNextPeptideGroup())
             {
-                // TODO: bulk insert of precursor, transition, chrom info etc.
+                // Precursors, transitions and chrom infos are batched below; peptides and molecules are still inserted one at a time
                 PeptideGroup pepGroup = parser.nextPeptideGroup();
                 insertPeptideGroup(replicateInfo.skylineIdSampleFileIdMap,
                         modInfo, libraryNameIdMap, pepGroup, parser, peptides, smallMolecules, parser.getTransitionSettings());
@@ -402,7 +427,13 @@ private void importSkylineDoc(TargetedMSRun run, File f) throws XMLStreamExcepti
                 }
             }
 
-            if (!_shouldSaveTransitionChromInfos)
+            if (_shouldSaveTransitionChromInfos)
+            {
+                // The indices were only stored in case the document turned out to be over the limits
+                TargetedMSManager.clearTransitionChromatogramIndicesForRun(_runId);
+                _log.info("TransitionChromInfo counts or precursor counts are within the allowed limits. TransitionChromInfos were stored");
+            }
+            else
             {
                 TargetedMSModule targetedMSModule = ModuleLoader.getInstance().getModule(TargetedMSModule.class);
                 _log.info("None of the " + parser.getTransitionChromInfoCount() + " TransitionChromInfos in the file " +
@@ -433,6 +464,12 @@ private void importSkylineDoc(TargetedMSRun run, File f) throws XMLStreamExcepti
 
             calculateSampleFileIRTStats(run, replicateInfo, parser);
 
+            if (folderType == TargetedMSService.FolderType.QC)
+            {
+                // Store the new sample files' metric values so the QC plots and outlier summaries don't need to recalculate them
+                QCMetricValueManager.insertValuesForRun(new TargetedMSSchema(_user, _container), run.getId());
+            }
+
             if (run.isRepresentative())
             {
                 // Persist the run so that the skydDataId is available when writing the updated chromatogram library.
@@ -532,6 +569,11 @@ else if (folderType == TargetedMSService.FolderType.Library)
             _precursorChromInfoStmt = null;
             if (_generalMoleculeAnnotationStmt != null) { try { _generalMoleculeAnnotationStmt.close(); } catch (SQLException ignored) {} }
             _generalMoleculeAnnotationStmt = null;
+            _pendingTransitionChromInfos.clear();
+            _generalPrecursorInserter.close();
+            _precursorInserter.close();
+            _generalTransitionInserter.close();
+            _transitionInserter.close();
         }
     }
 
@@ -999,6 +1041,8 @@ private File extractIfZip(File f) throws IOException
             File zipDir = new File(f.getParent(), SkylineFileUtils.getBaseName(f.getName()));
             if (zipDir.exists())
             {
+                // Don't leave pooled connections open to spectrum libraries from an earlier import of the same file
+                LibConnectionPool.get().closeLibrariesIn(zipDir.toPath());
                 FileUtil.deleteDirectoryContents(zipDir.toPath());
             }
             _blibSourceDir = zipDir;
@@ -1347,6 +1391,8 @@ else if(!pepGroup.isDecoy())
                 }
             }
 
+            checkTransitionChromInfoLimits(parser);
+
             insertPeptideOrSmallMolecule(skylineIdSampleFileIdMap, modInfo,
                     libraryNameIdMap, pepGroup, generalMolecule, transitionSettings, parser);
         }
@@ -1484,16 +1530,13 @@ else if (generalMolecule instanceof Molecule molecule)
                     peptide.getGeneralMoleculeChromInfoList(), skylineIdSampleFileIdMap);
 
             // 3. precursor
-            for (Precursor precursor : peptide.getPrecursorList())
-            {
-                insertPrecursor(
-                        skylineIdSampleFileIdMap,
-                        modInfo,
-                        libraryNameIdMap,
-                        peptide,
-                        sampleFileIdGeneralMolChromInfoIdMap,
-                        precursor, parser);
-            }
+            insertPrecursors(
+                    skylineIdSampleFileIdMap,
+                    modInfo,
+                    libraryNameIdMap,
+                    peptide,
+                    sampleFileIdGeneralMolChromInfoIdMap,
+                    parser);
 
             // 4. Calculate and insert peak area ratios
             PeakAreaRatioCalculator areaRatioCalculator = new PeakAreaRatioCalculator(peptide, transitionSettings);
@@ -1591,6 +1634,8 @@ private void insertMoleculePrecursor(Molecule molecule,
         {
             insertMoleculeTransition(molecule, moleculePrecursor, moleculeTransition, skylineIdSampleFileIdMap, sampleFilePrecursorChromInfoIdMap, parser);
         }
+
+        flushTransitionChromInfos();
     }
 
     private void insertPrecursorAnnotation(List<PrecursorAnnotation> precursorAnnotations, GeneralPrecursor<?> gp, long id)
@@ -1655,34 +1700,58 @@ private void insertTransitionAnnotation(List<TransitionAnnotation> annotations,
         }
     }
 
-    private void insertPrecursor(Map<SampleFileKey, SampleFile> skylineIdSampleFileIdMap,
-                                 ModificationInfo modInfo,
-                                 Map<String, Long> libraryNameIdMap,
-                                 Peptide peptide,
-                                 Map<Long, Long> sampleFileIdGeneralMolChromInfoIdMap,
-                                 Precursor precursor,
-                                 SkylineDocumentParser parser)
+    private void insertPrecursors(Map<SampleFileKey, SampleFile> skylineIdSampleFileIdMap,
+                                  ModificationInfo modInfo,
+                                  Map<String, Long> libraryNameIdMap,
+                                  Peptide peptide,
+                                  Map<Long, Long> sampleFileIdGeneralMolChromInfoIdMap,
+                                  SkylineDocumentParser parser)
     {
-        if(_isPeptideLibraryDoc)
+        List<Precursor> precursors = peptide.getPrecursorList();
+        List<GeneralPrecursor<?>> generalPrecursors = new ArrayList<>(precursors.size());
+        for (Precursor precursor : precursors)
         {
-            String precursorKey = precursor.getModifiedSequence() + ", charge " + precursor.getCharge() +", mz " + precursor.getMz();
-            if(_libPrecursors.contains(precursorKey))
-            {
-                throw new PanoramaBadDataException("Duplicate precursor found: " + precursorKey
-                        + ". Documents uploaded to a peptide library folder should contain unique precursors.");
-            }
-            else if(!(peptide.isDecoyPeptide() || peptide.isStandardTypePeptide()))
+            if(_isPeptideLibraryDoc)
             {
-                _libPrecursors.add(precursorKey);
+                String precursorKey = precursor.getModifiedSequence() + ", charge " + precursor.getCharge() +", mz " + precursor.getMz();
+                if(_libPrecursors.contains(precursorKey))
+                {
+                    throw new PanoramaBadDataException("Duplicate precursor found: " + precursorKey
+                            + ". Documents uploaded to a peptide library folder should contain unique precursors.");
+                }
+                else if(!(peptide.isDecoyPeptide() || peptide.isStandardTypePeptide()))
+                {
+                    _libPrecursors.add(precursorKey);
+                }
             }
+            generalPrecursors.add(createGeneralPrecursor(modInfo, peptide, precursor));
         }
 
-        GeneralPrecursor<?> gp = insertGeneralPrecursor(modInfo, peptide, precursor);
+        // Insert all the precursors for the peptide in one batch per table
+        _generalPrecursorInserter.insert(generalPrecursors);
+        for (int i = 0; i < precursors.size(); i++)
+        {
+            GeneralPrecursor<?> gp = generalPrecursors.get(i);
+            precursors.get(i).setIsotopeLabelId(gp.getIsotopeLabelId());
+            precursors.get(i).setId(gp.getId());
+        }
+        _precursorInserter.insert(precursors);
 
-        precursor.setIsotopeLabelId(gp.getIsotopeLabelId());
-        precursor.setId(gp.getId());
-        precursor = Table.insert(_user, TargetedMSManager.getTableInfoPrecursor(), precursor);
+        for (int i = 0; i < precursors.size(); i++)
+        {
+            insertPrecursorDetails(skylineIdSampleFileIdMap, modInfo, libraryNameIdMap, sampleFileIdGeneralMolChromInfoIdMap,
+                    generalPrecursors.get(i), precursors.get(i), parser);
+        }
+    }
 
+    private void insertPrecursorDetails(Map<SampleFileKey, SampleFile> skylineIdSampleFileIdMap,
+                                        ModificationInfo modInfo,
+                                        Map<String, Long> libraryNameIdMap,
+                                        Map<Long, Long> sampleFileIdGeneralMolChromInfoIdMap,
+                                        GeneralPrecursor<?> gp,
+                                        Precursor precursor,
+                                        SkylineDocumentParser parser)
+    {
         insertPrecursorAnnotation(precursor.getAnnotations(), gp, precursor.getId());
 
         insertLibInfo(precursor.getBibliospecLibraryInfo(), precursor, gp, libraryNameIdMap, TargetedMSManager.getTableInfoBibliospec());
@@ -1695,10 +1764,10 @@ else if(!(peptide.isDecoyPeptide() || peptide.isStandardTypePeptide()))
                 precursor.getModifiedSequence(), precursor.getChromInfoList(), skylineIdSampleFileIdMap, sampleFileIdGeneralMolChromInfoIdMap);
 
         // 4. transition
-        for(Transition transition: precursor.getTransitionsList())
-        {
-            insertTransition(skylineIdSampleFileIdMap, modInfo, precursor, sampleFilePrecursorChromInfoIdMap, transition, parser);
-        }
+        insertTransitions(skylineIdSampleFileIdMap, modInfo, precursor, sampleFilePrecursorChromInfoIdMap, parser);
+
+        // Write out the TransitionChromInfos before the area ratios for the peptide need their database ids
+        flushTransitionChromInfos();
     }
 
     private void insertLibInfo(Precursor.LibraryInfo libraryInfo, Precursor precursor, GeneralPrecursor<?> gp, Map<String, Long> libraryNameIdMap, TableInfo tableInfo)
@@ -1728,6 +1797,11 @@ private void insertLibInfo(Precursor.LibraryInfo libraryInfo, Precursor precurso
     }
 
     private GeneralPrecursor<?> insertGeneralPrecursor(ModificationInfo modInfo, GeneralMolecule peptide, GeneralPrecursor<?> precursor)
+    {
+        return Table.insert(_user, TargetedMSManager.getTableInfoGeneralPrecursor(), createGeneralPrecursor(modInfo, peptide, precursor));
+    }
+
+    private GeneralPrecursor<?> createGeneralPrecursor(ModificationInfo modInfo, GeneralMolecule peptide, GeneralPrecursor<?> precursor)
     {
         //setting values for GeneralPrecursor here seems odd - is there a better way?
         GeneralPrecursor<?> gp = new GeneralPrecursor<>();
@@ -1745,39 +1819,60 @@ private GeneralPrecursor<?> insertGeneralPrecursor(ModificationInfo modInfo, Gen
         gp.setPrecursorConcentration(precursor.getPrecursorConcentration());
         gp.setIsotopeLabel(precursor.getIsotopeLabel());
         gp.setIsotopeLabelId(modInfo.isotopeLabelIdMap.get(precursor.getIsotopeLabel()));
-        gp = Table.insert(_user, TargetedMSManager.getTableInfoGeneralPrecursor(), gp);
         return gp;
     }
 
-    private void insertTransition(Map<SampleFileKey, SampleFile> skylineIdSampleFileIdMap,
-                                  ModificationInfo modInfo,
-                                  Precursor precursor,
-                                  Map<SampleFileOptStepKey, Long> sampleFilePrecursorChromInfoIdMap,
-                                  Transition transition, SkylineDocumentParser parser)
+    private void insertTransitions(Map<SampleFileKey, SampleFile> skylineIdSampleFileIdMap,
+                                   ModificationInfo modInfo,
+                                   Precursor precursor,
+                                   Map<SampleFileOptStepKey, Long> sampleFilePrecursorChromInfoIdMap,
+                                   SkylineDocumentParser parser)
     {
-        GeneralTransition gt = new GeneralTransition();
-        gt.setGeneralPrecursorId(precursor.getId());
-        gt.setMz(transition.getMz());
-        gt.setCharge(transition.getCharge());
-        gt.setFragmentType(transition.getFragmentType());
-        gt.setIsotopeDistRank(transition.getIsotopeDistRank());
-        gt.setIsotopeDistProportion(transition.getIsotopeDistProportion());
-        gt.setMassIndex(transition.getMassIndex());
-        gt.setExplicitCollisionEnergy(transition.getExplicitCollisionEnergy());
-        gt.setExplicitSLens(transition.getExplicitSLens());
-        gt.setExplicitConeVoltage(transition.getExplicitConeVoltage());
-        gt.setQuantitative(transition.getQuantitative());
-        gt.setExplicitIonMobilityHighEnergyOffset(transition.getExplicitIonMobilityHighEnergyOffset());
-        gt.setExplicitDeclusteringPotential(transition.getExplicitDeclusteringPotential());
-        gt.setCollisionEnergy(transition.getCollisionEnergy());
-        gt.setDeclusteringPotential(transition.getDeclusteringPotential());
-        gt.setRank(transition.getRank());
-        gt.setIntensity(transition.getIntensity());
-        gt = Table.insert(_user, TargetedMSManager.getTableInfoGeneralTransition(), gt);
+        List<Transition> transitions = precursor.getTransitionsList();
+        List<GeneralTransition> generalTransitions = new ArrayList<>(transitions.size());
+        for (Transition transition : transitions)
+        {
+            GeneralTransition gt = new GeneralTransition();
+            gt.setGeneralPrecursorId(precursor.getId());
+            gt.setMz(transition.getMz());
+            gt.setCharge(transition.getCharge());
+            gt.setFragmentType(transition.getFragmentType());
+            gt.setIsotopeDistRank(transition.getIsotopeDistRank());
+            gt.setIsotopeDistProportion(transition.getIsotopeDistProportion());
+            gt.setMassIndex(transition.getMassIndex());
+            gt.setExplicitCollisionEnergy(transition.getExplicitCollisionEnergy());
+            gt.setExplicitSLens(transition.getExplicitSLens());
+            gt.setExplicitConeVoltage(transition.getExplicitConeVoltage());
+            gt.setQuantitative(transition.getQuantitative());
+            gt.setExplicitIonMobilityHighEnergyOffset(transition.getExplicitIonMobilityHighEnergyOffset());
+            gt.setExplicitDeclusteringPotential(transition.getExplicitDeclusteringPotential());
+            gt.setCollisionEnergy(transition.getCollisionEnergy());
+            gt.setDeclusteringPotential(transition.getDeclusteringPotential());
+            gt.setRank(transition.getRank());
+            gt.setIntensity(transition.getIntensity());
+            generalTransitions.add(gt);
+        }
 
-        transition.setId(gt.getId());
-        Table.insert(_user, TargetedMSManager.getTableInfoTransition(), transition);
+        // Insert all the transitions for the precursor in one batch per table
+        _generalTransitionInserter.insert(generalTransitions);
+        for (int i = 0; i < transitions.size(); i++)
+        {
+            transitions.get(i).setId(generalTransitions.get(i).getId());
+        }
+        _transitionInserter.insert(transitions);
+
+        for (Transition transition : transitions)
+        {
+            insertTransitionDetails(skylineIdSampleFileIdMap, modInfo, precursor, sampleFilePrecursorChromInfoIdMap, transition, parser);
+        }
+    }
 
+    private void insertTransitionDetails(Map<SampleFileKey, SampleFile> skylineIdSampleFileIdMap,
+                                         ModificationInfo modInfo,
+                                         Precursor precursor,
+                                         Map<SampleFileOptStepKey, Long> sampleFilePrecursorChromInfoIdMap,
+                                         Transition transition, SkylineDocumentParser parser)
+    {
         // transition annotations
         insertTransitionAnnotation(transition.getAnnotations(), transition.getId());
 
@@ -1793,7 +1888,7 @@ private void insertTransition(Map<SampleFileKey, SampleFile> skylineIdSampleFile
         }
 
         // transition results
-        insertTransitionChromInfos(gt.getId(), transition.getChromInfoList(), skylineIdSampleFileIdMap, sampleFilePrecursorChromInfoIdMap);
+        insertTransitionChromInfos(transition.getId(), transition.getChromInfoList(), skylineIdSampleFileIdMap, sampleFilePrecursorChromInfoIdMap);
 
         // transition neutral losses
         for (TransitionLoss loss : transition.getNeutralLosses())
@@ -1889,6 +1984,7 @@ private Map<SampleFileOptStepKey, Long> insertPrecursorChromInfos(long gpId, Str
                                                                          Map<Long, Long> sampleFileIdGeneralMolChromInfoIdMap)
     {
         Map<SampleFileOptStepKey, Long> sampleFilePrecursorChromInfoIdMap = new HashMap<>();
+        Map<SampleFileOptStepKey, PrecursorChromInfo> sampleFilePrecursorChromInfoMap = new LinkedHashMap<>();
 
         for (PrecursorChromInfo precursorChromInfo: precursorChromInfos)
         {
@@ -1900,7 +1996,7 @@ private Map<SampleFileOptStepKey, Long> insertPrecursorChromInfos(long gpId, Str
 
             SampleFileOptStepKey sampleFileKey = SampleFileOptStepKey.getKey(precursorChromInfo);
 
-            if (sampleFilePrecursorChromInfoIdMap.containsKey(sampleFileKey))
+            if (sampleFilePrecursorChromInfoMap.containsKey(sampleFileKey))
             {
                 throw new PanoramaBadDataException("Multiple precursor chrom infos found for precursor " +
                         label + " and sample file " + precursorChromInfo.getSkylineSampleFileId() +
@@ -1911,9 +2007,17 @@ private Map<SampleFileOptStepKey, Long> insertPrecursorChromInfos(long gpId, Str
             precursorChromInfo.setSampleFileId(sampleFile.getId());
             precursorChromInfo.setGeneralMoleculeChromInfoId(sampleFileIdGeneralMolChromInfoIdMap.get(sampleFile.getId()));
 
-            insertPrecursorChromInfo(precursorChromInfo);
+            sampleFilePrecursorChromInfoMap.put(sampleFileKey, precursorChromInfo);
+        }
+
+        // Insert all the chrom infos for the precursor in one go, then use the generated ids for the annotations
+        // and for the TransitionChromInfos that reference them
+        insertPrecursorChromInfos(new ArrayList<>(sampleFilePrecursorChromInfoMap.values()));
 
-            sampleFilePrecursorChromInfoIdMap.put(sampleFileKey, precursorChromInfo.getId());
+        for (Map.Entry<SampleFileOptStepKey, PrecursorChromInfo> entry : sampleFilePrecursorChromInfoMap.entrySet())
+        {
+            PrecursorChromInfo precursorChromInfo = entry.getValue();
+            sampleFilePrecursorChromInfoIdMap.put(entry.getKey(), precursorChromInfo.getId());
 
             for (PrecursorChromInfoAnnotation annotation : precursorChromInfo.getAnnotations())
             {
@@ -1954,14 +2058,113 @@ private void insertTransitionChromInfos(long gtId, List<TransitionChromInfo> tra
 
             transChromInfo.setPrecursorChromInfoId(precursorChromInfoId);
 
-            insertTransitionChromInfo(transChromInfo);
+            _pendingTransitionChromInfos.add(transChromInfo);
+            if (_pendingTransitionChromInfos.size() >= CHROM_INFO_BATCH_SIZE)
+            {
+                flushTransitionChromInfos();
+            }
+        }
+    }
+
+    /**
+     * Writes out the buffered TransitionChromInfos, and their annotations, now that their ids have been assigned.
+     * Must be called before anything that needs the database ids, like the TransitionAreaRatios for the peptide.
+     */
+    private void flushTransitionChromInfos()
+    {
+        if (_pendingTransitionChromInfos.isEmpty())
+        {
+            return;
+        }
+
+        try
+        {
+            if (useBatchInserts())
+            {
+                _transitionChromInfoStmt = ensureBatchStatement(_transitionChromInfoStmt, TRANSITION_CHROM_INFO_INSERT_SQL);
+                for (TransitionChromInfo transChromInfo : _pendingTransitionChromInfos)
+                {
+                    setTransitionChromInfoParameters(_transitionChromInfoStmt, transChromInfo);
+                    _transitionChromInfoStmt.addBatch();
+                }
+                executeBatch(_transitionChromInfoStmt, _pendingTransitionChromInfos, TransitionChromInfo::setId);
+            }
+            else
+            {
+                for (TransitionChromInfo transChromInfo : _pendingTransitionChromInfos)
+                {
+                    insertTransitionChromInfo(transChromInfo);
+                }
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeSQLException(e);
+        }
 
+        for (TransitionChromInfo transChromInfo : _pendingTransitionChromInfos)
+        {
             for (TransitionChromInfoAnnotation annotation : transChromInfo.getAnnotations())
             {
                 annotation.setTransitionChromInfoId(transChromInfo.getId());
                 insertTransitionChromInfoAnnotation(annotation);
             }
         }
+        _pendingTransitionChromInfos.clear();
+    }
+
+    private void insertPrecursorChromInfos(List<PrecursorChromInfo> precursorChromInfos)
+    {
+        if (!useBatchInserts())
+        {
+            precursorChromInfos.forEach(this::insertPrecursorChromInfo);
+            return;
+        }
+
+        try
+        {
+            _precursorChromInfoStmt = ensureBatchStatement(_precursorChromInfoStmt, PRECURSOR_CHROM_INFO_INSERT_SQL);
+            for (int start = 0; start < precursorChromInfos.size(); start += CHROM_INFO_BATCH_SIZE)
+            {
+                List<PrecursorChromInfo> batch = precursorChromInfos.subList(start, Math.min(start + CHROM_INFO_BATCH_SIZE, precursorChromInfos.size()));
+                for (PrecursorChromInfo preChromInfo : batch)
+                {
+                    setPrecursorChromInfoParameters(_precursorChromInfoStmt, preChromInfo);
+                    _precursorChromInfoStmt.addBatch();
+                }
+                executeBatch(_precursorChromInfoStmt, batch, PrecursorChromInfo::setId);
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeSQLException(e);
+        }
+    }
+
+    /**
+     * PostgreSQL's JDBC driver hands back the generated keys for every row in a batch, so we can send many chrom infos
+     * in a single round trip. Other databases only report the key for the last row, so they insert one row at a time.
+     */
+    private boolean useBatchInserts()
+    {
+        return TargetedMSManager.getSqlDialect().isPostgreSQL();
+    }
+
+    /** Executes the pending batch and assigns the generated ids, which come back in the same order the rows were added */
+    private <T> void executeBatch(PreparedStatement stmt, List<T> rows, ObjLongConsumer<T> idSetter) throws SQLException
+    {
+        stmt.executeBatch();
+        try (ResultSet rs = stmt.getGeneratedKeys())
+        {
+            for (T row : rows)
+            {
+                if (!rs.next())
+                {
+                    throw new IllegalStateException("Expected " + rows.size() + " generated ids from batch insert but got fewer");
+                }
+                idSetter.accept(row, rs.getLong(1));
+            }
+        }
     }
 
     private void insertTransitionChromInfoAnnotation(TransitionChromInfoAnnotation annotation)
@@ -2053,6 +2256,27 @@ private void insertAnnotation(PreparedStatement stmt, AbstractAnnotation annotat
         stmt.execute();
     }
 
+    /**
+     * Like ensureStatement(), but prepares the statement to return the generated ids for all the rows in a JDBC batch
+     */
+    private PreparedStatement ensureBatchStatement(PreparedStatement stmt, String sql)
+    {
+        if (stmt == null)
+        {
+            try
+            {
+                assert TargetedMSManager.getSchema().getScope().isTransactionActive();
+                Connection c = TargetedMSManager.getSchema().getScope().getConnection();
+                stmt = c.prepareStatement(sql, new String[]{"id"});
+            }
+            catch (SQLException e)
+            {
+                throw new RuntimeSQLException(e);
+            }
+        }
+        return stmt;
+    }
+
     /**
      * Prepares a statement for reuse during the import process. For tables that have a lot of rows, this is worth the
      * tradeoff between having more custom code and the perf hit from Table.insert() having to prep a statement for
@@ -2083,47 +2307,16 @@ private PreparedStatement ensureStatement(PreparedStatement stmt, String sql, bo
         return stmt;
     }
 
+    private static final String TRANSITION_CHROM_INFO_INSERT_SQL = "INSERT INTO targetedms.transitionchrominfo(transitionid, samplefileid, precursorchrominfoid, retentiontime, starttime, endtime, height, area, background, fwhm, fwhmdegenerate, truncated, peakrank, optimizationstep, note, chromatogramindex, masserrorppm, userset, identified, pointsacrosspeak, ccs, ionmobility, ionmobilitywindow, ionmobilitytype, rank, rankbylevel, forcedintegration, skewness, kurtosis, stddev, shapecorrelation) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String PRECURSOR_CHROM_INFO_INSERT_SQL = "INSERT INTO targetedms.precursorchrominfo( precursorid, samplefileid, generalmoleculechrominfoid, bestretentiontime, minstarttime, maxendtime, totalarea, totalbackground, maxfwhm, peakcountratio, numtruncated, librarydotp, optimizationstep, note, chromatogram, numtransitions, numpoints, maxheight, isotopedotp, averagemasserrorppm, bestmasserrorppm, userset, uncompressedsize, identified, container, chromatogramformat, chromatogramoffset, chromatogramlength, qvalue, zscore, ccs, ionmobilityms1, ionmobilityfragment, ionmobilitywindow, ionmobilitytype, totalAreaMs1, totalAreaFragment, TransitionChromatogramIndices ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
     private void insertTransitionChromInfo(TransitionChromInfo transChromInfo)
     {
         try
         {
-            _transitionChromInfoStmt = ensureStatement(_transitionChromInfoStmt,
-                    "INSERT INTO targetedms.transitionchrominfo(transitionid, samplefileid, precursorchrominfoid, retentiontime, starttime, endtime, height, area, background, fwhm, fwhmdegenerate, truncated, peakrank, optimizationstep, note, chromatogramindex, masserrorppm, userset, identified, pointsacrosspeak, ccs, ionmobility, ionmobilitywindow, ionmobilitytype, rank, rankbylevel, forcedintegration, skewness, kurtosis, stddev, shapecorrelation) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
-                    true);
-
-            int index = 1;
-            _transitionChromInfoStmt.setLong(index++, transChromInfo.getTransitionId());
-            _transitionChromInfoStmt.setLong(index++, transChromInfo.getSampleFileId());
-            _transitionChromInfoStmt.setLong(index++, transChromInfo.getPrecursorChromInfoId());
-            setDouble(_transitionChromInfoStmt, index++, transChromInfo.getRetentionTime());
-            setDouble(_transitionChromInfoStmt, index++, transChromInfo.getStartTime());
-            setDouble(_transitionChromInfoStmt, index++, transChromInfo.getEndTime());
-            setDouble(_transitionChromInfoStmt, index++, transChromInfo.getHeight());
-            setDouble(_transitionChromInfoStmt, index++, transChromInfo.getArea());
-            setDouble(_transitionChromInfoStmt, index++, transChromInfo.getBackground());
-            setDouble(_transitionChromInfoStmt, index++, transChromInfo.getFwhm());
-            setBoolean(_transitionChromInfoStmt, index++, transChromInfo.getFwhmDegenerate());
-            setBoolean(_transitionChromInfoStmt, index++, transChromInfo.getTruncated());
-            setInteger(_transitionChromInfoStmt, index++, transChromInfo.getPeakRank());
-            setInteger(_transitionChromInfoStmt, index++, transChromInfo.getOptimizationStep());
-            _transitionChromInfoStmt.setString(index++, transChromInfo.getNote());
-            setInteger(_transitionChromInfoStmt, index++, transChromInfo.getChromatogramIndex());
-            setDouble(_transitionChromInfoStmt, index++, transChromInfo.getMassErrorPPM());
-            _transitionChromInfoStmt.setString(index++, transChromInfo.getUserSet());
-            _transitionChromInfoStmt.setString(index++, transChromInfo.getIdentified());
-            setInteger(_transitionChromInfoStmt, index++, transChromInfo.getPointsAcrossPeak());
-            setDouble(_transitionChromInfoStmt, index++, transChromInfo.getCcs());
-            setDouble(_transitionChromInfoStmt, index++, transChromInfo.getIonMobility());
-            setDouble(_transitionChromInfoStmt, index++, transChromInfo.getIonMobilityWindow());
-            _transitionChromInfoStmt.setString(index++, transChromInfo.getIonMobilityType());
-            setInteger(_transitionChromInfoStmt, index++, transChromInfo.getRank());
-            setInteger(_transitionChromInfoStmt, index++, transChromInfo.getRankByLevel());
-            setBoolean(_transitionChromInfoStmt, index++, transChromInfo.getForcedIntegration());
-
-            setDouble(_transitionChromInfoStmt, index++, transChromInfo.getSkewness());
-            setDouble(_transitionChromInfoStmt, index++, transChromInfo.getKurtosis());
-            setDouble(_transitionChromInfoStmt, index++, transChromInfo.getStdDev());
-            setDouble(_transitionChromInfoStmt, index, transChromInfo.getShapeCorrelation());
+            _transitionChromInfoStmt = ensureStatement(_transitionChromInfoStmt, TRANSITION_CHROM_INFO_INSERT_SQL, true);
+            setTransitionChromInfoParameters(_transitionChromInfoStmt, transChromInfo);
 
             try (ResultSet rs = TargetedMSManager.getSqlDialect().executeWithResults(_transitionChromInfoStmt))
             {
@@ -2137,63 +2330,49 @@ private void insertTransitionChromInfo(TransitionChromInfo transChromInfo)
         }
     }
 
+    private void setTransitionChromInfoParameters(PreparedStatement stmt, TransitionChromInfo transChromInfo) throws SQLException
+    {
+        int index = 1;
+        stmt.setLong(index++, transChromInfo.getTransitionId());
+        stmt.setLong(index++, transChromInfo.getSampleFileId());
+        stmt.setLong(index++, transChromInfo.getPrecursorChromInfoId());
+        setDouble(stmt, index++, transChromInfo.getRetentionTime());
+        setDouble(stmt, index++, transChromInfo.getStartTime());
+        setDouble(stmt, index++, transChromInfo.getEndTime());
+        setDouble(stmt, index++, transChromInfo.getHeight());
+        setDouble(stmt, index++, transChromInfo.getArea());
+        setDouble(stmt, index++, transChromInfo.getBackground());
+        setDouble(stmt, index++, transChromInfo.getFwhm());
+        setBoolean(stmt, index++, transChromInfo.getFwhmDegenerate());
+        setBoolean(stmt, index++, transChromInfo.getTruncated());
+        setInteger(stmt, index++, transChromInfo.getPeakRank());
+        setInteger(stmt, index++, transChromInfo.getOptimizationStep());
+        stmt.setString(index++, transChromInfo.getNote());
+        setInteger(stmt, index++, transChromInfo.getChromatogramIndex());
+        setDouble(stmt, index++, transChromInfo.getMassErrorPPM());
+        stmt.setString(index++, transChromInfo.getUserSet());
+        stmt.setString(index++, transChromInfo.getIdentified());
+        setInteger(stmt, index++, transChromInfo.getPointsAcrossPeak());
+        setDouble(stmt, index++, transChromInfo.getCcs());
+        setDouble(stmt, index++, transChromInfo.getIonMobility());
+        setDouble(stmt, index++, transChromInfo.getIonMobilityWindow());
+        stmt.setString(index++, transChromInfo.getIonMobilityType());
+        setInteger(stmt, index++, transChromInfo.getRank());
+        setInteger(stmt, index++, transChromInfo.getRankByLevel());
+        setBoolean(stmt, index++, transChromInfo.getForcedIntegration());
+
+        setDouble(stmt, index++, transChromInfo.getSkewness());
+        setDouble(stmt, index++, transChromInfo.getKurtosis());
+        setDouble(stmt, index++, transChromInfo.getStdDev());
+        setDouble(stmt, index, transChromInfo.getShapeCorrelation());
+    }
+
     private void insertPrecursorChromInfo(PrecursorChromInfo preChromInfo)
     {
         try
         {
-            _precursorChromInfoStmt = ensureStatement(_precursorChromInfoStmt,
-                "INSERT INTO targetedms.precursorchrominfo( precursorid, samplefileid, generalmoleculechrominfoid, bestretentiontime, minstarttime, maxendtime, totalarea, totalbackground, maxfwhm, peakcountratio, numtruncated, librarydotp, optimizationstep, note, chromatogram, numtransitions, numpoints, maxheight, isotopedotp, averagemasserrorppm, bestmasserrorppm, userset, uncompressedsize, identified, container, chromatogramformat, chromatogramoffset, chromatogramlength, qvalue, zscore, ccs, ionmobilityms1, ionmobilityfragment, ionmobilitywindow, ionmobilitytype, totalAreaMs1, totalAreaFragment, TransitionChromatogramIndices ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
-                true);
-
-            int index = 1;
-            _precursorChromInfoStmt.setLong(index++, preChromInfo.getPrecursorId());
-            _precursorChromInfoStmt.setLong(index++, preChromInfo.getSampleFileId());
-            _precursorChromInfoStmt.setLong(index++, preChromInfo.getGeneralMoleculeChromInfoId());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getBestRetentionTime());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getMinStartTime());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getMaxEndTime());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getTotalArea());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getTotalBackground());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getMaxFwhm());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getPeakCountRatio());
-            setInteger(_precursorChromInfoStmt, index++, preChromInfo.getNumTruncated());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getLibraryDotP());
-            setInteger(_precursorChromInfoStmt, index++, preChromInfo.getOptimizationStep());
-            _precursorChromInfoStmt.setString(index++, preChromInfo.getNote());
-            _precursorChromInfoStmt.setBytes(index++, preChromInfo.getChromatogram());
-            _precursorChromInfoStmt.setInt(index++, preChromInfo.getNumTransitions());
-            _precursorChromInfoStmt.setInt(index++, preChromInfo.getNumPoints());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getMaxHeight());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getIsotopeDotP());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getAverageMassErrorPPM());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getBestMassErrorPPM());
-            _precursorChromInfoStmt.setString(index++, preChromInfo.getUserSet());
-            setInteger(_precursorChromInfoStmt, index++, preChromInfo.getUncompressedSize());
-            _precursorChromInfoStmt.setString(index++, preChromInfo.getIdentified());
-            _precursorChromInfoStmt.setString(index++, preChromInfo.getContainer().getEntityId().toString());
-            setInteger(_precursorChromInfoStmt, index++, preChromInfo.getChromatogramFormat());
-            setLong(_precursorChromInfoStmt, index++, preChromInfo.getChromatogramOffset());
-            setInteger(_precursorChromInfoStmt, index++, preChromInfo.getChromatogramLength());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getQvalue());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getZscore());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getCcs());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getIonMobilityMs1());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getIonMobilityFragment());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getIonMobilityWindow());
-            _precursorChromInfoStmt.setString(index++, preChromInfo.getIonMobilityType());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getTotalAreaMs1());
-            setDouble(_precursorChromInfoStmt, index++, preChromInfo.getTotalAreaFragment());
-
-            byte[] indices = preChromInfo.getTransitionChromatogramIndices(); // Indices into the chromatograms read from the SKYD file
-            if (!_shouldSaveTransitionChromInfos && indices != null)
-            {
-                // Persist all the indices into the PrecursorChromInfo table since we are not saving any TransitionChromInfos.
-                _precursorChromInfoStmt.setBinaryStream(index++, new ByteArrayInputStream(indices), indices.length);
-            }
-            else
-            {
-                _precursorChromInfoStmt.setNull(index++, Types.VARBINARY);
-            }
+            _precursorChromInfoStmt = ensureStatement(_precursorChromInfoStmt, PRECURSOR_CHROM_INFO_INSERT_SQL, true);
+            setPrecursorChromInfoParameters(_precursorChromInfoStmt, preChromInfo);
 
             try (ResultSet rs = TargetedMSManager.getSqlDialect().executeWithResults(_precursorChromInfoStmt))
             {
@@ -2207,6 +2386,60 @@ private void insertPrecursorChromInfo(PrecursorChromInfo preChromInfo)
         }
     }
 
+    private void setPrecursorChromInfoParameters(PreparedStatement stmt, PrecursorChromInfo preChromInfo) throws SQLException
+    {
+        int index = 1;
+        stmt.setLong(index++, preChromInfo.getPrecursorId());
+        stmt.setLong(index++, preChromInfo.getSampleFileId());
+        stmt.setLong(index++, preChromInfo.getGeneralMoleculeChromInfoId());
+        setDouble(stmt, index++, preChromInfo.getBestRetentionTime());
+        setDouble(stmt, index++, preChromInfo.getMinStartTime());
+        setDouble(stmt, index++, preChromInfo.getMaxEndTime());
+        setDouble(stmt, index++, preChromInfo.getTotalArea());
+        setDouble(stmt, index++, preChromInfo.getTotalBackground());
+        setDouble(stmt, index++, preChromInfo.getMaxFwhm());
+        setDouble(stmt, index++, preChromInfo.getPeakCountRatio());
+        setInteger(stmt, index++, preChromInfo.getNumTruncated());
+        setDouble(stmt, index++, preChromInfo.getLibraryDotP());
+        setInteger(stmt, index++, preChromInfo.getOptimizationStep());
+        stmt.setString(index++, preChromInfo.getNote());
+        stmt.setBytes(index++, preChromInfo.getChromatogram());
+        stmt.setInt(index++, preChromInfo.getNumTransitions());
+        stmt.setInt(index++, preChromInfo.getNumPoints());
+        setDouble(stmt, index++, preChromInfo.getMaxHeight());
+        setDouble(stmt, index++, preChromInfo.getIsotopeDotP());
+        setDouble(stmt, index++, preChromInfo.getAverageMassErrorPPM());
+        setDouble(stmt, index++, preChromInfo.getBestMassErrorPPM());
+        stmt.setString(index++, preChromInfo.getUserSet());
+        setInteger(stmt, index++, preChromInfo.getUncompressedSize());
+        stmt.setString(index++, preChromInfo.getIdentified());
+        stmt.setString(index++, preChromInfo.getContainer().getEntityId().toString());
+        setInteger(stmt, index++, preChromInfo.getChromatogramFormat());
+        setLong(stmt, index++, preChromInfo.getChromatogramOffset());
+        setInteger(stmt, index++, preChromInfo.getChromatogramLength());
+        setDouble(stmt, index++, preChromInfo.getQvalue());
+        setDouble(stmt, index++, preChromInfo.getZscore());
+        setDouble(stmt, index++, preChromInfo.getCcs());
+        setDouble(stmt, index++, preChromInfo.getIonMobilityMs1());
+        setDouble(stmt, index++, preChromInfo.getIonMobilityFragment());
+        setDouble(stmt, index++, preChromInfo.getIonMobilityWindow());
+        stmt.setString(index++, preChromInfo.getIonMobilityType());
+        setDouble(stmt, index++, preChromInfo.getTotalAreaMs1());
+        setDouble(stmt, index++, preChromInfo.getTotalAreaFragment());
+
+        byte[] indices = preChromInfo.getTransitionChromatogramIndices(); // Indices into the chromatograms read from the SKYD file
+        if (indices != null)
+        {
+            // Persist all the indices into the PrecursorChromInfo table. They're needed if we're not saving any
+            // TransitionChromInfos, which may not be known until later in the document, and are cleared at the end otherwise.
+            stmt.setBinaryStream(index++, new ByteArrayInputStream(indices), indices.length);
+        }
+        else
+        {
+            stmt.setNull(index++, Types.VARBINARY);
+        }
+    }
+
     private void setBoolean(PreparedStatement stmt, int index, Boolean b) throws SQLException
     {
         if (b != null)
@@ -3010,54 +3243,64 @@ public void insertTraceCalculations(TargetedMSRun run)
 
         if (!qcMetricConfigurations.isEmpty())
         {
-            var qcTraceMetricValues = TargetedMSManager.calculateTraceMetricValues(qcMetricConfigurations, run);
+            var qcTraceMetricValues = TraceMetricCalculator.calculate(qcMetricConfigurations, run);
             qcTraceMetricValues.forEach(qcTraceMetricValue -> Table.insert(_user, TargetedMSManager.getTableQCTraceMetricValues(), qcTraceMetricValue));
         }
     }
 
-    private boolean documentIsWithinLimits(File file, Container container, Logger log) throws XMLStreamException, IOException
+    private void readTransitionChromInfoLimits(Container container, Logger log)
     {
-        int maxPrecursors;
-        int maxTransitionChromInfos;
         TargetedMSModule targetedMSModule = ModuleLoader.getInstance().getModule(TargetedMSModule.class);
         try
         {
-            maxPrecursors = Integer.parseInt(targetedMSModule.MAX_PRECURSORS_PROPERTY.getEffectiveValue(container));
+            _maxPrecursors = Integer.parseInt(targetedMSModule.MAX_PRECURSORS_PROPERTY.getEffectiveValue(container));
         }
         catch (NumberFormatException e)
         {
-            maxPrecursors = TargetedMSModule.DEFAULT_MAX_PRECURSORS;
+            _maxPrecursors = TargetedMSModule.DEFAULT_MAX_PRECURSORS;
             log.warn("Unable to parse MAX_PRECURSORS_PROPERTY value: {}, defaulting to {}",
                     targetedMSModule.MAX_PRECURSORS_PROPERTY.getEffectiveValue(container),
-                    maxPrecursors);
+                    _maxPrecursors);
         }
         try
         {
-            maxTransitionChromInfos = Integer.parseInt(targetedMSModule.MAX_TRANSITION_CHROM_INFOS_PROPERTY.getEffectiveValue(container));
+            _maxTransitionChromInfos = Integer.parseInt(targetedMSModule.MAX_TRANSITION_CHROM_INFOS_PROPERTY.getEffectiveValue(container));
         }
         catch (NumberFormatException e)
         {
-            maxTransitionChromInfos = TargetedMSModule.DEFAULT_MAX_TRANSITION_CHROM_INFOS;
+            _maxTransitionChromInfos = TargetedMSModule.DEFAULT_MAX_TRANSITION_CHROM_INFOS;
             log.warn("Unable to parse MAX_TRANSITION_CHROM_INFOS_PROPERTY value: {}, defaulting to {}",
                     targetedMSModule.MAX_TRANSITION_CHROM_INFOS_PROPERTY.getEffectiveValue(container),
-                    maxTransitionChromInfos);
+                    _maxTransitionChromInfos);
         }
+    }
 
-        // To prevent giant DIA documents from overwhelming the DB, we skip importing TransitionChromInfos if the document
-        // has more than 100,000 AND has more than 1,000 precursors. We use both because a document may have a lot of
-        // replicates, so the TransitionChromInfo count by itself isn't sufficient to do the desired screening
-        log.info("Reading Skyline file, " + file.getName() + ", to determine if the TransitionChromInfos in the document should be stored...");
-        boolean documentWithinLimits = new TransitionChromInfoAndPrecursorTally(maxTransitionChromInfos, maxPrecursors).isWithinLimits(file, log);
-        if (documentWithinLimits)
-        {
-            log.info("TransitionChromInfo counts or precursor counts are within the allowed limits. TransitionChromInfos will be stored");
-        }
-        else
+    /**
+     * To prevent giant DIA documents from overwhelming the DB, we skip importing TransitionChromInfos if the document
+     * has more than 100,000 AND has more than 1,000 precursors. We use both because a document may have a lot of
+     * replicates, so the TransitionChromInfo count by itself isn't sufficient to do the desired screening.
+     *
+     * Rather than reading the whole document up front to get the counts, we check the parser's running tallies after
+     * each peptide or molecule is read. Once both limits have been reached we delete the TransitionChromInfos that
+     * have already been inserted for this run and skip TransitionChromInfos for the rest of the document. The
+     * PrecursorChromInfos already have their transition chromatogram indices, which are stored until we know the
+     * document is within the limits.
+     */
+    private void checkTransitionChromInfoLimits(SkylineDocumentParser parser)
+    {
+        if (!_shouldSaveTransitionChromInfos ||
+                parser.getTransitionChromInfoCount() < _maxTransitionChromInfos ||
+                parser.getPrecursorCount() < _maxPrecursors)
         {
-            log.info("TransitionChromInfos in the document exceed the limit of " + maxTransitionChromInfos +
-                            ", and there are more than " + maxPrecursors + " precursors." +
-                            " TransitionChromInfos will not be stored.");
+            return;
         }
-        return documentWithinLimits;
+
+        _log.info("TransitionChromInfos in the document exceed the limit of " + _maxTransitionChromInfos +
+                ", and there are more than " + _maxPrecursors + " precursors." +
+                " TransitionChromInfos will not be stored.");
+
+        _shouldSaveTransitionChromInfos = false;
+
+        TargetedMSManager.deleteTransitionChromInfosForRun(_runId);
     }
 }
@@ -192,6 +192,8 @@
 import org.labkey.targetedms.model.RawMetricDataSet;
 import org.labkey.targetedms.model.passport.IKeyword;
 import org.labkey.targetedms.outliers.OutlierGenerator;
+import org.labkey.targetedms.outliers.OutlierSummaryCache;
+import org.labkey.targetedms.parser.AbstractChromInfo;
 import org.labkey.targetedms.parser.CalibrationCurveEntity;
 import org.labkey.targetedms.parser.Chromatogram;
 import org.labkey.targetedms.parser.GeneralMolecule;
@@ -280,7 +282,6 @@
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.SQLException;
-import java.sql.Timestamp;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -1019,10 +1020,22 @@ public class GetQCSummaryAction extends ReadOnlyApiAction<QCSummaryForm>
         public Object execute(QCSummaryForm form, BindException errors)
         {
             ApiSimpleResponse response = new ApiSimpleResponse();
-            List<Map<String, Object>> containers = new ArrayList<>();
+            List<QCSummaryFolder> folders = new ArrayList<>();
 
             // include the QC Summary properties for the current container
-            containers.add(getContainerQCSummaryProperties(getContainer(), getContainer(), false));
+            folders.add(new QCSummaryFolder(getContainer(), getContainer(), false));
+
+            // Fetch the pings for the whole tree at once, most recent first, rather than querying each subfolder
+            List<AutoQCPingData> pings;
+            if (form.isIncludeSubfolders())
+            {
+                pings = TargetedMSManager.get().getAutoQCPingDataIncludingSubfolders(getUser(), getContainer());
+            }
+            else
+            {
+                AutoQCPingData ping = TargetedMSManager.get().getAutoQCPingData(getContainer());
+                pings = ping == null ? Collections.emptyList() : List.of(ping);
+            }
 
             // include the QC Summary properties for the direct subfolders, of type QC, that the user has read permission
             if (form.isIncludeSubfolders())
@@ -1030,8 +1043,16 @@ public Object execute(QCSummaryForm form, BindException errors)
                 for (Container container : getContainer().getChildren())
                 {
                     Container bestContainer = container;
-                    Container mostRecentPingContainer = TargetedMSManager.getMostRecentPingChild(getUser(), container);
                     // Find the most recent AutoQC ping for the subfolder or its children
+                    Container mostRecentPingContainer = container;
+                    for (AutoQCPingData ping : pings)
+                    {
+                        if (ping.getContainer().equals(container) || ping.getContainer().isDescendant(container))
+                        {
+                            mostRecentPingContainer = ping.getContainer();
+                            break;
+                        }
+                    }
                     TargetedMSService.FolderType folderType = TargetedMSManager.getFolderType(mostRecentPingContainer);
                     // Make sure it's a QC folder
                     if (mostRecentPingContainer.hasPermission(getUser(), ReadPermission.class) && folderType == TargetedMSService.FolderType.QC)
@@ -1042,62 +1063,54 @@ public Object execute(QCSummaryForm form, BindException errors)
                     folderType = TargetedMSManager.getFolderType(bestContainer);
                     if (bestContainer.hasPermission(getUser(), ReadPermission.class) && folderType == TargetedMSService.FolderType.QC)
                     {
-                        containers.add(getContainerQCSummaryProperties(bestContainer, container, true));
+                        folders.add(new QCSummaryFolder(bestContainer, container, true));
                     }
                 }
             }
 
+            Map<Container, AutoQCPingData> pingsByContainer = new HashMap<>();
+            for (AutoQCPingData ping : pings)
+            {
+                pingsByContainer.putIfAbsent(ping.getContainer(), ping);
+            }
+            Map<Container, Map<String, Object>> counts = TargetedMSManager.getQCSummaryCounts(folders.stream().map(QCSummaryFolder::container).collect(Collectors.toList()));
+
+            List<Map<String, Object>> containers = new ArrayList<>();
+            for (QCSummaryFolder folder : folders)
+            {
+                containers.add(getContainerQCSummaryProperties(folder, counts.get(folder.container()), pingsByContainer.get(folder.container())));
+            }
+
             response.put("containers", containers);
             return response;
         }
     }
 
-    private Map<String, Object> getContainerQCSummaryProperties(Container container, Container instrumentContainer, boolean isSubfolder)
+    /** @param instrumentContainer the direct subfolder that container was chosen to represent */
+    private record QCSummaryFolder(Container container, Container instrumentContainer, boolean isSubfolder) {}
+
+    private Map<String, Object> getContainerQCSummaryProperties(QCSummaryFolder folder, Map<String, Object> counts, @Nullable AutoQCPingData autoQCPing)
     {
+        Container container = folder.container();
+        Container instrumentContainer = folder.instrumentContainer();
         Map<String, Object> properties = new HashMap<>();
-        SQLFragment sql;
 
         properties.put("id", container.getId());
         properties.put("name", instrumentContainer.equals(container) ? container.getName() : (instrumentContainer.getName() + " - " + container.getName()));
         properties.put("path", container.getPath());
-        properties.put("subfolder", isSubfolder);
-
-        // # Skyline documents, count of rows in targetedms.Runs
-        // and date of last import, max(created) from targetedms.Runs
-        sql = new SQLFragment("SELECT COUNT(Id) As docCount, MAX(Created) AS lastImportDate FROM ");
-        sql.append(TargetedMSManager.getTableInfoRuns(), "r").append(" WHERE Container = ? AND StatusId = ?");
-        sql.add(container.getId()).add(SkylineDocImporter.STATUS_SUCCESS);
-        Map<String, Object> valueMap = new SqlSelector(TargetedMSSchema.getSchema(), sql).getMap();
-        properties.put("docCount", valueMap.get("docCount"));
-        properties.put("lastImportDate", valueMap.get("lastImportDate"));
-
-        // # sample files, count of rows in targetedms.SampleFile
-        sql = new SQLFragment("SELECT COUNT(s.Id) FROM ").append(TargetedMSManager.getTableInfoSampleFile(), "s");
-        sql.append(" JOIN ").append(TargetedMSManager.getTableInfoReplicate(), "re").append(" ON s.ReplicateId = re.Id");
-        sql.append(" JOIN ").append(TargetedMSManager.getTableInfoRuns(), "r").append(" ON re.RunId = r.Id");
-        sql.append(" WHERE r.Container = ?").add(container.getId());
-        properties.put("fileCount", new SqlSelector(TargetedMSSchema.getSchema(), sql).getObject(Integer.class));
-
-        // # precursors tracked, count of distinct precursors. Include peptides and small molecules
-        sql = new SQLFragment("SELECT DISTINCT COALESCE(p.ModifiedSequence, ");
-        sql.append(" concat(mp.CustomIonName, mp.IonFormula,mp.massMonoisotopic, mp.massAverage, gp.mz)) AS SeriesLabel, gp.Charge");
-        sql.append(" FROM ").append(TargetedMSManager.getTableInfoGeneralPrecursor(), "gp");
-        sql.append(" JOIN ").append(TargetedMSManager.getTableInfoGeneralMolecule(), "gm").append(" ON gp.GeneralMoleculeId = gm.Id");
-        sql.append(" JOIN ").append(TargetedMSManager.getTableInfoPeptideGroup(), "pg").append(" ON gm.PeptideGroupId = pg.Id");
-        sql.append(" JOIN ").append(TargetedMSManager.getTableInfoRuns(), "r").append(" ON pg.RunId = r.Id");
-        sql.append(" LEFT JOIN ").append(TargetedMSManager.getTableInfoPrecursor(), "p").append(" ON p.Id = gp.Id");
-        sql.append(" LEFT JOIN ").append(TargetedMSManager.getTableInfoMoleculePrecursor(), "mp").append(" ON mp.Id = gp.Id");
-        sql.append(" WHERE r.Container = ?").add(container.getId());
-        properties.put("precursorCount", new SqlSelector(TargetedMSSchema.getSchema(), sql).getRowCount());
+        properties.put("subfolder", folder.isSubfolder());
+
+        // docCount, lastImportDate, fileCount and precursorCount
+        properties.putAll(counts);
 
         // AutoQCPing information
-        Map<String, Object> autoQCPingMap = TargetedMSManager.get().getAutoQCPingMap(container);
-        if (autoQCPingMap != null)
+        Map<String, Object> autoQCPingMap = null;
+        if (autoQCPing != null)
         {
+            autoQCPingMap = autoQCPing.toMap();
             // check if the last modified date is recent (i.e. within the last 15 min)
             long timeoutMinutesAgo = System.currentTimeMillis() - ((long)TargetedMSManager.get().getAutoQCPingTimeout(container) * 60000L);
-            Timestamp lastModified = (Timestamp)autoQCPingMap.get("Modified");
-            autoQCPingMap.put("isRecent", lastModified.getTime() >= timeoutMinutesAgo);
+            autoQCPingMap.put("isRecent", autoQCPing.getModified().getTime() >= timeoutMinutesAgo);
         }
         properties.put("autoQCPing", autoQCPingMap);
         TargetedMSSchema schema = new TargetedMSSchema(getUser(), container);
@@ -1259,25 +1272,16 @@ public Object execute(QCMetricOutliersForm form, BindException errors)
 
             if (form.isIncludeSampleInfo())
             {
-                List<QCMetricConfiguration> enabledQCMetricConfigurations = TargetedMSManager.getEnabledQCMetricConfigurations(schema);
+                OutlierSummaryCache.Summary summary = OutlierSummaryCache.getSummary(schema, true);
 
-                if (enabledQCMetricConfigurations.isEmpty())
+                if (summary == null)
                 {
                     response.put("outliers", "no enabled qc configurations");
                 }
                 else
                 {
-                    List<GuideSet> guideSets = TargetedMSManager.getGuideSets(getContainer(), getUser());
-                    Map<Integer, QCMetricConfiguration> metricMap = enabledQCMetricConfigurations.stream().collect(Collectors.toMap(QCMetricConfiguration::getId, Function.identity()));
-
-                    List<RawMetricDataSet> rawMetricDataSets = OutlierGenerator.get().getRawMetricDataSets(schema, enabledQCMetricConfigurations, null, null, Collections.emptyList(), true, false, true);
-
-                    Map<GuideSetKey, GuideSetStats> stats = OutlierGenerator.get().getAllProcessedMetricGuideSets(rawMetricDataSets, guideSets.stream().collect(Collectors.toMap(GuideSet::getRowId, Function.identity())));
-
-                    List<SampleFileInfo> sampleFiles = OutlierGenerator.get().getSampleFiles(rawMetricDataSets, stats, metricMap, schema, form.getSampleLimit());
-
-                    response.put("sampleFiles", sampleFiles.stream().map(SampleFileInfo::toJSON).collect(Collectors.toList()));
-                    response.put("guideSets", guideSets.stream().map(x -> x.toJSON(rawMetricDataSets, metricMap, stats)).collect(Collectors.toList()));
+                    response.put("sampleFiles", summary.getSampleFiles(form.getSampleLimit()).stream().map(SampleFileInfo::toJSON).collect(Collectors.toList()));
+                    response.put("guideSets", summary.guideSets());
                 }
             }
 
@@ -1594,101 +1598,122 @@ public Object execute(QCPlotsDataForm form, BindException errors) throws Excepti
             Date qcFolderStartDate = (Date) qcFolderDateRange.get("startDate");
             Date qcFolderEndDate = (Date) qcFolderDateRange.get("endDate");
 
-            // always query for the full range
-            List<RawMetricDataSet> rawMetricDataSets = generator.getRawMetricDataSets(schema, qcMetricConfigurations, qcFolderStartDate, qcFolderEndDate, form.getSelectedAnnotations(), form.isShowExcluded(), form.isShowExcludedPrecursors(), false);
-            Map<GuideSetKey, GuideSetStats> stats;
-            if ((form.includeTrailingCVPlot || form.includeTrailingMeanPlot) && form._trailingRuns > 2)
-            {
-                stats = generator.getAllProcessedMetricGuideSets(rawMetricDataSets, guideSets.stream().collect(Collectors.toMap(GuideSet::getRowId, Function.identity())), form._trailingRuns);
-            }
-            else
-            {
-                stats = generator.getAllProcessedMetricGuideSets(rawMetricDataSets, guideSets.stream().collect(Collectors.toMap(GuideSet::getRowId, Function.identity())));
-            }
             boolean zoomedRange = qcFolderStartDate != null &&
                     qcFolderEndDate != null && rangeStartDate != null && form.getEndDate() != null &&
                     (DateUtil.getDateOnly(qcFolderStartDate).compareTo(rangeStartDate) != 0 ||
                     DateUtil.getDateOnly(qcFolderEndDate).compareTo(form.getEndDate()) != 0);
-            Map<GuideSetKey, GuideSetStats> targetedStats;
+            boolean includeTrailing = (form.includeTrailingCVPlot || form.includeTrailingMeanPlot) && form._trailingRuns > 2;
+            Map<Integer, GuideSet> guideSetsById = guideSets.stream().collect(Collectors.toMap(GuideSet::getRowId, Function.identity()));
 
-            if (form.getReplicateId() != null && zoomedRange)
+            // Zooming in reuses the guide sets' training stats from the full range, which have usually been calculated
+            // already for the initial plot, so that only the rows in the visible window need to be fetched. Trailing
+            // stats and plots centered on a replicate still need the full range.
+            OutlierGenerator.PlotStatsKey trainingStatsKey = OutlierGenerator.getPlotStatsKey(getContainer(), passedMetricId, form.getSelectedAnnotations(), form.isShowExcluded(), form.isShowExcludedPrecursors());
+            Map<GuideSetKey, OutlierGenerator.TrainingStats> fullRangeTrainingStats = zoomedRange && form.getReplicateId() == null && !includeTrailing ? generator.getTrainingStats(trainingStatsKey) : null;
+
+            List<RawMetricDataSet> rawMetricDataSets;
+            Map<GuideSetKey, GuideSetStats> targetedStats;
+            if (fullRangeTrainingStats != null)
             {
-                int replicateIdx = -1;
-                for (int i = 0; i < rawMetricDataSets.size(); i++)
+                // Whole days, to match getTargetedPredicate()
+                rawMetricDataSets = generator.getRawMetricDataSets(schema, qcMetricConfigurations, DateUtil.getDateOnly(qcStartDate), DateUtil.getDateOnly(form.getEndDate()), form.getSelectedAnnotations(), form.isShowExcluded(), form.isShowExcludedPrecursors(), false);
+                targetedStats = generator.getAllProcessedMetricGuideSets(rawMetricDataSets, guideSetsById);
+                OutlierGenerator.applyTrainingStats(targetedStats, fullRangeTrainingStats);
+            }
+            else
+            {
+                // query for the full range
+                rawMetricDataSets = generator.getRawMetricDataSets(schema, qcMetricConfigurations, qcFolderStartDate, qcFolderEndDate, form.getSelectedAnnotations(), form.isShowExcluded(), form.isShowExcludedPrecursors(), false);
+                Map<GuideSetKey, GuideSetStats> stats;
+                if (includeTrailing)
                 {
-                    RawMetricDataSet rawMetricDataSet = rawMetricDataSets.get(i);
-                    if (rawMetricDataSet.getSampleFile().getId() == form.getReplicateId())
-                    {
-                        // need replicateIdx to get the replicate acquired time
-                        replicateIdx = i;
-                        break;
-                    }
+                    stats = generator.getAllProcessedMetricGuideSets(rawMetricDataSets, guideSetsById, form._trailingRuns);
                 }
-                // grab the replicate 10 before and after
-                if (replicateIdx > -1)
+                else
                 {
-                    Date replicateAcquiredTime = rawMetricDataSets.get(replicateIdx).getSampleFile().getAcquiredTime();
-                    if (replicateAcquiredTime.after(form.getStartDate()) && replicateAcquiredTime.before(form.getEndDate()))
-                    {
-                        Predicate<RawMetricDataSet> withInDateRange = getTargetedPredicate(qcStartDate, form.getEndDate());
-                        rawMetricDataSets = rawMetricDataSets
-                                .stream()
-                                .filter(withInDateRange)
-                                .collect(Collectors.toList());
-                        targetedStats = generator.getAllProcessedMetricGuideSets(rawMetricDataSets, guideSets.stream().collect(Collectors.toMap(GuideSet::getRowId, Function.identity())));
-                    }
-                    else if (replicateAcquiredTime.after(form.getStartDate()))
+                    stats = generator.getAllProcessedMetricGuideSets(rawMetricDataSets, guideSetsById);
+                }
+                generator.rememberTrainingStats(trainingStatsKey, stats);
+
+                if (form.getReplicateId() != null && zoomedRange)
+                {
+                    int replicateIdx = -1;
+                    for (int i = 0; i < rawMetricDataSets.size(); i++)
                     {
-                        Date endDate = rawMetricDataSets.get(replicateIdx).getSampleFile().getAcquiredTime();
-                        Predicate<RawMetricDataSet> withInDateRange = getTargetedPredicate(qcStartDate, endDate);
-                        rawMetricDataSets = rawMetricDataSets
-                                .stream()
-                                .filter(withInDateRange)
-                                .collect(Collectors.toList());
-                        targetedStats = generator.getAllProcessedMetricGuideSets(rawMetricDataSets, guideSets.stream().collect(Collectors.toMap(GuideSet::getRowId, Function.identity())));
+                        RawMetricDataSet rawMetricDataSet = rawMetricDataSets.get(i);
+                        if (rawMetricDataSet.getSampleFile().getId() == form.getReplicateId())
+                        {
+                            // need replicateIdx to get the replicate acquired time
+                            replicateIdx = i;
+                            break;
+                        }
                     }
-                    else if (replicateAcquiredTime.before(form.getEndDate()))
+                    // grab the replicate 10 before and after
+                    if (replicateIdx > -1)
                     {
-                        Date startDate = rawMetricDataSets.get(replicateIdx).getSampleFile().getAcquiredTime();
-                        Predicate<RawMetricDataSet> withInDateRange = getTargetedPredicate(startDate, form.getEndDate());
-                        rawMetricDataSets = rawMetricDataSets
-                                .stream()
-                                .filter(withInDateRange)
-                                .collect(Collectors.toList());
-                        targetedStats = generator.getAllProcessedMetricGuideSets(rawMetricDataSets, guideSets.stream().collect(Collectors.toMap(GuideSet::getRowId, Function.identity())));
+                        Date replicateAcquiredTime = rawMetricDataSets.get(replicateIdx).getSampleFile().getAcquiredTime();
+                        if (replicateAcquiredTime.after(form.getStartDate()) && replicateAcquiredTime.before(form.getEndDate()))
+                        {
+                            Predicate<RawMetricDataSet> withInDateRange = getTargetedPredicate(qcStartDate, form.getEndDate());
+                            rawMetricDataSets = rawMetricDataSets
+                                    .stream()
+                                    .filter(withInDateRange)
+                                    .collect(Collectors.toList());
+                            targetedStats = generator.getAllProcessedMetricGuideSets(rawMetricDataSets, guideSetsById);
+                        }
+                        else if (replicateAcquiredTime.after(form.getStartDate()))
+                        {
+                            Date endDate = rawMetricDataSets.get(replicateIdx).getSampleFile().getAcquiredTime();
+                            Predicate<RawMetricDataSet> withInDateRange = getTargetedPredicate(qcStartDate, endDate);
+                            rawMetricDataSets = rawMetricDataSets
+                                    .stream()
+                                    .filter(withInDateRange)
+                                    .collect(Collectors.toList());
+                            targetedStats = generator.getAllProcessedMetricGuideSets(rawMetricDataSets, guideSetsById);
+                        }
+                        else if (replicateAcquiredTime.before(form.getEndDate()))
+                        {
+                            Date startDate = rawMetricDataSets.get(replicateIdx).getSampleFile().getAcquiredTime();
+                            Predicate<RawMetricDataSet> withInDateRange = getTargetedPredicate(startDate, form.getEndDate());
+                            rawMetricDataSets = rawMetricDataSets
+                                    .stream()
+                                    .filter(withInDateRange)
+                                    .collect(Collectors.toList());
+                            targetedStats = generator.getAllProcessedMetricGuideSets(rawMetricDataSets, guideSetsById);
+                        }
+                        else
+                        {
+                            targetedStats = stats;
+                        }
                     }
                     else
                     {
                         targetedStats = stats;
                     }
                 }
+                else if (zoomedRange)
+                {
+                    // filter the stats for targeted range
+                    Predicate<RawMetricDataSet> withInDateRange = getTargetedPredicate(qcStartDate, form.getEndDate());
+                    rawMetricDataSets = rawMetricDataSets
+                            .stream()
+                            .filter(withInDateRange)
+                            .collect(Collectors.toList());
+                    targetedStats = generator.getAllProcessedMetricGuideSets(rawMetricDataSets, guideSetsById);
+                    // attach mean and sd stats from full stats
+                    targetedStats.forEach((guideSetKey, guideSetStats) -> {
+                        GuideSetStats correctGuideSetStats = stats.get(guideSetKey);
+                        guideSetStats.setAverage(correctGuideSetStats.getAverage());
+                        guideSetStats.setStandardDeviation(correctGuideSetStats.getStandardDeviation());
+                        guideSetStats.setMovingRangeAverage(correctGuideSetStats.getMovingRangeAverage());
+                        guideSetStats.setMovingRangeStdDev(correctGuideSetStats.getMovingRangeStdDev());
+                    });
+                }
                 else
                 {
                     targetedStats = stats;
                 }
             }
-            else if (zoomedRange)
-            {
-                // filter the stats for targeted range
-                Predicate<RawMetricDataSet> withInDateRange = getTargetedPredicate(qcStartDate, form.getEndDate());
-                rawMetricDataSets = rawMetricDataSets
-                        .stream()
-                        .filter(withInDateRange)
-                        .collect(Collectors.toList());
-                targetedStats = generator.getAllProcessedMetricGuideSets(rawMetricDataSets, guideSets.stream().collect(Collectors.toMap(GuideSet::getRowId, Function.identity())));
-                // attach mean and sd stats from full stats
-                targetedStats.forEach((guideSetKey, guideSetStats) -> {
-                    GuideSetStats correctGuideSetStats = stats.get(guideSetKey);
-                    guideSetStats.setAverage(correctGuideSetStats.getAverage());
-                    guideSetStats.setStandardDeviation(correctGuideSetStats.getStandardDeviation());
-                    guideSetStats.setMovingRangeAverage(correctGuideSetStats.getMovingRangeAverage());
-                    guideSetStats.setMovingRangeStdDev(correctGuideSetStats.getMovingRangeStdDev());
-                });
-            }
-            else
-            {
-                targetedStats = stats;
-            }
 
             Map<Integer, QCMetricConfiguration> metricMap = qcMetricConfigurations.stream().collect(Collectors.toMap(QCMetricConfiguration::getId, Function.identity()));
             List<SampleFileInfo> sampleFiles = OutlierGenerator.get().getSampleFiles(rawMetricDataSets, targetedStats, metricMap, schema, null);
@@ -2233,6 +2258,7 @@ public ModelAndView getView(ChromatogramForm form, BindException errors)
                     ChromatogramsDataRegion.PRECURSOR_CHROM_DATA_REGION, form.isSplitGraph(), canBeSplitView);
 
             pageToSelectedChromatogram(form, dRegion, PrecursorManager.getChromInfosLitePlusForPrecursor(form.getId(), getContainer()));
+            prefetchVisibleChromatograms(_run, precursorId, dRegion);
 
             GridView gridView = new ChromatogramGridView(dRegion, errors);
             gridView.setFrame(WebPartView.FrameType.PORTAL);
@@ -2279,6 +2305,16 @@ public void addNavTrail(NavTree root)
         }
     }
 
+    /**
+     * The grid's charts are rendered from the chrom infos one at a time, so load the chromatograms on the page being
+     * shown from the .skyd in one batch up front
+     */
+    private static void prefetchVisibleChromatograms(TargetedMSRun run, long precursorId, ChromatogramsDataRegion dRegion)
+    {
+        QuerySettings settings = dRegion.getSettings();
+        AbstractChromInfo.prefetchChromatograms(run, PrecursorManager.getChromatogramLocationsForPrecursor(precursorId, settings.getOffset(), settings.getMaxRows()));
+    }
+
     /**
      * If the client's requested we show a particular chromatogram figure out which page of plots it's on
      * and send a redirect to get there. See issue 45544.
@@ -2358,6 +2394,7 @@ public ModelAndView getView(ChromatogramForm form, BindException errors)
                     ChromatogramsDataRegion.PRECURSOR_CHROM_DATA_REGION, form.isSplitGraph(), canBeSplitView);
 
             pageToSelectedChromatogram(form, dRegion, MoleculePrecursorManager.getChromInfosLitePlusForMoleculePrecursor(form.getId(), getUser(), getContainer()));
+            prefetchVisibleChromatograms(_run, precursorId, dRegion);
 
             GridView gridView = new GridView(dRegion, errors);
             gridView.setFrame(WebPartView.FrameType.PORTAL);
@@ -20,6 +20,8 @@
 import org.labkey.api.data.ContainerManager;
 import org.labkey.api.data.SqlExecutor;
 import org.labkey.api.security.User;
+import org.labkey.targetedms.outliers.OutlierSummaryCache;
+import org.labkey.targetedms.outliers.QCMetricValueManager;
 import org.labkey.targetedms.parser.speclib.LibSpectrumReader;
 
 import java.beans.PropertyChangeEvent;
@@ -64,6 +66,10 @@ public void containerDeleted(Container c, User user)
         // Clean up Metric Configurations
         new SqlExecutor(TargetedMSManager.getSchema()).execute("DELETE FROM " + TargetedMSManager.getTableInfoQCMetricConfiguration() + " WHERE Container = ?", c);
 
+        // Clean up materialized QC metric values
+        QCMetricValueManager.deleteForContainer(c);
+        OutlierSummaryCache.containerDeleted(c);
+
         //Clean up Excluded Precursors
         new SqlExecutor(TargetedMSManager.getSchema()).execute("DELETE FROM " + TargetedMSManager.getTableInfoExcludedPrecursors() + " WHERE Container = ?", c);
 
@@ -25,6 +25,7 @@
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.cache.Cache;
 import org.labkey.api.cache.CacheManager;
+import org.labkey.api.collections.CaseInsensitiveHashMap;
 import org.labkey.api.data.ColumnInfo;
 import org.labkey.api.data.CompareType;
 import org.labkey.api.data.Container;
@@ -86,21 +87,18 @@
 import org.labkey.api.view.ViewBackgroundInfo;
 import org.labkey.targetedms.model.AutoQCPingData;
 import org.labkey.targetedms.model.GuideSet;
-import org.labkey.targetedms.model.GuideSetKey;
-import org.labkey.targetedms.model.GuideSetStats;
 import org.labkey.api.targetedms.model.QCMetricConfiguration;
 import org.labkey.api.targetedms.model.QCMetricStatus;
-import org.labkey.targetedms.model.QCTraceMetricValues;
-import org.labkey.targetedms.model.RawMetricDataSet;
 import org.labkey.targetedms.model.passport.IKeyword;
-import org.labkey.targetedms.outliers.OutlierGenerator;
-import org.labkey.targetedms.parser.Chromatogram;
+import org.labkey.targetedms.outliers.OutlierSummaryCache;
+import org.labkey.targetedms.outliers.QCMetricValueManager;
 import org.labkey.targetedms.parser.GeneralMolecule;
 import org.labkey.targetedms.parser.Replicate;
 import org.labkey.targetedms.parser.SampleFile;
 import org.labkey.targetedms.parser.SampleFileChromInfo;
 import org.labkey.targetedms.parser.TransitionSettings;
 import org.labkey.targetedms.parser.skyaudit.AuditLogException;
+import org.labkey.targetedms.parser.speclib.LibConnectionPool;
 import org.labkey.targetedms.pipeline.TargetedMSImportPipelineJob;
 import org.labkey.targetedms.query.GuideSetTable;
 import org.labkey.targetedms.query.ModificationManager;
@@ -120,6 +118,7 @@
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -127,7 +126,6 @@
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static org.labkey.api.targetedms.TargetedMSService.FOLDER_TYPE_PROP_NAME;
@@ -534,6 +532,16 @@ public static TableInfo getTableQCTraceMetricValues()
         return getSchema().getTable(TargetedMSSchema.TABLE_QC_TRACE_METRIC_VALUES);
     }
 
+    public static TableInfo getTableInfoQCMetricValue()
+    {
+        return getSchema().getTable(TargetedMSSchema.TABLE_QC_METRIC_VALUE);
+    }
+
+    public static TableInfo getTableInfoQCMetricValueState()
+    {
+        return getSchema().getTable(TargetedMSSchema.TABLE_QC_METRIC_VALUE_STATE);
+    }
+
     public static TableInfo getTableInfoSkylineAuditLogEntry()
     {
         return getSchema().getTable(TargetedMSSchema.TABLE_SKYLINE_AUDITLOG_ENTRY);
@@ -755,25 +763,6 @@ private static void wrapRun(TargetedMSRun run, User user, Integer jobId) throws
         }
     }
 
-    @NotNull
-    public static Container getMostRecentPingChild(@NotNull User user, @NotNull Container c)
-    {
-        SQLFragment sql = new SQLFragment("SELECT Container FROM ");
-        sql.append(getTableInfoAutoQCPing(), "p");
-        ContainerFilter f = ContainerFilter.Type.CurrentAndSubfolders.create(c, user);
-        sql.append(" WHERE ");
-        sql.append(f.getSQLFragment(getSchema(), new SQLFragment("Container")));
-        sql.append(" ORDER BY Modified DESC");
-
-        String containerId = new SqlSelector(getSchema(), getSqlDialect().limitRows(sql, 1)).getObject(String.class);
-        Container result = null;
-        if (containerId != null)
-        {
-            result = ContainerManager.getForId(containerId);
-        }
-        return result == null ? c : result;
-    }
-
     private static TargetedMSRun getMostRecentRunRevision(TargetedMSRun run)
     {
         SQLFragment sql = new SQLFragment("SELECT * FROM ");
@@ -1401,6 +1390,7 @@ public static List<String> purgeUnreferencedFiles(@NotNull Set<URI> fileURIs, Co
                         logMsg = "Deleting directory " + dir;
                         logMsgs.add(logMsg);
                         _log.info(logMsg);
+                        LibConnectionPool.get().closeLibrariesIn(dir);
                         FileUtil.deleteDir(dir);
                     }
                 }
@@ -1472,6 +1462,21 @@ public static void purgeDeletedSampleFiles(List<Long> sampleFileIds)
 
         SQLFragment whereClause = getSqlDialect().appendInClauseSql(new SQLFragment(" WHERE SampleFileId "), sampleFileIds);
 
+        // The cached QC outlier summaries and guide set stats for the affected folders no longer match their data
+        SQLFragment containerSql = new SQLFragment("SELECT DISTINCT r.Container FROM ");
+        containerSql.append(getTableInfoSampleFile(), "sf");
+        containerSql.append(" INNER JOIN ").append(getTableInfoReplicate(), "rep").append(" ON rep.Id = sf.ReplicateId");
+        containerSql.append(" INNER JOIN ").append(getTableInfoRuns(), "r").append(" ON r.Id = rep.RunId");
+        containerSql = getSqlDialect().appendInClauseSql(containerSql.append(" WHERE sf.Id "), sampleFileIds);
+        for (String containerId : new SqlSelector(getSchema(), containerSql).getArrayList(String.class))
+        {
+            Container container = ContainerManager.getForId(containerId);
+            if (container != null)
+            {
+                OutlierSummaryCache.invalidate(container);
+            }
+        }
+
         // --- Delete from TransitionChromInfo and dependent tables ---
         // Create a temporary table that will contain the TransitionChromInfo Ids to be deleted.
         String transitionChromInfoIdsTempTableName = createTempChromInfoIdsTable(getTableInfoTransitionChromInfo(), "TransitionChromInfoIds", whereClause);
@@ -1519,6 +1524,9 @@ public static void purgeDeletedSampleFiles(List<Long> sampleFileIds)
         // Delete from QCTraceMetricValues
         execute(new SQLFragment("DELETE FROM ").append(getTableQCTraceMetricValues()).append(whereClause));
 
+        // Delete from QCMetricValue
+        execute(new SQLFragment("DELETE FROM ").append(getTableInfoQCMetricValue()).append(whereClause));
+
         // Delete from SampleFileChromInfo
         execute(new SQLFragment("DELETE FROM ").append(getTableInfoSampleFileChromInfo()).append(whereClause));
     }
@@ -1632,6 +1640,8 @@ private static void purgeDeletedRuns()
 
         // Delete from QCTraceMetricValues
         deleteSampleFileDependent(getTableQCTraceMetricValues());
+        // Delete from QCMetricValue
+        deleteSampleFileDependent(getTableInfoQCMetricValue());
 
         // Delete from SampleFileChromInfo
         deleteSampleFileDependent(getTableInfoSampleFileChromInfo());
@@ -1728,6 +1738,32 @@ public static void deleteTransitionChromInfoDependent(TableInfo tableInfo, SQLFr
                 append(")"));
     }
 
+    /**
+     * Deletes the TransitionChromInfos, and their dependents, for the given run. Used during import when we find
+     * that the document exceeds the limits for storing TransitionChromInfos.
+     */
+    public static void deleteTransitionChromInfosForRun(long runId)
+    {
+        SQLFragment whereClause = new SQLFragment("WHERE r.Id = ?", runId);
+
+        deleteTransitionChromInfoDependent(getTableInfoTransitionChromInfoAnnotation(), whereClause);
+        deleteTransitionChromInfoDependent(getTableInfoTransitionAreaRatio(), whereClause);
+
+        execute(new SQLFragment(" DELETE FROM " + getTableInfoTransitionChromInfo() +
+                " WHERE SampleFileId IN (SELECT s.Id FROM " + getTableInfoSampleFile() + " s " +
+                " INNER JOIN " + getTableInfoReplicate() + " rep ON s.ReplicateId = rep.Id " +
+                " WHERE rep.RunId = ?)", runId));
+    }
+
+    /** Clears the transition chromatogram indices stored on the run's PrecursorChromInfos, which aren't needed when it has TransitionChromInfos */
+    public static void clearTransitionChromatogramIndicesForRun(long runId)
+    {
+        execute(new SQLFragment("UPDATE " + getTableInfoPrecursorChromInfo() + " SET TransitionChromatogramIndices = NULL" +
+                " WHERE TransitionChromatogramIndices IS NOT NULL AND SampleFileId IN (SELECT s.Id FROM " + getTableInfoSampleFile() + " s " +
+                " INNER JOIN " + getTableInfoReplicate() + " rep ON s.ReplicateId = rep.Id " +
+                " WHERE rep.RunId = ?)", runId));
+    }
+
     public static void deletePrecursorChromInfoDependent(TableInfo tableInfo)
     {
         execute(" DELETE FROM " + tableInfo +
@@ -2069,6 +2105,82 @@ public AutoQCPingData getAutoQCPingData(Container container)
         return new TableSelector(table, SimpleFilter.createContainerFilter(container), null).getObject(AutoQCPingData.class);
     }
 
+    /** @return the AutoQC pings for the container and all of its subfolders that the user can read, most recent first */
+    public List<AutoQCPingData> getAutoQCPingDataIncludingSubfolders(User user, Container container)
+    {
+        SQLFragment sql = new SQLFragment("SELECT * FROM ");
+        sql.append(getTableInfoAutoQCPing(), "p");
+        ContainerFilter f = ContainerFilter.Type.CurrentAndSubfolders.create(container, user);
+        sql.append(" WHERE ");
+        sql.append(f.getSQLFragment(getSchema(), new SQLFragment("Container")));
+        sql.append(" ORDER BY Modified DESC");
+        return new SqlSelector(getSchema(), sql).getArrayList(AutoQCPingData.class);
+    }
+
+    /**
+     * Counts the successfully imported documents, sample files and distinct precursors, and finds the most recent
+     * import, for each of the containers with a few grouped queries instead of a set per container.
+     * @return container to its "docCount", "lastImportDate", "fileCount" and "precursorCount"
+     */
+    public static Map<Container, Map<String, Object>> getQCSummaryCounts(Collection<Container> containers)
+    {
+        // Case-insensitive since SQL Server hands back GUIDs in upper case
+        Map<String, Map<String, Object>> byId = new CaseInsensitiveHashMap<>();
+        Map<Container, Map<String, Object>> result = new LinkedHashMap<>();
+        for (Container container : containers)
+        {
+            Map<String, Object> counts = new HashMap<>();
+            counts.put("docCount", 0);
+            counts.put("lastImportDate", null);
+            counts.put("fileCount", 0);
+            counts.put("precursorCount", 0);
+            byId.put(container.getId(), counts);
+            result.put(container, counts);
+        }
+        if (byId.isEmpty())
+        {
+            return result;
+        }
+
+        // # Skyline documents, count of rows in targetedms.Runs
+        // and date of last import, max(created) from targetedms.Runs
+        SQLFragment sql = new SQLFragment("SELECT Container, COUNT(Id) AS DocCount, MAX(Created) AS LastImportDate FROM ");
+        sql.append(getTableInfoRuns(), "r").append(" WHERE StatusId = ? AND Container ");
+        sql.add(SkylineDocImporter.STATUS_SUCCESS);
+        getSqlDialect().appendInClauseSql(sql, byId.keySet());
+        sql.append(" GROUP BY Container");
+        new SqlSelector(getSchema(), sql).forEach(rs -> {
+            Map<String, Object> counts = byId.get(rs.getString("Container"));
+            counts.put("docCount", rs.getInt("DocCount"));
+            counts.put("lastImportDate", rs.getTimestamp("LastImportDate"));
+        });
+
+        // # sample files, count of rows in targetedms.SampleFile
+        sql = new SQLFragment("SELECT r.Container, COUNT(s.Id) AS FileCount FROM ").append(getTableInfoSampleFile(), "s");
+        sql.append(" JOIN ").append(getTableInfoReplicate(), "re").append(" ON s.ReplicateId = re.Id");
+        sql.append(" JOIN ").append(getTableInfoRuns(), "r").append(" ON re.RunId = r.Id");
+        sql.append(" WHERE r.Container ");
+        getSqlDialect().appendInClauseSql(sql, byId.keySet());
+        sql.append(" GROUP BY r.Container");
+        new SqlSelector(getSchema(), sql).forEach(rs -> byId.get(rs.getString("Container")).put("fileCount", rs.getInt("FileCount")));
+
+        // # precursors tracked, count of distinct precursors. Include peptides and small molecules
+        sql = new SQLFragment("SELECT x.Container, COUNT(*) AS PrecursorCount FROM (SELECT DISTINCT r.Container, COALESCE(p.ModifiedSequence, ");
+        sql.append(" concat(mp.CustomIonName, mp.IonFormula,mp.massMonoisotopic, mp.massAverage, gp.mz)) AS SeriesLabel, gp.Charge");
+        sql.append(" FROM ").append(getTableInfoGeneralPrecursor(), "gp");
+        sql.append(" JOIN ").append(getTableInfoGeneralMolecule(), "gm").append(" ON gp.GeneralMoleculeId = gm.Id");
+        sql.append(" JOIN ").append(getTableInfoPeptideGroup(), "pg").append(" ON gm.PeptideGroupId = pg.Id");
+        sql.append(" JOIN ").append(getTableInfoRuns(), "r").append(" ON pg.RunId = r.Id");
+        sql.append(" LEFT JOIN ").append(getTableInfoPrecursor(), "p").append(" ON p.Id = gp.Id");
+        sql.append(" LEFT JOIN ").append(getTableInfoMoleculePrecursor(), "mp").append(" ON mp.Id = gp.Id");
+        sql.append(" WHERE r.Container ");
+        getSqlDialect().appendInClauseSql(sql, byId.keySet());
+        sql.append(") x GROUP BY x.Container");
+        new SqlSelector(getSchema(), sql).forEach(rs -> byId.get(rs.getString("Container")).put("precursorCount", rs.getInt("PrecursorCount")));
+
+        return result;
+    }
+
     // return the ModuleProperty value for "AUTO_QC_PING_TIMEOUT"
     public int getAutoQCPingTimeout(Container container)
     {
@@ -2273,20 +2385,8 @@ public static List<QCMetricConfiguration> getEnabledQCMetricConfigurations(Targe
 
     public List<SampleFileInfo> getSampleFileInfos(Container container, User user, Integer sampleFileLimit)
     {
-        TargetedMSSchema schema = new TargetedMSSchema(user, container);
-        List<QCMetricConfiguration> enabledQCMetricConfigurations = getEnabledQCMetricConfigurations(schema);
-        if(!enabledQCMetricConfigurations.isEmpty())
-        {
-            List<GuideSet> guideSets = TargetedMSManager.getGuideSets(container, user);
-            Map<Integer, QCMetricConfiguration> metricMap = enabledQCMetricConfigurations.stream().collect(Collectors.toMap(QCMetricConfiguration::getId, Function.identity()));
-
-            List<RawMetricDataSet> rawMetricDataSets = OutlierGenerator.get().getRawMetricDataSets(schema, enabledQCMetricConfigurations, null, null, Collections.emptyList(), true, false, false);
-
-            Map<GuideSetKey, GuideSetStats> stats = OutlierGenerator.get().getAllProcessedMetricGuideSets(rawMetricDataSets, guideSets.stream().collect(Collectors.toMap(GuideSet::getRowId, Function.identity())));
-
-            return OutlierGenerator.get().getSampleFiles(rawMetricDataSets, stats, metricMap, schema, sampleFileLimit);
-        }
-        return Collections.emptyList();
+        OutlierSummaryCache.Summary summary = OutlierSummaryCache.getSummary(new TargetedMSSchema(user, container), false);
+        return summary == null ? Collections.emptyList() : summary.getSampleFiles(sampleFileLimit);
     }
 
     public static int getMaxTransitionCount(long moleculeId)
@@ -2350,6 +2450,11 @@ static void moveRun(TargetedMSRun run, Container newContainer, String newRunLSID
 
         new SqlExecutor(getSchema()).execute(updatePrecChromInfoSql);
 
+        QCMetricValueManager.deleteForMovedRun(run.getId(), run.getContainer(), newContainer);
+        // Both folders' enabled metrics, outlier summaries and guide set stats change along with their data
+        get().clearCachedEnabledQCMetrics(run.getContainer());
+        get().clearCachedEnabledQCMetrics(newContainer);
+
         run.setExperimentRunLSID(newRunLSID);
         run.setDataId(newDataRowId);
         run.setContainer(newContainer);
@@ -2600,76 +2705,6 @@ private static List<Long> getPredictorsToDelete()
         return new SqlSelector(getSchema(), sql).getArrayList(Long.class);
     }
 
-    private static List<SampleFileChromInfo> getSampleFileChromInfosByName(String traceName, long runId)
-    {
-        var sql = new SQLFragment(" SELECT sfi.Id, sfi.SampleFileId, sfi.StartTime, sfi.EndTime, sfi.NumPoints," +
-                " sfi.UncompressedSize, sfi.ChromatogramFormat, sfi.ChromatogramOffset, sfi.ChromatogramLength, sfi.TextId" +
-                " FROM " + getTableInfoSampleFileChromInfo() + " sfi" +
-                " INNER JOIN " + getTableInfoSampleFile() + " sf ON sf.Id = sfi.SampleFileId" +
-                " INNER JOIN " + getTableInfoReplicate() + " r ON r.Id = sf.ReplicateId" +
-                " INNER JOIN " + getTableInfoRuns() + " rn ON rn.Id = r.RunId" +
-                " WHERE TextId = ?" +
-                " AND rn.ID = ? ").add(traceName).add(runId);
-        return new SqlSelector(getSchema(), sql).getArrayList(SampleFileChromInfo.class);
-    }
-
-    public static List<QCTraceMetricValues> calculateTraceMetricValues(List<QCMetricConfiguration> qcMetricConfigurations, TargetedMSRun run)
-    {
-        List<QCTraceMetricValues> qcTraceMetricValuesList = new ArrayList<>();
-        if (!qcMetricConfigurations.isEmpty())
-        {
-            for (QCMetricConfiguration qcMetricConfiguration : qcMetricConfigurations)
-            {
-                List<SampleFileChromInfo> sampleFileChromInfos = getSampleFileChromInfosByName(qcMetricConfiguration.getTraceName(), run.getRunId());
-                Map<SampleFileChromInfo, Float> valuesToStore = new HashMap<>();
-
-                for (SampleFileChromInfo sampleFileChromInfo : sampleFileChromInfos)
-                {
-                    Chromatogram chromatogram = sampleFileChromInfo.createChromatogram(run);
-                    if (null != chromatogram)
-                    {
-                        float[] times = chromatogram.getTimes();
-                        float[] values = chromatogram.getIntensities(0);
-
-                        if (times.length != values.length)
-                        {
-                            throw new IllegalStateException("Incorrect values in skyd file for time and intensities for trace - " + sampleFileChromInfo.getTextId());
-                        }
-
-                        for (int i = 0; i < times.length; i++)
-                        {
-                            Double timeValue = qcMetricConfiguration.getTimeValue();
-                            Double traceValue = qcMetricConfiguration.getTraceValue();
-
-                            if (timeValue != null && times[i] >= timeValue)
-                            {
-                                valuesToStore.put(sampleFileChromInfo, values[i]);
-                                break;
-                            }
-                            else if (traceValue != null && values[i] >= traceValue)
-                            {
-                                valuesToStore.put(sampleFileChromInfo, times[i]);
-                                break;
-                            }
-                        }
-                    }
-                }
-
-                if (!valuesToStore.isEmpty())
-                {
-                    valuesToStore.forEach((key,val) -> {
-                        QCTraceMetricValues qcTraceMetricValues = new QCTraceMetricValues();
-                        qcTraceMetricValues.setMetric(qcMetricConfiguration.getId());
-                        qcTraceMetricValues.setSampleFileId(key.getSampleFileId());
-                        qcTraceMetricValues.setValue(val);
-                        qcTraceMetricValuesList.add(qcTraceMetricValues);
-                    });
-                }
-            }
-        }
-        return qcTraceMetricValuesList;
-    }
-
     public static List<QCMetricConfiguration> getTraceMetricConfigurations(Container container, User user)
     {
         return getEnabledQCMetricConfigurations(new TargetedMSSchema(user, container))
@@ -2710,5 +2745,7 @@ public static Map<String,Object> getQCFolderDateRange(Container container)
     public void clearCachedEnabledQCMetrics(Container container)
     {
         getSchema().getScope().addCommitTask(() -> _metricCache.remove(container), DbScope.CommitTaskOption.IMMEDIATE, DbScope.CommitTaskOption.POSTCOMMIT, DbScope.CommitTaskOption.POSTROLLBACK);
+        // Anything that changes which metrics have data also changes the outliers
+        OutlierSummaryCache.invalidate(container);
     }
 }
@@ -50,6 +50,7 @@
 import org.labkey.api.settings.AdminConsole;
 import org.labkey.api.targetedms.TargetedMSService;
 import org.labkey.api.usageMetrics.UsageMetricsService;
+import org.labkey.api.util.ContextListener;
 import org.labkey.api.util.PageFlowUtil;
 import org.labkey.api.view.ActionURL;
 import org.labkey.api.view.BaseWebPartFactory;
@@ -68,10 +69,15 @@
 import org.labkey.targetedms.datasource.MsDataSourceUtil;
 import org.labkey.targetedms.folderImport.QCFolderImporter;
 import org.labkey.targetedms.folderImport.QCFolderWriterFactory;
+import org.labkey.targetedms.outliers.TraceMetricCalculator;
+import org.labkey.targetedms.parser.ChromatogramCache;
+import org.labkey.targetedms.parser.ChromatogramGroupDataReader;
+import org.labkey.targetedms.parser.PooledInflater;
 import org.labkey.targetedms.parser.Protein;
 import org.labkey.targetedms.parser.SampleFile;
 import org.labkey.targetedms.parser.SpectrumFilter;
 import org.labkey.targetedms.parser.skyaudit.SkylineAuditLogParser;
+import org.labkey.targetedms.parser.speclib.LibConnectionPool;
 import org.labkey.targetedms.passport.PassportController;
 import org.labkey.targetedms.pipeline.TargetedMSPipelineProvider;
 import org.labkey.targetedms.query.PrecursorManager;
@@ -157,6 +163,8 @@ public class TargetedMSModule extends SpringModule implements ProteomicsModule
     public final ModuleProperty MAX_PRECURSORS_PROPERTY;
     public static final int DEFAULT_MAX_PRECURSORS = 1_000;
     public final ModuleProperty AUTO_QC_PING_TIMEOUT_PROPERTY;
+    public final ModuleProperty CHROMATOGRAM_CACHE_SIZE_PROPERTY;
+    public final ModuleProperty CHROMATOGRAM_DISK_CACHE_SIZE_PROPERTY;
 
     public TargetedMSModule()
     {
@@ -214,6 +222,24 @@ public TargetedMSModule()
         MAX_PRECURSORS_PROPERTY.setShowDescriptionInline(true);
         addModuleProperty(MAX_PRECURSORS_PROPERTY);
 
+        CHROMATOGRAM_CACHE_SIZE_PROPERTY = new ModuleProperty(this, "Chromatogram cache size (MB)");
+        CHROMATOGRAM_CACHE_SIZE_PROPERTY.setInputType(ModuleProperty.InputType.text);
+        CHROMATOGRAM_CACHE_SIZE_PROPERTY.setDefaultValue(Integer.toString(ChromatogramCache.DEFAULT_MEMORY_MB));
+        // Property can be set only at the site level.
+        CHROMATOGRAM_CACHE_SIZE_PROPERTY.setCanSetPerContainer(false);
+        CHROMATOGRAM_CACHE_SIZE_PROPERTY.setDescription("Amount of memory used to cache chromatograms that have been read from .skyd files, after they've been decompressed");
+        CHROMATOGRAM_CACHE_SIZE_PROPERTY.setShowDescriptionInline(true);
+        addModuleProperty(CHROMATOGRAM_CACHE_SIZE_PROPERTY);
+
+        CHROMATOGRAM_DISK_CACHE_SIZE_PROPERTY = new ModuleProperty(this, "Chromatogram local disk cache size (MB)");
+        CHROMATOGRAM_DISK_CACHE_SIZE_PROPERTY.setInputType(ModuleProperty.InputType.text);
+        CHROMATOGRAM_DISK_CACHE_SIZE_PROPERTY.setDefaultValue(Integer.toString(ChromatogramCache.DEFAULT_DISK_MB));
+        // Property can be set only at the site level.
+        CHROMATOGRAM_DISK_CACHE_SIZE_PROPERTY.setCanSetPerContainer(false);
+        CHROMATOGRAM_DISK_CACHE_SIZE_PROPERTY.setDescription("Amount of local temp disk space used to cache chromatograms read from .skyd files that are stored remotely, such as in S3. 0 disables the disk cache");
+        CHROMATOGRAM_DISK_CACHE_SIZE_PROPERTY.setShowDescriptionInline(true);
+        addModuleProperty(CHROMATOGRAM_DISK_CACHE_SIZE_PROPERTY);
+
     }
 
     @Override
@@ -225,7 +251,7 @@ public String getName()
     @Override
     public Double getSchemaVersion()
     {
-        return 24.005;
+        return 24.006;
     }
 
     @Override
@@ -571,6 +597,7 @@ protected void init()
                         annotationFolderCounts.put(rs.getString("Name"), rs.getLong("FolderCount")));
 
                 metric.put("annotationFolderCounts", annotationFolderCounts);
+                metric.put("chromatogramCache", ChromatogramCache.get().getStats());
 
                 return metric;
             });
@@ -662,6 +689,8 @@ protected void startupAfterSpringConfig(ModuleContext moduleContext)
         Portal.registerNavTreeCustomizer(TARGETED_MS_QC_PLOTS, new QCSummaryMenuCustomizer("subscribeOutlierNotifications", "Subscribe to Outlier Notification Emails"));
 
         TargetedMSService.get().registerSkylineDocumentImportListener(QCNotificationSender.get());
+        ContextListener.addShutdownListener(QCNotificationSender.get());
+        ContextListener.addShutdownListener(LibConnectionPool.get());
     }
 
     @NotNull
@@ -687,7 +716,12 @@ public Set<Class> getUnitTests()
             PrecursorManager.TestCase.class,
             CrossLinkedPeptideInfo.TestCase.class,
             Protein.TestCase.class,
-            SpectrumFilter.TestCase.class
+            SpectrumFilter.TestCase.class,
+            PooledInflater.TestCase.class,
+            ChromatogramGroupDataReader.TestCase.class,
+            TraceMetricCalculator.TestCase.class,
+            LibConnectionPool.TestCase.class,
+            QCNotificationSender.TestCase.class
         );
     }
 
@@ -59,6 +59,7 @@
 import org.labkey.api.query.QueryForeignKey;
 import org.labkey.api.query.QuerySchema;
 import org.labkey.api.query.QueryService;
+import org.labkey.api.query.QueryUpdateService;
 import org.labkey.api.query.QuerySettings;
 import org.labkey.api.query.QueryView;
 import org.labkey.api.query.SchemaKey;
@@ -101,6 +102,7 @@
 import org.labkey.targetedms.query.QCEnabledMetricsTable;
 import org.labkey.targetedms.query.QCMetricConfigurationTable;
 import org.labkey.targetedms.query.QCMetricExclusionTable;
+import org.labkey.targetedms.query.QCOutlierDataUpdateService;
 import org.labkey.targetedms.query.QCTraceMetricValuesTable;
 import org.labkey.targetedms.query.RepresentativeStateDisplayColumn;
 import org.labkey.targetedms.query.SampleFileTable;
@@ -217,6 +219,8 @@ public class TargetedMSSchema extends UserSchema
     public static final String TABLE_QC_METRIC_EXCLUSION = "QCMetricExclusion";
     public static final String TABLE_QC_ENABLED_METRICS = "QCEnabledMetrics";
     public static final String TABLE_QC_TRACE_METRIC_VALUES = "QCTraceMetricValues";
+    public static final String TABLE_QC_METRIC_VALUE = "QCMetricValue";
+    public static final String TABLE_QC_METRIC_VALUE_STATE = "QCMetricValueState";
 
     public static final String TABLE_GUIDE_SET = "GuideSet";
 
@@ -1575,7 +1579,15 @@ public DisplayColumn createRenderer(ColumnInfo colInfo)
 
         if (TABLE_PEPTIDE_MOLECULE_PRECURSOR_EXCLUSION.equalsIgnoreCase(name))
         {
-            return new SimpleUserSchema.SimpleTable<>(this, getSchema().getTable(TABLE_PEPTIDE_MOLECULE_PRECURSOR_EXCLUSION), cf).init();
+            return new SimpleUserSchema.SimpleTable<>(this, getSchema().getTable(TABLE_PEPTIDE_MOLECULE_PRECURSOR_EXCLUSION), cf)
+            {
+                @Override
+                public QueryUpdateService getUpdateService()
+                {
+                    // Excluded precursors are left out of the QC outlier counts
+                    return new QCOutlierDataUpdateService(this, getRealTable());
+                }
+            }.init();
         }
 
         if(TABLE_QC_EMAIL_NOTIFICATIONS.equalsIgnoreCase(name))
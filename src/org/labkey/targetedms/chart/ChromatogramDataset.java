@@ -34,6 +34,7 @@
 import org.labkey.targetedms.TargetedMSSchema;
 import org.labkey.targetedms.model.PrecursorChromInfoPlus;
 import org.labkey.targetedms.model.PrecursorComparator;
+import org.labkey.targetedms.parser.AbstractChromInfo;
 import org.labkey.targetedms.parser.Chromatogram;
 import org.labkey.targetedms.parser.GeneralMolecule;
 import org.labkey.targetedms.parser.GeneralMoleculeChromInfo;
@@ -638,6 +639,8 @@ public void build()
 
             _quantative = new boolean[precursorChromInfoList.size()];
 
+            AbstractChromInfo.prefetchChromatograms(_run, precursorChromInfoList);
+
             for(int i = 0; i < precursorChromInfoList.size(); i++)
             {
                 PrecursorChromInfoPlus pChromInfo = precursorChromInfoList.get(i);
@@ -1609,6 +1612,8 @@ public void build()
 
             List<RtRange> ranges = new ArrayList<>();
 
+            AbstractChromInfo.prefetchChromatograms(_run, _allMolecules.values().stream().flatMap(List::stream).toList());
+
             int i = 0;
             for (Map.Entry<GeneralMolecule, List<PrecursorChromInfoPlus>> entry : _allMolecules.entrySet())
             {
@@ -36,11 +36,26 @@
 {
     private static final Logger _log = LogManager.getLogger(BaseDaoImpl.class);
 
+    // Id of the newest row when ids are assigned here rather than read back from the table. See assignIds()
+    private Integer _lastId;
+
     public PreparedStatement getPreparedStatement(Connection connection, String sql) throws SQLException
     {
         return connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
     }
 
+    /**
+     * Assigns the ids of new rows from a counter that starts after the largest id already in the table, instead of
+     * querying the table for the id after every insert. Only for a connection that has the library file to itself.
+     */
+    public void assignIds(Connection connection) throws SQLException
+    {
+        if (hasAutoGeneratedIdColumn())
+        {
+            _lastId = getMaxId(connection);
+        }
+    }
+
     @Override
     public void save(T t, Connection connection) throws SQLException
     {
@@ -52,8 +67,19 @@ public void save(T t, Connection connection) throws SQLException
             {
                 setValuesInStatement(t, stmt);
 
-                int id = insertAndReturnId(stmt);
-                t.setId(id);
+                if (_lastId != null)
+                {
+                    int id = _lastId + 1;
+                    setIdInStatement(id, stmt);
+                    insert(stmt);
+                    _lastId = id;
+                    t.setId(id);
+                }
+                else
+                {
+                    int id = insertAndReturnId(stmt);
+                    t.setId(id);
+                }
             }
         }
     }
@@ -68,10 +94,21 @@ public void saveAll(Collection<T> list, Connection connection) throws SQLExcepti
 
             try (PreparedStatement stmt = getPreparedStatement(connection, sql))
             {
-                connection.setAutoCommit(false);
+                // Leave the transaction alone if the caller has one open
+                boolean autoCommit = connection.getAutoCommit();
+                if (autoCommit)
+                {
+                    connection.setAutoCommit(false);
+                }
+
+                int id = _lastId != null ? _lastId : 0;
                 for(T t: list)
                 {
                     setValuesInStatement(t, stmt);
+                    if (_lastId != null)
+                    {
+                        setIdInStatement(++id, stmt);
+                    }
                     stmt.addBatch();
                 }
 
@@ -81,13 +118,23 @@ public void saveAll(Collection<T> list, Connection connection) throws SQLExcepti
                 {
                     t.setId(ids[index++]);
                 }
-                connection.commit();
-                connection.setAutoCommit(true);
+                if (autoCommit)
+                {
+                    connection.commit();
+                    connection.setAutoCommit(true);
+                }
             }
         }
     }
 
     private int insertAndReturnId(PreparedStatement statement) throws SQLException
+    {
+        insert(statement);
+
+        return getMaxId(statement.getConnection());
+    }
+
+    private void insert(PreparedStatement statement) throws SQLException
     {
         int rowCount = statement.executeUpdate();
 
@@ -95,8 +142,12 @@ private int insertAndReturnId(PreparedStatement statement) throws SQLException
         {
             throw new SQLException("Inserting in "+getTableName()+" failed. No rows were inserted.");
         }
+    }
 
-        return getMaxId(statement.getConnection());
+    /** When ids are assigned here the Id column is the last one in the insert statement */
+    private void setIdInStatement(int id, PreparedStatement stmt) throws SQLException
+    {
+        stmt.setInt(getColumns().length, id);
     }
 
     private int[] insertAndReturnIds(PreparedStatement statement, int numInserts) throws SQLException
@@ -117,7 +168,16 @@ private int[] insertAndReturnIds(PreparedStatement statement, int numInserts) th
             }
         }
 
-        int lastInsertId = getMaxId(statement.getConnection());
+        int lastInsertId;
+        if (_lastId != null)
+        {
+            _lastId += numInserts;
+            lastInsertId = _lastId;
+        }
+        else
+        {
+            lastInsertId = getMaxId(statement.getConnection());
+        }
 
         int[] ids = new int[numInserts];
         for (int i = ids.length - 1; i >= 0; i--)
@@ -248,6 +308,10 @@ private String getInsertSql()
                 sql.append(", ");
             sql.append(colnames[i].baseColumn().name());
         }
+        if (_lastId != null)
+        {
+            sql.append(", ").append(colnames[0].baseColumn().name());
+        }
 
         sql.append(")");
         sql.append(" VALUES (");
@@ -256,6 +320,10 @@ private String getInsertSql()
             if(i > startIdx) sql.append(", ");
             sql.append("?");
         }
+        if (_lastId != null)
+        {
+            sql.append(", ?");
+        }
         sql.append(")");
         return sql.toString();
     }
@@ -20,6 +20,8 @@
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * User: vsharma
@@ -32,6 +34,7 @@ public void createSchema(Connection connection) throws SQLException
     {
         try {
             createTables(connection);
+            createIndexes(connection);
         }
         finally
         {
@@ -39,102 +42,46 @@ public void createSchema(Connection connection) throws SQLException
         }
     }
 
-    private void createTables(Connection conn) throws SQLException
+    /** Creates the tables without the foreign key indexes, which are cheaper to build once the tables are loaded */
+    public void createTables(Connection conn) throws SQLException
     {
-        createLibInfoTable(conn);
-        createPredictorTable(conn);
-        createSampleFileTable(conn);
-
-        // Proteomics modifications
-        createStructuralModificationTable(conn);
-        createStructuralModLossTable(conn);
-        createIsotopeModificationTable(conn);
-
-        createProteinTable(conn);
-        createPeptideTable(conn);
-        createPeptideStructuralModificationTable(conn);
-        createPrecursorTable(conn);
-        createPrecursorIsotopeModificationTable(conn);
-        createPrecursorRetentionTimeTable(conn);
-        createTransitionTable(conn);
-        createTransitionOptimizationTable(conn);
-
-        createIrtLibraryTable(conn);
-    }
-
-    private void createLibInfoTable(Connection conn) throws SQLException
-    {
-        createTable(conn, Table.LibInfo, Constants.LibInfoColumn.values());
-    }
-
-    private void createStructuralModificationTable(Connection conn) throws SQLException
-    {
-        createTable(conn, Table.StructuralModification, Constants.StructuralModificationColumn.values());
-    }
-
-    private void createStructuralModLossTable(Connection conn) throws SQLException
-    {
-        createTable(conn, Table.StructuralModLoss, Constants.StructuralModLossColumn.values());
-    }
-
-    private void createIsotopeModificationTable(Connection conn) throws SQLException
-    {
-        createTable(conn, Table.IsotopeModification, Constants.IsotopeModificationColumn.values());
-    }
-
-    private void createProteinTable(Connection conn) throws SQLException
-    {
-        createTable(conn, Table.Protein, Constants.ProteinColumn.values());
-    }
-
-    private void createPeptideTable(Connection conn) throws SQLException
-    {
-        createTable(conn, Table.Peptide, Constants.PeptideColumn.values());
-    }
-
-    private void createPeptideStructuralModificationTable(Connection conn) throws SQLException
-    {
-        createTable(conn, Table.PeptideStructuralModification, Constants.PeptideStructuralModificationColumn.values());
-    }
-
-    private void createPrecursorTable(Connection conn) throws SQLException
-    {
-        createTable(conn, Table.Precursor, Constants.PrecursorColumn.values());
-    }
-
-    private void createPrecursorIsotopeModificationTable(Connection conn) throws SQLException
-    {
-        createTable(conn, Table.PrecursorIsotopeModification, Constants.PrecursorIsotopeModificationColumn.values());
-    }
-
-    private void createSampleFileTable(Connection conn) throws SQLException
-    {
-        createTable(conn, Table.SampleFile, Constants.SampleFileColumn.values());
+        for (Map.Entry<Table, Constants.ColumnDef[]> table : getTables().entrySet())
+        {
+            createTable(conn, table.getKey(), table.getValue());
+        }
     }
 
-    private void createPrecursorRetentionTimeTable(Connection conn) throws SQLException
+    public void createIndexes(Connection conn) throws SQLException
     {
-       createTable(conn, Table.PrecursorRetentionTime, Constants.PrecursorRetentionTimeColumn.values());
+        for (Map.Entry<Table, Constants.ColumnDef[]> table : getTables().entrySet())
+        {
+            createIndexes(conn, table.getKey(), table.getValue());
+        }
     }
 
-    private void createTransitionTable(Connection conn) throws SQLException
+    private Map<Table, Constants.ColumnDef[]> getTables()
     {
-        createTable(conn, Table.Transition, Constants.TransitionColumn.values());
-    }
+        Map<Table, Constants.ColumnDef[]> tables = new LinkedHashMap<>();
+        tables.put(Table.LibInfo, Constants.LibInfoColumn.values());
+        tables.put(Table.Predictor, Constants.PredictorColumn.values());
+        tables.put(Table.SampleFile, Constants.SampleFileColumn.values());
 
-    private void createIrtLibraryTable(Connection conn) throws SQLException
-    {
-        createTable(conn, Table.IrtLibrary, Constants.IrtLibraryColumn.values());
-    }
+        // Proteomics modifications
+        tables.put(Table.StructuralModification, Constants.StructuralModificationColumn.values());
+        tables.put(Table.StructuralModLoss, Constants.StructuralModLossColumn.values());
+        tables.put(Table.IsotopeModification, Constants.IsotopeModificationColumn.values());
 
-    private void createTransitionOptimizationTable(Connection conn) throws SQLException
-    {
-        createTable(conn, Table.TransitionOptimization, Constants.TransitionOptimizationColumn.values());
-    }
+        tables.put(Table.Protein, Constants.ProteinColumn.values());
+        tables.put(Table.Peptide, Constants.PeptideColumn.values());
+        tables.put(Table.PeptideStructuralModification, Constants.PeptideStructuralModificationColumn.values());
+        tables.put(Table.Precursor, Constants.PrecursorColumn.values());
+        tables.put(Table.PrecursorIsotopeModification, Constants.PrecursorIsotopeModificationColumn.values());
+        tables.put(Table.PrecursorRetentionTime, Constants.PrecursorRetentionTimeColumn.values());
+        tables.put(Table.Transition, Constants.TransitionColumn.values());
+        tables.put(Table.TransitionOptimization, Constants.TransitionOptimizationColumn.values());
 
-    private void createPredictorTable(Connection conn) throws SQLException
-    {
-        createTable(conn, Table.Predictor, Constants.PredictorColumn.values());
+        tables.put(Table.IrtLibrary, Constants.IrtLibraryColumn.values());
+        return tables;
     }
 
     private String getColumnSql(Constants.ColumnDef[] columns)
@@ -171,7 +118,10 @@ private void createTable(Connection conn, Table tableName, Constants.ColumnDef[]
         {
             stmt.execute(sql.toString());
         }
+    }
 
+    private void createIndexes(Connection conn, Table tableName, Constants.ColumnDef[] columns) throws SQLException
+    {
         for (Constants.ColumnDef column : columns)
         {
             if (column.baseColumn().getFkColumn() != null)
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2024 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.chromlib;
+
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.targetedms.RunRepresentativeDataState;
+import org.labkey.api.targetedms.RepresentativeDataState;
+import org.labkey.api.util.logging.LogHelper;
+import org.labkey.targetedms.TargetedMSManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records which rows of a chromatogram library file were written for which representative Skyline document, along
+ * with a digest of the document's representative data at the time. The next revision of the library starts from a
+ * copy of this one and only replaces the rows of the documents whose representative data has changed since.
+ * Stored next to the .clib file; a library without one is always rebuilt from scratch.
+ */
+public class ChromatogramLibraryIndex
+{
+    private static final Logger LOG = LogHelper.getLogger(ChromatogramLibraryIndex.class, "Incremental chromatogram library updates");
+
+    private final String _schemaVersion;
+    private final RunRepresentativeDataState _libraryType;
+    // RunId(Panorama) -> rows written for the run
+    private final Map<Long, RunEntry> _runs = new LinkedHashMap<>();
+    // ModificationId(Panorama) -> ModificationId(SQLite Library)
+    private final Map<Long, Integer> _structuralModificationIds = new HashMap<>();
+    // ModificationId(Panorama) -> ModificationId(SQLite Library)
+    private final Map<Long, Integer> _isotopeModificationIds = new HashMap<>();
+    // PredictorId(Panorama) -> PredictorId(SQLite Library)
+    private final Map<Long, Integer> _predictorIds = new HashMap<>();
+
+    public ChromatogramLibraryIndex(String schemaVersion, RunRepresentativeDataState libraryType)
+    {
+        _schemaVersion = schemaVersion;
+        _libraryType = libraryType;
+    }
+
+    public static class RunEntry
+    {
+        private final long _runId;
+        private final String _digest;
+        private final List<Integer> _proteinIds = new ArrayList<>();
+        private final List<Integer> _sampleFileIds = new ArrayList<>();
+        private final Set<Long> _structuralModificationIds = new LinkedHashSet<>();
+        private final Set<Long> _isotopeModificationIds = new LinkedHashSet<>();
+        private final Set<Long> _predictorIds = new LinkedHashSet<>();
+
+        public RunEntry(long runId, String digest)
+        {
+            _runId = runId;
+            _digest = digest;
+        }
+
+        public long getRunId()
+        {
+            return _runId;
+        }
+
+        /** @return a digest of the run's representative peptide groups or precursors when its rows were written */
+        public String getDigest()
+        {
+            return _digest;
+        }
+
+        public List<Integer> getProteinIds()
+        {
+            return _proteinIds;
+        }
+
+        public List<Integer> getSampleFileIds()
+        {
+            return _sampleFileIds;
+        }
+
+        /** @return the Panorama ids of the run's structural modifications */
+        public Set<Long> getStructuralModificationIds()
+        {
+            return _structuralModificationIds;
+        }
+
+        /** @return the Panorama ids of the run's isotope modifications */
+        public Set<Long> getIsotopeModificationIds()
+        {
+            return _isotopeModificationIds;
+        }
+
+        /** @return the Panorama ids of the CE and DP predictors used by the run's replicates */
+        public Set<Long> getPredictorIds()
+        {
+            return _predictorIds;
+        }
+    }
+
+    public String getSchemaVersion()
+    {
+        return _schemaVersion;
+    }
+
+    public RunRepresentativeDataState getLibraryType()
+    {
+        return _libraryType;
+    }
+
+    public Map<Long, RunEntry> getRuns()
+    {
+        return _runs;
+    }
+
+    public void addRun(RunEntry entry)
+    {
+        _runs.put(entry.getRunId(), entry);
+    }
+
+    public Map<Long, Integer> getStructuralModificationIds()
+    {
+        return _structuralModificationIds;
+    }
+
+    public Map<Long, Integer> getIsotopeModificationIds()
+    {
+        return _isotopeModificationIds;
+    }
+
+    public Map<Long, Integer> getPredictorIds()
+    {
+        return _predictorIds;
+    }
+
+    /**
+     * @return a digest of the representative peptide groups (protein libraries) or precursors (peptide libraries) in
+     * each of the folder's runs that has any. A run's rows in the library only depend on these, so a run whose digest
+     * hasn't changed doesn't need to be written again.
+     */
+    public static Map<Long, String> getRepresentativeDataDigests(Container container, RunRepresentativeDataState libraryType)
+    {
+        SQLFragment sql = new SQLFragment();
+        if (libraryType == RunRepresentativeDataState.Representative_Protein)
+        {
+            sql.append("SELECT pg.RunId, pg.Id FROM ");
+            sql.append(TargetedMSManager.getTableInfoPeptideGroup(), "pg");
+        }
+        else
+        {
+            sql.append("SELECT pg.RunId, gp.Id FROM ");
+            sql.append(TargetedMSManager.getTableInfoGeneralPrecursor(), "gp");
+            sql.append(" INNER JOIN ");
+            sql.append(TargetedMSManager.getTableInfoGeneralMolecule(), "gm");
+            sql.append(" ON gm.Id = gp.GeneralMoleculeId");
+            sql.append(" INNER JOIN ");
+            sql.append(TargetedMSManager.getTableInfoPeptideGroup(), "pg");
+            sql.append(" ON pg.Id = gm.PeptideGroupId");
+        }
+        sql.append(" INNER JOIN ");
+        sql.append(TargetedMSManager.getTableInfoRuns(), "r");
+        sql.append(" ON r.Id = pg.RunId");
+        sql.append(" WHERE r.Container = ?").add(container);
+        sql.append(libraryType == RunRepresentativeDataState.Representative_Protein ? " AND pg." : " AND gp.");
+        sql.append("RepresentativeDataState = ?").add(RepresentativeDataState.Representative.ordinal());
+        sql.append(" ORDER BY 1, 2");
+
+        Map<Long, MessageDigest> digests = new LinkedHashMap<>();
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        new SqlSelector(TargetedMSManager.getSchema(), sql).forEach(rs -> {
+            MessageDigest digest = digests.computeIfAbsent(rs.getLong(1), runId -> newDigest());
+            buffer.clear();
+            buffer.putLong(rs.getLong(2));
+            digest.update(buffer.array());
+        });
+
+        Map<Long, String> result = new LinkedHashMap<>();
+        digests.forEach((runId, digest) -> result.put(runId, new String(Base64.getEncoder().encode(digest.digest()), StandardCharsets.US_ASCII)));
+        return result;
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("Couldn't find hash algorithm", e);
+        }
+    }
+
+    /** @return the index saved with a library file, or null if there isn't one or it can't be read */
+    @Nullable
+    public static ChromatogramLibraryIndex read(Path indexFile)
+    {
+        if (!Files.exists(indexFile))
+        {
+            return null;
+        }
+        try
+        {
+            JSONObject json = new JSONObject(Files.readString(indexFile, StandardCharsets.UTF_8));
+            ChromatogramLibraryIndex index = new ChromatogramLibraryIndex(json.getString("schemaVersion"),
+                    RunRepresentativeDataState.valueOf(json.getString("libraryType")));
+            readIdMap(json.getJSONObject("structuralModifications"), index._structuralModificationIds);
+            readIdMap(json.getJSONObject("isotopeModifications"), index._isotopeModificationIds);
+            readIdMap(json.getJSONObject("predictors"), index._predictorIds);
+
+            JSONArray runs = json.getJSONArray("runs");
+            for (int i = 0; i < runs.length(); i++)
+            {
+                JSONObject run = runs.getJSONObject(i);
+                RunEntry entry = new RunEntry(run.getLong("runId"), run.getString("digest"));
+                readInts(run.getJSONArray("proteins"), entry._proteinIds);
+                readInts(run.getJSONArray("sampleFiles"), entry._sampleFileIds);
+                readLongs(run.getJSONArray("structuralModifications"), entry._structuralModificationIds);
+                readLongs(run.getJSONArray("isotopeModifications"), entry._isotopeModificationIds);
+                readLongs(run.getJSONArray("predictors"), entry._predictorIds);
+                index.addRun(entry);
+            }
+            return index;
+        }
+        catch (IOException | JSONException | IllegalArgumentException e)
+        {
+            LOG.warn("Unable to read chromatogram library index " + indexFile + ", the library will be rebuilt from scratch", e);
+            return null;
+        }
+    }
+
+    public void write(Path indexFile) throws IOException
+    {
+        JSONObject json = new JSONObject();
+        json.put("schemaVersion", _schemaVersion);
+        json.put("libraryType", _libraryType.name());
+        json.put("structuralModifications", new JSONObject(_structuralModificationIds));
+        json.put("isotopeModifications", new JSONObject(_isotopeModificationIds));
+        json.put("predictors", new JSONObject(_predictorIds));
+
+        JSONArray runs = new JSONArray();
+        for (RunEntry entry : _runs.values())
+        {
+            JSONObject run = new JSONObject();
+            run.put("runId", entry.getRunId());
+            run.put("digest", entry.getDigest());
+            run.put("proteins", new JSONArray(entry.getProteinIds()));
+            run.put("sampleFiles", new JSONArray(entry.getSampleFileIds()));
+            run.put("structuralModifications", new JSONArray(entry.getStructuralModificationIds()));
+            run.put("isotopeModifications", new JSONArray(entry.getIsotopeModificationIds()));
+            run.put("predictors", new JSONArray(entry.getPredictorIds()));
+            runs.put(run);
+        }
+        json.put("runs", runs);
+
+        Files.writeString(indexFile, json.toString(), StandardCharsets.UTF_8);
+    }
+
+    private static void readIdMap(JSONObject json, Map<Long, Integer> ids)
+    {
+        for (String key : json.keySet())
+        {
+            ids.put(Long.valueOf(key), json.getInt(key));
+        }
+    }
+
+    private static void readInts(JSONArray json, Collection<Integer> ids)
+    {
+        for (int i = 0; i < json.length(); i++)
+        {
+            ids.add(json.getInt(i));
+        }
+    }
+
+    private static void readLongs(JSONArray json, Collection<Long> ids)
+    {
+        for (int i = 0; i < json.length(); i++)
+        {
+            ids.add(json.getLong(i));
+        }
+    }
+}
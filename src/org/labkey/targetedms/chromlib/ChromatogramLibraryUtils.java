@@ -160,6 +160,14 @@ public static Path getChromLibFile(Container container, int revision, boolean cr
         return chromLibDir.resolve(getChromLibFileName(container, revision));
     }
 
+    /** @return the file that records which of the revision's rows were written for which document.
+     * See {@link ChromatogramLibraryIndex} */
+    public static Path getChromLibIndexFile(Container container, int revision) throws IOException
+    {
+        Path chromLibFile = getChromLibFile(container, revision);
+        return chromLibFile.resolveSibling(FileUtil.getFileName(chromLibFile) + ".index");
+    }
+
     @NotNull
     public static String getChromLibFileName(@NotNull Container container, int revision)
     {
@@ -18,14 +18,16 @@
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.labkey.api.util.FileUtil;
-import org.labkey.targetedms.parser.Molecule;
-import org.labkey.targetedms.parser.Peptide;
-import org.labkey.targetedms.query.PeptideGroupManager;
+import org.labkey.targetedms.parser.PeptideGroup;
+import org.sqlite.SQLiteConfig;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -38,7 +40,13 @@
  */
 public class ChromatogramLibraryWriter
 {
-    private ConnectionSource _connectionSource;
+    // Negative values are in KiB, so 256 MB
+    private static final int CACHE_SIZE = -256 * 1024;
+
+    // The library is written to a temp file that is thrown away if anything goes wrong, so everything is written over
+    // a single connection in one transaction, with no rollback journal and no syncing.
+    private Connection _connection;
+    private ChromLibSqliteSchemaCreator _schemaCreator;
 
     private Dao<LibInfo> _libInfoDao;
     private Dao<LibSampleFile> _sampleFileDao;
@@ -56,6 +64,7 @@
     private final Map<Long, LibProtein> _libProteinCache = new LinkedHashMap<>();
 
     private int _peptideCount;
+    private int _existingProteinCount;
 
     private Path _libFile;
 
@@ -70,48 +79,108 @@ public void openLibrary(Path libFile) throws SQLException
         }
 
         _libFile = libFile;
+        _connection = openConnection(_libFile);
 
-        // Setup a connection source
-       _connectionSource = new ConnectionSource(_libFile.toAbsolutePath().toString());
-
-        // Create an empty schema
-        ChromLibSqliteSchemaCreator schemaCreator = new ChromLibSqliteSchemaCreator();
-        schemaCreator.createSchema(getConnection());
+        // Create an empty schema. The indexes are created once the library has been written.
+        _schemaCreator = new ChromLibSqliteSchemaCreator();
+        _schemaCreator.createTables(_connection);
 
         initializeDaos();
     }
 
-    private void initializeDaos()
+    /**
+     * Opens a copy of an earlier revision of the library so that rows can be removed and added to it. Counts
+     * start from what's already in the file once {@link #countExistingEntries()} is called.
+     */
+    public void appendToLibrary(Path libFile) throws SQLException
     {
-        _libInfoDao = new LibInfoDao();
-        _sampleFileDao = new LibSampleFileDao();
-        _structuralModificationDao = new LibStructuralModificationDao(new LibStructuralModLossDao());
-        _isotopeModificationDao = new LibIsotopeModificationDao();
+        _log.info("Updating chromatogram library " + FileUtil.getFileName(libFile));
+        if(!Files.exists(libFile))
+        {
+            throw new IllegalStateException("Chromatogram library file "+ FileUtil.pathToString(libFile) +" does not exist.");
+        }
 
-        Dao<LibPrecursor> precursorDao = new LibPrecursorDao(new LibPrecursorIsotopeModificationDao(),
-                new LibPrecursorRetentionTimeDao(Constants.Table.PrecursorRetentionTime, Constants.Column.PrecursorId, Constants.PrecursorRetentionTimeColumn.values()),
-                new LibTransitionDao(new LibTransitionOptimizationDao()));
-        _peptideDao = new LibPeptideDao(new LibPeptideStructuralModDao(), precursorDao);
-        _proteinDao = new LibProteinDao(_peptideDao);
+        _libFile = libFile;
+        _connection = openConnection(_libFile);
 
-        _irtLibraryDao = new LibIrtLibraryDao();
+        initializeDaos();
+    }
 
-        _predictorDao = new LibPredictorDao();
+    private static Connection openConnection(Path libFile) throws SQLException
+    {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setJournalMode(SQLiteConfig.JournalMode.OFF);
+        config.setSynchronous(SQLiteConfig.SynchronousMode.OFF);
+        config.setCacheSize(CACHE_SIZE);
+        config.setTempStore(SQLiteConfig.TempStore.MEMORY);
+
+        // Goes straight to the SQLite driver, so it works whether or not the driver has been registered with DriverManager
+        Connection connection = config.createConnection("jdbc:sqlite:/" + libFile.toAbsolutePath());
+        connection.setAutoCommit(false);
+        return connection;
     }
 
-    private Connection getConnection() throws SQLException
+    private void initializeDaos() throws SQLException
     {
-        return _connectionSource.getConnection();
+        LibStructuralModLossDao structuralModLossDao = new LibStructuralModLossDao();
+        LibPrecursorIsotopeModificationDao precursorIsotopeModificationDao = new LibPrecursorIsotopeModificationDao();
+        LibPrecursorRetentionTimeDao precursorRetentionTimeDao = new LibPrecursorRetentionTimeDao(Constants.Table.PrecursorRetentionTime, Constants.Column.PrecursorId, Constants.PrecursorRetentionTimeColumn.values());
+        LibTransitionOptimizationDao transitionOptimizationDao = new LibTransitionOptimizationDao();
+        LibTransitionDao transitionDao = new LibTransitionDao(transitionOptimizationDao);
+        LibPrecursorDao precursorDao = new LibPrecursorDao(precursorIsotopeModificationDao, precursorRetentionTimeDao, transitionDao);
+        LibPeptideStructuralModDao peptideStructuralModDao = new LibPeptideStructuralModDao();
+        LibPeptideDao peptideDao = new LibPeptideDao(peptideStructuralModDao, precursorDao);
+        LibSampleFileDao sampleFileDao = new LibSampleFileDao();
+        LibStructuralModificationDao structuralModificationDao = new LibStructuralModificationDao(structuralModLossDao);
+        LibIsotopeModificationDao isotopeModificationDao = new LibIsotopeModificationDao();
+        LibProteinDao proteinDao = new LibProteinDao(peptideDao);
+        LibIrtLibraryDao irtLibraryDao = new LibIrtLibraryDao();
+        LibPredictorDao predictorDao = new LibPredictorDao();
+
+        // Nothing else writes to the file, so new rows' ids can be counted here instead of read back after each insert
+        for (BaseDaoImpl<?> dao : List.of(structuralModLossDao, precursorIsotopeModificationDao, precursorRetentionTimeDao,
+                transitionOptimizationDao, transitionDao, precursorDao, peptideStructuralModDao, peptideDao, sampleFileDao,
+                structuralModificationDao, isotopeModificationDao, proteinDao, irtLibraryDao, predictorDao))
+        {
+            dao.assignIds(_connection);
+        }
+
+        _libInfoDao = new LibInfoDao();
+        _sampleFileDao = sampleFileDao;
+        _structuralModificationDao = structuralModificationDao;
+        _isotopeModificationDao = isotopeModificationDao;
+        _peptideDao = peptideDao;
+        _proteinDao = proteinDao;
+        _irtLibraryDao = irtLibraryDao;
+        _predictorDao = predictorDao;
     }
 
-    public void closeLibrary() throws SQLException
+    private Connection getConnection()
     {
-        // Clear any cached data
-        flushCache();
+        return _connection;
+    }
 
-        if(_connectionSource != null)
+    public void closeLibrary() throws SQLException
+    {
+        if(_connection == null)
+        {
+            return;
+        }
+        try
+        {
+            // Clear any cached data
+            flushCache();
+
+            if(_schemaCreator != null)
+            {
+                _schemaCreator.createIndexes(_connection);
+            }
+            _connection.commit();
+        }
+        finally
         {
-            _connectionSource.close();
+            _connection.close();
+            _connection = null;
         }
         _log.info("Done writing chromatogram library " + FileUtil.pathToString(_libFile));
     }
@@ -157,20 +226,18 @@ public void writeProtein(long rowId, LibProtein protein)
         _peptideCount += protein.getChildren().size();
     }
 
-    public void writePeptide(LibPeptide libPeptide, Peptide peptide)
+    public void writePeptide(LibPeptide libPeptide, PeptideGroup peptideGroup)
     {
-        LibProtein protein = _libProteinCache.computeIfAbsent(peptide.getPeptideGroupId(), (id) ->
-                new LibProtein(PeptideGroupManager.get(id)));
+        LibProtein protein = _libProteinCache.computeIfAbsent(peptideGroup.getId(), (id) -> new LibProtein(peptideGroup));
         _peptideCount++;
         protein.addChild(libPeptide);
     }
 
-    public void writeMolecule(LibPeptide libMolecule, Molecule molecule)
+    public void writeMolecule(LibPeptide libMolecule, PeptideGroup moleculeList)
     {
-        LibProtein moleculeList = _libProteinCache.computeIfAbsent(molecule.getPeptideGroupId(), (id) ->
-                new LibProtein(PeptideGroupManager.get(id)));
+        LibProtein libMoleculeList = _libProteinCache.computeIfAbsent(moleculeList.getId(), (id) -> new LibProtein(moleculeList));
         _peptideCount++;
-        moleculeList.addChild(libMolecule);
+        libMoleculeList.addChild(libMolecule);
     }
 
     public void writePredictor(LibPredictor predictor) throws SQLException
@@ -180,7 +247,118 @@ public void writePredictor(LibPredictor predictor) throws SQLException
 
     public int getProteinCount()
     {
-        return _libProteinCache.size();
+        return _existingProteinCount + _libProteinCache.size();
+    }
+
+    /** @return the library Id of the protein written for the peptide group, once the library has been closed */
+    public Integer getProteinId(long peptideGroupId)
+    {
+        LibProtein protein = _libProteinCache.get(peptideGroupId);
+        return protein == null ? null : protein.getId();
+    }
+
+    /** Include the proteins and peptides already in a library opened with {@link #appendToLibrary(Path)} in the counts */
+    public void countExistingEntries() throws SQLException
+    {
+        _existingProteinCount = getRowCount(Constants.Table.Protein);
+        _peptideCount = getRowCount(Constants.Table.Peptide);
+    }
+
+    public int getRowCount(Constants.Table table) throws SQLException
+    {
+        try (Statement stmt = getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table))
+        {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /** Deletes the proteins along with their peptides, precursors and transitions */
+    public void deleteProteins(Collection<Integer> proteinIds) throws SQLException
+    {
+        String peptideIds = "(SELECT Id FROM Peptide WHERE ProteinId IN " + DELETED_IDS + ")";
+        String precursorIds = "(SELECT Id FROM Precursor WHERE PeptideId IN " + peptideIds + ")";
+        deleteRows(proteinIds,
+                "DELETE FROM TransitionOptimization WHERE TransitionId IN (SELECT Id FROM Transition WHERE PrecursorId IN " + precursorIds + ")",
+                "DELETE FROM Transition WHERE PrecursorId IN " + precursorIds,
+                "DELETE FROM PrecursorRetentionTime WHERE PrecursorId IN " + precursorIds,
+                "DELETE FROM PrecursorIsotopeModification WHERE PrecursorId IN " + precursorIds,
+                "DELETE FROM Precursor WHERE PeptideId IN " + peptideIds,
+                "DELETE FROM PeptideStructuralModification WHERE PeptideId IN " + peptideIds,
+                "DELETE FROM Peptide WHERE ProteinId IN " + DELETED_IDS,
+                "DELETE FROM Protein WHERE Id IN " + DELETED_IDS);
+    }
+
+    public void deleteSampleFiles(Collection<Integer> sampleFileIds) throws SQLException
+    {
+        deleteRows(sampleFileIds, "DELETE FROM SampleFile WHERE Id IN " + DELETED_IDS);
+    }
+
+    public void deleteStructuralModifications(Collection<Integer> modificationIds) throws SQLException
+    {
+        deleteRows(modificationIds,
+                "DELETE FROM StructuralModLoss WHERE StructuralModId IN " + DELETED_IDS,
+                "DELETE FROM StructuralModification WHERE Id IN " + DELETED_IDS);
+    }
+
+    public void deleteIsotopeModifications(Collection<Integer> modificationIds) throws SQLException
+    {
+        deleteRows(modificationIds, "DELETE FROM IsotopeModification WHERE Id IN " + DELETED_IDS);
+    }
+
+    public void deletePredictors(Collection<Integer> predictorIds) throws SQLException
+    {
+        deleteRows(predictorIds, "DELETE FROM Predictor WHERE Id IN " + DELETED_IDS);
+    }
+
+    /** Empties a table that gets rewritten in full for every revision, like the iRT library */
+    public void deleteAll(Constants.Table table) throws SQLException
+    {
+        try (Statement stmt = getConnection().createStatement())
+        {
+            stmt.execute("DELETE FROM " + table);
+        }
+    }
+
+    private static final String DELETED_IDS = "(SELECT Id FROM temp.DeletedId)";
+
+    /** Loads the ids into a temporary table, which the statements refer to as DELETED_IDS, and runs the statements */
+    private void deleteRows(Collection<Integer> ids, String... deleteStatements) throws SQLException
+    {
+        if (ids.isEmpty())
+        {
+            return;
+        }
+        try
+        {
+            Connection connection = getConnection();
+            try (Statement stmt = connection.createStatement())
+            {
+                stmt.execute("CREATE TEMP TABLE IF NOT EXISTS DeletedId (Id INTEGER PRIMARY KEY)");
+                stmt.execute("DELETE FROM temp.DeletedId");
+            }
+            try (PreparedStatement stmt = connection.prepareStatement("INSERT OR IGNORE INTO temp.DeletedId (Id) VALUES (?)"))
+            {
+                for (Integer id : ids)
+                {
+                    stmt.setInt(1, id);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+            try (Statement stmt = connection.createStatement())
+            {
+                for (String sql : deleteStatements)
+                {
+                    stmt.execute(sql);
+                }
+            }
+        }
+        catch(SQLException e)
+        {
+            _log.error("Error deleting from chromatogram library", e);
+            throw e;
+        }
     }
 
     public int getPeptideCount()
@@ -190,9 +368,9 @@ public int getPeptideCount()
 
     private <T> void saveEntry(Dao<T> dao, T object) throws SQLException
     {
-        try (Connection connection = getConnection())
+        try
         {
-            dao.save(object, connection);
+            dao.save(object, getConnection());
         }
         catch(SQLException e)
         {
@@ -203,9 +381,9 @@ private <T> void saveEntry(Dao<T> dao, T object) throws SQLException
 
     private <T> void flush(Dao<T> dao, Collection<T> list) throws SQLException
     {
-        try (Connection connection = getConnection())
+        try
         {
-            dao.saveAll(list, connection);
+            dao.saveAll(list, getConnection());
         }
         catch(SQLException e)
         {
@@ -15,6 +15,9 @@
  */
 package org.labkey.targetedms.chromlib;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 import org.labkey.api.collections.CaseInsensitiveHashSet;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.SimpleFilter;
@@ -26,7 +29,6 @@
 import org.labkey.api.util.FileUtil;
 import org.labkey.targetedms.TargetedMSManager;
 import org.labkey.targetedms.TargetedMSRun;
-import org.labkey.targetedms.TargetedMSSchema;
 import org.labkey.targetedms.parser.GeneralPrecursor;
 import org.labkey.targetedms.parser.GeneralTransition;
 import org.labkey.targetedms.parser.Instrument;
@@ -44,16 +46,8 @@
 import org.labkey.targetedms.parser.TransitionChromInfo;
 import org.labkey.targetedms.parser.TransitionSettings;
 import org.labkey.targetedms.query.InstrumentManager;
-import org.labkey.targetedms.query.IsotopeLabelManager;
 import org.labkey.targetedms.query.ModificationManager;
-import org.labkey.targetedms.query.MoleculeManager;
-import org.labkey.targetedms.query.MoleculePrecursorManager;
-import org.labkey.targetedms.query.MoleculeTransitionManager;
-import org.labkey.targetedms.query.PeptideGroupManager;
-import org.labkey.targetedms.query.PeptideManager;
-import org.labkey.targetedms.query.PrecursorManager;
 import org.labkey.targetedms.query.ReplicateManager;
-import org.labkey.targetedms.query.TransitionManager;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -62,12 +56,16 @@
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
  * User: vsharma
@@ -98,7 +96,17 @@
     private Map<Long, Integer> _predictorIdMap;
 
     private RunRepresentativeDataState _libraryType = null;
-    private Long _bestReplicateIdForCurrentPeptideGroup;
+    // Representative data of the run being written
+    private RepresentativeRunData _runData;
+
+    // Which rows were written for which run, saved with the library so the next revision can be built from this one
+    private ChromatogramLibraryIndex _index;
+    private ChromatogramLibraryIndex.RunEntry _currentRun;
+    // RunId(Panorama) -> PeptideGroupIds(Panorama) that were written as proteins
+    private Map<Long, Set<Long>> _peptideGroupIdsByRun;
+    private Set<Long> _currentPeptideGroupIds;
+
+    private static final Logger _log = LogManager.getLogger(ContainerChromatogramLibraryWriter.class);
 
     private final User _user;
 
@@ -114,47 +122,233 @@ public String writeLibrary(LocalDirectory localDirectory, int libraryRevision) t
     {
         Path tempChromLibFile = ChromatogramLibraryUtils.getChromLibTempFile(_container, localDirectory, libraryRevision);
 
+        RunRepresentativeDataState libraryType = getLibraryType();
+        Map<Long, String> digests = libraryType == null ? Collections.emptyMap() : ChromatogramLibraryIndex.getRepresentativeDataDigests(_container, libraryType);
+
+        boolean updated = false;
+        ChromatogramLibraryIndex previousIndex = getPreviousIndex(libraryRevision, libraryType);
+        if (previousIndex != null)
+        {
+            try
+            {
+                updated = updateLibrary(tempChromLibFile, ChromatogramLibraryUtils.getChromLibFile(_container, libraryRevision - 1), previousIndex, digests, libraryRevision);
+            }
+            catch (SQLException | IOException e)
+            {
+                _log.warn("Unable to update revision " + (libraryRevision - 1) + " of the chromatogram library for " + _container.getPath() + ". Rebuilding the library instead.", e);
+                Files.deleteIfExists(tempChromLibFile);
+            }
+        }
+        if (!updated)
+        {
+            writeFullLibrary(tempChromLibFile, libraryType, digests, libraryRevision);
+        }
+
+        Path finalChromLibFile = ChromatogramLibraryUtils.getChromLibFile(_container, libraryRevision,
+                true /*Create the lib directory if it does not already exist */);
+        Path indexFile = ChromatogramLibraryUtils.getChromLibIndexFile(_container, libraryRevision);
+        Files.deleteIfExists(indexFile);
+
+        // Rename the temp file
+        if(Files.exists(finalChromLibFile))
+        {
+            Path oldFile = finalChromLibFile.resolveSibling(FileUtil.getFileName(finalChromLibFile) + ".old");
+            Files.move(finalChromLibFile, oldFile);
+            Files.deleteIfExists(oldFile);
+        }
+
+        Files.move(tempChromLibFile, finalChromLibFile);
+
+        if (_index != null)
+        {
+            try
+            {
+                _index.write(indexFile);
+            }
+            catch (IOException e)
+            {
+                // Not fatal, the next revision will just have to be built from scratch
+                _log.warn("Unable to save the index for " + finalChromLibFile, e);
+            }
+        }
+
+        return FileUtil.getAbsolutePath(_container, finalChromLibFile);
+    }
+
+    private void writeFullLibrary(Path libFile, RunRepresentativeDataState libraryType, Map<Long, String> digests, int libraryRevision) throws SQLException
+    {
+        initialize(libraryType);
         try
         {
             _libWriter = new ChromatogramLibraryWriter();
-            _libWriter.openLibrary(tempChromLibFile);
+            _libWriter.openLibrary(libFile);
+
+            writeRuns(_representativeRunIds, digests);
+
+            writeIrtLibrary();
 
-            _sampleFileIdMap = new HashMap<>();
-            _isotopeLabelMap = new HashMap<>();
-            _isotopeModificationMap = new HashMap<>();
-            _isotopeModificationAndLabelMap = new HashMap<>();
-            _structuralModificationMap = new HashMap<>();
-            _predictorIdMap = new HashMap<>();
+            writeLibInfo(libraryRevision);
+
+        }
+        finally
+        {
+            close();
+        }
+        addProteinIdsToIndex();
+    }
+
+    /**
+     * Builds the library from a copy of the previous revision, removing the rows of the documents whose representative
+     * data has changed since, and writing only the documents that are new to the library or have changed.
+     * @return false if none of the previous revision's documents are unchanged, so there's nothing to gain
+     */
+    private boolean updateLibrary(Path libFile, Path previousLibFile, ChromatogramLibraryIndex previousIndex, Map<Long, String> digests, int libraryRevision) throws SQLException, IOException
+    {
+        List<ChromatogramLibraryIndex.RunEntry> unchangedRuns = new ArrayList<>();
+        List<ChromatogramLibraryIndex.RunEntry> replacedRuns = new ArrayList<>();
+        for (ChromatogramLibraryIndex.RunEntry entry : previousIndex.getRuns().values())
+        {
+            (entry.getDigest().equals(digests.get(entry.getRunId())) ? unchangedRuns : replacedRuns).add(entry);
+        }
+        if (unchangedRuns.isEmpty())
+        {
+            return false;
+        }
+
+        Files.copy(previousLibFile, libFile);
+        initialize(previousIndex.getLibraryType());
+        try
+        {
+            _libWriter = new ChromatogramLibraryWriter();
+            _libWriter.appendToLibrary(libFile);
 
-            for(Long runId: _representativeRunIds)
+            for (ChromatogramLibraryIndex.RunEntry entry : replacedRuns)
             {
-                writeRepresentativeDataInRun(runId);
+                _libWriter.deleteProteins(entry.getProteinIds());
+                _libWriter.deleteSampleFiles(entry.getSampleFileIds());
             }
 
+            // Keep the modifications and predictors that the unchanged documents use, and drop the rest
+            _libWriter.deleteStructuralModifications(retainIds(previousIndex.getStructuralModificationIds(), unchangedRuns,
+                    ChromatogramLibraryIndex.RunEntry::getStructuralModificationIds, _structuralModificationMap));
+            _libWriter.deleteIsotopeModifications(retainIds(previousIndex.getIsotopeModificationIds(), unchangedRuns,
+                    ChromatogramLibraryIndex.RunEntry::getIsotopeModificationIds, _isotopeModificationMap));
+            _libWriter.deletePredictors(retainIds(previousIndex.getPredictorIds(), unchangedRuns,
+                    ChromatogramLibraryIndex.RunEntry::getPredictorIds, _predictorIdMap));
+
+            _libWriter.countExistingEntries();
+            _precursorCount = _libWriter.getRowCount(Constants.Table.Precursor);
+            _transitionCount = _libWriter.getRowCount(Constants.Table.Transition);
+
+            unchangedRuns.forEach(_index::addRun);
+            List<Long> newRunIds = new ArrayList<>(_representativeRunIds);
+            newRunIds.removeIf(_index.getRuns()::containsKey);
+            writeRuns(newRunIds, digests);
+            _log.info("Reused " + unchangedRuns.size() + " documents from revision " + (libraryRevision - 1) +
+                    " of the library, wrote " + (_index.getRuns().size() - unchangedRuns.size()) + " documents");
+
+            // These are small, and always written in full
+            _libWriter.deleteAll(Constants.Table.IrtLibrary);
             writeIrtLibrary();
 
+            _libWriter.deleteAll(Constants.Table.LibInfo);
             writeLibInfo(libraryRevision);
-
         }
         finally
         {
             close();
         }
+        addProteinIdsToIndex();
+        return true;
+    }
 
-        Path finalChromLibFile = ChromatogramLibraryUtils.getChromLibFile(_container, libraryRevision,
-                true /*Create the lib directory if it does not already exist */);
+    /**
+     * Copies the library ids of the modifications or predictors that the unchanged documents use into libraryIds
+     * @return the library ids of the rest, which are no longer needed
+     */
+    private static List<Integer> retainIds(Map<Long, Integer> previousIds, List<ChromatogramLibraryIndex.RunEntry> unchangedRuns,
+                                           Function<ChromatogramLibraryIndex.RunEntry, Set<Long>> getRunIds, Map<Long, Integer> libraryIds)
+    {
+        Set<Long> inUse = new HashSet<>();
+        unchangedRuns.forEach(entry -> inUse.addAll(getRunIds.apply(entry)));
 
-        // Rename the temp file
-        if(Files.exists(finalChromLibFile))
+        List<Integer> unused = new ArrayList<>();
+        previousIds.forEach((panoramaId, libraryId) -> {
+            if (inUse.contains(panoramaId))
+            {
+                libraryIds.put(panoramaId, libraryId);
+            }
+            else
+            {
+                unused.add(libraryId);
+            }
+        });
+        return unused;
+    }
+
+    @Nullable
+    private RunRepresentativeDataState getLibraryType()
+    {
+        if (_representativeRunIds.isEmpty())
         {
-            Path oldFile = finalChromLibFile.resolveSibling(FileUtil.getFileName(finalChromLibFile) + ".old");
-            Files.move(finalChromLibFile, oldFile);
-            Files.deleteIfExists(oldFile);
+            return null;
         }
+        return TargetedMSManager.getRun(_representativeRunIds.get(0)).getRepresentativeDataState();
+    }
 
-        Files.move(tempChromLibFile, finalChromLibFile);
+    /** @return the index of the previous revision, if it's there and can be used as the starting point for this one */
+    @Nullable
+    private ChromatogramLibraryIndex getPreviousIndex(int libraryRevision, @Nullable RunRepresentativeDataState libraryType) throws IOException
+    {
+        if (libraryRevision <= 1 || libraryType == null)
+        {
+            return null;
+        }
+        if (!Files.exists(ChromatogramLibraryUtils.getChromLibFile(_container, libraryRevision - 1)))
+        {
+            return null;
+        }
+        ChromatogramLibraryIndex index = ChromatogramLibraryIndex.read(ChromatogramLibraryUtils.getChromLibIndexFile(_container, libraryRevision - 1));
+        if (index == null || !Constants.SCHEMA_VERSION.equals(index.getSchemaVersion()) || index.getLibraryType() != libraryType)
+        {
+            return null;
+        }
+        return index;
+    }
 
-        return FileUtil.getAbsolutePath(_container, finalChromLibFile);
+    private void initialize(@Nullable RunRepresentativeDataState libraryType)
+    {
+        _libraryType = libraryType;
+        _index = libraryType == null ? null : new ChromatogramLibraryIndex(Constants.SCHEMA_VERSION, libraryType);
+        _peptideGroupIdsByRun = new HashMap<>();
+        _precursorCount = 0;
+        _transitionCount = 0;
+
+        _sampleFileIdMap = new HashMap<>();
+        _isotopeLabelMap = new HashMap<>();
+        _isotopeModificationMap = new HashMap<>();
+        _isotopeModificationAndLabelMap = new HashMap<>();
+        _structuralModificationMap = new HashMap<>();
+        _predictorIdMap = new HashMap<>();
+    }
+
+    /** Proteins get their library ids when they're written as the library is closed */
+    private void addProteinIdsToIndex()
+    {
+        if (_index == null)
+        {
+            return;
+        }
+        _peptideGroupIdsByRun.forEach((runId, peptideGroupIds) -> {
+            ChromatogramLibraryIndex.RunEntry entry = _index.getRuns().get(runId);
+            for (Long peptideGroupId : peptideGroupIds)
+            {
+                entry.getProteinIds().add(_libWriter.getProteinId(peptideGroupId));
+            }
+        });
+        _index.getStructuralModificationIds().putAll(_structuralModificationMap);
+        _index.getIsotopeModificationIds().putAll(_isotopeModificationMap);
+        _index.getPredictorIds().putAll(_predictorIdMap);
     }
 
     public void close() throws SQLException
@@ -177,27 +371,47 @@ private void writeLibInfo(int libraryRevision) throws SQLException
         _libWriter.writeLibInfo(libInfo);
     }
 
-    private void writeRepresentativeDataInRun(Long runId) throws SQLException
+    /**
+     * Writes the runs in order, reading each one's representative data just before it is written. New revisions are
+     * written inside the import or conflict resolution transaction, so that a failure rolls them back, which means the
+     * runs have to be read on this thread's connection.
+     */
+    private void writeRuns(List<Long> runIds, Map<Long, String> digests) throws SQLException
+    {
+        for (Long runId : runIds)
+        {
+            writeRepresentativeDataInRun(RepresentativeRunData.load(TargetedMSManager.getRun(runId)), digests.get(runId));
+        }
+    }
+
+    private void writeRepresentativeDataInRun(RepresentativeRunData runData, @Nullable String digest) throws SQLException
     {
+        TargetedMSRun run = runData.getRun();
+        long runId = run.getId();
+        _currentRun = new ChromatogramLibraryIndex.RunEntry(runId, Objects.toString(digest, ""));
+        _currentPeptideGroupIds = new LinkedHashSet<>();
+        if (_index != null)
+        {
+            _index.addRun(_currentRun);
+        }
+        _peptideGroupIdsByRun.put(runId, _currentPeptideGroupIds);
+
         // Write the replicates and sample files for this run.
-        saveSampleFiles(runId);
+        saveSampleFiles(runData.getSampleFiles());
 
         // Read the isotope labels for this run.
-        List<PeptideSettings.IsotopeLabel> isotopeLabels = IsotopeLabelManager.getIsotopeLabels(runId);
-        for(PeptideSettings.IsotopeLabel label: isotopeLabels)
+        for(PeptideSettings.IsotopeLabel label: runData.getIsotopeLabels())
         {
             _isotopeLabelMap.put(label.getId(), label.getName());
         }
 
         // Write the structural modifications for this run.
-        saveRunStructuralModifications(runId);
+        saveRunStructuralModifications(runData.getRunStructuralModifications());
 
         // Write the isotope modifications for this run.
-        saveRunIsotopeModifications(runId);
+        saveRunIsotopeModifications(runData.getRunIsotopeModifications());
 
         // Write the representative data.
-        TargetedMSRun run = TargetedMSManager.getRun(runId);
-
         if(_libraryType == null)
         {
             _libraryType = run.getRepresentativeDataState();
@@ -208,18 +422,25 @@ else if(_libraryType != run.getRepresentativeDataState())
                                              " does not match library type "+_libraryType);
         }
 
-        if(run.getRepresentativeDataState() == RunRepresentativeDataState.Representative_Protein)
+        _runData = runData;
+        try
         {
-            // If the run has representative protein data write the representative peptide groups.
-            List<PeptideGroup> pepGroups = PeptideGroupManager.getRepresentativePeptideGroups(runId);
-            for(PeptideGroup pepGroup: pepGroups)
+            if(run.getRepresentativeDataState() == RunRepresentativeDataState.Representative_Protein)
             {
-                savePeptideGroup(pepGroup, run);
+                // If the run has representative protein data write the representative peptide groups.
+                for(PeptideGroup pepGroup: runData.getPeptideGroups())
+                {
+                    savePeptideGroup(pepGroup);
+                }
+            }
+            else
+            {   // Otherwise, write the representative precursors in the run.
+                saveRepresentativePrecursors();
             }
         }
-        else
-        {   // Otherwise, write the representative precursors in the run.
-            saveRepresentativePrecursors(run);
+        finally
+        {
+            _runData = null;
         }
     }
 
@@ -241,11 +462,14 @@ private void writeIrtLibrary() throws SQLException
         _libWriter.writeIrtLibrary(irtPeptides);
     }
 
-    private void saveRunIsotopeModifications(Long runId) throws SQLException
+    private void saveRunIsotopeModifications(List<PeptideSettings.RunIsotopeModification> isotopeMods) throws SQLException
     {
-        List<PeptideSettings.RunIsotopeModification> isotopeMods = ModificationManager.getIsotopeModificationsForRun(runId);
         for(PeptideSettings.RunIsotopeModification mod: isotopeMods)
         {
+            _currentRun.getIsotopeModificationIds().add(mod.getId());
+            // Labels belong to a run, so always map to this run's label, even for a modification we've already seen.
+            _isotopeModificationAndLabelMap.put(mod.getId(), mod.getIsotopeLabelId());
+
             // If we have already saved this modification, don't save it again.
             if(_isotopeModificationMap.containsKey(mod.getId()))
                 continue;
@@ -270,15 +494,15 @@ private void saveRunIsotopeModifications(Long runId) throws SQLException
             _libWriter.writeIsotopeModification(libIsotopeMod);
 
             _isotopeModificationMap.put(mod.getId(), libIsotopeMod.getId());
-            _isotopeModificationAndLabelMap.put(mod.getId(), mod.getIsotopeLabelId());
         }
     }
 
-    private void saveRunStructuralModifications(Long runId) throws SQLException
+    private void saveRunStructuralModifications(List<PeptideSettings.RunStructuralModification> structuralMods) throws SQLException
     {
-        List<PeptideSettings.RunStructuralModification> structuralMods = ModificationManager.getStructuralModificationsForRun(runId);
         for(PeptideSettings.RunStructuralModification mod: structuralMods)
         {
+            _currentRun.getStructuralModificationIds().add(mod.getId());
+
             // If we have already saved this modification, don't save it again.
             if(_structuralModificationMap.containsKey(mod.getId()))
                 continue;
@@ -310,9 +534,8 @@ private void saveRunStructuralModifications(Long runId) throws SQLException
         }
     }
 
-    private void saveSampleFiles(Long runId) throws SQLException
+    private void saveSampleFiles(List<SampleFile> sampleFiles) throws SQLException
     {
-        List<SampleFile> sampleFiles = ReplicateManager.getSampleFilesForRun(runId);
         for(SampleFile sampleFile: sampleFiles)
         {
             LibSampleFile libSampleFile = new LibSampleFile();
@@ -334,6 +557,7 @@ private void saveSampleFiles(Long runId) throws SQLException
             _libWriter.writeSampleFile(libSampleFile);
 
             _sampleFileIdMap.put(sampleFile.getId(), libSampleFile.getId());
+            _currentRun.getSampleFileIds().add(libSampleFile.getId());
         }
     }
 
@@ -342,159 +566,109 @@ private void savePredictor(SampleFile sampleFile, LibSampleFile libSampleFile) t
         Replicate replicate = ReplicateManager.getReplicate(sampleFile.getReplicateId());
         if (null != replicate.getCePredictorId())
         {
-            // if we have already saved this cePredictorId, don't save it again
-            if (_predictorIdMap.containsKey(replicate.getCePredictorId()))
-            {
-                libSampleFile.setCePredictorId(_predictorIdMap.get(replicate.getCePredictorId()));
-                return;
-            }
-            TransitionSettings.Predictor cePredictor = ReplicateManager.getReplicatePredictor(replicate.getCePredictorId());
-            LibPredictor libPredictor = new LibPredictor();
-            libPredictor.setName(cePredictor.getName());
-            libPredictor.setStepCount(cePredictor.getStepCount());
-            libPredictor.setStepSize(cePredictor.getStepSize());
-
-            _libWriter.writePredictor(libPredictor);
-            _predictorIdMap.put(replicate.getCePredictorId(), libPredictor.getId());
-            libSampleFile.setCePredictorId(libPredictor.getId());
+            libSampleFile.setCePredictorId(savePredictor(replicate.getCePredictorId()));
         }
 
         if (null != replicate.getDpPredictorId())
         {
-            // if we have already saved this dpPredictorId, don't save it again
-            if (_predictorIdMap.containsKey(replicate.getDpPredictorId()))
-            {
-                libSampleFile.setDpPredictorId(_predictorIdMap.get(replicate.getDpPredictorId()));
-                return;
-            }
-            TransitionSettings.Predictor dpPredictor = ReplicateManager.getReplicatePredictor(replicate.getDpPredictorId());
-            LibPredictor libPredictor = new LibPredictor();
-            libPredictor.setName(dpPredictor.getName());
-            libPredictor.setStepCount(dpPredictor.getStepCount());
-            libPredictor.setStepSize(dpPredictor.getStepSize());
-
-            _libWriter.writePredictor(libPredictor);
-            _predictorIdMap.put(replicate.getDpPredictorId(), libPredictor.getId());
-            libSampleFile.setDpPredictorId(libPredictor.getId());
+            libSampleFile.setDpPredictorId(savePredictor(replicate.getDpPredictorId()));
         }
     }
 
-    private void saveRepresentativePrecursors(TargetedMSRun run)
+    /** @return the library Id of the predictor */
+    private int savePredictor(long predictorId) throws SQLException
     {
-        saveProteomicsPrecursors(run);
-        saveMoleculePrecursors(run);
+        _currentRun.getPredictorIds().add(predictorId);
+
+        // if we have already saved this predictor, don't save it again
+        Integer libPredictorId = _predictorIdMap.get(predictorId);
+        if (libPredictorId != null)
+        {
+            return libPredictorId;
+        }
+
+        TransitionSettings.Predictor predictor = ReplicateManager.getReplicatePredictor(predictorId);
+        LibPredictor libPredictor = new LibPredictor();
+        libPredictor.setName(predictor.getName());
+        libPredictor.setStepCount(predictor.getStepCount());
+        libPredictor.setStepSize(predictor.getStepSize());
+
+        _libWriter.writePredictor(libPredictor);
+        _predictorIdMap.put(predictorId, libPredictor.getId());
+        return libPredictor.getId();
     }
 
-    private void saveProteomicsPrecursors(TargetedMSRun run)
+    private void saveRepresentativePrecursors()
     {
-        List<Precursor> precursors = PrecursorManager.getRepresentativePrecursors(run.getId());
-        // Sort by peptideId.
-        precursors.sort(Comparator.comparingLong(Precursor::getGeneralMoleculeId));
+        saveProteomicsPrecursors();
+        saveMoleculePrecursors();
+    }
 
-        long lastPeptideId = 0;
-        List<Precursor> peptidePrecursors = new ArrayList<>();
-        for(Precursor precursor: precursors)
+    private void saveProteomicsPrecursors()
+    {
+        // Peptides are sorted by Id
+        for(Peptide peptide: _runData.getPeptides())
         {
-            if(precursor.getGeneralMoleculeId() != lastPeptideId)
+            List<Precursor> peptidePrecursors = _runData.getPrecursors(peptide.getId());
+            if(peptidePrecursors.size() > 0)
             {
-                if(peptidePrecursors.size() > 0)
-                {
-                    Peptide peptide = PeptideManager.getPeptide(_container, lastPeptideId);
-                    LibPeptide libPeptide = makeLibPeptide(peptide, peptidePrecursors, run);
-                    peptidePrecursors.clear();
-
-                    _libWriter.writePeptide(libPeptide, peptide);
-                }
-                lastPeptideId = precursor.getGeneralMoleculeId();
-                peptidePrecursors = new ArrayList<>();
+                LibPeptide libPeptide = makeLibPeptide(peptide, peptidePrecursors);
+                _currentPeptideGroupIds.add(peptide.getPeptideGroupId());
+                _libWriter.writePeptide(libPeptide, _runData.getPeptideGroup(peptide.getPeptideGroupId()));
             }
-            peptidePrecursors.add(precursor);
-        }
-        if(peptidePrecursors.size() > 0)
-        {
-            Peptide peptide = PeptideManager.getPeptide(_container, lastPeptideId);
-            LibPeptide libPeptide = makeLibPeptide(peptide, peptidePrecursors, run);
-            _libWriter.writePeptide(libPeptide, peptide);
         }
     }
 
-    private void saveMoleculePrecursors(TargetedMSRun run)
+    private void saveMoleculePrecursors()
     {
-        List<MoleculePrecursor> precursors = MoleculePrecursorManager.getRepresentativeMoleculePrecursors(run.getId());
-        // Sort by id
-        precursors.sort(Comparator.comparingLong(MoleculePrecursor::getGeneralMoleculeId));
-
-        long lastMoleculeId = 0;
-        List<MoleculePrecursor> moleculePrecursors = new ArrayList<>();
-        for(MoleculePrecursor precursor: precursors)
+        // Molecules are sorted by Id
+        for(Molecule molecule: _runData.getMolecules())
         {
-            if(precursor.getGeneralMoleculeId() != lastMoleculeId)
+            List<MoleculePrecursor> moleculePrecursors = _runData.getMoleculePrecursors(molecule.getId());
+            if(moleculePrecursors.size() > 0)
             {
-                if(moleculePrecursors.size() > 0)
-                {
-                    Molecule molecule = MoleculeManager.getMolecule(_container, lastMoleculeId);
-                    LibPeptide libMolecule = makeLibMolecule(molecule, moleculePrecursors, run);
-                    moleculePrecursors.clear();
-
-                    _libWriter.writeMolecule(libMolecule, molecule);
-                }
-                lastMoleculeId = precursor.getGeneralMoleculeId();
-                moleculePrecursors = new ArrayList<>();
+                LibPeptide libMolecule = makeLibMolecule(molecule, moleculePrecursors);
+                _currentPeptideGroupIds.add(molecule.getPeptideGroupId());
+                _libWriter.writeMolecule(libMolecule, _runData.getPeptideGroup(molecule.getPeptideGroupId()));
             }
-            moleculePrecursors.add(precursor);
-        }
-        if(moleculePrecursors.size() > 0)
-        {
-            Molecule molecule = MoleculeManager.getMolecule(_container, lastMoleculeId);
-            LibPeptide libMolecule = makeLibMolecule(molecule, moleculePrecursors, run);
-            _libWriter.writeMolecule(libMolecule, molecule);
         }
     }
 
-    private void savePeptideGroup(PeptideGroup pepGroup, TargetedMSRun run)
+    private void savePeptideGroup(PeptideGroup pepGroup)
     {
         // Create an entry in the Protein table.
         LibProtein libProtein = new LibProtein(pepGroup);
 
-        // Get the replicate that has the maximum overall peak area for this protein
-        getBestReplicateIdForPeptideGroup(pepGroup);
-
         // Add peptides.
-        addPeptides(pepGroup, libProtein, run);
+        addPeptides(pepGroup, libProtein);
 
         // Save the protein.
+        _currentPeptideGroupIds.add(pepGroup.getId());
         _libWriter.writeProtein(pepGroup.getId(), libProtein);
     }
 
-    private void getBestReplicateIdForPeptideGroup(PeptideGroup pepGroup)
-    {
-        _bestReplicateIdForCurrentPeptideGroup = PeptideGroupManager.getBestReplicateId(pepGroup);
-    }
-
-    private void addPeptides(PeptideGroup pepGroup, LibProtein protein, TargetedMSRun run)
+    private void addPeptides(PeptideGroup pepGroup, LibProtein protein)
     {
-        TargetedMSSchema schema = new TargetedMSSchema(_user, _container);
-
-        Collection<Peptide> peptides = PeptideManager.getPeptidesForGroup(pepGroup.getId());
+        List<Peptide> peptides = _runData.getPeptidesForGroup(pepGroup.getId());
         for(Peptide peptide: peptides)
         {
-            List<Precursor> precursors = PrecursorManager.getPrecursorsForPeptide(peptide.getId(), schema);
+            List<Precursor> precursors = _runData.getPrecursors(peptide.getId());
             if(precursors.size() == 0)
             {
                 throw new IllegalStateException(String.format("No precursors found for peptide '%s'. Empty peptides are not allowed in library folders." +
                         " Empty peptides can be removed in Skyline by selecting Refine > Remove Empty Peptides.", peptide.getSequence()));
             }
-            LibPeptide libPeptide = makeLibPeptide(peptide, precursors, run);
+            LibPeptide libPeptide = makeLibPeptide(peptide, precursors);
             protein.addChild(libPeptide);
         }
     }
 
-    private LibPeptide makeLibPeptide(Peptide peptide, List<Precursor> precursors, TargetedMSRun run)
+    private LibPeptide makeLibPeptide(Peptide peptide, List<Precursor> precursors)
     {
         LibPeptide libPeptide = makeLibPeptide(peptide);
 
         // Get the isotope modifications for the peptide.
-        List<Peptide.IsotopeModification> pepIsotopeMods = ModificationManager.getPeptideIsotopelModifications(peptide.getId());
+        List<Peptide.IsotopeModification> pepIsotopeMods = _runData.getIsotopeModifications(peptide.getId());
         // IsotopeLabelId(Panorama) -> List<Peptide.IsotopeModification>
         Map<Long, List<Peptide.IsotopeModification>> precIsotopeModMap = new HashMap<>();
         for(Peptide.IsotopeModification isotopeMod: pepIsotopeMods)
@@ -513,19 +687,19 @@ private LibPeptide makeLibPeptide(Peptide peptide, List<Precursor> precursors, T
             List<Peptide.IsotopeModification> precIsotopeMods = precIsotopeModMap.get(precursor.getIsotopeLabelId());
             precIsotopeMods = (precIsotopeMods != null) ? precIsotopeMods : Collections.emptyList();
 
-            LibPrecursor libPrecursor = makeLibPrecursor(precursor, precIsotopeMods, run);
+            LibPrecursor libPrecursor = makeLibPrecursor(precursor, precIsotopeMods);
             libPeptide.addPrecursor(libPrecursor);
         }
         return libPeptide;
     }
 
-    private LibPeptide makeLibMolecule(Molecule molecule, List<MoleculePrecursor> precursors, TargetedMSRun run)
+    private LibPeptide makeLibMolecule(Molecule molecule, List<MoleculePrecursor> precursors)
     {
         LibPeptide libMolecule = makeLibMolecule(molecule);
 
         for(MoleculePrecursor precursor: precursors)
         {
-            LibPrecursor libPrecursor = makeLibPrecursor(precursor, run);
+            LibPrecursor libPrecursor = makeLibPrecursor(precursor);
             libMolecule.addPrecursor(libPrecursor);
         }
         return libMolecule;
@@ -551,7 +725,7 @@ private LibPeptide makeLibPeptide(Peptide peptide)
         libPeptide.setNumMissedCleavages(peptide.getNumMissedCleavages());
 
         // Get the structural modifications for the peptide
-        List<Peptide.StructuralModification> strMods = ModificationManager.getPeptideStructuralModifications(peptide.getId());
+        List<Peptide.StructuralModification> strMods = _runData.getStructuralModifications(peptide.getId());
         for(Peptide.StructuralModification pepMod: strMods)
         {
             LibPeptideStructuralModification libPepMod = new LibPeptideStructuralModification();
@@ -580,28 +754,11 @@ private LibPeptide makeLibMolecule(Molecule molecule)
         return result;
     }
 
-    private PrecursorChromInfo getBestPrecursorChromInfo(GeneralPrecursor<?> precursor)
-    {
-        if(_libraryType == RunRepresentativeDataState.Representative_Peptide)
-        {
-            // Get the precursor chrom info for this precursor that has the max total area across all replicates.
-            return PrecursorManager.getBestPrecursorChromInfoForPrecursor(precursor.getId());
-        }
-        else if(_libraryType == RunRepresentativeDataState.Representative_Protein)
-        {
-            if(_bestReplicateIdForCurrentPeptideGroup != null)
-            {
-                return PrecursorManager.getBestPrecursorChromInfoForPrecursorAndReplicate(precursor.getId(), _bestReplicateIdForCurrentPeptideGroup);
-            }
-        }
-        return null;
-    }
-
     private LibPrecursor makeLibPrecursor(Precursor precursor,
-                                          List<Peptide.IsotopeModification> precursorIsotopeMods, TargetedMSRun run)
+                                          List<Peptide.IsotopeModification> precursorIsotopeMods)
     {
-        PrecursorChromInfo bestChromInfo = getBestPrecursorChromInfo(precursor);
-        LibPrecursor libPrecursor = new LibPrecursor(precursor, _isotopeLabelMap, bestChromInfo, run, _sampleFileIdMap);
+        PrecursorChromInfo bestChromInfo = _runData.getBestPrecursorChromInfo(precursor);
+        LibPrecursor libPrecursor = new LibPrecursor(precursor, _isotopeLabelMap, bestChromInfo, _runData.getChromatogram(bestChromInfo), _sampleFileIdMap);
 
         // Add the precursor isotope modifications
         addPrecursorIsotopeModifications(precursorIsotopeMods, libPrecursor);
@@ -610,38 +767,35 @@ private LibPrecursor makeLibPrecursor(Precursor precursor,
         addPrecursorRetentionTimes(libPrecursor, precursor);
 
         // Add transitions.
-        Collection<Transition> transitions = TransitionManager.getTransitionsForPrecursor(precursor.getId(), _user, _container);
-        addTransitions(libPrecursor, transitions, bestChromInfo, (t, tci) -> new LibTransition(t, tci, precursor, TransitionManager.getOptimizations(t.getId()), TargetedMSManager.getTransitionFullScanSettings(run.getId())));
+        Collection<Transition> transitions = _runData.getTransitions(precursor.getId());
+        addTransitions(libPrecursor, transitions, bestChromInfo, (t, tci) -> new LibTransition(t, tci, precursor, _runData.getOptimizations(t.getId()), _runData.getFullScanSettings()));
         _precursorCount++;
         return libPrecursor;
     }
 
-    private LibPrecursor makeLibPrecursor(MoleculePrecursor precursor, TargetedMSRun run)
+    private LibPrecursor makeLibPrecursor(MoleculePrecursor precursor)
     {
-        PrecursorChromInfo bestChromInfo = getBestPrecursorChromInfo(precursor);
-        LibPrecursor libPrecursor = new LibPrecursor(precursor, _isotopeLabelMap, bestChromInfo, run, _sampleFileIdMap);
+        PrecursorChromInfo bestChromInfo = _runData.getBestPrecursorChromInfo(precursor);
+        LibPrecursor libPrecursor = new LibPrecursor(precursor, _isotopeLabelMap, bestChromInfo, _runData.getChromatogram(bestChromInfo), _sampleFileIdMap);
 
         // Add precursor retention times
         addPrecursorRetentionTimes(libPrecursor, precursor);
 
-        Collection<MoleculeTransition> transitions = MoleculeTransitionManager.getTransitionsForPrecursor(precursor.getId(), _user, _container);
+        Collection<MoleculeTransition> transitions = _runData.getMoleculeTransitions(precursor.getId());
         // Add transitions.
-        addTransitions(libPrecursor, transitions, bestChromInfo, (t, tci) -> new LibTransition(t, tci, precursor, TransitionManager.getOptimizations(t.getId()), run.fetchFullScanSettings()));
+        addTransitions(libPrecursor, transitions, bestChromInfo, (t, tci) -> new LibTransition(t, tci, precursor, _runData.getOptimizations(t.getId()), _runData.getFullScanSettings()));
         _precursorCount++;
         return libPrecursor;
     }
 
     private void addPrecursorRetentionTimes(LibPrecursor libPrecursor, GeneralPrecursor<?> precursor)
     {
-        // Get the precursor chrom infos
-        List<PrecursorChromInfo> precursorChromInfos = PrecursorManager.getSortedPrecursorChromInfosForPrecursor(precursor.getId());
+        // Get the precursor retention times
+        List<RepresentativeRunData.RetentionTime> retentionTimes = _runData.getRetentionTimes(precursor.getId());
 
-        for(PrecursorChromInfo chromInfo: precursorChromInfos)
+        for(RepresentativeRunData.RetentionTime retentionTime: retentionTimes)
         {
-            if(chromInfo.getBestRetentionTime() == null)
-                continue;
-
-            long sampleFileId = chromInfo.getSampleFileId();
+            long sampleFileId = retentionTime.sampleFileId();
             Integer libSampleFileId = _sampleFileIdMap.get(sampleFileId);
             if(libSampleFileId == null)
             {
@@ -650,10 +804,10 @@ private void addPrecursorRetentionTimes(LibPrecursor libPrecursor, GeneralPrecur
 
             LibPrecursorRetentionTime precRetTime = new LibPrecursorRetentionTime();
             precRetTime.setSampleFileId(libSampleFileId);
-            precRetTime.setRetentionTime(chromInfo.getBestRetentionTime());
-            precRetTime.setStartTime(chromInfo.getMinStartTime());
-            precRetTime.setEndTime(chromInfo.getMaxEndTime());
-            precRetTime.setOptimizationStep(chromInfo.getOptimizationStep());
+            precRetTime.setRetentionTime(retentionTime.bestRetentionTime());
+            precRetTime.setStartTime(retentionTime.minStartTime());
+            precRetTime.setEndTime(retentionTime.maxEndTime());
+            precRetTime.setOptimizationStep(retentionTime.optimizationStep());
 
             libPrecursor.addRetentionTime(precRetTime);
         }
@@ -681,11 +835,7 @@ private <T extends GeneralTransition> void addTransitions(LibPrecursor precToSav
     {
         for(T transition: transitions)
         {
-            TransitionChromInfo tci = null;
-            if(precursorChromInfo != null)
-            {
-                tci = TransitionManager.getTransitionChromInfoForTransition(transition.getId(), precursorChromInfo.getId());
-            }
+            TransitionChromInfo tci = _runData.getTransitionChromInfo(precursorChromInfo, transition.getId());
             LibTransition transitionToSave = factory.apply(transition, tci);
             precToSave.addTransition(transitionToSave);
             _transitionCount++;
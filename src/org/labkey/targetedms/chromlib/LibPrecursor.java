@@ -15,7 +15,7 @@
  */
 package org.labkey.targetedms.chromlib;
 
-import org.labkey.targetedms.TargetedMSRun;
+import org.jetbrains.annotations.Nullable;
 import org.labkey.targetedms.parser.GeneralPrecursor;
 import org.labkey.targetedms.parser.MoleculePrecursor;
 import org.labkey.targetedms.parser.Precursor;
@@ -82,7 +82,7 @@ public class LibPrecursor extends AbstractLibEntity
     public LibPrecursor() {}
 
     private LibPrecursor(GeneralPrecursor<?> p, Map<Long, String> isotopeLabelMap,
-                                PrecursorChromInfo bestChromInfo, TargetedMSRun run, Map<Long, Integer> sampleFileIdMap)
+                                PrecursorChromInfo bestChromInfo, @Nullable byte[] chromatogram, Map<Long, Integer> sampleFileIdMap)
     {
         String isotopeLabel = isotopeLabelMap.get(p.getIsotopeLabelId());
         if(isotopeLabel == null)
@@ -102,7 +102,7 @@ private LibPrecursor(GeneralPrecursor<?> p, Map<Long, String> isotopeLabelMap,
         if (bestChromInfo != null)
         {
             setTotalArea(bestChromInfo.getTotalArea() == null ? 0.0 : bestChromInfo.getTotalArea());
-            setChromatogram(bestChromInfo.getChromatogramBytes(run));
+            setChromatogram(chromatogram);
             setUncompressedSize(bestChromInfo.getUncompressedSize());
             setChromatogramFormat(bestChromInfo.getChromatogramFormat());
             setNumTransitions(bestChromInfo.getNumTransitions());
@@ -132,17 +132,18 @@ private LibPrecursor(GeneralPrecursor<?> p, Map<Long, String> isotopeLabelMap,
     }
 
 
-    public LibPrecursor(Precursor precursor, Map<Long, String> isotopeLabelMap, PrecursorChromInfo bestChromInfo, TargetedMSRun run, Map<Long, Integer> sampleFileIdMap)
+    /** @param chromatogram the compressed bytes of the best chrom info's chromatogram */
+    public LibPrecursor(Precursor precursor, Map<Long, String> isotopeLabelMap, PrecursorChromInfo bestChromInfo, @Nullable byte[] chromatogram, Map<Long, Integer> sampleFileIdMap)
     {
-        this((GeneralPrecursor<?>) precursor, isotopeLabelMap, bestChromInfo, run, sampleFileIdMap);
+        this((GeneralPrecursor<?>) precursor, isotopeLabelMap, bestChromInfo, chromatogram, sampleFileIdMap);
         setNeutralMass(precursor.getNeutralMass());
         setModifiedSequence(precursor.getModifiedSequence());
     }
 
     public LibPrecursor(MoleculePrecursor p, Map<Long, String> isotopeLabelMap, PrecursorChromInfo chromInfo,
-                                TargetedMSRun run, Map<Long, Integer> sampleFileIdMap)
+                                @Nullable byte[] chromatogram, Map<Long, Integer> sampleFileIdMap)
     {
-        this((GeneralPrecursor<?>) p, isotopeLabelMap, chromInfo, run, sampleFileIdMap);
+        this((GeneralPrecursor<?>) p, isotopeLabelMap, chromInfo, chromatogram, sampleFileIdMap);
         setAdduct(p.getAdduct());
     }
 
@@ -0,0 +1,529 @@
+/*
+ * Copyright (c) 2024 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.chromlib;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.ColumnInfo;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.targetedms.RepresentativeDataState;
+import org.labkey.api.targetedms.RunRepresentativeDataState;
+import org.labkey.targetedms.TargetedMSManager;
+import org.labkey.targetedms.TargetedMSRun;
+import org.labkey.targetedms.parser.AbstractChromInfo;
+import org.labkey.targetedms.parser.GeneralPrecursor;
+import org.labkey.targetedms.parser.Molecule;
+import org.labkey.targetedms.parser.MoleculePrecursor;
+import org.labkey.targetedms.parser.MoleculeTransition;
+import org.labkey.targetedms.parser.Peptide;
+import org.labkey.targetedms.parser.PeptideGroup;
+import org.labkey.targetedms.parser.PeptideSettings;
+import org.labkey.targetedms.parser.Precursor;
+import org.labkey.targetedms.parser.PrecursorChromInfo;
+import org.labkey.targetedms.parser.SampleFile;
+import org.labkey.targetedms.parser.Transition;
+import org.labkey.targetedms.parser.TransitionChromInfo;
+import org.labkey.targetedms.parser.TransitionOptimization;
+import org.labkey.targetedms.parser.TransitionSettings;
+import org.labkey.targetedms.query.IsotopeLabelManager;
+import org.labkey.targetedms.query.ModificationManager;
+import org.labkey.targetedms.query.ReplicateManager;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * The representative peptides, precursors, transitions and chromatogram peaks of a single run, as written to a
+ * chromatogram library. Each level of the tree is read with one query for the whole run, restricted to the
+ * representative peptide groups (protein libraries) or precursors (peptide libraries), instead of a few queries for
+ * every peptide, precursor and transition. The chromatograms that go into the library are read from the .skyd file
+ * up front too, in one pass over the file. Only one run is held in memory at a time.
+ */
+class RepresentativeRunData
+{
+    /**
+     * The order of PrecursorChromInfo.compareTo(): lowest q-value first, then largest area, with nulls last. Spelled
+     * out with CASE to avoid DB-specific null sorting behaviors.
+     */
+    private static final String CHROM_INFO_ORDER = "CASE WHEN pci.Qvalue IS NULL THEN 1 ELSE 0 END, pci.Qvalue, " +
+            "CASE WHEN pci.TotalArea IS NULL THEN 1 ELSE 0 END, pci.TotalArea DESC";
+
+    private final TargetedMSRun _run;
+    private final RunRepresentativeDataState _libraryType;
+
+    private final List<SampleFile> _sampleFiles;
+    private final List<PeptideSettings.IsotopeLabel> _isotopeLabels;
+    private final List<PeptideSettings.RunStructuralModification> _runStructuralModifications;
+    private final List<PeptideSettings.RunIsotopeModification> _runIsotopeModifications;
+    private final TransitionSettings.FullScanSettings _fullScanSettings;
+    // PeptideGroupId(Panorama) -> peptide group, for the groups that have representative data
+    private final Map<Long, PeptideGroup> _peptideGroups = new LinkedHashMap<>();
+    private final List<Peptide> _peptides;
+    private final List<Molecule> _molecules;
+    // PeptideGroupId(Panorama) -> peptides, sorted by Id
+    private final Map<Long, List<Peptide>> _peptidesByGroup;
+    // PeptideId(Panorama) -> precursors, sorted by charge and isotope label
+    private final Map<Long, List<Precursor>> _precursors;
+    private final Map<Long, List<MoleculePrecursor>> _moleculePrecursors;
+    // PeptideId(Panorama) -> modifications
+    private final Map<Long, List<Peptide.StructuralModification>> _structuralModifications;
+    private final Map<Long, List<Peptide.IsotopeModification>> _isotopeModifications;
+    // PrecursorId(Panorama) -> peak retention times in all the replicates, sorted like the chrom infos
+    private final Map<Long, List<RetentionTime>> _retentionTimes = new HashMap<>();
+    // PrecursorId(Panorama) -> chrom info whose peaks are written to the library
+    private final Map<Long, PrecursorChromInfo> _bestPrecursorChromInfos = new HashMap<>();
+    // Compressed chromatograms of the best chrom infos
+    private Map<PrecursorChromInfo, byte[]> _chromatograms = Collections.emptyMap();
+    // PrecursorChromInfoId(Panorama) -> TransitionId(Panorama) -> chrom info
+    private final Map<Long, Map<Long, TransitionChromInfo>> _transitionChromInfos = new HashMap<>();
+    // PrecursorId(Panorama) -> transitions, sorted by Id
+    private final Map<Long, List<Transition>> _transitions;
+    private final Map<Long, List<MoleculeTransition>> _moleculeTransitions;
+    // TransitionId(Panorama) -> optimizations, sorted by Id
+    private final Map<Long, List<TransitionOptimization>> _optimizations;
+
+    private RepresentativeRunData(TargetedMSRun run, RunRepresentativeDataState libraryType)
+    {
+        _run = run;
+        _libraryType = libraryType;
+
+        _sampleFiles = ReplicateManager.getSampleFilesForRun(run.getId());
+        _isotopeLabels = IsotopeLabelManager.getIsotopeLabels(run.getId());
+        _runStructuralModifications = ModificationManager.getStructuralModificationsForRun(run.getId());
+        _runIsotopeModifications = ModificationManager.getIsotopeModificationsForRun(run.getId());
+        _fullScanSettings = run.fetchFullScanSettings();
+
+        boolean proteinLibrary = libraryType == RunRepresentativeDataState.Representative_Protein;
+        select(peptideGroups(), PeptideGroup.class).forEach(peptideGroup -> _peptideGroups.put(peptideGroup.getId(), peptideGroup));
+        _peptides = select(molecules(TargetedMSManager.getTableInfoPeptide()), Peptide.class);
+        _peptidesByGroup = groupBy(_peptides, Peptide::getPeptideGroupId);
+        // Protein libraries only include the peptides in their peptide groups
+        _molecules = proteinLibrary ? Collections.emptyList() : select(molecules(TargetedMSManager.getTableInfoMolecule()), Molecule.class);
+        _precursors = groupBy(select(precursors(TargetedMSManager.getTableInfoPrecursor()), Precursor.class), Precursor::getGeneralMoleculeId);
+        _moleculePrecursors = proteinLibrary ? Collections.emptyMap() :
+                groupBy(select(precursors(TargetedMSManager.getTableInfoMoleculePrecursor()), MoleculePrecursor.class), MoleculePrecursor::getGeneralMoleculeId);
+        _structuralModifications = groupBy(select(peptideModifications(TargetedMSManager.getTableInfoPeptideStructuralModification()), Peptide.StructuralModification.class),
+                Peptide.StructuralModification::getPeptideId);
+        _isotopeModifications = groupBy(select(peptideModifications(TargetedMSManager.getTableInfoPeptideIsotopeModification()), Peptide.IsotopeModification.class),
+                Peptide.IsotopeModification::getPeptideId);
+
+        loadRetentionTimes();
+        loadBestPrecursorChromInfos();
+
+        _transitions = groupBy(select(transitions(TargetedMSManager.getTableInfoTransition(), "Id"), Transition.class), Transition::getGeneralPrecursorId);
+        _moleculeTransitions = proteinLibrary ? Collections.emptyMap() :
+                groupBy(select(transitions(TargetedMSManager.getTableInfoMoleculeTransition(), "TransitionId"), MoleculeTransition.class), MoleculeTransition::getGeneralPrecursorId);
+        _optimizations = groupBy(select(optimizations(), TransitionOptimization.class), TransitionOptimization::getTransitionId);
+    }
+
+    public static RepresentativeRunData load(TargetedMSRun run)
+    {
+        return new RepresentativeRunData(run, run.getRepresentativeDataState());
+    }
+
+    public TargetedMSRun getRun()
+    {
+        return _run;
+    }
+
+    public List<SampleFile> getSampleFiles()
+    {
+        return _sampleFiles;
+    }
+
+    public List<PeptideSettings.IsotopeLabel> getIsotopeLabels()
+    {
+        return _isotopeLabels;
+    }
+
+    public List<PeptideSettings.RunStructuralModification> getRunStructuralModifications()
+    {
+        return _runStructuralModifications;
+    }
+
+    public List<PeptideSettings.RunIsotopeModification> getRunIsotopeModifications()
+    {
+        return _runIsotopeModifications;
+    }
+
+    /** @return the representative peptide groups for protein libraries, or the groups of the representative precursors for peptide libraries */
+    public Collection<PeptideGroup> getPeptideGroups()
+    {
+        return _peptideGroups.values();
+    }
+
+    public PeptideGroup getPeptideGroup(long peptideGroupId)
+    {
+        PeptideGroup result = _peptideGroups.get(peptideGroupId);
+        if (result == null)
+        {
+            throw new IllegalStateException("Peptide group " + peptideGroupId + " is not part of the representative data of run " + _run.getId());
+        }
+        return result;
+    }
+
+    /** @return the run's peptides, sorted by Id */
+    public List<Peptide> getPeptides()
+    {
+        return _peptides;
+    }
+
+    /** @return the run's small molecules, sorted by Id */
+    public List<Molecule> getMolecules()
+    {
+        return _molecules;
+    }
+
+    /** @return the peptides in the peptide group, sorted by Id */
+    @NotNull
+    public List<Peptide> getPeptidesForGroup(long peptideGroupId)
+    {
+        return _peptidesByGroup.getOrDefault(peptideGroupId, Collections.emptyList());
+    }
+
+    @NotNull
+    public List<Precursor> getPrecursors(long peptideId)
+    {
+        return _precursors.getOrDefault(peptideId, Collections.emptyList());
+    }
+
+    @NotNull
+    public List<MoleculePrecursor> getMoleculePrecursors(long moleculeId)
+    {
+        return _moleculePrecursors.getOrDefault(moleculeId, Collections.emptyList());
+    }
+
+    @NotNull
+    public List<Peptide.StructuralModification> getStructuralModifications(long peptideId)
+    {
+        return _structuralModifications.getOrDefault(peptideId, Collections.emptyList());
+    }
+
+    @NotNull
+    public List<Peptide.IsotopeModification> getIsotopeModifications(long peptideId)
+    {
+        return _isotopeModifications.getOrDefault(peptideId, Collections.emptyList());
+    }
+
+    /** The peak of a precursor in one sample file, as written to the library's retention times */
+    public record RetentionTime(long sampleFileId, Double bestRetentionTime, Double minStartTime, Double maxEndTime, Integer optimizationStep) {}
+
+    /** @return the precursor's peak retention times in all the replicates, sorted */
+    @NotNull
+    public List<RetentionTime> getRetentionTimes(long precursorId)
+    {
+        return _retentionTimes.getOrDefault(precursorId, Collections.emptyList());
+    }
+
+    /**
+     * @return the chrom info whose peaks are written to the library: the best one across all the replicates for
+     * peptide libraries, or within the replicate with the largest total area for the precursor's peptide group for
+     * protein libraries
+     */
+    @Nullable
+    public PrecursorChromInfo getBestPrecursorChromInfo(GeneralPrecursor<?> precursor)
+    {
+        return _bestPrecursorChromInfos.get(precursor.getId());
+    }
+
+    @Nullable
+    public TransitionChromInfo getTransitionChromInfo(@Nullable PrecursorChromInfo precursorChromInfo, long transitionId)
+    {
+        if (precursorChromInfo == null)
+        {
+            return null;
+        }
+        return _transitionChromInfos.getOrDefault(precursorChromInfo.getId(), Collections.emptyMap()).get(transitionId);
+    }
+
+    @NotNull
+    public List<Transition> getTransitions(long precursorId)
+    {
+        return _transitions.getOrDefault(precursorId, Collections.emptyList());
+    }
+
+    @NotNull
+    public List<MoleculeTransition> getMoleculeTransitions(long precursorId)
+    {
+        return _moleculeTransitions.getOrDefault(precursorId, Collections.emptyList());
+    }
+
+    @NotNull
+    public List<TransitionOptimization> getOptimizations(long transitionId)
+    {
+        return _optimizations.getOrDefault(transitionId, Collections.emptyList());
+    }
+
+    /** @return the compressed bytes of the chromatogram of one of the best chrom infos */
+    @Nullable
+    public byte[] getChromatogram(@Nullable PrecursorChromInfo precursorChromInfo)
+    {
+        return precursorChromInfo == null ? null : _chromatograms.get(precursorChromInfo);
+    }
+
+    public TransitionSettings.FullScanSettings getFullScanSettings()
+    {
+        return _fullScanSettings;
+    }
+
+    /**
+     * Only the peak boundaries of most chrom infos are written to the library, so that's all that's read for them.
+     * Full chrom infos are only loaded for the best ones.
+     */
+    private void loadRetentionTimes()
+    {
+        SQLFragment sql = new SQLFragment("SELECT pci.PrecursorId, pci.SampleFileId, pci.BestRetentionTime, pci.MinStartTime, pci.MaxEndTime, pci.OptimizationStep FROM ");
+        sql.append(TargetedMSManager.getTableInfoPrecursorChromInfo(), "pci");
+        sql.append(" WHERE pci.PrecursorId IN (").append(representativePrecursorIds()).append(")");
+        sql.append(" AND pci.BestRetentionTime IS NOT NULL");
+        sql.append(" ORDER BY pci.PrecursorId, ").append(CHROM_INFO_ORDER);
+        new SqlSelector(TargetedMSManager.getSchema(), sql).forEach(rs ->
+                _retentionTimes.computeIfAbsent(rs.getLong("PrecursorId"), id -> new ArrayList<>()).add(new RetentionTime(
+                        rs.getLong("SampleFileId"),
+                        rs.getDouble("BestRetentionTime"),
+                        getDouble(rs, "MinStartTime"),
+                        getDouble(rs, "MaxEndTime"),
+                        getInteger(rs, "OptimizationStep"))));
+    }
+
+    @Nullable
+    private static Double getDouble(ResultSet rs, String column) throws SQLException
+    {
+        double result = rs.getDouble(column);
+        return rs.wasNull() ? null : result;
+    }
+
+    @Nullable
+    private static Integer getInteger(ResultSet rs, String column) throws SQLException
+    {
+        int result = rs.getInt(column);
+        return rs.wasNull() ? null : result;
+    }
+
+    /**
+     * Picks the chrom info whose peaks are written to the library for each precursor in the database, and reads only
+     * those. See PrecursorManager.getBestPrecursorChromInfo() for the ranking.
+     */
+    private void loadBestPrecursorChromInfos()
+    {
+        select(bestPrecursorChromInfos(), PrecursorChromInfo.class).forEach(pci -> _bestPrecursorChromInfos.put(pci.getPrecursorId(), pci));
+
+        if (!_bestPrecursorChromInfos.isEmpty())
+        {
+            loadDatabaseChromatograms();
+            _chromatograms = AbstractChromInfo.getChromatogramBytes(_run, _bestPrecursorChromInfos.values());
+            loadTransitionChromInfos();
+        }
+    }
+
+    /** Chromatograms are only stored in the database for older documents, and only the best chrom infos need theirs */
+    private void loadDatabaseChromatograms()
+    {
+        Map<Long, PrecursorChromInfo> chromInfos = new HashMap<>();
+        _bestPrecursorChromInfos.values().forEach(pci -> chromInfos.put(pci.getId(), pci));
+
+        SQLFragment sql = new SQLFragment("SELECT Id, Chromatogram FROM ").append(TargetedMSManager.getTableInfoPrecursorChromInfo());
+        sql.append(" WHERE Chromatogram IS NOT NULL AND Id ");
+        TargetedMSManager.getSqlDialect().appendInClauseSql(sql, chromInfos.keySet());
+        new SqlSelector(TargetedMSManager.getSchema(), sql).forEach(rs -> chromInfos.get(rs.getLong(1)).setChromatogram(rs.getBytes(2)));
+    }
+
+    private void loadTransitionChromInfos()
+    {
+        SQLFragment sql = new SQLFragment("SELECT * FROM ").append(TargetedMSManager.getTableInfoTransitionChromInfo());
+        sql.append(" WHERE PrecursorChromInfoId ");
+        Collection<Long> precursorChromInfoIds = _bestPrecursorChromInfos.values().stream().map(PrecursorChromInfo::getId).collect(Collectors.toSet());
+        TargetedMSManager.getSqlDialect().appendInClauseSql(sql, precursorChromInfoIds);
+        new SqlSelector(TargetedMSManager.getSchema(), sql).forEach(TransitionChromInfo.class, tci ->
+                _transitionChromInfos.computeIfAbsent(tci.getPrecursorChromInfoId(), id -> new HashMap<>()).put(tci.getTransitionId(), tci));
+    }
+
+    /** @return the Ids of the precursors that are written to the library */
+    private SQLFragment representativePrecursorIds()
+    {
+        return representativePrecursors("gp.Id");
+    }
+
+    private SQLFragment representativePrecursors(String column)
+    {
+        SQLFragment sql = new SQLFragment("SELECT " + column + " FROM ");
+        sql.append(TargetedMSManager.getTableInfoGeneralPrecursor(), "gp");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralMolecule(), "gm").append(" ON gm.Id = gp.GeneralMoleculeId");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoPeptideGroup(), "pg").append(" ON pg.Id = gm.PeptideGroupId");
+        sql.append(" WHERE pg.RunId = ?").add(_run.getId());
+        sql.append(_libraryType == RunRepresentativeDataState.Representative_Protein ? " AND pg." : " AND gp.");
+        sql.append("RepresentativeDataState = ?").add(RepresentativeDataState.Representative.ordinal());
+        return sql;
+    }
+
+    /** @return the Ids of the peptides and molecules that are written to the library */
+    private SQLFragment representativeMoleculeIds()
+    {
+        if (_libraryType == RunRepresentativeDataState.Representative_Protein)
+        {
+            SQLFragment sql = new SQLFragment("SELECT gm.Id FROM ");
+            sql.append(TargetedMSManager.getTableInfoGeneralMolecule(), "gm");
+            sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoPeptideGroup(), "pg").append(" ON pg.Id = gm.PeptideGroupId");
+            sql.append(" WHERE pg.RunId = ?").add(_run.getId());
+            sql.append(" AND pg.RepresentativeDataState = ?").add(RepresentativeDataState.Representative.ordinal());
+            return sql;
+        }
+        return representativePrecursors("gp.GeneralMoleculeId");
+    }
+
+    private SQLFragment peptideGroups()
+    {
+        SQLFragment sql = new SQLFragment("SELECT * FROM ").append(TargetedMSManager.getTableInfoPeptideGroup());
+        if (_libraryType == RunRepresentativeDataState.Representative_Protein)
+        {
+            sql.append(" WHERE RunId = ?").add(_run.getId());
+            sql.append(" AND RepresentativeDataState = ?").add(RepresentativeDataState.Representative.ordinal());
+        }
+        else
+        {
+            sql.append(" WHERE Id IN (SELECT gm.PeptideGroupId FROM ").append(TargetedMSManager.getTableInfoGeneralMolecule(), "gm");
+            sql.append(" WHERE gm.Id IN (").append(representativeMoleculeIds()).append("))");
+        }
+        sql.append(" ORDER BY Id");
+        return sql;
+    }
+
+    private SQLFragment molecules(TableInfo moleculeTable)
+    {
+        SQLFragment sql = new SQLFragment("SELECT m.*, gm.* FROM ");
+        sql.append(moleculeTable, "m");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralMolecule(), "gm").append(" ON gm.Id = m.Id");
+        sql.append(" WHERE gm.Id IN (").append(representativeMoleculeIds()).append(")");
+        sql.append(" ORDER BY gm.Id");
+        return sql;
+    }
+
+    private SQLFragment precursors(TableInfo precursorTable)
+    {
+        SQLFragment sql = new SQLFragment("SELECT gp.*, prec.* FROM ");
+        sql.append(precursorTable, "prec");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralPrecursor(), "gp").append(" ON gp.Id = prec.Id");
+        sql.append(" WHERE gp.Id IN (").append(representativePrecursorIds()).append(")");
+        sql.append(" ORDER BY gp.GeneralMoleculeId, gp.Charge, gp.IsotopeLabelId");
+        return sql;
+    }
+
+    private SQLFragment peptideModifications(TableInfo modificationTable)
+    {
+        SQLFragment sql = new SQLFragment("SELECT * FROM ").append(modificationTable);
+        sql.append(" WHERE PeptideId IN (").append(representativeMoleculeIds()).append(")");
+        sql.append(" ORDER BY Id");
+        return sql;
+    }
+
+    /**
+     * The best chrom info for each precursor: the first untruncated peak with an area, in the order of
+     * PrecursorChromInfo.compareTo(), or else just the first peak. For protein libraries the peaks are limited to the
+     * replicate with the largest total area for the precursor's peptide group, and precursors in groups without any
+     * area have none. All the columns are read except for the chromatogram, which is loaded separately when present.
+     */
+    private SQLFragment bestPrecursorChromInfos()
+    {
+        List<String> columns = TargetedMSManager.getTableInfoPrecursorChromInfo().getColumns().stream()
+                .filter(column -> !"Chromatogram".equalsIgnoreCase(column.getName()))
+                .map(ColumnInfo::getSelectName)
+                .toList();
+
+        SQLFragment sql = new SQLFragment("SELECT ");
+        sql.append(columns.stream().map(column -> "best." + column).collect(Collectors.joining(", ")));
+        sql.append(" FROM (SELECT ");
+        sql.append(columns.stream().map(column -> "pci." + column).collect(Collectors.joining(", ")));
+        sql.append(", ROW_NUMBER() OVER (PARTITION BY pci.PrecursorId ORDER BY");
+        sql.append(" CASE WHEN pci.TotalArea IS NOT NULL AND (pci.NumTruncated IS NULL OR pci.NumTruncated = 0) THEN 0 ELSE 1 END, ");
+        sql.append(CHROM_INFO_ORDER).append(", pci.Id) AS BestRank FROM ");
+        sql.append(TargetedMSManager.getTableInfoPrecursorChromInfo(), "pci");
+        if (_libraryType == RunRepresentativeDataState.Representative_Protein)
+        {
+            sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoSampleFile(), "sf").append(" ON sf.Id = pci.SampleFileId");
+            sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralPrecursor(), "gp").append(" ON gp.Id = pci.PrecursorId");
+            sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralMolecule(), "gm").append(" ON gm.Id = gp.GeneralMoleculeId");
+            sql.append(" INNER JOIN (").append(bestReplicates()).append(") br ON br.PeptideGroupId = gm.PeptideGroupId AND br.ReplicateId = sf.ReplicateId");
+        }
+        sql.append(" WHERE pci.PrecursorId IN (").append(representativePrecursorIds()).append(")");
+        sql.append(") best WHERE best.BestRank = 1");
+        return sql;
+    }
+
+    /** The replicate with the largest total area of untruncated peaks in each representative peptide group */
+    private SQLFragment bestReplicates()
+    {
+        SQLFragment sql = new SQLFragment("SELECT ranked.PeptideGroupId, ranked.ReplicateId FROM (");
+        sql.append("SELECT pg.Id AS PeptideGroupId, sf.ReplicateId, ROW_NUMBER() OVER (PARTITION BY pg.Id ORDER BY SUM(pci.TotalArea) DESC, sf.ReplicateId) AS AreaRank FROM ");
+        sql.append(TargetedMSManager.getTableInfoPrecursorChromInfo(), "pci");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoSampleFile(), "sf").append(" ON sf.Id = pci.SampleFileId");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralPrecursor(), "gp").append(" ON gp.Id = pci.PrecursorId");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralMolecule(), "gm").append(" ON gm.Id = gp.GeneralMoleculeId");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoPeptideGroup(), "pg").append(" ON pg.Id = gm.PeptideGroupId");
+        sql.append(" WHERE pg.RunId = ?").add(_run.getId());
+        sql.append(" AND pg.RepresentativeDataState = ?").add(RepresentativeDataState.Representative.ordinal());
+        sql.append(" AND pci.TotalArea IS NOT NULL AND (pci.NumTruncated IS NULL OR pci.NumTruncated = 0)");
+        sql.append(" GROUP BY pg.Id, sf.ReplicateId");
+        sql.append(") ranked WHERE ranked.AreaRank = 1");
+        return sql;
+    }
+
+    private SQLFragment transitions(TableInfo transitionTable, String idColumn)
+    {
+        SQLFragment sql = new SQLFragment("SELECT gt.*, t.* FROM ");
+        sql.append(transitionTable, "t");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralTransition(), "gt").append(" ON gt.Id = t.").append(idColumn);
+        sql.append(" WHERE gt.GeneralPrecursorId IN (").append(representativePrecursorIds()).append(")");
+        sql.append(" ORDER BY gt.GeneralPrecursorId, gt.Id");
+        return sql;
+    }
+
+    private SQLFragment optimizations()
+    {
+        SQLFragment sql = new SQLFragment("SELECT tro.* FROM ");
+        sql.append(TargetedMSManager.getTableInfoTransitionOptimization(), "tro");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralTransition(), "gt").append(" ON gt.Id = tro.TransitionId");
+        sql.append(" WHERE gt.GeneralPrecursorId IN (").append(representativePrecursorIds()).append(")");
+        sql.append(" ORDER BY tro.TransitionId, tro.Id");
+        return sql;
+    }
+
+    private static <T> List<T> select(SQLFragment sql, Class<T> clazz)
+    {
+        return new SqlSelector(TargetedMSManager.getSchema(), sql).getArrayList(clazz);
+    }
+
+    /** Keeps the order of the rows within each group */
+    private static <T> Map<Long, List<T>> groupBy(List<T> rows, Function<T, Long> getKey)
+    {
+        Map<Long, List<T>> result = new LinkedHashMap<>();
+        for (T row : rows)
+        {
+            result.computeIfAbsent(getKey.apply(row), key -> new ArrayList<>()).add(row);
+        }
+        return result;
+    }
+}
@@ -98,6 +98,7 @@ public void addRow(RawMetricDataSet row)
         {
             throw new IllegalStateException("Stats have already been locked");
         }
+        row.setGuideSetKey(_key);
         if (!row.getSampleFile().isIgnoreInQC(row.getMetricId()) && null != row.getSampleFile().getAcquiredTime() &&
                 _guideSet.getTrainingStart().compareTo(row.getSampleFile().getAcquiredTime()) <= 0 &&
                 (_guideSet.getTrainingEnd() == null || _guideSet.getTrainingEnd().compareTo(row.getSampleFile().getAcquiredTime()) >= 0))
@@ -113,7 +114,18 @@ public void addRow(RawMetricDataSet row)
 
     private Double[] getValues(List<RawMetricDataSet> rows, boolean transformNullsToZero, boolean roundValues)
     {
-        List<Double> result = new ArrayList<>();
+        int count = 0;
+        for (RawMetricDataSet row : rows)
+        {
+            if (transformNullsToZero || row.getMetricValue() != null)
+            {
+                count++;
+            }
+        }
+
+        // Size the array up front rather than collecting into a List<Double> and copying
+        Double[] result = new Double[count];
+        int i = 0;
         for (RawMetricDataSet row : rows)
         {
             Double value = row.getMetricValue();
@@ -121,20 +133,20 @@ private Double[] getValues(List<RawMetricDataSet> rows, boolean transformNullsTo
             {
                 if (transformNullsToZero)
                 {
-                    result.add(0.0d);
+                    result[i++] = 0.0d;
                 }
             }
             else if (roundValues)
             {
-                result.add(Math.round(value * 10000.0d) / 10000.0d);
+                result[i++] = Math.round(value * 10000.0d) / 10000.0d;
             }
             else
             {
-                result.add(value);
+                result[i++] = value;
             }
         }
 
-        return result.toArray(new Double[0]);
+        return result;
     }
 
     public void calculateStats(Integer trailingRuns)
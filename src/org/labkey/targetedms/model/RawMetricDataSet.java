@@ -28,26 +28,40 @@
 
 public class RawMetricDataSet
 {
+    // A QC folder's plots and outlier summaries can hold millions of these at once, so the numeric values are kept as
+    // primitives with a bit per field recording whether it's been set, instead of as boxed Doubles and Longs
+    private static final int HAS_METRIC_VALUE = 1;
+    private static final int HAS_PRECURSOR_CHROM_INFO_ID = 1 << 1;
+    private static final int HAS_MR = 1 << 2;
+    private static final int HAS_CUSUM_MP = 1 << 3;
+    private static final int HAS_CUSUM_MN = 1 << 4;
+    private static final int HAS_CUSUM_VP = 1 << 5;
+    private static final int HAS_CUSUM_VN = 1 << 6;
+    private static final int HAS_TRAILING_MEAN = 1 << 7;
+    private static final int HAS_TRAILING_CV = 1 << 8;
+
     private final SampleFileQCMetadata _sampleFile;
 
     String seriesLabel;
-    Double metricValue;
+    double metricValue;
     QCMetricConfiguration metric;
     int metricSeriesIndex;
 
-    Long precursorChromInfoId;
+    long precursorChromInfoId;
 
-    Double mR;
-    Double cusumMP;
-    Double cusumMN;
-    Double cusumVP;
-    Double cusumVN;
-    Double trailingMean;
-    Double trailingCV;
+    double mR;
+    double cusumMP;
+    double cusumMN;
+    double cusumVP;
+    double cusumVN;
+    double trailingMean;
+    double trailingCV;
     Date trailingStart;
     PrecursorInfo _precursor;
     boolean insideGuideSet;
 
+    private int _hasValues;
+
     private GuideSetKey _guideSetKey;
 
     public RawMetricDataSet(SampleFileQCMetadata metadata, PrecursorInfo precursor)
@@ -65,6 +79,29 @@ public SampleFileQCMetadata getSampleFile()
         return _sampleFile;
     }
 
+    private boolean has(int field)
+    {
+        return (_hasValues & field) != 0;
+    }
+
+    @Nullable
+    private Double get(int field, double value)
+    {
+        return has(field) ? value : null;
+    }
+
+    /** @return the primitive value to store for the field */
+    private double set(int field, @Nullable Double value)
+    {
+        if (value == null)
+        {
+            _hasValues &= ~field;
+            return 0;
+        }
+        _hasValues |= field;
+        return value.doubleValue();
+    }
+
     public static class PrecursorInfo
     {
         /** Not thread safe but expensive to create so carefully shared */
@@ -204,12 +241,12 @@ public void setSeriesLabel(String seriesLabel)
     @Nullable
     public Double getMetricValue()
     {
-        return metricValue;
+        return get(HAS_METRIC_VALUE, metricValue);
     }
 
     public void setMetricValue(Double metricValue)
     {
-        this.metricValue = metricValue;
+        this.metricValue = set(HAS_METRIC_VALUE, metricValue);
     }
 
     public int getMetricId()
@@ -237,6 +274,12 @@ public void setMetricSeriesIndex(int metricSeriesIndex)
         this.metricSeriesIndex = metricSeriesIndex;
     }
 
+    /** Share a single key across all the rows for the same series */
+    void setGuideSetKey(GuideSetKey guideSetKey)
+    {
+        _guideSetKey = guideSetKey;
+    }
+
     public GuideSetKey getGuideSetKey()
     {
         if (_guideSetKey == null)
@@ -255,12 +298,21 @@ public Long getPrecursorId()
     @Nullable
     public Long getPrecursorChromInfoId()
     {
-        return precursorChromInfoId;
+        return has(HAS_PRECURSOR_CHROM_INFO_ID) ? precursorChromInfoId : null;
     }
 
     public void setPrecursorChromInfoId(Long precursorChromInfoId)
     {
-        this.precursorChromInfoId = precursorChromInfoId;
+        if (precursorChromInfoId == null)
+        {
+            _hasValues &= ~HAS_PRECURSOR_CHROM_INFO_ID;
+            this.precursorChromInfoId = 0;
+        }
+        else
+        {
+            _hasValues |= HAS_PRECURSOR_CHROM_INFO_ID;
+            this.precursorChromInfoId = precursorChromInfoId;
+        }
     }
 
     public String getDataType()
@@ -277,63 +329,63 @@ public Double getMz()
     @Nullable
     public Double getmR()
     {
-        return mR;
+        return get(HAS_MR, mR);
     }
 
     public void setmR(Double mR)
     {
-        this.mR = mR;
+        this.mR = set(HAS_MR, mR);
     }
 
     @Nullable
     public Double getCUSUMmP()
     {
-        return cusumMP;
+        return get(HAS_CUSUM_MP, cusumMP);
     }
 
     public void setCUSUMmP(Double d)
     {
-        this.cusumMP = d;
+        this.cusumMP = set(HAS_CUSUM_MP, d);
     }
 
     @Nullable
     public Double getCUSUMmN()
     {
-        return cusumMN;
+        return get(HAS_CUSUM_MN, cusumMN);
     }
 
     public void setCUSUMmN(Double d)
     {
-        this.cusumMN = d;
+        this.cusumMN = set(HAS_CUSUM_MN, d);
     }
 
     @Nullable
     public Double getCUSUMvP()
     {
-        return cusumVP;
+        return get(HAS_CUSUM_VP, cusumVP);
     }
 
     public void setCUSUMvP(Double d)
     {
-        this.cusumVP = d;
+        this.cusumVP = set(HAS_CUSUM_VP, d);
     }
 
     @Nullable
     public Double getCUSUMvN()
     {
-        return cusumVN;
+        return get(HAS_CUSUM_VN, cusumVN);
     }
 
     public void setCUSUMvN(Double d)
     {
-        this.cusumVN = d;
+        this.cusumVN = set(HAS_CUSUM_VN, d);
     }
 
     public boolean isValueOutlier(GuideSetStats stat)
     {
         if (stat == null ||
                 _sampleFile.isIgnoreInQC(stat.getKey().getMetricId()) ||
-                metricValue == null ||
+                !has(HAS_METRIC_VALUE) ||
                 metric.getStatus() == QCMetricStatus.PlotOnly ||
                 metric.getStatus() == QCMetricStatus.Disabled)
         {
@@ -366,7 +418,7 @@ else if (metric.getStatus() == QCMetricStatus.MeanDeviationCutoff)
 
     public boolean isMovingRangeOutlier(GuideSetStats stat)
     {
-        return  stat != null && !_sampleFile.isIgnoreInQC(getMetricId()) && mR != null && mR > Stats.MOVING_RANGE_UPPER_LIMIT_WEIGHT * stat.getMovingRangeAverage();
+        return  stat != null && !_sampleFile.isIgnoreInQC(getMetricId()) && has(HAS_MR) && mR > Stats.MOVING_RANGE_UPPER_LIMIT_WEIGHT * stat.getMovingRangeAverage();
     }
 
     private boolean isCUSUMOutlier(Double value)
@@ -376,22 +428,22 @@ private boolean isCUSUMOutlier(Double value)
 
     public boolean isCUSUMvPOutlier()
     {
-        return isCUSUMOutlier(cusumVP);
+        return isCUSUMOutlier(getCUSUMvP());
     }
 
     public boolean isCUSUMvNOutlier()
     {
-        return isCUSUMOutlier(cusumVN);
+        return isCUSUMOutlier(getCUSUMvN());
     }
 
     public boolean isCUSUMmPOutlier()
     {
-        return isCUSUMOutlier(cusumMP);
+        return isCUSUMOutlier(getCUSUMmP());
     }
 
     public boolean isCUSUMmNOutlier()
     {
-        return isCUSUMOutlier(cusumMN);
+        return isCUSUMOutlier(getCUSUMmN());
     }
 
     public void increment(@NotNull OutlierCounts counts, @NotNull GuideSetStats stats)
@@ -425,22 +477,22 @@ public void increment(@NotNull OutlierCounts counts, @NotNull GuideSetStats stat
 
     public Double getTrailingMean()
     {
-        return trailingMean;
+        return get(HAS_TRAILING_MEAN, trailingMean);
     }
 
     public void setTrailingMean(Double trailingMean)
     {
-        this.trailingMean = trailingMean;
+        this.trailingMean = set(HAS_TRAILING_MEAN, trailingMean);
     }
 
     public Double getTrailingCV()
     {
-        return trailingCV;
+        return get(HAS_TRAILING_CV, trailingCV);
     }
 
     public void setTrailingCV(Double trailingCV)
     {
-        this.trailingCV = trailingCV;
+        this.trailingCV = set(HAS_TRAILING_CV, trailingCV);
     }
 
     public Date getTrailingStart()
@@ -15,19 +15,19 @@
  */
 package org.labkey.targetedms.outliers;
 
-import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.RuntimeSQLException;
 import org.labkey.api.data.SQLFragment;
 import org.labkey.api.data.SqlSelector;
 import org.labkey.api.data.TableInfo;
 import org.labkey.api.data.TableSelector;
-import org.labkey.api.query.QueryService;
 import org.labkey.api.security.User;
+import org.labkey.api.util.UnexpectedException;
 import org.labkey.api.targetedms.model.SampleFileInfo;
-import org.labkey.api.util.Pair;
 import org.labkey.targetedms.TargetedMSManager;
 import org.labkey.targetedms.TargetedMSSchema;
 import org.labkey.targetedms.chart.ColorGenerator;
@@ -40,12 +40,8 @@
 import org.labkey.targetedms.model.RawMetricDataSet;
 import org.labkey.targetedms.model.SampleFileQCMetadata;
 import org.labkey.targetedms.parser.GeneralMolecule;
-import org.labkey.targetedms.parser.GeneralPrecursor;
+import org.labkey.targetedms.parser.Molecule;
 import org.labkey.targetedms.parser.SampleFile;
-import org.labkey.targetedms.query.MoleculeManager;
-import org.labkey.targetedms.query.MoleculePrecursorManager;
-import org.labkey.targetedms.query.PeptideManager;
-import org.labkey.targetedms.query.PrecursorManager;
 
 import java.awt.*;
 import java.sql.ResultSet;
@@ -53,6 +49,7 @@
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
@@ -65,6 +62,10 @@
 import java.util.Optional;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -73,6 +74,31 @@
     private static final OutlierGenerator INSTANCE = new OutlierGenerator();
     private static final DecimalFormat DECIMAL_FORMAT = new DecimalFormat("0.000");
 
+    /**
+     * The colors depend only on the precursors being plotted and their order, so reuse them for as long as a folder
+     * plots the same set of precursors
+     */
+    private static final Cache<Container, SeriesColors> SERIES_COLORS = CacheManager.getCache(1000, TimeUnit.HOURS.toMillis(1), "QC plot series colors");
+
+    private record SeriesColors(List<Long> precursorIds, Map<Long, Color> colors) {}
+
+    /**
+     * For the per-series calculations, which are independent of each other. Shared by all requests so that concurrent
+     * QC requests can't use more threads than there are cores between them.
+     */
+    private static final ForkJoinPool STATS_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Each guide set's training stats for a metric's full date range, so that zoomed-in QC plots, which show the full
+     * range's limits, only need to fetch the rows they display
+     */
+    private static final Cache<PlotStatsKey, Map<GuideSetKey, TrainingStats>> TRAINING_STATS = CacheManager.getCache(1000, TimeUnit.HOURS.toMillis(1), "QC plot guide set training stats");
+
+    /** The data version changes with anything that could change the stats, so stale entries are simply never hit */
+    public record PlotStatsKey(String containerId, long dataVersion, int metricId, List<String> annotationGroups, boolean showExcluded, boolean showExcludedPrecursors) {}
+
+    public record TrainingStats(double average, double standardDeviation, double movingRangeAverage, double movingRangeStdDev) {}
+
     private OutlierGenerator() {}
 
     public static OutlierGenerator get()
@@ -80,7 +106,8 @@ public static OutlierGenerator get()
         return INSTANCE;
     }
 
-    private String getEachSeriesTypePlotDataSql(int seriesIndex, QCMetricConfiguration configuration, List<AnnotationGroup> annotationGroups)
+    /** @return LabKey SQL for all the values of one of the metric's series, across the whole folder */
+    String getEachSeriesTypePlotDataSql(int seriesIndex, QCMetricConfiguration configuration)
     {
         String schemaName;
         String queryName;
@@ -113,39 +140,6 @@ private String getEachSeriesTypePlotDataSql(int seriesIndex, QCMetricConfigurati
             sql.append("\nMetricValue, 0 as metric, ").append(seriesIndex).append(" AS MetricSeriesIndex, ").append(configuration.getId()).append(" AS MetricId");
 
             sql.append("\n FROM ").append(schemaName).append('.').append(queryName);
-
-            if (!annotationGroups.isEmpty())
-            {
-                sql.append(" WHERE ");
-                StringBuilder filterClause = new StringBuilder("SampleFileId.ReplicateId IN (");
-                var intersect = "";
-                var selectSql = "(SELECT ReplicateId FROM targetedms.ReplicateAnnotation WHERE ";
-                for (AnnotationGroup annotation : annotationGroups)
-                {
-                    filterClause.append(intersect)
-                            .append(selectSql)
-                            .append(" Name='")
-                            .append(annotation.getName().replace("'", "''"))
-                            .append("'");
-
-
-                    var annotationValues = annotation.getValues();
-                    if (!annotationValues.isEmpty())
-                    {
-                        var quoteEscapedVals = annotationValues.stream().map(s -> s.replace("'", "''")).toList( );
-                        var vals = "'" + StringUtils.join(quoteEscapedVals, "','") + "'";
-                        filterClause.append(" AND  Value IN (").append(vals).append(" )");
-                    }
-                    filterClause.append(" ) ");
-                    intersect = " INTERSECT ";
-                }
-                filterClause.append(") ");
-                sql.append(filterClause);
-            }
-            if (configuration.getTraceName() != null)
-            {
-                sql.append(" WHERE metric = ").append(configuration.getId());
-            }
             sql.append(")");
         }
         return sql.toString();
@@ -178,10 +172,8 @@ private Map<String, QCMetricConfiguration> getPreferredMetrics(List<QCMetricConf
         return preferredConfigs;
     }
 
-    /** @return LabKey SQL to fetch all the values for the specified metrics */
-    private String queryContainerSampleFileRawData(List<QCMetricConfiguration> configurations, Date startDate,
-                                                   Date endDate, List<AnnotationGroup> annotationGroups,
-                                                   boolean showExcluded, boolean forOutlierSummary)
+    /** @return the preferred metrics and their series whose values should be fetched */
+    private List<QCMetricConfiguration> getConfigurationsToQuery(List<QCMetricConfiguration> configurations, boolean forOutlierSummary, Set<QCMetricValueManager.MetricSeries> series)
     {
         // Copy so that we can use our preferred sort
         configurations = new ArrayList<>(configurations);
@@ -189,63 +181,21 @@ private String queryContainerSampleFileRawData(List<QCMetricConfiguration> confi
         configurations.sort(Comparator.comparingInt(QCMetricConfiguration::getId));
 
         Map<String, QCMetricConfiguration> preferredConfigs = getPreferredMetrics(configurations, forOutlierSummary);
-        
-        StringBuilder sql = new StringBuilder();
-
-        sql.append("SELECT X.* FROM (\n");
 
-        Set<Pair<Integer, Integer>> alreadyAdded = new HashSet<>();
-
-        String sep = "";
+        List<QCMetricConfiguration> result = new ArrayList<>();
         for (QCMetricConfiguration configuration : preferredConfigs.values())
         {
-            if (alreadyAdded.add(Pair.of(configuration.getId(), 1)))
-            {
-                sql.append(sep).append(getEachSeriesTypePlotDataSql(1, configuration, annotationGroups));
-            }
-            sep = "\nUNION ALL\n";
+            boolean added = series.add(new QCMetricValueManager.MetricSeries(configuration.getId(), 1));
             if (configuration.getSeries2SchemaName() != null && configuration.getSeries2QueryName() != null)
             {
-                if (alreadyAdded.add(Pair.of(configuration.getId(), 2)))
-                {
-                    sql.append(sep).append(getEachSeriesTypePlotDataSql(2, configuration, annotationGroups));
-                }
+                added |= series.add(new QCMetricValueManager.MetricSeries(configuration.getId(), 2));
             }
-        }
-
-        sql.append(") X");
-        sql.append("\nINNER JOIN SampleFile sf ON X.SampleFileId = sf.Id");
-        if (null != startDate || null != endDate)
-        {
-            var sqlSeparator = "WHERE";
-
-            if (null != startDate)
-            {
-                sql.append("\n").append(sqlSeparator);
-                sql.append(" sf.AcquiredTime >= '");
-                sql.append(startDate);
-                sql.append("' ");
-                sqlSeparator = "AND";
-            }
-
-            if (null != endDate)
+            if (added)
             {
-                sql.append("\n").append(sqlSeparator);
-                sql.append("\n sf.AcquiredTime < TIMESTAMPADD('SQL_TSI_DAY', 1, CAST('");
-                sql.append(endDate);
-                sql.append("' AS TIMESTAMP))");
+                result.add(configuration);
             }
         }
-        else
-        {
-            sql.append("\nWHERE sf.AcquiredTime IS NOT NULL");
-        }
-        if (!showExcluded)
-        {
-            sql.append(" AND sf.Excluded = false");
-        }
-
-        return sql.toString();
+        return result;
     }
 
     /** Prefer the standalone variant of a metric if it's also part of a paired config so that we avoid double-counting */
@@ -271,17 +221,13 @@ public List<RawMetricDataSet> getRawMetricDataSets(TargetedMSSchema schema, List
             sampleFiles.put(sf.getId(), sf);
         }
 
-        String labkeySQL = queryContainerSampleFileRawData(configurations, startDate, endDate, annotationGroups, showExcluded, forOutlierSummary);
+        Set<QCMetricValueManager.MetricSeries> series = new LinkedHashSet<>();
+        List<QCMetricConfiguration> queried = getConfigurationsToQuery(configurations, forOutlierSummary, series);
+        Set<Integer> traceMetricIds = queried.stream().filter(c -> c.getTraceName() != null).map(QCMetricConfiguration::getId).collect(Collectors.toSet());
 
-        // Use strictColumnList = false to avoid a potentially expensive injected join for the Container via lookups
-        TableInfo ti = QueryService.get().createTable(schema, labkeySQL, null, true);
-
-        SQLFragment sql = new SQLFragment("SELECT lk.*, pci.PrecursorId ");
-        sql.append(" FROM ");
-        sql.append(ti, "lk");
-        sql.append(" LEFT OUTER JOIN ");
-        sql.append(TargetedMSManager.getTableInfoPrecursorChromInfo(), "pci");
-        sql.append(" ON lk.PrecursorChromInfoId = pci.Id ");
+        // Read from the materialized values instead of running every metric's query over the folder's full history
+        QCMetricValueManager.ensureStored(schema, queried);
+        SQLFragment sql = QCMetricValueManager.getValuesSql(schema.getContainer(), series, traceMetricIds, startDate, endDate, annotationGroups, showExcluded);
 
         try
         {
@@ -291,6 +237,9 @@ public List<RawMetricDataSet> getRawMetricDataSets(TargetedMSSchema schema, List
             Map<Integer, QCMetricConfiguration> metrics = new HashMap<>();
             configurations.forEach(m -> metrics.put(m.getId(), m));
 
+            // Each series label repeats for every sample file, so share a single String per distinct label
+            Map<String, String> seriesLabels = new HashMap<>();
+
             try (ResultSet rs = new SqlSelector(TargetedMSManager.getSchema(), sql).getResultSet(false))
             {
                 while (rs.next())
@@ -316,7 +265,8 @@ public List<RawMetricDataSet> getRawMetricDataSets(TargetedMSSchema schema, List
 
                     row.setMetricSeriesIndex(rs.getInt("MetricSeriesIndex"));
                     row.setMetric(metrics.get(rs.getInt("MetricId"))); // this datarow is not setting the correct metric
-                    row.setSeriesLabel(rs.getString("SeriesLabel"));
+                    String seriesLabel = rs.getString("SeriesLabel");
+                    row.setSeriesLabel(seriesLabel == null ? null : seriesLabels.computeIfAbsent(seriesLabel, Function.identity()));
                     row.setPrecursorChromInfoId(getLong(rs, "PrecursorChromInfoId"));
                     row.setMetricValue(getDouble(rs, "MetricValue"));
                     result.add(row);
@@ -328,7 +278,7 @@ public List<RawMetricDataSet> getRawMetricDataSets(TargetedMSSchema schema, List
             throw new RuntimeSQLException(e);
         }
 
-        result.sort(Comparator.comparing(RawMetricDataSet::getMetricSeriesIndex).
+        result.sort(Comparator.comparingInt(RawMetricDataSet::getMetricSeriesIndex).
                 thenComparing(RawMetricDataSet::getSeriesLabel).
                 thenComparing(x -> x.getSampleFile().getAcquiredTime()));
 
@@ -444,6 +394,43 @@ private Double getDouble(ResultSet rs, String columnName) throws SQLException
      * @param guideSets id to GuideSet
      */
 
+    public static PlotStatsKey getPlotStatsKey(Container c, int metricId, List<AnnotationGroup> annotationGroups, boolean showExcluded, boolean showExcludedPrecursors)
+    {
+        List<String> annotations = annotationGroups.stream().map(group -> group.getName() + "=" + group.getValues()).collect(Collectors.toList());
+        return new PlotStatsKey(c.getId(), OutlierSummaryCache.getDataVersion(c), metricId, annotations, showExcluded, showExcludedPrecursors);
+    }
+
+    /** Remember the training stats calculated over a metric's full date range */
+    public void rememberTrainingStats(PlotStatsKey key, Map<GuideSetKey, GuideSetStats> stats)
+    {
+        Map<GuideSetKey, TrainingStats> trainingStats = new HashMap<>();
+        stats.forEach((guideSetKey, guideSetStats) -> trainingStats.put(guideSetKey,
+                new TrainingStats(guideSetStats.getAverage(), guideSetStats.getStandardDeviation(), guideSetStats.getMovingRangeAverage(), guideSetStats.getMovingRangeStdDev())));
+        TRAINING_STATS.put(key, Collections.unmodifiableMap(trainingStats));
+    }
+
+    /** @return the full range's training stats, or null if they haven't been calculated for the current data */
+    @Nullable
+    public Map<GuideSetKey, TrainingStats> getTrainingStats(PlotStatsKey key)
+    {
+        return TRAINING_STATS.get(key);
+    }
+
+    /** Replace the stats calculated from a subset of the rows with those from the full range */
+    public static void applyTrainingStats(Map<GuideSetKey, GuideSetStats> targetedStats, Map<GuideSetKey, TrainingStats> fullRangeStats)
+    {
+        targetedStats.forEach((guideSetKey, guideSetStats) -> {
+            TrainingStats trainingStats = fullRangeStats.get(guideSetKey);
+            if (trainingStats != null)
+            {
+                guideSetStats.setAverage(trainingStats.average());
+                guideSetStats.setStandardDeviation(trainingStats.standardDeviation());
+                guideSetStats.setMovingRangeAverage(trainingStats.movingRangeAverage());
+                guideSetStats.setMovingRangeStdDev(trainingStats.movingRangeStdDev());
+            }
+        });
+    }
+
     public Map<GuideSetKey, GuideSetStats> getAllProcessedMetricGuideSets(List<RawMetricDataSet> rawMetricData, Map<Integer, GuideSet> guideSets)
     {
         return getAllProcessedMetricGuideSets(rawMetricData, guideSets, null);
@@ -459,10 +446,44 @@ public Map<GuideSetKey, GuideSetStats> getAllProcessedMetricGuideSets(List<RawMe
             stats.addRow(row);
         }
 
-        result.values().forEach(g -> g.calculateStats(trailingRuns));
+        forEachInParallel(result.values(), g -> g.calculateStats(trailingRuns));
         return result;
     }
 
+    /**
+     * Runs the action on each of the items in the stats pool, returning when they are all done. The action must only
+     * touch state that belongs to its own item.
+     */
+    private static <T> void forEachInParallel(Collection<T> items, Consumer<T> action)
+    {
+        mapInParallel(items, item -> {
+            action.accept(item);
+            return null;
+        });
+    }
+
+    /** @return the results in the same order as the items, regardless of which finished first */
+    private static <T, R> List<R> mapInParallel(Collection<T> items, Function<T, R> function)
+    {
+        if (items.size() < 2)
+        {
+            return items.stream().map(function).collect(Collectors.toList());
+        }
+        try
+        {
+            return STATS_POOL.submit(() -> items.parallelStream().map(function).collect(Collectors.toList())).get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw UnexpectedException.wrap(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw UnexpectedException.wrap(e.getCause());
+        }
+    }
+
     /**
      * @param metrics id to QC metric  */
     public List<SampleFileInfo> getSampleFiles(List<RawMetricDataSet> dataRows, Map<GuideSetKey, GuideSetStats> allStats, Map<Integer, QCMetricConfiguration> metrics, TargetedMSSchema schema, Integer limit)
@@ -473,22 +494,27 @@ public List<SampleFileInfo> getSampleFiles(List<RawMetricDataSet> dataRows, Map<
         List<SampleFileInfo> result = sfs.stream().map(SampleFile::toSampleFileInfo).collect(Collectors.toList());
         Map<Long, SampleFileInfo> sampleFiles = result.stream().collect(Collectors.toMap(SampleFileInfo::getSampleId, Function.identity(), (a, b) -> a));
 
-        for (RawMetricDataSet dataRow : dataRows)
-        {
-            SampleFileInfo sampleFile = sampleFiles.get(dataRow.getSampleFile().getId());
-            GuideSetStats stats = allStats.get(dataRow.getGuideSetKey());
-
-            // If data was deleted after the full metric data was queried, but before we got here, the sample file
-            // might not be present anymore. Not a real-world scenario, but turns up when TeamCity is deleting
-            // the container at the end of the test run immediately after the crawler has fired a bunch of requests
-            if (sampleFile != null)
+        // Tally each sample file's rows on a single thread, in their original order, so that the counts for a sample
+        // file are only ever updated by one thread and its per-metric counts are added in the same order as before
+        Map<Long, List<RawMetricDataSet>> rowsBySampleFile = dataRows.stream().collect(Collectors.groupingBy(row -> row.getSampleFile().getId(), LinkedHashMap::new, Collectors.toList()));
+        forEachInParallel(rowsBySampleFile.values(), rows -> {
+            for (RawMetricDataSet dataRow : rows)
             {
-                dataRow.increment(sampleFile, stats);
+                SampleFileInfo sampleFile = sampleFiles.get(dataRow.getSampleFile().getId());
+                GuideSetStats stats = allStats.get(dataRow.getGuideSetKey());
+
+                // If data was deleted after the full metric data was queried, but before we got here, the sample file
+                // might not be present anymore. Not a real-world scenario, but turns up when TeamCity is deleting
+                // the container at the end of the test run immediately after the crawler has fired a bunch of requests
+                if (sampleFile != null)
+                {
+                    dataRow.increment(sampleFile, stats);
 
-                String metricLabel = getMetricLabel(metrics, dataRow);
-                dataRow.increment(sampleFile.getMetricCounts(metricLabel, dataRow.getMetric()), stats);
+                    String metricLabel = getMetricLabel(metrics, dataRow);
+                    dataRow.increment(sampleFile.getMetricCounts(metricLabel, dataRow.getMetric()), stats);
+                }
             }
-        }
+        });
 
         // Order so most recent are at the top, and limit if requested
         result.sort(Comparator.comparing(SampleFileInfo::getAcquiredTime).reversed());
@@ -559,42 +585,95 @@ public List<QCPlotFragment> getQCPlotFragment(List<RawMetricDataSet> rawMetricDa
         }
 
         // Now that we have all the precursor IDs, in order (important so that we de-dupe the colors in a stable order),
-        // run through them and choose a color
-        Set<Color> seriesColors = new HashSet<>();
+        // choose a color for each
+        List<Long> precursorIds = new ArrayList<>(fragmentsByPrecursorId.keySet());
+        SeriesColors seriesColors = SERIES_COLORS.get(c);
+        if (seriesColors == null || !seriesColors.precursorIds().equals(precursorIds))
+        {
+            seriesColors = new SeriesColors(precursorIds, assignSeriesColors(c, precursorIds));
+            SERIES_COLORS.put(c, seriesColors);
+        }
         for (Map.Entry<Long, QCPlotFragment> entry : fragmentsByPrecursorId.entrySet())
         {
-            long precursorId = entry.getKey();
-            // It could be either a small molecule or a peptide, so look up both options. There's also a small
-            // chance that it's been deleted
-            GeneralMolecule molecule = null;
-            GeneralPrecursor<?> precursor = PrecursorManager.getPrecursor(c, precursorId, u);
-            if (precursor == null)
-            {
-                precursor = MoleculePrecursorManager.getPrecursor(c, precursorId, u);
-                if (precursor != null)
-                {
-                    molecule = MoleculeManager.getMolecule(c, precursor.getGeneralMoleculeId());
-                }
-            }
-            else
+            Color color = seriesColors.colors().get(entry.getKey());
+            if (color != null)
             {
-                molecule = PeptideManager.getPeptide(c, precursor.getGeneralMoleculeId());
+                entry.getValue().setSeriesColor(color);
             }
+        }
+
+        qcPlotFragments.sort(Comparator.comparing(QCPlotFragment::getSeriesLabel));
+        return qcPlotFragments;
+    }
+
+    /** Assigns a color to each precursor, in order, using the text ID of its peptide or molecule */
+    private Map<Long, Color> assignSeriesColors(Container c, List<Long> precursorIds)
+    {
+        Map<Long, String> textIds = getMoleculeTextIds(c, precursorIds);
 
-            if (molecule != null)
+        Map<Long, Color> result = new HashMap<>();
+        Set<Color> seriesColors = new HashSet<>();
+        for (Long precursorId : precursorIds)
+        {
+            // There's a small chance that the precursor has been deleted
+            if (textIds.containsKey(precursorId))
             {
                 // Choose the color, remembering it so that we can avoid ones that are too similar to each other.
 
                 // We need a separate color per precursor. Use the molecule's text ID, and rely on the similarity comparison
                 // to ensure additional precursors for a single molecule get unique colors.
-                Color color = ColorGenerator.getColor(molecule.getTextId(), seriesColors);
-                entry.getValue().setSeriesColor(color);
+                Color color = ColorGenerator.getColor(textIds.get(precursorId), seriesColors);
+                result.put(precursorId, color);
                 seriesColors.add(color);
             }
         }
+        return result;
+    }
 
-        qcPlotFragments.sort(Comparator.comparing(QCPlotFragment::getSeriesLabel));
-        return qcPlotFragments;
+    /**
+     * Looks up the text IDs for the precursors' peptides or small molecules in a single query, instead of fetching
+     * each precursor and its molecule separately.
+     * @return precursor ID to text ID, as in {@link GeneralMolecule#getTextId()}
+     */
+    private Map<Long, String> getMoleculeTextIds(Container c, Collection<Long> precursorIds)
+    {
+        Map<Long, String> result = new HashMap<>();
+        if (precursorIds.isEmpty())
+        {
+            return result;
+        }
+
+        SQLFragment sql = new SQLFragment("SELECT gp.Id AS PrecursorId, pep.Id AS PeptideId, pep.PeptideModifiedSequence, ");
+        sql.append("mol.CustomIonName, mol.IonFormula, mol.MassMonoisotopic, mol.MassAverage FROM ");
+        sql.append(TargetedMSManager.getTableInfoGeneralPrecursor(), "gp");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralMolecule(), "gm").append(" ON gp.GeneralMoleculeId = gm.Id");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoPeptideGroup(), "pg").append(" ON gm.PeptideGroupId = pg.Id");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoRuns(), "r").append(" ON pg.RunId = r.Id");
+        sql.append(" LEFT OUTER JOIN ").append(TargetedMSManager.getTableInfoPeptide(), "pep").append(" ON pep.Id = gm.Id");
+        sql.append(" LEFT OUTER JOIN ").append(TargetedMSManager.getTableInfoMolecule(), "mol").append(" ON mol.Id = gm.Id");
+        sql.append(" WHERE r.Deleted = ? AND r.Container = ? AND gp.Id ");
+        sql.add(false);
+        sql.add(c.getId());
+        TargetedMSManager.getSqlDialect().appendInClauseSql(sql, precursorIds);
+
+        new SqlSelector(TargetedMSManager.getSchema(), sql).forEach(rs -> {
+            String textId;
+            if (getLong(rs, "PeptideId") != null)
+            {
+                textId = rs.getString("PeptideModifiedSequence");
+            }
+            else
+            {
+                Molecule molecule = new Molecule();
+                molecule.setCustomIonName(rs.getString("CustomIonName"));
+                molecule.setIonFormula(rs.getString("IonFormula"));
+                molecule.setMassMonoisotopic(getDouble(rs, "MassMonoisotopic"));
+                molecule.setMassAverage(getDouble(rs, "MassAverage"));
+                textId = molecule.getTextId();
+            }
+            result.put(rs.getLong("PrecursorId"), textId);
+        });
+        return result;
     }
 
     public List<PeptideOutliers> getPeptideOutliers(List<RawMetricDataSet> rawMetricData, Map<GuideSetKey, GuideSetStats> stats)
@@ -607,26 +686,7 @@ public List<PeptideOutliers> getPeptideOutliers(List<RawMetricDataSet> rawMetric
             rawMetricDataSetMapByLabel.get(rawMetricDataSet.getSeriesLabel()).add(rawMetricDataSet);
         }
 
-        for (Map.Entry<String, List<RawMetricDataSet>> entry : rawMetricDataSetMapByLabel.entrySet())
-        {
-            int totalOutliers = 0;
-            PeptideOutliers peptideOutlier = new PeptideOutliers();
-            Map<String, Integer> outlierCountsPerMetric = new HashMap<>();
-            peptideOutlier.setPeptide(entry.getKey());
-            for (RawMetricDataSet rawMetricDataSet : entry.getValue())
-            {
-                outlierCountsPerMetric.putIfAbsent(rawMetricDataSet.getMetric().getName(), 0);
-                if (rawMetricDataSet.isValueOutlier(stats.get(rawMetricDataSet.getGuideSetKey())))
-                {
-                    totalOutliers++;
-                    outlierCountsPerMetric.put(rawMetricDataSet.getMetric().getName(), outlierCountsPerMetric.get(rawMetricDataSet.getMetric().getName()) + 1);
-                }
-            }
-            peptideOutlier.setPrecursorId(entry.getValue().get(0).getPrecursorChromInfoId());
-            peptideOutlier.setOutlierCountsPerMetric(outlierCountsPerMetric);
-            peptideOutlier.setTotalOutliers(totalOutliers);
-            peptideOutliers.add(peptideOutlier);
-        }
+        peptideOutliers.addAll(mapInParallel(rawMetricDataSetMapByLabel.entrySet(), entry -> getPeptideOutliers(entry, stats)));
 
         // first sort all the precursor metrics alphabetically and then non-precursor based metrics alphabetically
         peptideOutliers.sort(Comparator.comparingInt((PeptideOutliers o) -> {
@@ -638,6 +698,27 @@ public List<PeptideOutliers> getPeptideOutliers(List<RawMetricDataSet> rawMetric
         return peptideOutliers;
     }
 
+    private PeptideOutliers getPeptideOutliers(Map.Entry<String, List<RawMetricDataSet>> entry, Map<GuideSetKey, GuideSetStats> stats)
+    {
+        int totalOutliers = 0;
+        PeptideOutliers peptideOutlier = new PeptideOutliers();
+        Map<String, Integer> outlierCountsPerMetric = new HashMap<>();
+        peptideOutlier.setPeptide(entry.getKey());
+        for (RawMetricDataSet rawMetricDataSet : entry.getValue())
+        {
+            outlierCountsPerMetric.putIfAbsent(rawMetricDataSet.getMetric().getName(), 0);
+            if (rawMetricDataSet.isValueOutlier(stats.get(rawMetricDataSet.getGuideSetKey())))
+            {
+                totalOutliers++;
+                outlierCountsPerMetric.put(rawMetricDataSet.getMetric().getName(), outlierCountsPerMetric.get(rawMetricDataSet.getMetric().getName()) + 1);
+            }
+        }
+        peptideOutlier.setPrecursorId(entry.getValue().get(0).getPrecursorChromInfoId());
+        peptideOutlier.setOutlierCountsPerMetric(outlierCountsPerMetric);
+        peptideOutlier.setTotalOutliers(totalOutliers);
+        return peptideOutlier;
+    }
+
     public static class AnnotationGroup
     {
         private String name;
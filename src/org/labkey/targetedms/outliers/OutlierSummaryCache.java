@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2024 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.outliers;
+
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONObject;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.targetedms.model.QCMetricConfiguration;
+import org.labkey.api.targetedms.model.SampleFileInfo;
+import org.labkey.targetedms.TargetedMSManager;
+import org.labkey.targetedms.TargetedMSSchema;
+import org.labkey.targetedms.model.GuideSet;
+import org.labkey.targetedms.model.GuideSetKey;
+import org.labkey.targetedms.model.GuideSetStats;
+import org.labkey.targetedms.model.RawMetricDataSet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Holds on to the per-sample file outlier counts and guide set summaries for QC folders, which the QC summary, the
+ * outlier web parts and the notification emails all ask for and which otherwise mean recalculating every metric's
+ * stats over the folder's full history.
+ *
+ * Each folder has a data version that's bumped whenever something that feeds into the outliers changes: importing or
+ * deleting documents, editing exclusions, guide sets or excluded precursors, and changing metric configurations.
+ * A cached summary remembers the version that was current when its calculation started, and is only used while that's
+ * still the folder's version. Bumps happen through commit tasks, so a summary calculated from data that a transaction
+ * in progress is about to change won't outlive the commit.
+ */
+public class OutlierSummaryCache
+{
+    private static final Map<String, AtomicLong> DATA_VERSIONS = new ConcurrentHashMap<>();
+    private static final Cache<SummaryKey, Summary> SUMMARIES = CacheManager.getCache(1_000, TimeUnit.HOURS.toMillis(1), "QC outlier summaries");
+
+    private OutlierSummaryCache()
+    {
+    }
+
+    /** The outlier summary leaves out some metric series, so the two flavors are cached separately */
+    private record SummaryKey(String containerId, boolean forOutlierSummary) {}
+
+    /**
+     * @param sampleFiles all the folder's sample files, most recently acquired first
+     * @param guideSets the JSON for each of the folder's guide sets, including its per-metric stats
+     */
+    public record Summary(long dataVersion, List<SampleFileInfo> sampleFiles, List<JSONObject> guideSets)
+    {
+        /** @return a new, modifiable list of the most recently acquired sample files */
+        public List<SampleFileInfo> getSampleFiles(@Nullable Integer limit)
+        {
+            List<SampleFileInfo> result = sampleFiles;
+            if (limit != null && result.size() > limit.intValue())
+            {
+                result = result.subList(0, limit.intValue());
+            }
+            return new ArrayList<>(result);
+        }
+    }
+
+    /**
+     * @return the folder's outlier summary, calculating it if there's no cached copy for the current data version, or
+     * null if the folder has no enabled metrics
+     */
+    @Nullable
+    public static Summary getSummary(TargetedMSSchema schema, boolean forOutlierSummary)
+    {
+        Container container = schema.getContainer();
+        // Grab the version before reading any data so that a change made partway through the calculation makes the
+        // result stale, rather than letting it be cached under the newer version
+        long dataVersion = getDataVersion(container);
+
+        SummaryKey key = new SummaryKey(container.getId(), forOutlierSummary);
+        Summary cached = SUMMARIES.get(key);
+        if (cached != null && cached.dataVersion() == dataVersion)
+        {
+            return cached;
+        }
+
+        List<QCMetricConfiguration> enabledQCMetricConfigurations = TargetedMSManager.getEnabledQCMetricConfigurations(schema);
+        if (enabledQCMetricConfigurations.isEmpty())
+        {
+            return null;
+        }
+
+        List<GuideSet> guideSets = TargetedMSManager.getGuideSets(container, schema.getUser());
+        Map<Integer, QCMetricConfiguration> metricMap = enabledQCMetricConfigurations.stream().collect(Collectors.toMap(QCMetricConfiguration::getId, Function.identity()));
+
+        OutlierGenerator generator = OutlierGenerator.get();
+        List<RawMetricDataSet> rawMetricDataSets = generator.getRawMetricDataSets(schema, enabledQCMetricConfigurations, null, null, Collections.emptyList(), true, false, forOutlierSummary);
+        Map<GuideSetKey, GuideSetStats> stats = generator.getAllProcessedMetricGuideSets(rawMetricDataSets, guideSets.stream().collect(Collectors.toMap(GuideSet::getRowId, Function.identity())));
+
+        List<SampleFileInfo> sampleFiles = generator.getSampleFiles(rawMetricDataSets, stats, metricMap, schema, null);
+        List<JSONObject> guideSetJSON = guideSets.stream().map(x -> x.toJSON(rawMetricDataSets, metricMap, stats)).collect(Collectors.toList());
+
+        Summary summary = new Summary(dataVersion, Collections.unmodifiableList(sampleFiles), Collections.unmodifiableList(guideSetJSON));
+        SUMMARIES.put(key, summary);
+        return summary;
+    }
+
+    /** @return a stamp that changes whenever something that feeds into the folder's outliers changes */
+    public static long getDataVersion(Container container)
+    {
+        AtomicLong version = DATA_VERSIONS.get(container.getId());
+        return version == null ? 0 : version.get();
+    }
+
+    /** Call when something that feeds into the folder's outliers changes */
+    public static void invalidate(Container container)
+    {
+        TargetedMSManager.getSchema().getScope().addCommitTask(() -> {
+            DATA_VERSIONS.computeIfAbsent(container.getId(), id -> new AtomicLong()).incrementAndGet();
+            SUMMARIES.remove(new SummaryKey(container.getId(), true));
+            SUMMARIES.remove(new SummaryKey(container.getId(), false));
+        }, DbScope.CommitTaskOption.IMMEDIATE, DbScope.CommitTaskOption.POSTCOMMIT, DbScope.CommitTaskOption.POSTROLLBACK);
+    }
+
+    public static void containerDeleted(Container container)
+    {
+        DATA_VERSIONS.remove(container.getId());
+        SUMMARIES.remove(new SummaryKey(container.getId(), true));
+        SUMMARIES.remove(new SummaryKey(container.getId(), false));
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2024 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.outliers;
+
+import org.apache.commons.lang3.time.DateUtils;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlExecutor;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.query.QueryDefinition;
+import org.labkey.api.query.QueryService;
+import org.labkey.api.query.UserSchema;
+import org.labkey.api.targetedms.model.QCMetricConfiguration;
+import org.labkey.api.util.logging.LogHelper;
+import org.labkey.targetedms.TargetedMSManager;
+import org.labkey.targetedms.TargetedMSSchema;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maintains targetedms.QCMetricValue, a materialized copy of what each QC metric's query returns, so that the QC plots,
+ * outlier summaries and notifications don't need to run every metric's query over a folder's entire history.
+ *
+ * Values are inserted for the new sample files when a document is imported into a QC folder, for every metric including
+ * the disabled ones, and deleted along with their sample files. Exclusions, replicate annotations, and acquired times
+ * are applied when reading, since they can change after import. Each folder records which metrics it has materialized
+ * and a signature of their configuration and query SQL; a metric that's new, or whose configuration or query has
+ * changed, is (re)calculated for the whole folder the first time it's requested. Bump {@link #STORE_VERSION} when the
+ * way values are stored changes.
+ */
+public class QCMetricValueManager
+{
+    private static final Logger LOG = LogHelper.getLogger(QCMetricValueManager.class, "Materialized QC metric values");
+
+    private static final int STORE_VERSION = 1;
+
+    /** Serialize (re)calculation within a folder so that two requests don't both populate the same metric */
+    private static final Map<String, Object> CONTAINER_LOCKS = new ConcurrentHashMap<>();
+
+    private QCMetricValueManager()
+    {
+    }
+
+    /** Identifies one of a metric's series (index 1 or 2) */
+    public record MetricSeries(int metricId, int seriesIndex) {}
+
+    /**
+     * Stores the values for a newly imported run's sample files. Called from within the import's transaction.
+     * Disabled metrics are included, since their stored values are still considered current if they're re-enabled.
+     */
+    public static void insertValuesForRun(TargetedMSSchema schema, long runId)
+    {
+        for (QCMetricConfiguration configuration : TargetedMSManager.getAllQCMetricConfigurations(schema))
+        {
+            insertValues(schema, configuration, runId);
+        }
+    }
+
+    /**
+     * Makes sure that the folder's stored values are complete and current for all the requested metrics, calculating
+     * them for the whole folder if needed.
+     */
+    public static void ensureStored(TargetedMSSchema schema, Collection<QCMetricConfiguration> configurations)
+    {
+        Container container = schema.getContainer();
+        if (getStale(schema, configurations).isEmpty())
+        {
+            return;
+        }
+
+        synchronized (CONTAINER_LOCKS.computeIfAbsent(container.getId(), id -> new Object()))
+        {
+            // Check again, as another thread may have done the work while we were waiting
+            List<QCMetricConfiguration> stale = getStale(schema, configurations);
+            if (stale.isEmpty())
+            {
+                return;
+            }
+
+            long start = System.currentTimeMillis();
+            try (DbScope.Transaction transaction = TargetedMSManager.getSchema().getScope().ensureTransaction())
+            {
+                for (QCMetricConfiguration configuration : stale)
+                {
+                    deleteValues(container, configuration.getId());
+                    insertValues(schema, configuration, null);
+
+                    SQLFragment stateSql = new SQLFragment("INSERT INTO ").append(TargetedMSManager.getTableInfoQCMetricValueState());
+                    stateSql.append(" (Container, MetricId, Signature) VALUES (?, ?, ?)");
+                    stateSql.add(container).add(configuration.getId()).add(getSignature(schema, configuration));
+                    new SqlExecutor(TargetedMSManager.getSchema()).execute(stateSql);
+                }
+                transaction.commit();
+            }
+            LOG.debug("Stored values for " + stale.size() + " QC metric(s) in " + container.getPath() + " in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    private static List<QCMetricConfiguration> getStale(TargetedMSSchema schema, Collection<QCMetricConfiguration> configurations)
+    {
+        Container container = schema.getContainer();
+        Map<Integer, String> signatures = new HashMap<>();
+        new SqlSelector(TargetedMSManager.getSchema(), new SQLFragment("SELECT MetricId, Signature FROM ")
+                .append(TargetedMSManager.getTableInfoQCMetricValueState())
+                .append(" WHERE Container = ?").add(container))
+                .forEach(rs -> signatures.put(rs.getInt("MetricId"), rs.getString("Signature")));
+
+        List<QCMetricConfiguration> result = new ArrayList<>();
+        for (QCMetricConfiguration configuration : configurations)
+        {
+            if (!getSignature(schema, configuration).equals(signatures.get(configuration.getId())))
+            {
+                result.add(configuration);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Summarizes everything that affects the metric's values: its configuration, and the SQL of its queries, which
+     * can be edited without changing the configuration
+     */
+    private static String getSignature(TargetedMSSchema schema, QCMetricConfiguration configuration)
+    {
+        String description = STORE_VERSION + "|" +
+                configuration.getSeries1SchemaName() + "." + configuration.getSeries1QueryName() + "|" +
+                configuration.getSeries2SchemaName() + "." + configuration.getSeries2QueryName() + "|" +
+                configuration.getTraceName() + "|" + configuration.getTraceValue() + "|" + configuration.getTimeValue() + "|" +
+                getQuerySql(schema, configuration.getSeries1SchemaName(), configuration.getSeries1QueryName()) + "|" +
+                getQuerySql(schema, configuration.getSeries2SchemaName(), configuration.getSeries2QueryName());
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(description.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("Couldn't find hash algorithm", e);
+        }
+    }
+
+    @Nullable
+    private static String getQuerySql(TargetedMSSchema schema, @Nullable String schemaName, @Nullable String queryName)
+    {
+        if (schemaName == null || queryName == null)
+        {
+            return null;
+        }
+        UserSchema userSchema = schemaName.equalsIgnoreCase(schema.getName()) ? schema :
+                QueryService.get().getUserSchema(schema.getUser(), schema.getContainer(), schemaName);
+        QueryDefinition queryDef = userSchema == null ? null : userSchema.getQueryDef(queryName);
+        return queryDef == null ? null : queryDef.getSql();
+    }
+
+    /** @param runId if non-null, only calculate values for the run's sample files */
+    private static void insertValues(TargetedMSSchema schema, QCMetricConfiguration configuration, @Nullable Long runId)
+    {
+        List<Integer> seriesIndices = configuration.getSeries2SchemaName() != null && configuration.getSeries2QueryName() != null ? List.of(1, 2) : List.of(1);
+        for (int seriesIndex : seriesIndices)
+        {
+            StringBuilder labkeySQL = new StringBuilder("SELECT X.* FROM ");
+            labkeySQL.append(OutlierGenerator.get().getEachSeriesTypePlotDataSql(seriesIndex, configuration)).append(" X");
+            if (runId != null)
+            {
+                labkeySQL.append("\nWHERE X.SampleFileId IN (SELECT sf.Id FROM SampleFile sf WHERE sf.RunId = ").append(runId).append(")");
+            }
+
+            // Use strictColumnList = false to avoid a potentially expensive injected join for the Container via lookups
+            TableInfo ti = QueryService.get().createTable(schema, labkeySQL.toString(), null, true);
+
+            SQLFragment sql = new SQLFragment("INSERT INTO ").append(TargetedMSManager.getTableInfoQCMetricValue());
+            sql.append(" (Container, SampleFileId, PrecursorChromInfoId, MetricId, MetricSeriesIndex, SeriesLabel, MetricValue)");
+            sql.append(" SELECT ?, lk.SampleFileId, lk.PrecursorChromInfoId, lk.MetricId, lk.MetricSeriesIndex, lk.SeriesLabel, lk.MetricValue FROM ");
+            sql.add(schema.getContainer());
+            sql.append(ti, "lk");
+            new SqlExecutor(TargetedMSManager.getSchema()).execute(sql);
+        }
+    }
+
+    private static void deleteValues(Container container, int metricId)
+    {
+        new SqlExecutor(TargetedMSManager.getSchema()).execute(new SQLFragment("DELETE FROM ")
+                .append(TargetedMSManager.getTableInfoQCMetricValue())
+                .append(" WHERE Container = ? AND MetricId = ?").add(container).add(metricId));
+        new SqlExecutor(TargetedMSManager.getSchema()).execute(new SQLFragment("DELETE FROM ")
+                .append(TargetedMSManager.getTableInfoQCMetricValueState())
+                .append(" WHERE Container = ? AND MetricId = ?").add(container).add(metricId));
+    }
+
+    /** Drop the stored values for a metric configuration that has been changed or deleted, in every folder */
+    public static void clearMetric(int metricId)
+    {
+        new SqlExecutor(TargetedMSManager.getSchema()).execute(new SQLFragment("DELETE FROM ")
+                .append(TargetedMSManager.getTableInfoQCMetricValue())
+                .append(" WHERE MetricId = ?").add(metricId));
+        new SqlExecutor(TargetedMSManager.getSchema()).execute(new SQLFragment("DELETE FROM ")
+                .append(TargetedMSManager.getTableInfoQCMetricValueState())
+                .append(" WHERE MetricId = ?").add(metricId));
+    }
+
+    public static void deleteForContainer(Container container)
+    {
+        new SqlExecutor(TargetedMSManager.getSchema()).execute("DELETE FROM " + TargetedMSManager.getTableInfoQCMetricValue() + " WHERE Container = ?", container);
+        new SqlExecutor(TargetedMSManager.getSchema()).execute("DELETE FROM " + TargetedMSManager.getTableInfoQCMetricValueState() + " WHERE Container = ?", container);
+    }
+
+    /**
+     * Drops the stored values of a run that's being moved to another folder, and marks both folders' values as stale
+     * so they're recalculated with the folders' own metric configurations the next time they're needed
+     */
+    public static void deleteForMovedRun(long runId, Container source, Container target)
+    {
+        SQLFragment sql = new SQLFragment("DELETE FROM ").append(TargetedMSManager.getTableInfoQCMetricValue());
+        sql.append(" WHERE SampleFileId IN (SELECT sf.Id FROM ").append(TargetedMSManager.getTableInfoSampleFile(), "sf");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoReplicate(), "rep").append(" ON rep.Id = sf.ReplicateId");
+        sql.append(" WHERE rep.RunId = ?)").add(runId);
+        new SqlExecutor(TargetedMSManager.getSchema()).execute(sql);
+        new SqlExecutor(TargetedMSManager.getSchema()).execute(new SQLFragment("DELETE FROM ")
+                .append(TargetedMSManager.getTableInfoQCMetricValueState())
+                .append(" WHERE Container IN (?, ?)").add(source).add(target));
+    }
+
+    /**
+     * @return SQL for the stored values of the requested metric series, with the same columns the per-metric queries
+     * produce plus the PrecursorId
+     * @param traceMetricIds trace metrics are sample-scoped, so the replicate annotation filters don't apply to them
+     */
+    public static SQLFragment getValuesSql(Container container, Set<MetricSeries> series, Set<Integer> traceMetricIds,
+                                           @Nullable Date startDate, @Nullable Date endDate,
+                                           List<OutlierGenerator.AnnotationGroup> annotationGroups, boolean showExcluded)
+    {
+        SQLFragment sql = new SQLFragment("SELECT v.SampleFileId, v.PrecursorChromInfoId, v.SeriesLabel, v.MetricValue, v.MetricSeriesIndex, v.MetricId, pci.PrecursorId FROM ");
+        sql.append(TargetedMSManager.getTableInfoQCMetricValue(), "v");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoSampleFile(), "sf").append(" ON v.SampleFileId = sf.Id");
+        sql.append(" LEFT OUTER JOIN ").append(TargetedMSManager.getTableInfoPrecursorChromInfo(), "pci").append(" ON v.PrecursorChromInfoId = pci.Id");
+        sql.append(" WHERE v.Container = ?").add(container);
+
+        sql.append(" AND (");
+        String separator = "";
+        for (MetricSeries s : series)
+        {
+            sql.append(separator).append("(v.MetricId = ? AND v.MetricSeriesIndex = ?)").add(s.metricId()).add(s.seriesIndex());
+            separator = " OR ";
+        }
+        if (series.isEmpty())
+        {
+            sql.append("1 = 0");
+        }
+        sql.append(")");
+
+        if (startDate != null || endDate != null)
+        {
+            if (startDate != null)
+            {
+                sql.append(" AND sf.AcquiredTime >= ?").add(new Timestamp(startDate.getTime()));
+            }
+            if (endDate != null)
+            {
+                // Include everything acquired on the end date
+                sql.append(" AND sf.AcquiredTime < ?").add(new Timestamp(DateUtils.addDays(endDate, 1).getTime()));
+            }
+        }
+        else
+        {
+            sql.append(" AND sf.AcquiredTime IS NOT NULL");
+        }
+
+        if (!showExcluded)
+        {
+            sql.append(" AND sf.ReplicateId NOT IN (SELECT x.ReplicateId FROM ").append(TargetedMSManager.getTableInfoQCMetricExclusion(), "x");
+            sql.append(" WHERE x.MetricId IS NULL)");
+        }
+
+        if (!annotationGroups.isEmpty())
+        {
+            sql.append(" AND (");
+            if (!traceMetricIds.isEmpty())
+            {
+                sql.append("v.MetricId IN (");
+                String sep = "";
+                for (Integer traceMetricId : traceMetricIds)
+                {
+                    sql.append(sep).append("?").add(traceMetricId);
+                    sep = ", ";
+                }
+                sql.append(") OR ");
+            }
+            sql.append("(");
+            String and = "";
+            for (OutlierGenerator.AnnotationGroup annotation : annotationGroups)
+            {
+                sql.append(and).append("sf.ReplicateId IN (SELECT ra.ReplicateId FROM ").append(TargetedMSManager.getTableInfoReplicateAnnotation(), "ra");
+                sql.append(" WHERE ra.Name = ?").add(annotation.getName());
+                if (annotation.getValues() != null && !annotation.getValues().isEmpty())
+                {
+                    sql.append(" AND ");
+                    TargetedMSManager.getSqlDialect().appendInClauseSql(sql.append("ra.Value"), annotation.getValues());
+                }
+                sql.append(")");
+                and = " AND ";
+            }
+            sql.append("))");
+        }
+        return sql;
+    }
+}
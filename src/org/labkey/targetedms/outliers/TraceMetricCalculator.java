@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2024 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.outliers;
+
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.targetedms.model.QCMetricConfiguration;
+import org.labkey.targetedms.TargetedMSManager;
+import org.labkey.targetedms.TargetedMSRun;
+import org.labkey.targetedms.model.QCTraceMetricValues;
+import org.labkey.targetedms.parser.AbstractChromInfo;
+import org.labkey.targetedms.parser.Chromatogram;
+import org.labkey.targetedms.parser.SampleFileChromInfo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+/**
+ * Calculates the values of trace metrics, which pick a single point out of a sample file-level trace like pressure:
+ * either the trace's value once it reaches a given time, or the time at which it reaches a given value.
+ *
+ * Each of a run's traces is loaded and decoded once, no matter how many metrics use it. Time thresholds are found
+ * with a binary search since trace times are in increasing order, so only value thresholds need to scan the points.
+ */
+public class TraceMetricCalculator
+{
+    private TraceMetricCalculator()
+    {
+    }
+
+    public static List<QCTraceMetricValues> calculate(List<QCMetricConfiguration> qcMetricConfigurations, TargetedMSRun run)
+    {
+        Map<String, List<QCMetricConfiguration>> configurationsByTrace = qcMetricConfigurations.stream()
+                .filter(configuration -> configuration.getTraceName() != null)
+                .collect(Collectors.groupingBy(QCMetricConfiguration::getTraceName, LinkedHashMap::new, Collectors.toList()));
+        if (configurationsByTrace.isEmpty())
+        {
+            return Collections.emptyList();
+        }
+
+        List<SampleFileChromInfo> sampleFileChromInfos = getSampleFileChromInfos(configurationsByTrace.keySet(), run.getRunId());
+        AbstractChromInfo.prefetchChromatograms(run, sampleFileChromInfos);
+
+        List<QCTraceMetricValues> result = new ArrayList<>();
+        for (SampleFileChromInfo sampleFileChromInfo : sampleFileChromInfos)
+        {
+            List<QCMetricConfiguration> configurations = configurationsByTrace.get(sampleFileChromInfo.getTextId());
+            Chromatogram chromatogram = configurations == null ? null : sampleFileChromInfo.createChromatogram(run);
+            if (null == chromatogram)
+            {
+                continue;
+            }
+
+            float[] times = chromatogram.getTimes();
+            float[] values = chromatogram.getIntensities(0);
+            if (times.length != values.length)
+            {
+                throw new IllegalStateException("Incorrect values in skyd file for time and intensities for trace - " + sampleFileChromInfo.getTextId());
+            }
+            boolean timesSorted = isSorted(times);
+
+            for (QCMetricConfiguration configuration : configurations)
+            {
+                Float value = getMetricValue(times, values, timesSorted, configuration.getTimeValue(), configuration.getTraceValue());
+                if (value != null)
+                {
+                    QCTraceMetricValues qcTraceMetricValues = new QCTraceMetricValues();
+                    qcTraceMetricValues.setMetric(configuration.getId());
+                    qcTraceMetricValues.setSampleFileId(sampleFileChromInfo.getSampleFileId());
+                    qcTraceMetricValues.setValue(value);
+                    result.add(qcTraceMetricValues);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static List<SampleFileChromInfo> getSampleFileChromInfos(Collection<String> traceNames, long runId)
+    {
+        SQLFragment sql = new SQLFragment(" SELECT sfi.Id, sfi.SampleFileId, sfi.StartTime, sfi.EndTime, sfi.NumPoints," +
+                " sfi.UncompressedSize, sfi.ChromatogramFormat, sfi.ChromatogramOffset, sfi.ChromatogramLength, sfi.TextId" +
+                " FROM " + TargetedMSManager.getTableInfoSampleFileChromInfo() + " sfi" +
+                " INNER JOIN " + TargetedMSManager.getTableInfoSampleFile() + " sf ON sf.Id = sfi.SampleFileId" +
+                " INNER JOIN " + TargetedMSManager.getTableInfoReplicate() + " r ON r.Id = sf.ReplicateId" +
+                " INNER JOIN " + TargetedMSManager.getTableInfoRuns() + " rn ON rn.Id = r.RunId" +
+                " WHERE rn.Id = ? AND TextId ").add(runId);
+        TargetedMSManager.getSqlDialect().appendInClauseSql(sql, traceNames);
+        return new SqlSelector(TargetedMSManager.getSchema(), sql).getArrayList(SampleFileChromInfo.class);
+    }
+
+    /**
+     * Walks the trace until it reaches either threshold, whichever comes first
+     * @return the trace's value at the first point at or after timeValue, or the time of the first point whose value is
+     * at least traceValue, or null if neither is reached
+     */
+    @Nullable
+    static Float getMetricValue(float[] times, float[] values, boolean timesSorted, @Nullable Double timeValue, @Nullable Double traceValue)
+    {
+        int timeIndex = times.length;
+        if (timeValue != null)
+        {
+            timeIndex = timesSorted ? firstAtOrAfter(times, timeValue.doubleValue()) : firstAtOrAfterUnsorted(times, timeValue.doubleValue());
+        }
+        if (traceValue != null)
+        {
+            double threshold = traceValue.doubleValue();
+            for (int i = 0; i < timeIndex; i++)
+            {
+                if (values[i] >= threshold)
+                {
+                    return times[i];
+                }
+            }
+        }
+        return timeIndex < times.length ? values[timeIndex] : null;
+    }
+
+    /** @return the index of the first time at or after the threshold, or the array's length if there isn't one */
+    private static int firstAtOrAfter(float[] times, double threshold)
+    {
+        int low = 0;
+        int high = times.length;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (times[mid] >= threshold)
+            {
+                high = mid;
+            }
+            else
+            {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    private static int firstAtOrAfterUnsorted(float[] times, double threshold)
+    {
+        for (int i = 0; i < times.length; i++)
+        {
+            if (times[i] >= threshold)
+            {
+                return i;
+            }
+        }
+        return times.length;
+    }
+
+    private static boolean isSorted(float[] times)
+    {
+        for (int i = 1; i < times.length; i++)
+        {
+            // Written so that NaNs count as out of order
+            if (!(times[i - 1] <= times[i]))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static class TestCase extends Assert
+    {
+        /** The original point-by-point scan */
+        private static Float scan(float[] times, float[] values, Double timeValue, Double traceValue)
+        {
+            for (int i = 0; i < times.length; i++)
+            {
+                if (timeValue != null && times[i] >= timeValue)
+                {
+                    return values[i];
+                }
+                else if (traceValue != null && values[i] >= traceValue)
+                {
+                    return times[i];
+                }
+            }
+            return null;
+        }
+
+        @Test
+        public void testMatchesScan()
+        {
+            Random random = new Random(12345);
+            Double[] thresholds = new Double[] { null, -1.0, 0.0, 2.5, 10.0, 49.9, 50.0, 1000.0 };
+            for (int trial = 0; trial < 200; trial++)
+            {
+                int length = random.nextInt(50);
+                float[] times = new float[length];
+                float[] values = new float[length];
+                float time = random.nextFloat();
+                for (int i = 0; i < length; i++)
+                {
+                    // Include some repeated times
+                    time += random.nextInt(4) == 0 ? 0 : random.nextFloat();
+                    times[i] = time;
+                    values[i] = random.nextFloat() * 60;
+                }
+                for (Double timeValue : thresholds)
+                {
+                    for (Double traceValue : thresholds)
+                    {
+                        assertEquals(scan(times, values, timeValue, traceValue), getMetricValue(times, values, isSorted(times), timeValue, traceValue));
+                    }
+                }
+            }
+        }
+
+        @Test
+        public void testUnsortedTimes()
+        {
+            float[] times = new float[] { 1, 5, 3, 7 };
+            float[] values = new float[] { 10, 20, 30, 40 };
+            assertFalse(isSorted(times));
+            assertEquals(scan(times, values, 4.0, null), getMetricValue(times, values, false, 4.0, null));
+            assertEquals(scan(times, values, 6.0, 25.0), getMetricValue(times, values, false, 6.0, 25.0));
+        }
+    }
+}
@@ -18,23 +18,21 @@
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
-import org.labkey.api.cache.BlockingCache;
-import org.labkey.api.cache.CacheManager;
 import org.labkey.api.data.Container;
 import org.labkey.api.exp.api.ExpData;
 import org.labkey.api.exp.api.ExperimentService;
-import org.labkey.api.util.Tuple3;
 import org.labkey.api.util.UnexpectedException;
 import org.labkey.targetedms.PanoramaBadDataException;
 import org.labkey.targetedms.TargetedMSRun;
 
 import java.io.IOException;
-import java.nio.channels.SeekableByteChannel;
-import java.nio.file.Files;
-import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.zip.DataFormatException;
 
 /**
@@ -56,64 +54,10 @@ public abstract class AbstractChromInfo extends ChromInfo<PrecursorChromInfoAnno
 
     private static final Logger LOG = LogManager.getLogger(AbstractChromInfo.class);
 
-    private static final BlockingCache<Tuple3<Path, Long, Integer>, CachedBytes> ON_DEMAND_CHROM_CACHE = new BlockingCache<>(CacheManager.getCache(100, CacheManager.HOUR, "SKYD chromatogram cache"), (key, argument) -> {
-        Path path = key.first;
-        long offset = key.second;
-        int length = key.third;
-
-        long startTime = System.currentTimeMillis();
-        LOG.debug("Loading chromatogram from " + path + ", offset " + offset + ", length " + length);
-        try (SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.READ, StandardOpenOption.SPARSE))
-        {
-            channel.position(offset);
-            java.nio.ByteBuffer byteBuffer = java.nio.ByteBuffer.allocate(length);
-            channel.read(byteBuffer);
-            byteBuffer.position(0);
-            byte[] results = byteBuffer.array();
-            LOG.debug("Finished loading from " + path + ", offset " + offset + ", length " + length + " in " + (System.currentTimeMillis() - startTime) + "ms");
-            return new CachedBytes(results);
-        }
-        catch (NoSuchFileException e)
-        {
-            // Avoid a separate call to Files.exists() as it adds ~1 second overhead
-            LOG.debug("Could not find SKYD file to get chromatogram at path " + path);
-            return null;
-        }
-        catch (RuntimeException e)
-        {
-            if (e.getMessage() != null && e.getMessage().contains("The specified key does not exist"))
-            {
-                // Avoid a separate call to Files.exists() as it adds ~1 second overhead
-                LOG.debug("Could not find SKYD file to get chromatogram at path " + path + ": " + e.getMessage());
-                return null;
-            }
-            throw e;
-        }
-        catch (IOException e)
-        {
-            LOG.warn("Unable to fetch chromatogram from " + path, e);
-            return null;
-        }
-    });
-
     public AbstractChromInfo()
     {
     }
 
-    /**
-     * Simple wrapper so we don't get warnings from CacheManager about caching a mutable array.
-     * We trust callers not to mess with the bytes since they won't be, say, sorting or filtering them
-     */
-    public static class CachedBytes
-    {
-        public final byte[] _bytes;
-
-        public CachedBytes(byte[] bytes)
-        {
-            _bytes = bytes;
-        }
-    }
-
     public AbstractChromInfo(Container c)
     {
         _container = c;
@@ -192,23 +136,36 @@ public Chromatogram createChromatogram(TargetedMSRun run)
     {
         try
         {
-            if (_chromatogramFormat < 0 || _chromatogramFormat >= ChromatogramBinaryFormat.values().length)
+            ChromatogramBinaryFormat binaryFormat = getBinaryFormat();
+            byte[] databaseBytes = getChromatogram();
+            SkydKeyAndStatus skyd = getSkydKey(run, binaryFormat);
+            Chromatogram.SourceStatus status = skyd.status();
+
+            if (skyd.key() != null)
             {
-                throw new IllegalArgumentException("Unknown format number " + _chromatogramFormat);
+                LOG.debug("Attempting to fetch chromatogram (possibly cached) from " + skyd.key().path() + " for " + this);
+                ChromatogramCache.Entry diskEntry = ChromatogramCache.get().get(skyd.key(), getUncompressedSize());
+                if (diskEntry == null)
+                {
+                    status = Chromatogram.SourceStatus.skydMissing;
+                }
+                else if (databaseBytes != null && !diskEntry.matches(databaseBytes))
+                {
+                    LOG.error("Chromatogram bytes for " + this + " do not match between .skyd and DB. Using database copy. Lengths: " + diskEntry.compressedLength() + " vs " + databaseBytes.length);
+                    status = Chromatogram.SourceStatus.mismatch;
+                }
+                else
+                {
+                    return new Chromatogram(diskEntry.timeIntensities(), databaseBytes == null ? Chromatogram.SourceStatus.diskOnly : Chromatogram.SourceStatus.match);
+                }
             }
 
-            ChromatogramBinaryFormat binaryFormat = ChromatogramBinaryFormat.values()[getChromatogramFormat()];
-
-            CompressedBytesAndStatus compressedBytesAndStatus = getCompressedBytesAndStatus(run);
-            byte[] compressedBytes = compressedBytesAndStatus.getCompressedBytes();
-            Chromatogram.SourceStatus status = compressedBytesAndStatus.getStatus();
-
-            if (compressedBytes == null)
+            if (databaseBytes == null)
             {
                 return null;
             }
 
-            byte[] uncompressedBytes = SkylineBinaryParser.uncompressStoredBytes(compressedBytes, getUncompressedSize(), _numPoints, getNumTransitions());
+            byte[] uncompressedBytes = SkylineBinaryParser.uncompressStoredBytes(databaseBytes, getUncompressedSize(), _numPoints, getNumTransitions());
             return binaryFormat.readChromatogram(uncompressedBytes, _numPoints, getNumTransitions(), status);
         }
         catch (DataFormatException e)
@@ -222,12 +179,49 @@ public Chromatogram createChromatogram(TargetedMSRun run)
         }
     }
 
-    private CompressedBytesAndStatus getCompressedBytesAndStatus(TargetedMSRun run)
+    /**
+     * Loads the chromatograms for all of the chrom infos from the run's .skyd file in as few reads as possible, so
+     * that the {@link #createChromatogram(TargetedMSRun)} calls that follow are served from the cache.
+     */
+    public static void prefetchChromatograms(TargetedMSRun run, Collection<? extends AbstractChromInfo> chromInfos)
     {
-        byte[] databaseBytes = getChromatogram();
-        byte[] compressedBytes = databaseBytes;
-        Chromatogram.SourceStatus status;
+        if (run.getSkydDataId() == null)
+        {
+            return;
+        }
+        ExpData skydData = ExperimentService.get().getExpData(run.getSkydDataId());
+        Path skydPath = skydData == null ? null : skydData.getFilePath();
+        if (skydPath == null)
+        {
+            return;
+        }
+
+        Map<ChromatogramCache.Key, Integer> keys = new HashMap<>();
+        for (AbstractChromInfo chromInfo : chromInfos)
+        {
+            if (chromInfo._chromatogramLength != null && chromInfo._chromatogramOffset != null)
+            {
+                keys.put(chromInfo.createCacheKey(skydPath, chromInfo.getBinaryFormat()), chromInfo.getUncompressedSize());
+            }
+        }
+        if (keys.size() > 1)
+        {
+            ChromatogramCache.get().prefetch(keys);
+        }
+    }
 
+    private ChromatogramBinaryFormat getBinaryFormat()
+    {
+        if (_chromatogramFormat < 0 || _chromatogramFormat >= ChromatogramBinaryFormat.values().length)
+        {
+            throw new IllegalArgumentException("Unknown format number " + _chromatogramFormat);
+        }
+        return ChromatogramBinaryFormat.values()[_chromatogramFormat];
+    }
+
+    /** @return the cache key for reading this chromatogram from its .skyd file, or the reason it can't be read from there */
+    private SkydKeyAndStatus getSkydKey(TargetedMSRun run, ChromatogramBinaryFormat binaryFormat)
+    {
         if (run.getSkydDataId() != null && _chromatogramLength != null && _chromatogramOffset != null)
         {
             ExpData skydData = ExperimentService.get().getExpData(run.getSkydDataId());
@@ -236,69 +230,101 @@ private CompressedBytesAndStatus getCompressedBytesAndStatus(TargetedMSRun run)
                 Path skydPath = skydData.getFilePath();
                 if (skydPath == null)
                 {
-                    status = Chromatogram.SourceStatus.skydMissing;
                     LOG.debug("No path available for " + this + ", bucket may be unavailable for URL " + skydData.getDataFileUrl());
+                    return new SkydKeyAndStatus(null, Chromatogram.SourceStatus.skydMissing);
                 }
-                else
+                return new SkydKeyAndStatus(createCacheKey(skydPath, binaryFormat), null);
+            }
+            return new SkydKeyAndStatus(null, Chromatogram.SourceStatus.noSkydResolved);
+        }
+
+        LOG.debug("No length, offset, and/or SKYD DataId for " + this);
+        return new SkydKeyAndStatus(null, Chromatogram.SourceStatus.dbOnly);
+    }
+
+    private ChromatogramCache.Key createCacheKey(Path skydPath, ChromatogramBinaryFormat binaryFormat)
+    {
+        return new ChromatogramCache.Key(skydPath, _chromatogramOffset, _chromatogramLength, binaryFormat, _numPoints, getNumTransitions());
+    }
+
+    /** Either a key for reading from the .skyd file, or the status explaining why there isn't one */
+    private record SkydKeyAndStatus(@Nullable ChromatogramCache.Key key, @Nullable Chromatogram.SourceStatus status) {}
+
+    /** @return the compressed bytes, preferring the .skyd file but falling back to the DB copy */
+    @Nullable
+    public byte[] getChromatogramBytes(TargetedMSRun run)
+    {
+        byte[] databaseBytes = getChromatogram();
+        SkydKeyAndStatus skyd = getSkydKey(run, getBinaryFormat());
+        if (skyd.key() != null)
+        {
+            try
+            {
+                byte[] diskBytes = ChromatogramCache.get().readCompressedBytes(skyd.key());
+                if (diskBytes != null)
                 {
-                    LOG.debug("Attempting to fetch chromatogram bytes (possibly cached) from " + skydPath + " for " + this);
-                    CachedBytes diskBytes = ON_DEMAND_CHROM_CACHE.get(new Tuple3<>(skydPath, _chromatogramOffset, _chromatogramLength));
-                    if (diskBytes == null)
-                    {
-                        status = Chromatogram.SourceStatus.skydMissing;
-                    }
-                    else if (databaseBytes != null && !Arrays.equals(databaseBytes, diskBytes._bytes))
+                    if (databaseBytes == null || Arrays.equals(databaseBytes, diskBytes))
                     {
-                        LOG.error("Chromatogram bytes for " + this + " do not match between .skyd and DB. Using database copy. Lengths: " + diskBytes._bytes.length + " vs " + databaseBytes.length);
-                        status = Chromatogram.SourceStatus.mismatch;
-                    }
-                    else
-                    {
-                        compressedBytes = diskBytes._bytes;
-                        status = databaseBytes == null ? Chromatogram.SourceStatus.diskOnly : Chromatogram.SourceStatus.match;
+                        return diskBytes;
                     }
+                    LOG.error("Chromatogram bytes for " + this + " do not match between .skyd and DB. Using database copy. Lengths: " + diskBytes.length + " vs " + databaseBytes.length);
                 }
             }
-            else
+            catch (IOException e)
             {
-                status = Chromatogram.SourceStatus.noSkydResolved;
+                LOG.warn("Unable to fetch chromatogram from " + skyd.key().path(), e);
             }
         }
-        else
-        {
-            LOG.debug("No length, offset, and/or SKYD DataId for " + this);
-            status = Chromatogram.SourceStatus.dbOnly;
-        }
-
-        return new CompressedBytesAndStatus(compressedBytes, status);
+        return databaseBytes;
     }
 
-    private static class CompressedBytesAndStatus
+    /**
+     * Batch version of {@link #getChromatogramBytes(TargetedMSRun)}, which reads the chromatograms from the run's .skyd
+     * file in as few reads as possible
+     * @return the compressed bytes of each of the chrom infos that has them
+     */
+    public static <T extends AbstractChromInfo> Map<T, byte[]> getChromatogramBytes(TargetedMSRun run, Collection<T> chromInfos)
     {
-        private final byte[] _compressedBytes;
-        private final Chromatogram.SourceStatus _status;
-
-        private CompressedBytesAndStatus(byte[] compressedBytes, Chromatogram.SourceStatus status)
+        Path skydPath = null;
+        if (run.getSkydDataId() != null)
         {
-            _compressedBytes = compressedBytes;
-            _status = status;
+            ExpData skydData = ExperimentService.get().getExpData(run.getSkydDataId());
+            skydPath = skydData == null ? null : skydData.getFilePath();
         }
 
-        public byte[] getCompressedBytes()
+        Map<T, ChromatogramCache.Key> keys = new IdentityHashMap<>();
+        if (skydPath != null)
         {
-            return _compressedBytes;
+            for (T chromInfo : chromInfos)
+            {
+                if (chromInfo._chromatogramLength != null && chromInfo._chromatogramOffset != null)
+                {
+                    keys.put(chromInfo, chromInfo.createCacheKey(skydPath, chromInfo.getBinaryFormat()));
+                }
+            }
         }
+        Map<ChromatogramCache.Key, byte[]> diskBytes = keys.isEmpty() ? Collections.emptyMap() : ChromatogramCache.get().readCompressedBytes(keys.values());
 
-        public Chromatogram.SourceStatus getStatus()
+        Map<T, byte[]> result = new IdentityHashMap<>();
+        for (T chromInfo : chromInfos)
         {
-            return _status;
+            byte[] databaseBytes = chromInfo.getChromatogram();
+            ChromatogramCache.Key key = keys.get(chromInfo);
+            byte[] bytes = key == null ? null : diskBytes.get(key);
+            if (bytes != null && databaseBytes != null && !Arrays.equals(databaseBytes, bytes))
+            {
+                LOG.error("Chromatogram bytes for " + chromInfo + " do not match between .skyd and DB. Using database copy. Lengths: " + bytes.length + " vs " + databaseBytes.length);
+                bytes = null;
+            }
+            if (bytes == null)
+            {
+                bytes = databaseBytes;
+            }
+            if (bytes != null)
+            {
+                result.put(chromInfo, bytes);
+            }
         }
-    }
-
-    @Nullable
-    public byte[] getChromatogramBytes(TargetedMSRun run)
-    {
-        CompressedBytesAndStatus compressedBytesAndStatus = getCompressedBytesAndStatus(run);
-        return compressedBytesAndStatus.getCompressedBytes();
+        return result;
     }
 }
@@ -14,7 +14,6 @@
  */
 package org.labkey.targetedms.parser;
 
-import com.google.common.primitives.Floats;
 import org.apache.poi.util.LittleEndianByteArrayInputStream;
 import org.apache.poi.util.LittleEndianInput;
 import org.labkey.targetedms.parser.skyd.proto.ChromatogramGroupDataOuterClass;
@@ -68,19 +67,7 @@ public Chromatogram readChromatogram(byte[] uncompressedBytes, int numPoints, in
         @Override
         public Chromatogram readChromatogram(byte[] uncompressedBytes, int numPoints, int numTrans, Chromatogram.SourceStatus status) throws IOException
         {
-            ChromatogramGroupDataOuterClass.ChromatogramGroupData chromatogramGroupData
-                    = ChromatogramGroupDataOuterClass.ChromatogramGroupData.parseFrom(uncompressedBytes);
-
-            List<float[]> timeLists = chromatogramGroupData.getTimeListsList().stream()
-                    .map(timeList->Floats.toArray(timeList.getTimesList()))
-                    .collect(Collectors.toList());
-
-            List<TimeIntensities> transitionTimeIntensities = new ArrayList<>();
-            for (ChromatogramGroupDataOuterClass.ChromatogramGroupData.Chromatogram chromatogram
-                    : chromatogramGroupData.getChromatogramsList()) {
-                transitionTimeIntensities.add(new TimeIntensities(timeLists.get(chromatogram.getTimeListIndex() - 1),
-                        Floats.toArray(chromatogram.getIntensitiesList())));
-            }
+            List<TimeIntensities> transitionTimeIntensities = ChromatogramGroupDataReader.read(uncompressedBytes);
             return new Chromatogram(transitionTimeIntensities, status);
         }
     };
@@ -0,0 +1,602 @@
+/*
+ * Copyright (c) 2024 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.parser;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cache.BlockingCache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.api.module.ModuleLoader;
+import org.labkey.api.util.ContextListener;
+import org.labkey.api.util.FileUtil;
+import org.labkey.api.util.ShutdownListener;
+import org.labkey.api.util.UnexpectedException;
+import org.labkey.targetedms.TargetedMSModule;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+
+/**
+ * Caches chromatograms read on demand from .skyd files, already decompressed and decoded into TimeIntensities.
+ * The in-memory tier is a standard blocking cache, so concurrent requests for the same chromatogram wait for a single
+ * read and decode. It's bounded by the total size of the cached float arrays rather than an entry count, since a
+ * single chromatogram can range from a few hundred bytes to several megabytes. For .skyd files that aren't on the
+ * local filesystem (for example, in S3), the loader can also keep the compressed bytes in a local disk tier so that
+ * a memory eviction doesn't mean another remote read. Both budgets are site-level module properties.
+ */
+public class ChromatogramCache
+{
+    private static final Logger LOG = LogManager.getLogger(ChromatogramCache.class);
+
+    public static final int DEFAULT_MEMORY_MB = 256;
+    public static final int DEFAULT_DISK_MB = 0;
+
+    /** Only a backstop, since the memory budget evicts by size well before this many entries */
+    private static final int MAX_MEMORY_ENTRIES = 100_000;
+
+    private static final long BYTES_PER_MB = 1024 * 1024;
+
+    /** Ranges separated by less than this are read together, since the extra bytes are cheaper than another request */
+    private static final long MAX_COALESCE_GAP_BYTES = 256 * 1024;
+    private static final long MAX_COALESCED_READ_BYTES = 16 * 1024 * 1024;
+
+    private static final ChromatogramCache INSTANCE = new ChromatogramCache();
+
+    private final BlockingCache<Key, Entry> _memory = CacheManager.getBlockingCache(MAX_MEMORY_ENTRIES, CacheManager.HOUR, "SKYD chromatogram cache",
+            (key, argument) -> load(key, (LoadArgument) argument));
+    /**
+     * Sizes of the entries in the memory tier, least recently used first, for evicting them by size. Entries the
+     * cache drops on its own, such as when they expire, are only forgotten here once they reach the front.
+     * Guarded by itself.
+     */
+    private final LinkedHashMap<Key, Long> _memorySizes = new LinkedHashMap<>(16, 0.75f, true);
+    private long _memoryBytes;
+
+    /** Least recently used first. Guarded by this. */
+    private final LinkedHashMap<Key, File> _disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long _diskBytes;
+    private File _diskDir;
+    private final AtomicLong _diskFileCounter = new AtomicLong();
+
+    private final AtomicLong _loads = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+    private final AtomicLong _diskHits = new AtomicLong();
+    private final AtomicLong _diskEvictions = new AtomicLong();
+
+    public static ChromatogramCache get()
+    {
+        return INSTANCE;
+    }
+
+    /** Identifies a chromatogram blob in a .skyd file, along with what's needed to decode it */
+    public record Key(Path path, long offset, int length, ChromatogramBinaryFormat format, int numPoints, int numTransitions) {}
+
+    /** Decoded chromatogram plus a checksum of the compressed bytes, to compare against a copy stored in the DB */
+    public record Entry(List<TimeIntensities> timeIntensities, long checksum, int compressedLength, long sizeBytes)
+    {
+        public boolean matches(byte[] compressedBytes)
+        {
+            return compressedBytes.length == compressedLength && checksum(compressedBytes) == checksum;
+        }
+    }
+
+    /** What the loader needs beyond the key: the uncompressed size if known, and the compressed bytes if already read */
+    private record LoadArgument(@Nullable Integer uncompressedSize, @Nullable byte[] compressed) {}
+
+    /** Thrown out of the loader so that a bad blob isn't cached and the caller sees the original problem */
+    private static class DecodeException extends RuntimeException
+    {
+        private DecodeException(DataFormatException cause)
+        {
+            super(cause);
+        }
+    }
+
+    /**
+     * @return the cached chromatogram, reading, decompressing, and decoding it on a miss. Null if the .skyd file
+     * isn't available.
+     */
+    @Nullable
+    public Entry get(Key key, @Nullable Integer uncompressedSize) throws DataFormatException
+    {
+        return get(key, new LoadArgument(uncompressedSize, null));
+    }
+
+    @Nullable
+    private Entry get(Key key, LoadArgument argument) throws DataFormatException
+    {
+        Entry entry;
+        try
+        {
+            entry = _memory.get(key, argument);
+        }
+        catch (DecodeException e)
+        {
+            throw (DataFormatException) e.getCause();
+        }
+        if (entry != null)
+        {
+            trackMemory(key, entry);
+        }
+        return entry;
+    }
+
+    /** Records the use of a cached entry, and evicts the least recently used ones if we're over the memory budget */
+    private void trackMemory(Key key, Entry entry)
+    {
+        long budget = getMemoryBudget();
+        List<Key> evicted = new ArrayList<>();
+        synchronized (_memorySizes)
+        {
+            if (_memorySizes.get(key) == null)
+            {
+                _memorySizes.put(key, entry.sizeBytes());
+                _memoryBytes += entry.sizeBytes();
+            }
+            Iterator<Map.Entry<Key, Long>> iter = _memorySizes.entrySet().iterator();
+            while (_memoryBytes > budget && iter.hasNext())
+            {
+                Map.Entry<Key, Long> eldest = iter.next();
+                _memoryBytes -= eldest.getValue();
+                iter.remove();
+                evicted.add(eldest.getKey());
+            }
+        }
+        evicted.forEach(_memory::remove);
+        _evictions.addAndGet(evicted.size());
+    }
+
+    @Nullable
+    private Entry load(Key key, LoadArgument argument)
+    {
+        _loads.incrementAndGet();
+        byte[] compressed = argument.compressed();
+        if (compressed == null)
+        {
+            try
+            {
+                compressed = readCompressedBytes(key);
+            }
+            catch (IOException e)
+            {
+                LOG.warn("Unable to fetch chromatogram from " + key.path(), e);
+                return null;
+            }
+            if (compressed == null)
+            {
+                return null;
+            }
+        }
+
+        try
+        {
+            byte[] uncompressed = SkylineBinaryParser.uncompressStoredBytes(compressed, argument.uncompressedSize(), key.numPoints(), key.numTransitions());
+            List<TimeIntensities> timeIntensities = key.format().readChromatogram(uncompressed, key.numPoints(), key.numTransitions(), Chromatogram.SourceStatus.diskOnly).getTransitionTimeIntensities();
+            return new Entry(Collections.unmodifiableList(timeIntensities), checksum(compressed), compressed.length, sizeOf(timeIntensities));
+        }
+        catch (DataFormatException e)
+        {
+            throw new DecodeException(e);
+        }
+        catch (IOException e)
+        {
+            throw UnexpectedException.wrap(e);
+        }
+    }
+
+    /**
+     * Loads all of the chromatograms that aren't already in memory, for pages that are about to render many of them
+     * (typically one per replicate). Rather than opening the .skyd file once per chromatogram, which is slow for
+     * remote storage like S3, the ranges for each file are sorted and nearby ones are merged into a few larger
+     * reads over a single channel. This is best-effort - anything that fails here is retried, and its error
+     * reported, when it's requested individually.
+     * @param keys the chromatograms to load, mapped to their uncompressed sizes (if known)
+     */
+    public void prefetch(Map<Key, Integer> keys)
+    {
+        Set<Key> cached = new HashSet<>(_memory.getKeys());
+        Map<Key, Integer> needed = new HashMap<>();
+        keys.forEach((key, uncompressedSize) -> {
+            if (!cached.contains(key))
+            {
+                needed.put(key, uncompressedSize);
+            }
+        });
+        if (needed.isEmpty())
+        {
+            return;
+        }
+
+        Map<Key, byte[]> compressed = readCompressedBytes(needed.keySet());
+        for (Map.Entry<Key, byte[]> entry : compressed.entrySet())
+        {
+            try
+            {
+                // Hands the bytes we've already read to the loader, unless another request has loaded it meanwhile
+                get(entry.getKey(), new LoadArgument(needed.get(entry.getKey()), entry.getValue()));
+            }
+            catch (DataFormatException | UnexpectedException e)
+            {
+                LOG.debug("Unable to decode prefetched chromatogram " + entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Batch version of {@link #readCompressedBytes(Key)}. Keys whose bytes couldn't be read are omitted from
+     * the result.
+     */
+    public Map<Key, byte[]> readCompressedBytes(Collection<Key> keys)
+    {
+        Map<Key, byte[]> result = new HashMap<>();
+        Map<Path, List<Key>> toRead = new HashMap<>();
+        for (Key key : keys)
+        {
+            byte[] cached = readFromDisk(key);
+            if (cached != null)
+            {
+                result.put(key, cached);
+            }
+            else
+            {
+                toRead.computeIfAbsent(key.path(), p -> new ArrayList<>()).add(key);
+            }
+        }
+
+        for (Map.Entry<Path, List<Key>> entry : toRead.entrySet())
+        {
+            Path path = entry.getKey();
+            long startTime = System.currentTimeMillis();
+            try (SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.READ, StandardOpenOption.SPARSE))
+            {
+                List<Key> sorted = new ArrayList<>(entry.getValue());
+                sorted.sort(Comparator.comparingLong(Key::offset));
+                int reads = 0;
+                int start = 0;
+                while (start < sorted.size())
+                {
+                    // Extend the read to cover following ranges as long as the gaps between them are small
+                    long spanStart = sorted.get(start).offset();
+                    long spanEnd = spanStart + sorted.get(start).length();
+                    int end = start + 1;
+                    while (end < sorted.size())
+                    {
+                        Key next = sorted.get(end);
+                        long nextEnd = Math.max(spanEnd, next.offset() + next.length());
+                        if (next.offset() - spanEnd > MAX_COALESCE_GAP_BYTES || nextEnd - spanStart > MAX_COALESCED_READ_BYTES)
+                        {
+                            break;
+                        }
+                        spanEnd = nextEnd;
+                        end++;
+                    }
+
+                    byte[] span = readRange(channel, spanStart, (int) (spanEnd - spanStart));
+                    reads++;
+                    for (Key key : sorted.subList(start, end))
+                    {
+                        int from = (int) (key.offset() - spanStart);
+                        byte[] bytes = Arrays.copyOfRange(span, from, from + key.length());
+                        result.put(key, bytes);
+                        if (isRemote(path))
+                        {
+                            writeToDisk(key, bytes);
+                        }
+                    }
+                    start = end;
+                }
+                LOG.debug("Loaded " + sorted.size() + " chromatograms from " + path + " with " + reads + " reads in " + (System.currentTimeMillis() - startTime) + "ms");
+            }
+            catch (NoSuchFileException e)
+            {
+                LOG.debug("Could not find SKYD file to get chromatograms at path " + path);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                LOG.debug("Unable to prefetch chromatograms from " + path, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the compressed bytes for the chromatogram, from the disk tier if present, otherwise from the .skyd
+     * file itself. Null if the .skyd file isn't available.
+     */
+    @Nullable
+    public byte[] readCompressedBytes(Key key) throws IOException
+    {
+        byte[] result = readFromDisk(key);
+        if (result != null)
+        {
+            return result;
+        }
+
+        result = readFromSkyd(key);
+        if (result != null && isRemote(key.path()))
+        {
+            writeToDisk(key, result);
+        }
+        return result;
+    }
+
+    @Nullable
+    private byte[] readFromDisk(Key key)
+    {
+        File cached;
+        synchronized (this)
+        {
+            cached = _disk.get(key);
+        }
+        if (cached == null)
+        {
+            return null;
+        }
+        try
+        {
+            byte[] result = Files.readAllBytes(cached.toPath());
+            _diskHits.incrementAndGet();
+            return result;
+        }
+        catch (IOException e)
+        {
+            LOG.debug("Unable to read cached chromatogram from " + cached + ", falling back to " + key.path(), e);
+            synchronized (this)
+            {
+                if (_disk.remove(key) != null)
+                {
+                    _diskBytes -= key.length();
+                }
+            }
+            return null;
+        }
+    }
+
+    private static byte[] readRange(SeekableByteChannel channel, long offset, int length) throws IOException
+    {
+        channel.position(offset);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(length);
+        while (byteBuffer.hasRemaining() && channel.read(byteBuffer) >= 0)
+        {
+            // Keep reading until we've got all the bytes or hit the end of the file
+        }
+        return byteBuffer.array();
+    }
+
+    @Nullable
+    private static byte[] readFromSkyd(Key key) throws IOException
+    {
+        Path path = key.path();
+        long startTime = System.currentTimeMillis();
+        LOG.debug("Loading chromatogram from " + path + ", offset " + key.offset() + ", length " + key.length());
+        try (SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.READ, StandardOpenOption.SPARSE))
+        {
+            byte[] result = readRange(channel, key.offset(), key.length());
+            LOG.debug("Finished loading from " + path + ", offset " + key.offset() + ", length " + key.length() + " in " + (System.currentTimeMillis() - startTime) + "ms");
+            return result;
+        }
+        catch (NoSuchFileException e)
+        {
+            // Avoid a separate call to Files.exists() as it adds ~1 second overhead
+            LOG.debug("Could not find SKYD file to get chromatogram at path " + path);
+            return null;
+        }
+        catch (RuntimeException e)
+        {
+            if (e.getMessage() != null && e.getMessage().contains("The specified key does not exist"))
+            {
+                // Avoid a separate call to Files.exists() as it adds ~1 second overhead
+                LOG.debug("Could not find SKYD file to get chromatogram at path " + path + ": " + e.getMessage());
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /** Files on the default filesystem are already local, so there's no point in copying them to the disk tier */
+    private static boolean isRemote(Path path)
+    {
+        return path.getFileSystem() != FileSystems.getDefault();
+    }
+
+    private void writeToDisk(Key key, byte[] bytes)
+    {
+        long budget = getDiskBudget();
+        if (bytes.length > budget)
+        {
+            return;
+        }
+        try
+        {
+            File file = new File(getDiskDir(), _diskFileCounter.incrementAndGet() + ".chrom");
+            Files.write(file.toPath(), bytes);
+            synchronized (this)
+            {
+                File previous = _disk.put(key, file);
+                if (previous != null)
+                {
+                    _diskBytes -= key.length();
+                    FileUtils.deleteQuietly(previous);
+                }
+                _diskBytes += bytes.length;
+                evictDisk(budget);
+            }
+        }
+        catch (IOException e)
+        {
+            LOG.debug("Unable to write chromatogram to local disk cache", e);
+        }
+    }
+
+    private synchronized File getDiskDir() throws IOException
+    {
+        if (_diskDir == null)
+        {
+            // A directory of our own, since only this server run knows which files it holds
+            File dir = Files.createTempDirectory(FileUtil.getTempDirectory().toPath(), "targetedmsChromatogramCache").toFile();
+            ContextListener.addShutdownListener(new ShutdownListener()
+            {
+                @Override
+                public String getName()
+                {
+                    return "Chromatogram disk cache";
+                }
+
+                @Override
+                public void shutdownPre()
+                {
+                }
+
+                @Override
+                public void shutdownStarted()
+                {
+                    FileUtils.deleteQuietly(dir);
+                }
+            });
+            _diskDir = dir;
+        }
+        return _diskDir;
+    }
+
+    private void evictDisk(long budget)
+    {
+        Iterator<Map.Entry<Key, File>> iter = _disk.entrySet().iterator();
+        while (_diskBytes > budget && iter.hasNext())
+        {
+            Map.Entry<Key, File> eldest = iter.next();
+            _diskBytes -= eldest.getKey().length();
+            FileUtils.deleteQuietly(eldest.getValue());
+            iter.remove();
+            _diskEvictions.incrementAndGet();
+        }
+    }
+
+    /** Drop everything from both tiers */
+    public void clear()
+    {
+        _memory.clear();
+        synchronized (_memorySizes)
+        {
+            _memorySizes.clear();
+            _memoryBytes = 0;
+        }
+        synchronized (this)
+        {
+            _disk.values().forEach(FileUtils::deleteQuietly);
+            _disk.clear();
+            _diskBytes = 0;
+        }
+    }
+
+    /**
+     * Counters and current sizes, for usage metrics and troubleshooting. Hits for the memory tier are tracked by
+     * CacheManager.
+     */
+    @NotNull
+    public synchronized Map<String, Object> getStats()
+    {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("loads", _loads.get());
+        result.put("evictions", _evictions.get());
+        result.put("entries", _memory.getKeys().size());
+        synchronized (_memorySizes)
+        {
+            result.put("memoryBytes", _memoryBytes);
+        }
+        result.put("diskHits", _diskHits.get());
+        result.put("diskEvictions", _diskEvictions.get());
+        result.put("diskEntries", _disk.size());
+        result.put("diskBytes", _diskBytes);
+        return result;
+    }
+
+    private static long getMemoryBudget()
+    {
+        TargetedMSModule module = ModuleLoader.getInstance().getModule(TargetedMSModule.class);
+        return readMegabytes(module.CHROMATOGRAM_CACHE_SIZE_PROPERTY.getEffectiveValue(ContainerManager.getRoot()), DEFAULT_MEMORY_MB);
+    }
+
+    private static long getDiskBudget()
+    {
+        TargetedMSModule module = ModuleLoader.getInstance().getModule(TargetedMSModule.class);
+        return readMegabytes(module.CHROMATOGRAM_DISK_CACHE_SIZE_PROPERTY.getEffectiveValue(ContainerManager.getRoot()), DEFAULT_DISK_MB);
+    }
+
+    private static long readMegabytes(String value, int defaultValue)
+    {
+        try
+        {
+            return Math.max(0, Long.parseLong(value.trim())) * BYTES_PER_MB;
+        }
+        catch (NumberFormatException | NullPointerException e)
+        {
+            return defaultValue * BYTES_PER_MB;
+        }
+    }
+
+    private static long checksum(byte[] bytes)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    /** Transitions often share a single times array, so only count each array once */
+    private static long sizeOf(List<TimeIntensities> timeIntensities)
+    {
+        Set<float[]> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        long result = 0;
+        for (TimeIntensities ti : timeIntensities)
+        {
+            if (seen.add(ti.getTimes()))
+            {
+                result += (long) ti.getTimes().length * Float.BYTES;
+            }
+            if (seen.add(ti.getIntensities()))
+            {
+                result += (long) ti.getIntensities().length * Float.BYTES;
+            }
+        }
+        return result;
+    }
+}
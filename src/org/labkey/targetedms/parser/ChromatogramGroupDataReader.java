@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2024 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.parser;
+
+import com.google.common.primitives.Floats;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.targetedms.parser.skyd.proto.ChromatogramGroupDataOuterClass;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the times and intensities out of a serialized ChromatogramGroupData protocol buffer directly into float
+ * arrays. The generated parser holds repeated floats as boxed lists, which meant boxing and then copying every point
+ * of every chromatogram. Everything other than the time lists and the chromatograms' time list indices and
+ * intensities is skipped.
+ * @see ChromatogramGroupDataOuterClass.ChromatogramGroupData
+ */
+public class ChromatogramGroupDataReader
+{
+    // Field numbers from ChromatogramGroupData.proto
+    private static final int GROUP_TIME_LISTS = 1;
+    private static final int GROUP_CHROMATOGRAMS = 3;
+    private static final int TIME_LIST_TIMES = 1;
+    private static final int CHROMATOGRAM_TIME_LIST_INDEX = 1;
+    private static final int CHROMATOGRAM_INTENSITIES = 2;
+
+    private ChromatogramGroupDataReader()
+    {
+    }
+
+    public static List<TimeIntensities> read(byte[] bytes) throws IOException
+    {
+        CodedInputStream input = CodedInputStream.newInstance(bytes);
+        List<float[]> timeLists = new ArrayList<>();
+        List<Integer> timeListIndices = new ArrayList<>();
+        List<float[]> intensities = new ArrayList<>();
+
+        int tag;
+        while ((tag = input.readTag()) != 0)
+        {
+            int field = WireFormat.getTagFieldNumber(tag);
+            if (field == GROUP_TIME_LISTS && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED)
+            {
+                int oldLimit = input.pushLimit(input.readRawVarint32());
+                timeLists.add(readTimeList(input));
+                input.popLimit(oldLimit);
+            }
+            else if (field == GROUP_CHROMATOGRAMS && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED)
+            {
+                int oldLimit = input.pushLimit(input.readRawVarint32());
+                FloatList chromatogramIntensities = new FloatList();
+                int timeListIndex = 0;
+                int chromTag;
+                while ((chromTag = input.readTag()) != 0)
+                {
+                    int chromField = WireFormat.getTagFieldNumber(chromTag);
+                    if (chromField == CHROMATOGRAM_TIME_LIST_INDEX && WireFormat.getTagWireType(chromTag) == WireFormat.WIRETYPE_VARINT)
+                    {
+                        timeListIndex = input.readInt32();
+                    }
+                    else if (chromField == CHROMATOGRAM_INTENSITIES)
+                    {
+                        readFloats(input, chromTag, chromatogramIntensities);
+                    }
+                    else if (!input.skipField(chromTag))
+                    {
+                        break;
+                    }
+                }
+                input.popLimit(oldLimit);
+                timeListIndices.add(timeListIndex);
+                intensities.add(chromatogramIntensities.toArray());
+            }
+            else if (!input.skipField(tag))
+            {
+                break;
+            }
+        }
+
+        List<TimeIntensities> result = new ArrayList<>(intensities.size());
+        for (int i = 0; i < intensities.size(); i++)
+        {
+            // One-based index into the time lists
+            result.add(new TimeIntensities(timeLists.get(timeListIndices.get(i) - 1), intensities.get(i)));
+        }
+        return result;
+    }
+
+    private static float[] readTimeList(CodedInputStream input) throws IOException
+    {
+        FloatList times = new FloatList();
+        int tag;
+        while ((tag = input.readTag()) != 0)
+        {
+            if (WireFormat.getTagFieldNumber(tag) == TIME_LIST_TIMES)
+            {
+                readFloats(input, tag, times);
+            }
+            else if (!input.skipField(tag))
+            {
+                break;
+            }
+        }
+        return times.toArray();
+    }
+
+    /** Repeated floats are normally packed, but parsers are required to accept the unpacked encoding too */
+    private static void readFloats(CodedInputStream input, int tag, FloatList target) throws IOException
+    {
+        switch (WireFormat.getTagWireType(tag))
+        {
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED ->
+            {
+                int length = input.readRawVarint32();
+                if (length % Float.BYTES != 0)
+                {
+                    throw new InvalidProtocolBufferException("Packed float field length " + length + " is not a multiple of " + Float.BYTES);
+                }
+                int count = length / Float.BYTES;
+                target.ensureCapacity(count);
+                for (int i = 0; i < count; i++)
+                {
+                    target.add(input.readFloat());
+                }
+            }
+            case WireFormat.WIRETYPE_FIXED32 -> target.add(input.readFloat());
+            default -> input.skipField(tag);
+        }
+    }
+
+    /** Minimal growable float array, to avoid boxing */
+    private static class FloatList
+    {
+        private float[] _values = new float[0];
+        private int _size;
+
+        void ensureCapacity(int additional)
+        {
+            if (_size + additional > _values.length)
+            {
+                _values = Arrays.copyOf(_values, Math.max(_size + additional, _values.length * 2));
+            }
+        }
+
+        void add(float value)
+        {
+            ensureCapacity(1);
+            _values[_size++] = value;
+        }
+
+        float[] toArray()
+        {
+            return _size == _values.length ? _values : Arrays.copyOf(_values, _size);
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testMatchesGeneratedParser() throws IOException
+        {
+            ChromatogramGroupDataOuterClass.ChromatogramGroupData.Builder builder = ChromatogramGroupDataOuterClass.ChromatogramGroupData.newBuilder();
+            builder.addTimeLists(ChromatogramGroupDataOuterClass.ChromatogramGroupData.TimeList.newBuilder().addTimes(1.5f).addTimes(2.5f).addTimes(3.5f));
+            builder.addTimeLists(ChromatogramGroupDataOuterClass.ChromatogramGroupData.TimeList.newBuilder().addTimes(10f).addTimes(11f));
+            builder.addScanIdLists(ChromatogramGroupDataOuterClass.ChromatogramGroupData.ScanIdList.newBuilder().addScanIds(7));
+            builder.addChromatograms(ChromatogramGroupDataOuterClass.ChromatogramGroupData.Chromatogram.newBuilder()
+                    .setTimeListIndex(2).addIntensities(100f).addIntensities(200f).addMassErrors100X(-3).setScanIdListIndex(1));
+            builder.addChromatograms(ChromatogramGroupDataOuterClass.ChromatogramGroupData.Chromatogram.newBuilder()
+                    .setTimeListIndex(1).addIntensities(5f).addIntensities(0f).addIntensities(-1f));
+            builder.setInterpolatedNumPoints(12);
+            builder.setInferZeroes(true);
+            ChromatogramGroupDataOuterClass.ChromatogramGroupData message = builder.build();
+
+            List<TimeIntensities> read = read(message.toByteArray());
+            assertEquals(message.getChromatogramsCount(), read.size());
+            for (int i = 0; i < read.size(); i++)
+            {
+                ChromatogramGroupDataOuterClass.ChromatogramGroupData.Chromatogram chromatogram = message.getChromatograms(i);
+                assertArrayEquals(Floats.toArray(message.getTimeLists(chromatogram.getTimeListIndex() - 1).getTimesList()), read.get(i).getTimes(), 0f);
+                assertArrayEquals(Floats.toArray(chromatogram.getIntensitiesList()), read.get(i).getIntensities(), 0f);
+            }
+        }
+    }
+}
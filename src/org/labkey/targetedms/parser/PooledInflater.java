@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2024 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.parser;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib decompression for chromatograms and library spectra, where the uncompressed size is known up front.
+ * Each thread keeps one Inflater that is reset between uses, rather than allocating (and relying on finalization to
+ * release the native memory of) a new one per blob. Output goes straight into an array of the expected size.
+ * The input is always treated as compressed. Formats that store small blobs uncompressed, like .skyd and .blib,
+ * check for that before calling in.
+ * The per-thread Inflaters are never ended. The threads that use them are long-lived request and pipeline threads,
+ * so there's one small native zlib stream per thread at most, and the Inflater's cleaner frees it if the thread goes
+ * away. Ending it after each use would defeat the point of keeping it.
+ */
+public class PooledInflater
+{
+    /** Don't hang on to scratch arrays bigger than this between calls */
+    private static final int MAX_RETAINED_SCRATCH_BYTES = 1024 * 1024;
+
+    private static final ThreadLocal<PooledInflater> POOL = ThreadLocal.withInitial(PooledInflater::new);
+
+    private final Inflater _inflater = new Inflater();
+    private byte[] _scratch = new byte[0];
+
+    private PooledInflater()
+    {
+    }
+
+    /** @return a new array holding the uncompressed bytes */
+    public static byte[] inflate(byte[] compressed, int uncompressedSize) throws DataFormatException
+    {
+        byte[] result = new byte[uncompressedSize];
+        int length = POOL.get().inflateInto(compressed, result);
+        return length == result.length ? result : Arrays.copyOf(result, length);
+    }
+
+    /**
+     * Uncompresses into a per-thread scratch array that is reused by the next call on the same thread, for callers
+     * that immediately decode the bytes into some other form. Only the first uncompressedSize bytes of the returned
+     * array are meaningful.
+     */
+    public static byte[] inflateToScratch(byte[] compressed, int uncompressedSize) throws DataFormatException
+    {
+        PooledInflater pooled = POOL.get();
+        byte[] scratch = pooled._scratch.length >= uncompressedSize ? pooled._scratch : new byte[uncompressedSize];
+        if (scratch.length <= MAX_RETAINED_SCRATCH_BYTES)
+        {
+            pooled._scratch = scratch;
+        }
+        int length = pooled.inflateInto(compressed, scratch, uncompressedSize);
+        if (length != uncompressedSize)
+        {
+            throw new DataFormatException("Expected " + uncompressedSize + " uncompressed bytes but got " + length);
+        }
+        return scratch;
+    }
+
+    private int inflateInto(byte[] compressed, byte[] target) throws DataFormatException
+    {
+        return inflateInto(compressed, target, target.length);
+    }
+
+    /** @return the number of bytes written into target */
+    private int inflateInto(byte[] compressed, byte[] target, int maxLength) throws DataFormatException
+    {
+        try
+        {
+            _inflater.setInput(compressed);
+            int total = 0;
+            while (total < maxLength && !_inflater.finished())
+            {
+                int count = _inflater.inflate(target, total, maxLength - total);
+                if (count == 0 && (_inflater.needsInput() || _inflater.needsDictionary()))
+                {
+                    break;
+                }
+                total += count;
+            }
+            return total;
+        }
+        finally
+        {
+            _inflater.reset();
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testRoundTrip() throws DataFormatException
+        {
+            byte[] original = new byte[100_000];
+            for (int i = 0; i < original.length; i++)
+            {
+                original[i] = (byte) (i % 37);
+            }
+            byte[] compressed = compress(original);
+
+            assertArrayEquals(original, inflate(compressed, original.length));
+            // Reuse of the same thread's Inflater must give the same answer
+            assertArrayEquals(original, inflate(compressed, original.length));
+            assertArrayEquals(original, Arrays.copyOf(inflateToScratch(compressed, original.length), original.length));
+            // Estimated sizes that are too big, as for old rows without a stored uncompressed size, get trimmed
+            assertArrayEquals(original, inflate(compressed, original.length + 16));
+        }
+
+        @Test
+        public void testCompressedToSameSize() throws DataFormatException
+        {
+            // An expected size that happens to equal the compressed length doesn't mean the bytes are stored as-is
+            byte[] original = new byte[] {1, 2, 3};
+            byte[] compressed = compress(original);
+            assertArrayEquals(original, inflate(compressed, compressed.length));
+        }
+
+        private static byte[] compress(byte[] bytes)
+        {
+            Deflater deflater = new Deflater();
+            try
+            {
+                deflater.setInput(bytes);
+                deflater.finish();
+                byte[] buffer = new byte[bytes.length + 64];
+                int length = deflater.deflate(buffer);
+                return Arrays.copyOf(buffer, length);
+            }
+            finally
+            {
+                deflater.end();
+            }
+        }
+    }
+}
@@ -18,7 +18,6 @@
 import com.google.protobuf.CodedInputStream;
 import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.Logger;
-import org.jetbrains.annotations.NotNull;
 import org.labkey.api.exp.api.DataType;
 import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.targetedms.parser.proto.ChromatogramGroupDataOuterClass;
@@ -27,16 +26,14 @@
 import org.labkey.targetedms.parser.skyd.CacheHeaderStruct;
 import org.labkey.targetedms.parser.skyd.CachedFileHeaderStruct;
 import org.labkey.targetedms.parser.skyd.ChromGroupHeaderInfo;
-import org.labkey.targetedms.parser.skyd.ChromPeak;
-import org.labkey.targetedms.parser.skyd.ChromTransition;
 import org.labkey.targetedms.parser.skyd.StructSerializer;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
@@ -44,7 +41,6 @@
 import java.util.List;
 import java.util.Objects;
 import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 
 /**
  * Parses the .skyd binary file format, for chromatogram data.
@@ -64,7 +60,9 @@
     private CacheHeaderStruct _cacheHeaderStruct;
 
     private ChromGroupHeaderInfo[] _chromatograms;
-    private float[] _allPeaksRt;
+    // Product m/z of every ChromTransition in the file, indexed by transition index. The transitions for a header are
+    // examined for every candidate precursor while matching, so we read the section once instead of per header
+    private double[] _transitionProducts;
     private byte[] _seqBytes;
     private List<ChromatogramGroupId> _chromatogramGroupIds;
 
@@ -122,7 +120,7 @@ public void parse() throws IOException
 
         parseChromatogramGroupIds();
         parseFiles();
-        parsePeaks();
+        parseTransitionProducts();
         _log.debug("Starting to load chromatogram headers");
         parseChromatograms();
         _log.debug("Done loading chromatogram headers");
@@ -202,19 +200,6 @@ private String readStringOfByteLength(InputStream inputStream, int length) throw
         return new String(buffer, _cacheFormat.getCharset());
     }
 
-    private void parsePeaks() throws IOException
-    {
-        _channel.position(_cacheHeaderStruct.getLocationPeaks());
-        ChromPeak[] chromPeaks = _cacheFormat.chromPeakSerializer()
-                .readArray(Channels.newInputStream(_channel), _cacheHeaderStruct.getNumPeaks());
-        _allPeaksRt = new float[chromPeaks.length];
-
-        for (int i = 0; i < chromPeaks.length; i++)
-        {
-            _allPeaksRt[i] = chromPeaks[i].getRetentionTime();
-        }
-    }
-
     private void parseChromatogramGroupIds() throws IOException
     {
         if (_cacheFormat.getFormatVersion().compareTo(CacheFormatVersion.Eighteen) < 0)
@@ -229,13 +214,35 @@ private void parseChromatogramGroupIds() throws IOException
         _chromatogramGroupIds = ChromatogramGroupId.fromProtos(protos);
     }
 
-    @NotNull
-    private ChromTransition[] parseTransitions(int transitionIndex, int transitionCount) throws IOException
+    private void parseTransitionProducts() throws IOException
+    {
+        int count = _cacheHeaderStruct.getNumTransitions();
+        int itemSize = _cacheFormat.chromTransitionSerializer().getItemSizeOnDisk();
+        // Very old formats store the product m/z as a float, newer ones as a double. Either way it's the first field
+        boolean floatProduct = _cacheFormat.getFormatVersion().compareTo(CacheFormatVersion.Four) <= 0;
+
+        _transitionProducts = new double[count];
+        _channel.position(_cacheHeaderStruct.getLocationTransitions());
+        int itemsPerRead = Math.max(1, Math.min(count, 65536 / itemSize));
+        ByteBuffer buffer = ByteBuffer.allocate(itemSize * itemsPerRead).order(ByteOrder.LITTLE_ENDIAN);
+        int index = 0;
+        while (index < count)
+        {
+            int items = Math.min(itemsPerRead, count - index);
+            buffer.clear().limit(items * itemSize);
+            IOUtils.readFully(_channel, buffer);
+            for (int i = 0; i < items; i++)
+            {
+                int offset = i * itemSize;
+                _transitionProducts[index++] = floatProduct ? buffer.getFloat(offset) : buffer.getDouble(offset);
+            }
+        }
+    }
+
+    /** @return the unsigned product m/z of the transition at the given index within the header's transitions */
+    public double getTransitionProductMz(ChromGroupHeaderInfo header, int transitionIndex)
     {
-        var chromTransitionSerializer = _cacheFormat.chromTransitionSerializer();
-        long position = _cacheHeaderStruct.getLocationTransitions() + ((long) chromTransitionSerializer.getItemSizeOnDisk() * transitionIndex);
-        _channel.position(position);
-        return chromTransitionSerializer.readArray(Channels.newInputStream(_channel), transitionCount);
+        return Math.abs(_transitionProducts[header.getStartTransitionIndex() + transitionIndex]);
     }
 
     private void parseChromatograms() throws IOException
@@ -247,10 +254,8 @@ private void parseChromatograms() throws IOException
             IOUtils.readFully(Channels.newInputStream(_channel), _seqBytes);
         }
 
-        _channel.position(_cacheHeaderStruct.getLocationHeaders());
-
-        _chromatograms =_cacheFormat.chromGroupHeaderInfoSerializer().readArray(
-                Channels.newInputStream(_channel), _cacheHeaderStruct.getNumChromatograms());
+        _chromatograms = _cacheFormat.chromGroupHeaderInfoSerializer().readArray(
+                _channel, _cacheHeaderStruct.getLocationHeaders(), _cacheHeaderStruct.getNumChromatograms());
     }
 
     public SeekableByteChannel getChannel()
@@ -275,23 +280,15 @@ public int matchTransitions(ChromGroupHeaderInfo header, List<? extends GeneralT
         }
 
         var numChromTransitions = header.getNumTransitions();
-        ChromTransition[] chromTransitions;
-
-        try
-        {
-             chromTransitions = getTransitions(header);
-        }
-        catch (IOException e)
-        {
-            throw new RuntimeException(e);
-        }
 
         for (GeneralTransition transition : transitions)
         {
+            // Both m/z values take the header's polarity, so only the magnitudes need to be compared
+            double transitionMz = Math.abs(transition.getMz());
             for (int i = 0; i < numChromTransitions; i++)
             {
                 // Do we need to look through all of the transitions from the .skyd file?
-                if (header.toSignedMz(transition.getMz()).compareTolerant(chromTransitions[i].getProduct(header), tolerance) == 0)
+                if (Math.abs(transitionMz - getTransitionProductMz(header, i)) <= tolerance)
                 {
                     if (explicitRt == null)
                     {
@@ -321,7 +318,10 @@ public byte[] readChromatogramBytes(ChromGroupHeaderInfo header) throws DataForm
         byte[] result = new byte[header.getCompressedSize()];
         buffer.get(result);
         // Make sure it uncompresses successfully so that we don't import bad content into the database
-        uncompress(result, header.getUncompressedSize());
+        if (header.getUncompressedSize() != result.length)
+        {
+            PooledInflater.inflateToScratch(result, header.getUncompressedSize());
+        }
         return result;
     }
 
@@ -337,24 +337,12 @@ public static byte[] uncompressStoredBytes(byte[] bytes, Integer uncompressedSiz
 
     public static byte[] uncompress(byte[] bytes, int uncompressedSize) throws DataFormatException
     {
-        if (uncompressedSize == bytes.length) {
-            return bytes;
-        }
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        Inflater inflater = new Inflater();
-        inflater.setInput(bytes);
-        byte[] buffer = new byte[65536];
-        int bytesRead;
-        while (0 != (bytesRead = inflater.inflate(buffer)))
+        // Skyline stores chromatograms that don't get any smaller when compressed as-is
+        if (uncompressedSize == bytes.length)
         {
-            byteArrayOutputStream.write(buffer, 0, bytesRead);
+            return bytes;
         }
-        return byteArrayOutputStream.toByteArray();
-    }
-
-    public ChromTransition[] getTransitions(ChromGroupHeaderInfo chromGroupHeaderInfo) throws IOException
-    {
-        return parseTransitions(chromGroupHeaderInfo.getStartTransitionIndex(), chromGroupHeaderInfo.getNumTransitions());
+        return PooledInflater.inflate(bytes, uncompressedSize);
     }
 
     public ChromatogramGroupId getTextId(ChromGroupHeaderInfo chromGroupHeaderInfo)
@@ -2305,9 +2305,6 @@ private void populateChromInfoChromatograms(GeneralPrecursor<?> precursor, List<
                     int matchIndex = -1;
                     // Figure out which index into the list of transitions we're inserting.
                     double deltaNearestMz = Double.MAX_VALUE;
-                    SignedMz[] transitions = Arrays.stream(_binaryParser.getTransitions(c))
-                            .map(t->t.getProduct(c))
-                            .toArray(SignedMz[]::new);
                     double transitionMz = transition.getMz();
                     if (transChromInfo.isOptimizationPeak())
                     {
@@ -2315,9 +2312,9 @@ private void populateChromInfoChromatograms(GeneralPrecursor<?> precursor, List<
                         // The product m/z value is incremented slightly for each value as first described by Sherwood et al., 2009
                         transitionMz += OPTIMIZE_SHIFT_SIZE * transChromInfo.getOptimizationStep();
                     }
-                    for (int i = 0; i < transitions.length; i++)
+                    for (int i = 0; i < c.getNumTransitions(); i++)
                     {
-                        double deltaMz = Math.abs(transitionMz - transitions[i].getMz());
+                        double deltaMz = Math.abs(transitionMz - _binaryParser.getTransitionProductMz(c, i));
 
                         if (deltaMz < _transitionSettings.getInstrumentSettings().getMzMatchTolerance() &&
                             deltaMz < deltaNearestMz)
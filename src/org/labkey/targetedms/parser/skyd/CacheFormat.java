@@ -28,7 +28,6 @@ public class CacheFormat {
     private CacheFormatVersion _versionRequired;
     private int _cachedFileSize;
     private int _chromGroupHeaderSize;
-    private int _chromPeakSize;
     private int _chromTransitionSize;
 
     private CacheFormat() {
@@ -53,12 +52,10 @@ public CacheFormat(CacheHeaderStruct cacheHeaderStruct) {
             _cachedFileSize = cacheHeaderStruct.cachedFileSize;
             _chromGroupHeaderSize = cacheHeaderStruct.chromGroupHeaderSize;
             _chromTransitionSize = cacheHeaderStruct.chromTransitionSize;
-            _chromPeakSize = cacheHeaderStruct.chromPeakSize;
         } else {
             _cachedFileSize = CachedFileHeaderStruct.getStructSize(_formatVersion);
             _chromGroupHeaderSize = ChromGroupHeaderInfo.getStructSize(_formatVersion);
             _chromTransitionSize = ChromTransition.getStructSize(_formatVersion);
-            _chromPeakSize = ChromPeak.getStructSize(_formatVersion);
 
         }
     }
@@ -102,6 +99,12 @@ public ChromGroupHeaderInfo fromByteArray(byte[] bytes)
             {
                 return new ChromGroupHeaderInfo(_formatVersion, new LittleEndianByteArrayInputStream(bytes));
             }
+
+            @Override
+            public ChromGroupHeaderInfo fromByteArray(byte[] bytes, int offset)
+            {
+                return new ChromGroupHeaderInfo(_formatVersion, new LittleEndianByteArrayInputStream(bytes, offset, getItemSizeInMemory()));
+            }
         };
     }
     public StructSerializer<ChromTransition> chromTransitionSerializer() {
@@ -112,16 +115,11 @@ public ChromTransition fromByteArray(byte[] bytes)
             {
                 return new ChromTransition(_formatVersion, new LittleEndianByteArrayInputStream(bytes));
             }
-        };
-    }
 
-    public StructSerializer<ChromPeak> chromPeakSerializer() {
-        return new StructSerializer<>(ChromPeak.class, ChromPeak.getStructSize(CacheFormatVersion.CURRENT), _chromPeakSize)
-        {
             @Override
-            public ChromPeak fromByteArray(byte[] bytes)
+            public ChromTransition fromByteArray(byte[] bytes, int offset)
             {
-                return new ChromPeak(new LittleEndianByteArrayInputStream(bytes));
+                return new ChromTransition(_formatVersion, new LittleEndianByteArrayInputStream(bytes, offset, getItemSizeInMemory()));
             }
         };
     }
@@ -15,15 +15,22 @@
  */
 package org.labkey.targetedms.parser.skyd;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 /**
  * Created by nicksh on 2/27/2017.
  */
 public abstract class StructSerializer<TItem>
 {
+    /** Size of the reusable buffer that structs are read into from the file before decoding */
+    private static final int CHUNK_BYTES = 64 * 1024;
+
     private final Class<TItem> itemClass;
     private int itemSizeInMemory;
     private int itemSizeOnDisk;
@@ -51,6 +58,55 @@ public TItem[] readArray(InputStream inputStream, int count) throws IOException
         return array;
     }
 
+    /**
+     * Reads count structs starting at the given position in the file. The structs are read a chunk at a time with
+     * positional reads into a single reusable buffer and decoded straight out of it, so unlike
+     * readArray(InputStream, ...) there is no per-struct byte[] allocation. Only the decoded items themselves are
+     * created. The channel's own position is left alone.
+     */
+    @SuppressWarnings("unchecked")
+    public TItem[] readArray(FileChannel channel, long position, int count) throws IOException {
+        TItem[] array = (TItem[]) Array.newInstance(itemClass, count);
+        int sizeOnDisk = getItemSizeOnDisk();
+        int sizeInMemory = getItemSizeInMemory();
+        int itemsPerChunk = Math.max(1, CHUNK_BYTES / sizeOnDisk);
+        byte[] chunk = new byte[sizeOnDisk * Math.max(1, Math.min(count, itemsPerChunk))];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        // Older formats can have structs that are smaller (or larger) than the current in-memory layout
+        byte[] resized = sizeOnDisk == sizeInMemory ? null : new byte[sizeInMemory];
+
+        int index = 0;
+        long readPosition = position;
+        while (index < count) {
+            int items = Math.min(itemsPerChunk, count - index);
+            buffer.clear().limit(items * sizeOnDisk);
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, readPosition);
+                if (read < 0) {
+                    throw new EOFException("Expected " + count + " structs of " + sizeOnDisk + " bytes starting at " + position);
+                }
+                readPosition += read;
+            }
+            for (int i = 0; i < items; i++) {
+                int offset = i * sizeOnDisk;
+                array[index++] = resized == null ? fromByteArray(chunk, offset) : fromByteArray(resizeInto(chunk, offset, resized), 0);
+            }
+        }
+        return array;
+    }
+
+    private byte[] resizeInto(byte[] source, int offset, byte[] target) {
+        int sizeOnDisk = getItemSizeOnDisk();
+        Arrays.fill(target, (byte) 0);
+        if (isPadFromStart()) {
+            System.arraycopy(source, offset + Math.max(0, sizeOnDisk - target.length),
+                    target, Math.max(0, target.length - sizeOnDisk), Math.min(sizeOnDisk, target.length));
+        } else {
+            System.arraycopy(source, offset, target, 0, Math.min(sizeOnDisk, target.length));
+        }
+        return target;
+    }
+
     public byte[] resizeByteArray(byte[] byteArray, int newSize) {
         if (byteArray.length == newSize) {
             return byteArray;
@@ -68,6 +124,17 @@ public byte[] resizeByteArray(byte[] byteArray, int newSize) {
 
     public abstract TItem fromByteArray(byte[] bytes);
 
+    /**
+     * Decodes the struct that starts at the given offset of the array, which must have at least getItemSizeInMemory()
+     * bytes from there. Serializers for the high-volume structs override this to read in place without a copy.
+     */
+    public TItem fromByteArray(byte[] bytes, int offset) {
+        if (offset == 0 && bytes.length == getItemSizeInMemory()) {
+            return fromByteArray(bytes);
+        }
+        return fromByteArray(Arrays.copyOfRange(bytes, offset, offset + getItemSizeInMemory()));
+    }
+
     public int getItemSizeInMemory()
     {
         return itemSizeInMemory;
@@ -21,6 +21,8 @@
 import org.labkey.api.data.Container;
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.logging.LogHelper;
+import org.labkey.targetedms.parser.PooledInflater;
+import org.labkey.targetedms.parser.speclib.LibConnectionPool.LibConnection;
 import org.labkey.targetedms.parser.speclib.LibSpectrum.RedundantSpectrum;
 import org.labkey.targetedms.view.spectrum.LibrarySpectrumMatchGetter;
 
@@ -28,7 +30,6 @@
 import java.nio.ByteOrder;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -37,7 +38,6 @@
 import java.util.Collections;
 import java.util.List;
 import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 
 /**
  * User: vsharma
@@ -50,7 +50,7 @@ public class BlibSpectrumReader extends LibSpectrumReader
     private static final Logger LOG = LogHelper.getLogger(BlibSpectrumReader.class, "Reading BiblioSpec library files (.blib)");
 
     @Override
-    protected @Nullable BlibSpectrum readSpectrum(Connection conn, LibSpectrum.SpectrumKey spectrumKey, Path blibPath) throws DataFormatException, SQLException
+    protected @Nullable BlibSpectrum readSpectrum(LibConnection conn, LibSpectrum.SpectrumKey spectrumKey, Path blibPath) throws DataFormatException, SQLException
     {
         try
         {
@@ -94,7 +94,7 @@ && redundantBlibExists(blibPath))
     }
 
     @Override
-    protected @Nullable LibSpectrum readRedundantSpectrum(Connection conn, LibSpectrum.SpectrumKey spectrumKey) throws DataFormatException, SQLException
+    protected @Nullable LibSpectrum readRedundantSpectrum(LibConnection conn, LibSpectrum.SpectrumKey spectrumKey) throws DataFormatException, SQLException
     {
         // Returns a BlibSpectrum from the redundant library (.redundant.blib)
         // redundantRefSpectrumId is the database id of the redundant spectrum match in .redundant.blib SQLite file
@@ -107,7 +107,7 @@ && redundantBlibExists(blibPath))
     }
 
     @Override
-    protected LibSpectrum.SpectrumKey getMatchingModSeqSpecKey(Connection conn, LibSpectrum.SpectrumKey key) throws SQLException
+    protected LibSpectrum.SpectrumKey getMatchingModSeqSpecKey(LibConnection conn, LibSpectrum.SpectrumKey key) throws SQLException
     {
         if(key.forRedundantSpectrum())
         {
@@ -156,7 +156,7 @@ public static Path redundantBlibPath(@Nullable Path blibPath)
 
     @NotNull
     @Override
-    protected List<LibrarySpectrumMatchGetter.PeptideIdRtInfo> readRetentionTimes(Connection conn, String modifiedPeptide, String blibFilePath) throws SQLException
+    protected List<LibrarySpectrumMatchGetter.PeptideIdRtInfo> readRetentionTimes(LibConnection conn, String modifiedPeptide, String blibFilePath) throws SQLException
     {
         try
         {
@@ -170,24 +170,22 @@ protected List<LibrarySpectrumMatchGetter.PeptideIdRtInfo> readRetentionTimes(Co
             sql.append(" INNER JOIN SpectrumSourceFiles ssf ON (rt.SpectrumSourceID = ssf.id)");
             sql.append(" WHERE rs.peptideModSeq = ?");
 
-            try(PreparedStatement stmt = conn.prepareStatement(sql.toString()))
+            PreparedStatement stmt = conn.prepareStatement(sql.toString());
+            stmt.setString(1, modifiedPeptide);
+            List<LibrarySpectrumMatchGetter.PeptideIdRtInfo> retentionTimes = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery())
             {
-                stmt.setString(1, modifiedPeptide);
-                List<LibrarySpectrumMatchGetter.PeptideIdRtInfo> retentionTimes = new ArrayList<>();
-                try (ResultSet rs = stmt.executeQuery())
+                while (rs.next())
                 {
-                    while (rs.next())
-                    {
-                        LibrarySpectrumMatchGetter.PeptideIdRtInfo rtInfo = new LibrarySpectrumMatchGetter.PeptideIdRtInfo(rs.getString("fileName"),
-                                modifiedPeptide,
-                                rs.getInt("precursorCharge"),
-                                rs.getDouble("retentionTime"),
-                                rs.getBoolean("bestSpectrum"));
-                        retentionTimes.add(rtInfo);
-                    }
+                    LibrarySpectrumMatchGetter.PeptideIdRtInfo rtInfo = new LibrarySpectrumMatchGetter.PeptideIdRtInfo(rs.getString("fileName"),
+                            modifiedPeptide,
+                            rs.getInt("precursorCharge"),
+                            rs.getDouble("retentionTime"),
+                            rs.getBoolean("bestSpectrum"));
+                    retentionTimes.add(rtInfo);
                 }
-                return Collections.unmodifiableList(retentionTimes);
             }
+            return Collections.unmodifiableList(retentionTimes);
         }
         catch(SQLException e)
         {
@@ -200,7 +198,7 @@ protected List<LibrarySpectrumMatchGetter.PeptideIdRtInfo> readRetentionTimes(Co
     }
 
     @Nullable
-    private BlibSpectrum readBlibSpectrum(Connection conn, String modifiedPeptide, int charge) throws SQLException
+    private BlibSpectrum readBlibSpectrum(LibConnection conn, String modifiedPeptide, int charge) throws SQLException
     {
         boolean validRtTable = hasValidRtTable(conn);
         StringBuilder sql;
@@ -219,37 +217,35 @@ private BlibSpectrum readBlibSpectrum(Connection conn, String modifiedPeptide, i
             sql = new StringBuilder("SELECT * from RefSpectra WHERE peptideModSeq = ? AND precursorCharge = ?");
         }
 
-        try (PreparedStatement stmt = conn.prepareStatement(sql.toString()))
+        PreparedStatement stmt = conn.prepareStatement(sql.toString());
+        stmt.setString(1, modifiedPeptide);
+        stmt.setInt(2, charge);
+        try (ResultSet rs = stmt.executeQuery())
         {
-            stmt.setString(1, modifiedPeptide);
-            stmt.setInt(2, charge);
-            try (ResultSet rs = stmt.executeQuery())
+            // Columns in RefSpectra table: id|peptideSeq|peptideModSeq|precursorCharge|precursorMZ|prevAA|nextAA|copies|numPeaks
+            // Columns queried from RetentionTimes table (when present): retentionTime, SpectrumSourceId
+            // Columns queried from SpectrumSourceFiles table (when present): fileName
+            BlibSpectrum spectrum = null;
+            if (rs.next())
             {
-                // Columns in RefSpectra table: id|peptideSeq|peptideModSeq|precursorCharge|precursorMZ|prevAA|nextAA|copies|numPeaks
-                // Columns queried from RetentionTimes table (when present): retentionTime, SpectrumSourceId
-                // Columns queried from SpectrumSourceFiles table (when present): fileName
-                BlibSpectrum spectrum = null;
-                if (rs.next())
+                spectrum = new BlibSpectrum();
+                spectrum.setBlibId(rs.getInt("id"));
+                spectrum.setPeptideSeq(rs.getString("peptideSeq"));
+                spectrum.setPeptideModSeq(modifiedPeptide);
+                spectrum.setPrecursorCharge(rs.getInt("precursorCharge"));
+                spectrum.setPrecursorMz(rs.getDouble("precursorMZ"));
+                spectrum.setPrevAa(rs.getString("prevAA"));
+                spectrum.setNextAa(rs.getString("nextAA"));
+                spectrum.setCopies(rs.getInt("copies"));
+                spectrum.setNumPeaks(rs.getInt("numPeaks"));
+                if (validRtTable)
                 {
-                    spectrum = new BlibSpectrum();
-                    spectrum.setBlibId(rs.getInt("id"));
-                    spectrum.setPeptideSeq(rs.getString("peptideSeq"));
-                    spectrum.setPeptideModSeq(modifiedPeptide);
-                    spectrum.setPrecursorCharge(rs.getInt("precursorCharge"));
-                    spectrum.setPrecursorMz(rs.getDouble("precursorMZ"));
-                    spectrum.setPrevAa(rs.getString("prevAA"));
-                    spectrum.setNextAa(rs.getString("nextAA"));
-                    spectrum.setCopies(rs.getInt("copies"));
-                    spectrum.setNumPeaks(rs.getInt("numPeaks"));
-                    if (validRtTable)
-                    {
-                        spectrum.setRetentionTime(rs.getDouble("RT"));
-                        spectrum.setFileId(rs.getInt("SpectrumSourceId"));
-                        spectrum.setSourceFile(rs.getString("fileName"));
-                    }
+                    spectrum.setRetentionTime(rs.getDouble("RT"));
+                    spectrum.setFileId(rs.getInt("SpectrumSourceId"));
+                    spectrum.setSourceFile(rs.getString("fileName"));
                 }
-                return spectrum;
             }
+            return spectrum;
         }
     }
 
@@ -259,11 +255,11 @@ String getMatchingModSeqLookupSql()
         return "SELECT peptideModSeq FROM RefSpectra WHERE peptideSeq = ?";
     }
 
-    private static boolean hasTable(Connection conn, String tableName) throws SQLException
+    private static boolean hasTable(LibConnection conn, String tableName) throws SQLException
     {
-        String tableCheckStmt = "SELECT name FROM sqlite_master WHERE type='table' AND name='" + tableName + "'";
-
-        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(tableCheckStmt))
+        PreparedStatement stmt = conn.prepareStatement("SELECT name FROM sqlite_master WHERE type='table' AND name = ?");
+        stmt.setString(1, tableName);
+        try (ResultSet rs = stmt.executeQuery())
         {
             if (rs.next())
             {
@@ -273,7 +269,13 @@ private static boolean hasTable(Connection conn, String tableName) throws SQLExc
         return false;
     }
 
-    private static boolean hasValidRtTable(Connection conn) throws SQLException
+    /** Only checked once for each version of the library file */
+    private static boolean hasValidRtTable(LibConnection conn) throws SQLException
+    {
+        return conn.getSchemaInfo("validRtTable", name -> checkRtTable(conn));
+    }
+
+    private static boolean checkRtTable(LibConnection conn) throws SQLException
     {
         if(!hasTable(conn, "RetentionTimes"))
         {
@@ -322,10 +324,11 @@ private static String makePeptideBlibFormat(String modifiedPeptide)
         return modifiedPeptide.replaceAll("\\[([+|-])(\\d+)\\]", "\\[$1$2\\.0\\]");
     }
 
-    private static void readSpectrumPeaks(Connection conn, BlibSpectrum spectrum) throws SQLException, DataFormatException
+    private static void readSpectrumPeaks(LibConnection conn, BlibSpectrum spectrum) throws SQLException, DataFormatException
     {
-        try (Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT * FROM RefSpectraPeaks WHERE RefSpectraId="+spectrum.getBlibId()))
+        PreparedStatement stmt = conn.prepareStatement("SELECT * FROM RefSpectraPeaks WHERE RefSpectraId = ?");
+        stmt.setInt(1, spectrum.getBlibId());
+        try (ResultSet rs = stmt.executeQuery())
         {
             if(rs.next())
             {
@@ -345,8 +348,7 @@ private static double[] uncompressPeakMz(byte[] compressed, int peakCount) throw
         int sizeOfMz = Double.SIZE / 8;
 
         int uncompressedLength = peakCount * sizeOfMz;
-        byte[] uncompressed;
-        uncompressed = getBytes(compressed, uncompressedLength);
+        byte[] uncompressed = inflate(compressed, uncompressedLength);
 
         ByteBuffer bbuf = ByteBuffer.wrap(uncompressed);
         bbuf = bbuf.order(ByteOrder.LITTLE_ENDIAN);
@@ -358,14 +360,18 @@ private static double[] uncompressPeakMz(byte[] compressed, int peakCount) throw
         return mzs;
     }
 
+    /** BiblioSpec stores the peaks as-is when compressing them doesn't save any space */
+    private static byte[] inflate(byte[] compressed, int uncompressedLength) throws DataFormatException
+    {
+        return uncompressedLength == compressed.length ? compressed : PooledInflater.inflateToScratch(compressed, uncompressedLength);
+    }
+
     private static float[] uncompressPeakIntensities(byte[] compressed, int peakCount) throws DataFormatException
     {
         int sizeOfInten = Float.SIZE / 8;
 
         int uncompressedLength = peakCount * sizeOfInten;
-        byte[] uncompressed;
-
-        uncompressed = getBytes(compressed, uncompressedLength);
+        byte[] uncompressed = inflate(compressed, uncompressedLength);
 
         ByteBuffer bbuf = ByteBuffer.wrap(uncompressed);
         bbuf = bbuf.order(ByteOrder.LITTLE_ENDIAN);
@@ -377,32 +383,15 @@ private static float[] uncompressPeakIntensities(byte[] compressed, int peakCoun
         return intensities;
     }
 
-    private static byte[] getBytes(byte[] compressed, int uncompressedLength) throws DataFormatException
-    {
-        byte[] uncompressed;
-        if(uncompressedLength == compressed.length)
-        {
-            uncompressed = compressed;
-        }
-        else
-        {
-            uncompressed = new byte[uncompressedLength];
-
-            Inflater inflater = new Inflater();
-            inflater.setInput(compressed, 0, compressed.length);
-            inflater.inflate(uncompressed);
-            inflater.end();
-        }
-        return uncompressed;
-    }
-
-    private static void addRedundantSpectrumInfo(Connection conn, BlibSpectrum spectrum) throws SQLException
+    private static void addRedundantSpectrumInfo(LibConnection conn, BlibSpectrum spectrum) throws SQLException
     {
         StringBuilder sql = new StringBuilder("SELECT rt.*, sf.fileName ");
         sql.append("FROM RetentionTimes AS rt INNER JOIN SpectrumSourceFiles AS sf ON rt.spectrumSourceID = sf.id ");
-        sql.append("WHERE RefSpectraID=").append(spectrum.getBlibId());
+        sql.append("WHERE RefSpectraID = ?");
 
-        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql.toString()))
+        PreparedStatement stmt = conn.prepareStatement(sql.toString());
+        stmt.setInt(1, spectrum.getBlibId());
+        try (ResultSet rs = stmt.executeQuery())
         {
             List<RedundantSpectrum> redundantSpectra = new ArrayList<>();
 
@@ -429,13 +418,15 @@ private static void addRedundantSpectrumInfo(Connection conn, BlibSpectrum spect
         }
     }
 
-    private static BlibSpectrum readRedundantSpectrum(Connection conn, int redundantRefSpectrumid) throws SQLException
+    private static BlibSpectrum readRedundantSpectrum(LibConnection conn, int redundantRefSpectrumid) throws SQLException
     {
         StringBuilder sql = new StringBuilder("SELECT rf.*, ssf.fileName FROM RefSpectra AS rf ");
         sql.append("LEFT JOIN SpectrumSourceFiles AS ssf ON rf.FileID = ssf.id ");
-        sql.append(" WHERE rf.id=").append(redundantRefSpectrumid);
+        sql.append(" WHERE rf.id = ?");
 
-        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql.toString()))
+        PreparedStatement stmt = conn.prepareStatement(sql.toString());
+        stmt.setInt(1, redundantRefSpectrumid);
+        try (ResultSet rs = stmt.executeQuery())
         {
             BlibSpectrum spectrum = null;
 
@@ -18,6 +18,8 @@
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.data.Container;
+import org.labkey.targetedms.parser.PooledInflater;
+import org.labkey.targetedms.parser.speclib.LibConnectionPool.LibConnection;
 import org.labkey.targetedms.parser.speclib.LibSpectrum.RedundantSpectrum;
 import org.labkey.targetedms.parser.speclib.LibSpectrum.SpectrumKey;
 import org.labkey.targetedms.view.spectrum.LibrarySpectrumMatchGetter;
@@ -27,7 +29,6 @@
 import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
 import java.nio.file.Path;
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -38,14 +39,13 @@
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 
 // EncyclopeDIA file format documentation: https://bitbucket.org/searleb/encyclopedia/wiki/EncyclopeDIA%20File%20Formats
 @SuppressWarnings("SqlResolve")
 public class ElibSpectrumReader extends LibSpectrumReader
 {
     @Override
-    protected @Nullable ElibSpectrum readSpectrum(Connection conn, SpectrumKey spectrumKey, Path libPath) throws DataFormatException, SQLException
+    protected @Nullable ElibSpectrum readSpectrum(LibConnection conn, SpectrumKey spectrumKey, Path libPath) throws DataFormatException, SQLException
     {
         return readElibSpectrum(conn, spectrumKey, true);
     }
@@ -57,7 +57,7 @@ public class ElibSpectrumReader extends LibSpectrumReader
     }
 
     @Override
-    public @Nullable ElibSpectrum readRedundantSpectrum(Connection conn, SpectrumKey spectrumKey) throws SQLException, DataFormatException
+    public @Nullable ElibSpectrum readRedundantSpectrum(LibConnection conn, SpectrumKey spectrumKey) throws SQLException, DataFormatException
     {
         return readElibSpectrum(conn, spectrumKey, false);
     }
@@ -68,7 +68,7 @@ protected String getMatchingModSeqLookupSql()
         return "SELECT PeptideModSeq FROM entries WHERE PeptideSeq = ?";
     }
 
-    private ElibSpectrum readElibSpectrum(Connection conn, SpectrumKey spectrumKey, boolean getRedundant) throws SQLException, DataFormatException
+    private ElibSpectrum readElibSpectrum(LibConnection conn, SpectrumKey spectrumKey, boolean getRedundant) throws SQLException, DataFormatException
     {
         StringBuilder sql = new StringBuilder("SELECT PeptideModSeq, PrecursorCharge, PrecursorMz, SourceFile, RTInSeconds, Score FROM entries")
                          .append(" WHERE PeptideModSeq = ?").append(" AND PrecursorCharge = ?");
@@ -78,28 +78,26 @@ private ElibSpectrum readElibSpectrum(Connection conn, SpectrumKey spectrumKey,
             }
 
         List<ElibSpectrum> spectra = new ArrayList<>();
-        try (PreparedStatement stmt = conn.prepareStatement(sql.toString()))
+        PreparedStatement stmt = conn.prepareStatement(sql.toString());
+        stmt.setString(1, spectrumKey.getModifiedPeptide());
+        stmt.setInt(2, spectrumKey.getCharge());
+        if(spectrumKey.hasSourceFile())
         {
-            stmt.setString(1, spectrumKey.getModifiedPeptide());
-            stmt.setInt(2, spectrumKey.getCharge());
-            if(spectrumKey.hasSourceFile())
-            {
-                stmt.setString(3, spectrumKey.getSourceFile());
-            }
-            try (ResultSet rs = stmt.executeQuery())
+            stmt.setString(3, spectrumKey.getSourceFile());
+        }
+        try (ResultSet rs = stmt.executeQuery())
+        {
+            while (rs.next())
             {
-                while (rs.next())
-                {
-                    ElibSpectrum spectrum = new ElibSpectrum();
-                    spectrum.setPeptideModSeq(spectrumKey.getModifiedPeptide());
-                    spectrum.setPrecursorCharge(rs.getInt("PrecursorCharge"));
-                    spectrum.setPrecursorMz(rs.getDouble("PrecursorMz"));
-                    double rt = rs.getDouble("RTInSeconds");
-                    spectrum.setRetentionTime(rt / 60.0);
-                    spectrum.setSourceFile(rs.getString("SourceFile"));
-                    spectrum.setScore(rs.getDouble("Score"));
-                    spectra.add(spectrum);
-                }
+                ElibSpectrum spectrum = new ElibSpectrum();
+                spectrum.setPeptideModSeq(spectrumKey.getModifiedPeptide());
+                spectrum.setPrecursorCharge(rs.getInt("PrecursorCharge"));
+                spectrum.setPrecursorMz(rs.getDouble("PrecursorMz"));
+                double rt = rs.getDouble("RTInSeconds");
+                spectrum.setRetentionTime(rt / 60.0);
+                spectrum.setSourceFile(rs.getString("SourceFile"));
+                spectrum.setScore(rs.getDouble("Score"));
+                spectra.add(spectrum);
             }
         }
 
@@ -130,26 +128,24 @@ private ElibSpectrum readElibSpectrum(Connection conn, SpectrumKey spectrumKey,
         return null;
     }
 
-    private void readPeaks(Connection conn, ElibSpectrum spectrum) throws SQLException, DataFormatException
+    private void readPeaks(LibConnection conn, ElibSpectrum spectrum) throws SQLException, DataFormatException
     {
-        try (PreparedStatement stmt = conn.prepareStatement("SELECT MassEncodedLength, MassArray, IntensityEncodedLength, IntensityArray FROM entries " +
-                "WHERE PrecursorCharge = ? AND PeptideModSeq = ? AND SourceFile = ?"))
+        PreparedStatement stmt = conn.prepareStatement("SELECT MassEncodedLength, MassArray, IntensityEncodedLength, IntensityArray FROM entries " +
+                "WHERE PrecursorCharge = ? AND PeptideModSeq = ? AND SourceFile = ?");
+        stmt.setInt(1, spectrum.getPrecursorCharge());
+        stmt.setString(2, spectrum.getPeptideModSeq());
+        stmt.setString(3, spectrum.getSourceFile());
+        try(ResultSet rs = stmt.executeQuery())
         {
-            stmt.setInt(1, spectrum.getPrecursorCharge());
-            stmt.setString(2, spectrum.getPeptideModSeq());
-            stmt.setString(3, spectrum.getSourceFile());
-            try(ResultSet rs = stmt.executeQuery())
+            if (rs.next())
             {
-                if (rs.next())
-                {
-                    byte[] mzArray = rs.getBytes("MassArray");
-                    byte[] intensityArray = rs.getBytes("IntensityArray");
+                byte[] mzArray = rs.getBytes("MassArray");
+                byte[] intensityArray = rs.getBytes("IntensityArray");
 
-                    double[] peakMzs = extractMassArray(mzArray, rs.getInt("MassEncodedLength"));
-                    float[] peakIntensities = extractIntensityArray(intensityArray, rs.getInt("IntensityEncodedLength"));
+                double[] peakMzs = extractMassArray(mzArray, rs.getInt("MassEncodedLength"));
+                float[] peakIntensities = extractIntensityArray(intensityArray, rs.getInt("IntensityEncodedLength"));
 
-                    spectrum.setMzAndIntensity(peakMzs, peakIntensities);
-                }
+                spectrum.setMzAndIntensity(peakMzs, peakIntensities);
             }
         }
     }
@@ -157,9 +153,9 @@ private void readPeaks(Connection conn, ElibSpectrum spectrum) throws SQLExcepti
     private static double[] extractMassArray(byte[] compressedData, int uncompressedLength) throws DataFormatException
     {
         // Based on the code provided on the EncyclopeDIA documentation page: https://bitbucket.org/searleb/encyclopedia/wiki/EncyclopeDIA%20File%20Formats
-        byte[] uncompressedData = uncompress(compressedData, uncompressedLength);
-        double[] mzArray = new double[uncompressedData.length / 8];
-        ByteBuffer bb = ByteBuffer.wrap(uncompressedData);
+        byte[] uncompressedData = PooledInflater.inflateToScratch(compressedData, uncompressedLength);
+        double[] mzArray = new double[uncompressedLength / 8];
+        ByteBuffer bb = ByteBuffer.wrap(uncompressedData, 0, uncompressedLength);
         bb.order(ByteOrder.BIG_ENDIAN);
         DoubleBuffer buffer = bb.asDoubleBuffer();
         buffer.get(mzArray);
@@ -169,26 +165,15 @@ private static double[] extractMassArray(byte[] compressedData, int uncompressed
     private static float[] extractIntensityArray(byte[] compressedData, int uncompressedLength) throws DataFormatException
     {
         // Based on the code provided on the EncyclopeDIA documentation page: https://bitbucket.org/searleb/encyclopedia/wiki/EncyclopeDIA%20File%20Formats
-        byte[] uncompressedData = uncompress(compressedData, uncompressedLength);
-        float[] intensities = new float[uncompressedData.length / 4];
-        ByteBuffer bb = ByteBuffer.wrap(uncompressedData);
+        byte[] uncompressedData = PooledInflater.inflateToScratch(compressedData, uncompressedLength);
+        float[] intensities = new float[uncompressedLength / 4];
+        ByteBuffer bb = ByteBuffer.wrap(uncompressedData, 0, uncompressedLength);
         bb.order(ByteOrder.BIG_ENDIAN);
         FloatBuffer buffer = bb.asFloatBuffer();
         buffer.get(intensities);
         return intensities;
     }
 
-    private static byte[] uncompress(byte[] compressedData, int uncompressedLength) throws DataFormatException
-    {
-        byte[] uncompressed = new byte[uncompressedLength];
-
-        Inflater inflater = new Inflater();
-        inflater.setInput(compressedData);
-        inflater.inflate(uncompressed);
-        inflater.end();
-        return uncompressed;
-    }
-
     private void sortElibSpectra(List<ElibSpectrum> spectra)
     {
         spectra.sort(Comparator.comparing(ElibSpectrum::getPeptideModSeq)
@@ -199,26 +184,24 @@ private void sortElibSpectra(List<ElibSpectrum> spectra)
     }
 
     @Override
-    protected @NotNull List<LibrarySpectrumMatchGetter.PeptideIdRtInfo> readRetentionTimes(Connection conn, String modifiedPeptide, String libPath) throws SQLException
+    protected @NotNull List<LibrarySpectrumMatchGetter.PeptideIdRtInfo> readRetentionTimes(LibConnection conn, String modifiedPeptide, String libPath) throws SQLException
     {
         List<ElibSpectrum> spectra = new ArrayList<>();
 
-        try(PreparedStatement stmt = conn.prepareStatement("SELECT PeptideModSeq, PrecursorCharge, RTInSeconds, SourceFile, Score FROM entries WHERE PeptideModSeq = ?"))
+        PreparedStatement stmt = conn.prepareStatement("SELECT PeptideModSeq, PrecursorCharge, RTInSeconds, SourceFile, Score FROM entries WHERE PeptideModSeq = ?");
+        stmt.setString(1, modifiedPeptide);
+        try(ResultSet rs = stmt.executeQuery())
         {
-            stmt.setString(1, modifiedPeptide);
-            try(ResultSet rs = stmt.executeQuery())
+            while (rs.next())
             {
-                while (rs.next())
-                {
-                    ElibSpectrum spectrum = new ElibSpectrum();
-                    spectrum.setPeptideModSeq(rs.getString("PeptideModSeq"));
-                    spectrum.setPrecursorCharge(rs.getInt("PrecursorCharge"));
-                    spectrum.setSourceFile(rs.getString("SourceFile"));
-                    double rt = rs.getDouble("RTInSeconds");
-                    spectrum.setRetentionTime(rt / 60.0);
-                    spectrum.setScore(rs.getDouble("Score"));
-                    spectra.add(spectrum);
-                }
+                ElibSpectrum spectrum = new ElibSpectrum();
+                spectrum.setPeptideModSeq(rs.getString("PeptideModSeq"));
+                spectrum.setPrecursorCharge(rs.getInt("PrecursorCharge"));
+                spectrum.setSourceFile(rs.getString("SourceFile"));
+                double rt = rs.getDouble("RTInSeconds");
+                spectrum.setRetentionTime(rt / 60.0);
+                spectrum.setScore(rs.getDouble("Score"));
+                spectra.add(spectrum);
             }
         }
 
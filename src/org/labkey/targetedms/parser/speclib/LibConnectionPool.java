@@ -0,0 +1,465 @@
+/*
+ * Copyright (c) 2024 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.parser.speclib;
+
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.util.FileUtil;
+import org.labkey.api.util.ShutdownListener;
+import org.labkey.api.util.logging.LogHelper;
+import org.sqlite.SQLiteConfig;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps read-only connections to spectrum library files (.blib, .elib) open between lookups, along with their prepared
+ * statements, instead of opening a new connection for every spectrum. Showing the spectra for a protein can mean
+ * hundreds of lookups against the same library.
+ * A library's connections are only reused while its file has the same size and modification time as when they were
+ * opened. Once the file has been replaced, its connections are closed as soon as they're no longer in use. Idle
+ * connections are closed after a few minutes, so that the files aren't held open indefinitely.
+ */
+public class LibConnectionPool implements ShutdownListener
+{
+    private static final Logger LOG = LogHelper.getLogger(LibConnectionPool.class, "Connections to spectrum library files");
+
+    private static final long IDLE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final int MAX_IDLE_PER_LIBRARY = 4;
+    private static final int MAX_MATCHED_SEQUENCES = 10_000;
+
+    private static final LibConnectionPool INSTANCE = new LibConnectionPool();
+
+    /** Library file path to its pooled connections. Guarded by this. */
+    private final Map<String, Library> _libraries = new HashMap<>();
+
+    private final ScheduledExecutorService _evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Spectrum library connection evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private LibConnectionPool()
+    {
+        _evictor.scheduleWithFixedDelay(this::closeIdleConnections, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public static LibConnectionPool get()
+    {
+        return INSTANCE;
+    }
+
+    /** Size and modification time of a library file, which tell us whether it has been replaced */
+    private record FileVersion(long size, FileTime lastModified)
+    {
+        @Nullable
+        static FileVersion of(String libFilePath)
+        {
+            try
+            {
+                BasicFileAttributes attributes = Files.readAttributes(Path.of(libFilePath), BasicFileAttributes.class);
+                return new FileVersion(attributes.size(), attributes.lastModifiedTime());
+            }
+            catch (IOException e)
+            {
+                return null;
+            }
+        }
+    }
+
+    /** The pooled connections for one version of a library file, and what's been learned about its contents */
+    private static class Library
+    {
+        private final String _libFilePath;
+        private final FileVersion _version;
+        /** Most recently used first */
+        private final Deque<LibConnection> _idle = new ArrayDeque<>();
+        private int _borrowed;
+        private boolean _retired;
+
+        /** Modified sequence -> the library's representation of it. Guarded by itself. */
+        private final Map<String, String> _matchedSequences = new LinkedHashMap<>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+            {
+                return size() > MAX_MATCHED_SEQUENCES;
+            }
+        };
+        /** Facts about the library's schema, such as which tables it has. Guarded by itself. */
+        private final Map<String, Object> _schemaInfo = new HashMap<>();
+
+        private Library(String libFilePath, FileVersion version)
+        {
+            _libFilePath = libFilePath;
+            _version = version;
+        }
+    }
+
+    /**
+     * A connection borrowed from the pool, to be used by one thread at a time. Closing it returns it to the pool.
+     */
+    static class LibConnection implements AutoCloseable
+    {
+        private final LibConnectionPool _pool;
+        @Nullable
+        private final Library _library;
+        private final Connection _connection;
+        private final Map<String, PreparedStatement> _statements = new HashMap<>();
+        private long _lastUsed;
+
+        private LibConnection(LibConnectionPool pool, @Nullable Library library, Connection connection)
+        {
+            _pool = pool;
+            _library = library;
+            _connection = connection;
+        }
+
+        /**
+         * @return a prepared statement that's kept with the connection and reused. Callers close the result sets,
+         * but not the statement.
+         */
+        PreparedStatement prepareStatement(String sql) throws SQLException
+        {
+            PreparedStatement stmt = _statements.get(sql);
+            if (stmt == null)
+            {
+                stmt = _connection.prepareStatement(sql);
+                _statements.put(sql, stmt);
+            }
+            else
+            {
+                stmt.clearParameters();
+            }
+            return stmt;
+        }
+
+        /** @return the library's representation of the modified sequence, as found by the loader the first time */
+        String getMatchingModifiedSequence(String modifiedSequence, SQLFunction<String> loader) throws SQLException
+        {
+            if (_library == null)
+            {
+                return loader.apply(modifiedSequence);
+            }
+            synchronized (_library._matchedSequences)
+            {
+                String result = _library._matchedSequences.get(modifiedSequence);
+                if (result != null)
+                {
+                    return result;
+                }
+            }
+            String result = loader.apply(modifiedSequence);
+            synchronized (_library._matchedSequences)
+            {
+                _library._matchedSequences.put(modifiedSequence, result);
+            }
+            return result;
+        }
+
+        /** @return a fact about the library's schema, as found by the loader the first time */
+        <T> T getSchemaInfo(String name, SQLFunction<T> loader) throws SQLException
+        {
+            if (_library == null)
+            {
+                return loader.apply(name);
+            }
+            synchronized (_library._schemaInfo)
+            {
+                Object result = _library._schemaInfo.get(name);
+                if (result != null)
+                {
+                    //noinspection unchecked
+                    return (T) result;
+                }
+            }
+            T result = loader.apply(name);
+            synchronized (_library._schemaInfo)
+            {
+                _library._schemaInfo.put(name, result);
+            }
+            return result;
+        }
+
+        Statement createStatement() throws SQLException
+        {
+            return _connection.createStatement();
+        }
+
+        @Override
+        public void close()
+        {
+            _pool.release(this);
+        }
+
+        private void closeConnection()
+        {
+            try
+            {
+                // Closing the connection closes its statements too
+                _connection.close();
+            }
+            catch (SQLException e)
+            {
+                LOG.warn("Error closing connection to spectrum library", e);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface SQLFunction<T>
+    {
+        T apply(String key) throws SQLException;
+    }
+
+    LibConnection getConnection(String libFilePath) throws SQLException
+    {
+        FileVersion version = FileVersion.of(libFilePath);
+        if (version == null)
+        {
+            // Let SQLite report the problem, and don't pool a connection to a file we can't check
+            return new LibConnection(this, null, open(libFilePath));
+        }
+
+        Library library;
+        synchronized (this)
+        {
+            library = _libraries.get(libFilePath);
+            if (library != null && !library._version.equals(version))
+            {
+                // The file has been replaced since these connections were opened
+                retire(library);
+                library = null;
+            }
+            if (library == null)
+            {
+                library = new Library(libFilePath, version);
+                _libraries.put(libFilePath, library);
+            }
+            library._borrowed++;
+            LibConnection conn = library._idle.pollFirst();
+            if (conn != null)
+            {
+                return conn;
+            }
+        }
+        try
+        {
+            return new LibConnection(this, library, open(libFilePath));
+        }
+        catch (SQLException | RuntimeException e)
+        {
+            synchronized (this)
+            {
+                library._borrowed--;
+            }
+            throw e;
+        }
+    }
+
+    private static Connection open(String libFilePath) throws SQLException
+    {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        return config.createConnection("jdbc:sqlite:/" + libFilePath);
+    }
+
+    private void release(LibConnection conn)
+    {
+        synchronized (this)
+        {
+            Library library = conn._library;
+            if (library != null)
+            {
+                library._borrowed--;
+            }
+            if (library != null && !library._retired && library._idle.size() < MAX_IDLE_PER_LIBRARY)
+            {
+                conn._lastUsed = System.currentTimeMillis();
+                library._idle.addFirst(conn);
+                return;
+            }
+        }
+        conn.closeConnection();
+    }
+
+    /** Closes the library's idle connections, and the rest as they're returned. Caller must hold the lock. */
+    private void retire(Library library)
+    {
+        library._retired = true;
+        _libraries.remove(library._libFilePath, library);
+        library._idle.forEach(LibConnection::closeConnection);
+        library._idle.clear();
+    }
+
+    /** Closes the connections to a library file, for example before it gets deleted */
+    synchronized void close(String libFilePath)
+    {
+        Library library = _libraries.get(libFilePath);
+        if (library != null)
+        {
+            retire(library);
+        }
+    }
+
+    /** Closes the connections to all of the library files under the directory, for example before it gets deleted */
+    public synchronized void closeLibrariesIn(Path dir)
+    {
+        Path normalizedDir = dir.toAbsolutePath().normalize();
+        for (Library library : new ArrayList<>(_libraries.values()))
+        {
+            if (Path.of(library._libFilePath).toAbsolutePath().normalize().startsWith(normalizedDir))
+            {
+                retire(library);
+            }
+        }
+    }
+
+    synchronized void closeAll()
+    {
+        new ArrayList<>(_libraries.values()).forEach(this::retire);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "Spectrum library connection pool";
+    }
+
+    @Override
+    public void shutdownPre()
+    {
+    }
+
+    /** Stops the evictor and closes the pooled connections so the library files aren't left open */
+    @Override
+    public void shutdownStarted()
+    {
+        _evictor.shutdownNow();
+        closeAll();
+    }
+
+    private void closeIdleConnections()
+    {
+        List<LibConnection> toClose = new ArrayList<>();
+        long cutoff = System.currentTimeMillis() - IDLE_MILLIS;
+        synchronized (this)
+        {
+            for (Iterator<Library> libraries = _libraries.values().iterator(); libraries.hasNext(); )
+            {
+                Library library = libraries.next();
+                // Least recently used are at the end
+                while (!library._idle.isEmpty() && library._idle.peekLast()._lastUsed < cutoff)
+                {
+                    toClose.add(library._idle.pollLast());
+                }
+                if (library._idle.isEmpty() && library._borrowed == 0)
+                {
+                    // Forget what we learned about the file too; it's cheap to find again
+                    library._retired = true;
+                    libraries.remove();
+                }
+            }
+        }
+        toClose.forEach(LibConnection::closeConnection);
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testReuseAndReplace() throws IOException, SQLException
+        {
+            Path dir = Files.createTempDirectory("speclib");
+            Path libFile = dir.resolve("test.blib");
+            String libFilePath = FileUtil.getAbsolutePath(libFile);
+            try
+            {
+                createLibrary(libFilePath, 1);
+                LibConnectionPool pool = new LibConnectionPool();
+
+                LibConnection first = pool.getConnection(libFilePath);
+                assertEquals(1, count(first));
+                pool.release(first);
+
+                LibConnection second = pool.getConnection(libFilePath);
+                assertSame("Idle connection should be reused", first, second);
+                pool.release(second);
+
+                // Replace the file, with a different size and modification time, while the idle connection is open
+                Files.delete(libFile);
+                createLibrary(libFilePath, 2);
+                Files.setLastModifiedTime(libFile, FileTime.fromMillis(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1)));
+
+                LibConnection third = pool.getConnection(libFilePath);
+                assertNotSame("Connection to the replaced file should not be reused", first, third);
+                assertEquals("New connection should see the new file's contents", 2, count(third));
+                pool.release(third);
+
+                pool.closeLibrariesIn(dir);
+                LibConnection fourth = pool.getConnection(libFilePath);
+                assertNotSame("Connections should be closed along with their directory", third, fourth);
+                pool.release(fourth);
+                pool.shutdownStarted();
+            }
+            finally
+            {
+                FileUtil.deleteDir(dir.toFile());
+            }
+        }
+
+        private static void createLibrary(String libFilePath, int rows) throws SQLException
+        {
+            try (Connection conn = new SQLiteConfig().createConnection("jdbc:sqlite:/" + libFilePath); Statement stmt = conn.createStatement())
+            {
+                stmt.execute("CREATE TABLE RefSpectra (id INTEGER PRIMARY KEY)");
+                for (int i = 0; i < rows; i++)
+                {
+                    stmt.execute("INSERT INTO RefSpectra DEFAULT VALUES");
+                }
+            }
+        }
+
+        private static int count(LibConnection conn) throws SQLException
+        {
+            try (ResultSet rs = conn.prepareStatement("SELECT COUNT(*) FROM RefSpectra").executeQuery())
+            {
+                assertTrue(rs.next());
+                return rs.getInt(1);
+            }
+        }
+    }
+}
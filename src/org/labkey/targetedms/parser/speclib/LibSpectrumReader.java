@@ -25,18 +25,18 @@
 import org.labkey.api.data.Container;
 import org.labkey.api.data.RuntimeSQLException;
 import org.labkey.api.pipeline.LocalDirectory;
+import org.labkey.api.pipeline.PipeRoot;
+import org.labkey.api.pipeline.PipelineService;
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.Pair;
 import org.labkey.targetedms.parser.Peptide;
+import org.labkey.targetedms.parser.speclib.LibConnectionPool.LibConnection;
 import org.labkey.targetedms.view.spectrum.LibrarySpectrumMatchGetter;
-import org.sqlite.SQLiteConfig;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -92,7 +92,7 @@ private LibSpectrum getLibSpectrum(Container container, Path libPath, SpectrumKe
         if (null == localLibPath)
             return null;
 
-        try (Connection conn = getLibConnection(localLibPath))
+        try (LibConnection conn = getLibConnection(localLibPath))
         {
             SpectrumKey matchingKey = getMatchingModSeqSpecKey(conn, key);
             return key.forRedundantSpectrum() ? readRedundantSpectrum(conn, matchingKey) : readSpectrum(conn, matchingKey, libPath);
@@ -106,7 +106,7 @@ public List<LibrarySpectrumMatchGetter.PeptideIdRtInfo> getRetentionTimes(Contai
         if (null == libFilePath)
             return Collections.emptyList();
 
-        try (Connection conn = getLibConnection(libFilePath))
+        try (LibConnection conn = getLibConnection(libFilePath))
         {
             String matchingModSeq = findMatchingModifiedSequence(conn, modifiedPeptide, getMatchingModSeqLookupSql());
             return readRetentionTimes(conn, matchingModSeq, libFilePath);
@@ -118,13 +118,13 @@ public List<LibrarySpectrumMatchGetter.PeptideIdRtInfo> getRetentionTimes(Contai
     }
 
     @Nullable
-    protected abstract LibSpectrum readSpectrum(Connection conn, SpectrumKey spectrumKey, Path libPath) throws DataFormatException, SQLException;
+    protected abstract LibSpectrum readSpectrum(LibConnection conn, SpectrumKey spectrumKey, Path libPath) throws DataFormatException, SQLException;
 
     @Nullable
     protected abstract Path getRedundantLibPath(Container container, Path libPath);
 
     @Nullable
-    protected abstract LibSpectrum readRedundantSpectrum(Connection conn, SpectrumKey spectrumKey) throws DataFormatException, SQLException;
+    protected abstract LibSpectrum readRedundantSpectrum(LibConnection conn, SpectrumKey spectrumKey) throws DataFormatException, SQLException;
 
     // The SQL should take a single parameter, the unmodified peptide sequence
     abstract String getMatchingModSeqLookupSql();
@@ -134,14 +134,14 @@ public List<LibrarySpectrumMatchGetter.PeptideIdRtInfo> getRetentionTimes(Contai
      * Modifications in the Precursor's modified sequence may not have the same number of precision digits as the modified sequence in the library.
      * Return a spectrum key with a modified sequence that matches what is in the library.
      */
-    protected SpectrumKey getMatchingModSeqSpecKey(Connection conn, SpectrumKey key) throws SQLException
+    protected SpectrumKey getMatchingModSeqSpecKey(LibConnection conn, SpectrumKey key) throws SQLException
     {
         String matchingPeptide = findMatchingModifiedSequence(conn, key.getModifiedPeptide(), getMatchingModSeqLookupSql());
         return new SpectrumKey(matchingPeptide, key.getCharge(), key.getSourceFile(), key.getRedundantRefSpectrumId());
     }
 
     @NotNull
-    protected abstract List<LibrarySpectrumMatchGetter.PeptideIdRtInfo> readRetentionTimes(Connection conn, String modifiedPeptide, String libPath) throws SQLException;
+    protected abstract List<LibrarySpectrumMatchGetter.PeptideIdRtInfo> readRetentionTimes(LibConnection conn, String modifiedPeptide, String libPath) throws SQLException;
 
 
     private static final int LIBCACHE_LIMIT = 1000;
@@ -193,7 +193,10 @@ private void deleteTempFile(String key)
                     {
                         String filePathStr = get(key);
                         if (null != filePathStr)
+                        {
+                            LibConnectionPool.get().close(filePathStr);
                             Files.deleteIfExists(new File(filePathStr).toPath());
+                        }
                     }
                     catch (IOException e)
                     {
@@ -240,17 +243,36 @@ static String getNonEmptyLocalLibPath(Container container, Path libPath)
 
     public static void clearLibCache(Container container)
     {
-        _libCache.clear();     // TODO: we could clear only keys from this container
+        // Removing the container's local copies of cloud libraries also closes the connections to them
+        String prefix = getLibCacheKey(container, "");
+        for (String key : new ArrayList<>(_libCache.getKeys()))
+        {
+            if (key.startsWith(prefix))
+            {
+                _libCache.remove(key);
+            }
+        }
+
+        // The folder's own library files may be about to be deleted
+        PipeRoot root = PipelineService.get().findPipelineRoot(container);
+        if (root != null)
+        {
+            LibConnectionPool.get().closeLibrariesIn(root.getRootNioPath());
+        }
     }
 
-    static Connection getLibConnection(String libFilePath) throws SQLException
+    /** @return a pooled connection to the library, which goes back to the pool when it's closed */
+    static LibConnection getLibConnection(String libFilePath) throws SQLException
     {
-        SQLiteConfig config = new SQLiteConfig();
-        config.setReadOnly(true);
-        return DriverManager.getConnection("jdbc:sqlite:/" + libFilePath, config.toProperties());
+        return LibConnectionPool.get().getConnection(libFilePath);
     }
 
-    static String findMatchingModifiedSequence(Connection conn, String modifiedSequence, String sql) throws SQLException
+    static String findMatchingModifiedSequence(LibConnection conn, String modifiedSequence, String sql) throws SQLException
+    {
+        return conn.getMatchingModifiedSequence(modifiedSequence, seq -> lookupMatchingModifiedSequence(conn, seq, sql));
+    }
+
+    private static String lookupMatchingModifiedSequence(LibConnection conn, String modifiedSequence, String sql) throws SQLException
     {
         // Issue 33190: Spectrum viewer unable to show data for peptides with modifications
         // Modifications in the Precursor's modified sequence may not have the same number of precision digits as the modified sequence in the library file.
@@ -261,15 +283,14 @@ static String findMatchingModifiedSequence(Connection conn, String modifiedSeque
             return modifiedSequence;
         }
 
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, unmodifiedSequence);
-            try (ResultSet rs = stmt.executeQuery()) {
-                while (rs.next())
-                {
-                    String modSeqCompare = rs.getString(1);
-                    if (Peptide.modifiedSequencesMatch(modifiedSequence, modSeqCompare)) {
-                        return modSeqCompare;
-                    }
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        stmt.setString(1, unmodifiedSequence);
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next())
+            {
+                String modSeqCompare = rs.getString(1);
+                if (Peptide.modifiedSequencesMatch(modifiedSequence, modSeqCompare)) {
+                    return modSeqCompare;
                 }
             }
         }
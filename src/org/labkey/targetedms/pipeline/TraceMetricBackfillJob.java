@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2024 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.pipeline;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlExecutor;
+import org.labkey.api.data.Table;
+import org.labkey.api.pipeline.PipeRoot;
+import org.labkey.api.pipeline.PipelineJob;
+import org.labkey.api.pipeline.PipelineService;
+import org.labkey.api.pipeline.PipelineValidationException;
+import org.labkey.api.security.User;
+import org.labkey.api.targetedms.model.QCMetricConfiguration;
+import org.labkey.api.util.FileUtil;
+import org.labkey.api.util.URLHelper;
+import org.labkey.api.util.UnexpectedException;
+import org.labkey.api.view.ViewBackgroundInfo;
+import org.labkey.targetedms.TargetedMSManager;
+import org.labkey.targetedms.TargetedMSRun;
+import org.labkey.targetedms.TargetedMSSchema;
+import org.labkey.targetedms.model.QCTraceMetricValues;
+import org.labkey.targetedms.outliers.QCMetricValueManager;
+import org.labkey.targetedms.outliers.TraceMetricCalculator;
+
+import java.io.File;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Calculates a newly added or edited trace metric's values for every run already in a QC folder, so that saving the
+ * metric doesn't wait on reading the traces for the folder's entire history.
+ */
+public class TraceMetricBackfillJob extends PipelineJob
+{
+    private int _metricId;
+
+    /** For JSON serialization/deserialzation round-tripping
+     * @noinspection unused*/
+    protected TraceMetricBackfillJob()
+    {
+
+    }
+
+    public TraceMetricBackfillJob(ViewBackgroundInfo info, @NotNull PipeRoot root, int metricId)
+    {
+        super(TargetedMSPipelineProvider.name, info, root);
+        _metricId = metricId;
+        setLogFile(new File(root.getRootPath(), FileUtil.makeFileNameWithTimestamp("TraceMetricBackfill", "log")));
+    }
+
+    /**
+     * Queues the job once the current transaction, which is typically saving the metric, commits. Folders without a
+     * pipeline root calculate the values right away instead.
+     */
+    public static void queue(Container container, User user, int metricId)
+    {
+        TargetedMSManager.getSchema().getScope().addCommitTask(() -> {
+            PipeRoot root = PipelineService.get().findPipelineRoot(container);
+            if (root == null)
+            {
+                backfill(container, user, metricId, null);
+                return;
+            }
+            try
+            {
+                PipelineService.get().queueJob(new TraceMetricBackfillJob(new ViewBackgroundInfo(container, user, null), root, metricId));
+            }
+            catch (PipelineValidationException e)
+            {
+                throw UnexpectedException.wrap(e);
+            }
+        }, DbScope.CommitTaskOption.POSTCOMMIT);
+    }
+
+    @Override
+    public void run()
+    {
+        setStatus(TaskStatus.running);
+        try
+        {
+            backfill(getContainer(), getUser(), _metricId, this);
+            setStatus(TaskStatus.complete);
+        }
+        catch (RuntimeException e)
+        {
+            error("Failed to calculate trace metric values", e);
+        }
+    }
+
+    private static void backfill(Container container, User user, int metricId, @Nullable PipelineJob job)
+    {
+        List<QCMetricConfiguration> qcMetricConfigurations = TargetedMSManager
+                .getEnabledQCMetricConfigurations(new TargetedMSSchema(user, container))
+                .stream()
+                .filter(qcMetricConfiguration -> qcMetricConfiguration.getId() == metricId && qcMetricConfiguration.getTraceName() != null)
+                .collect(Collectors.toList());
+        if (qcMetricConfigurations.isEmpty())
+        {
+            if (job != null)
+            {
+                job.getLogger().info("No enabled trace metric with id " + metricId + ", nothing to do");
+            }
+            return;
+        }
+
+        TargetedMSRun[] runs = TargetedMSManager.getRunsInContainer(container);
+        if (job != null)
+        {
+            job.getLogger().info("Calculating values for trace metric " + qcMetricConfigurations.get(0).getName() + " for " + runs.length + " Skyline documents");
+        }
+
+        int count = 0;
+        for (TargetedMSRun run : runs)
+        {
+            var qcTraceMetricValues = TraceMetricCalculator.calculate(qcMetricConfigurations, run);
+            try (DbScope.Transaction transaction = TargetedMSManager.getSchema().getScope().ensureTransaction())
+            {
+                // A document imported after the metric was saved already has its values
+                SQLFragment deleteSql = new SQLFragment("DELETE FROM ").append(TargetedMSManager.getTableQCTraceMetricValues());
+                deleteSql.append(" WHERE Metric = ? AND SampleFileId IN (SELECT sf.Id FROM ").add(metricId);
+                deleteSql.append(TargetedMSManager.getTableInfoSampleFile(), "sf");
+                deleteSql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoReplicate(), "rep").append(" ON rep.Id = sf.ReplicateId");
+                deleteSql.append(" WHERE rep.RunId = ?)").add(run.getRunId());
+                new SqlExecutor(TargetedMSManager.getSchema()).execute(deleteSql);
+
+                for (QCTraceMetricValues qcTraceMetricValue : qcTraceMetricValues)
+                {
+                    Table.insert(user, TargetedMSManager.getTableQCTraceMetricValues(), qcTraceMetricValue);
+                }
+                transaction.commit();
+            }
+
+            if (job != null && ++count % 100 == 0)
+            {
+                job.getLogger().info("Processed " + count + " of " + runs.length + " Skyline documents");
+            }
+        }
+
+        // Plots and outlier summaries requested while the job was running may have stored the metric's partial
+        // values, so drop them to be recalculated from the complete set
+        QCMetricValueManager.clearMetric(metricId);
+        // The metric may have its first values now, and outlier summaries need to include them
+        TargetedMSManager.get().clearCachedEnabledQCMetrics(container);
+
+        if (job != null)
+        {
+            job.getLogger().info("All done!");
+        }
+    }
+
+    @Override
+    public URLHelper getStatusHref()
+    {
+        return null;
+    }
+
+    @Override
+    public String getDescription()
+    {
+        return "Calculating trace metric values";
+    }
+}
@@ -28,11 +28,13 @@
 import org.labkey.api.data.Sort;
 import org.labkey.api.data.SqlExecutor;
 import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.Table;
 import org.labkey.api.data.TableResultSet;
 import org.labkey.api.data.TableSelector;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.security.User;
 import org.labkey.api.targetedms.RepresentativeDataState;
+import org.labkey.api.util.PageFlowUtil;
 import org.labkey.targetedms.TargetedMSManager;
 import org.labkey.targetedms.TargetedMSSchema;
 import org.labkey.targetedms.chart.ChromatogramDataset.RtRange;
@@ -125,6 +127,29 @@ public static List<PrecursorChromInfo> getSortedPrecursorChromInfosForPrecursor(
         return result;
     }
 
+    /**
+     * @return one page of a precursor's chrom infos, ordered by Id like the chromatogram grids, populated with only
+     * the columns needed to locate the chromatograms in the .skyd file. Peptide and molecule precursors both store
+     * their chrom infos in PrecursorChromInfo.
+     */
+    @NotNull
+    public static List<PrecursorChromInfo> getChromatogramLocationsForPrecursor(long precursorId, long offset, int maxRows)
+    {
+        SimpleFilter filter = new SimpleFilter();
+        filter.addCondition(FieldKey.fromParts("PrecursorId"), precursorId);
+
+        TableSelector selector = new TableSelector(TargetedMSManager.getTableInfoPrecursorChromInfo(),
+                PageFlowUtil.set("Id", "PrecursorId", "SampleFileId", "ChromatogramOffset", "ChromatogramLength",
+                        "ChromatogramFormat", "UncompressedSize", "NumPoints", "NumTransitions"),
+                filter,
+                new Sort("Id"));
+        if (maxRows != Table.ALL_ROWS)
+        {
+            selector.setMaxRows(maxRows).setOffset(offset);
+        }
+        return selector.getArrayList(PrecursorChromInfo.class);
+    }
+
     public static PrecursorChromInfo getBestPrecursorChromInfoForPrecursor(long precursorId)
     {
         return getBestPrecursorChromInfoForPrecursorAndReplicate(precursorId, -1);
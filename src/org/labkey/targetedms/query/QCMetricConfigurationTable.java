@@ -37,14 +37,15 @@
 import org.labkey.api.security.permissions.Permission;
 import org.labkey.api.security.permissions.ReadPermission;
 import org.labkey.targetedms.TargetedMSManager;
-import org.labkey.targetedms.TargetedMSRun;
 import org.labkey.targetedms.TargetedMSSchema;
+import org.labkey.targetedms.outliers.QCMetricValueManager;
+import org.labkey.targetedms.pipeline.TraceMetricBackfillJob;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Objects;
 
 public class QCMetricConfigurationTable extends FilteredTable<TargetedMSSchema>
 {
@@ -92,6 +93,9 @@ public static ContainerFilter getDefaultMetricContainerFilter(Container currentC
 
     public static class QCMetricConfigurationTableUpdateService extends DefaultQueryUpdateService
     {
+        /** The columns that determine which values get extracted from a trace chromatogram */
+        private static final List<String> TRACE_COLUMNS = List.of("TraceName", "TraceValue", "TimeValue");
+
         private final QCMetricConfigurationTable _queryTable;
 
         protected QCMetricConfigurationTableUpdateService(QCMetricConfigurationTable queryTable, TableInfo realTable)
@@ -105,18 +109,30 @@ protected Map<String, Object> insertRow(User user, Container container, Map<Stri
         {
             var insertedRow = super.insertRow(user, container, row);
             TargetedMSManager.get().clearCachedEnabledQCMetrics(container);
-            calculateAndInsertTraceValuesForMetric((int) insertedRow.get("Id"), container, user);
+            if (insertedRow.get("TraceName") != null)
+            {
+                calculateAndInsertTraceValuesForMetric((int) insertedRow.get("Id"), container, user);
+            }
             return insertedRow;
         }
 
         @Override
         protected Map<String, Object> updateRow(User user, Container container, Map<String, Object> row, @NotNull Map<String, Object> oldRow, @Nullable Map<Enum, Object> configParameters) throws InvalidKeyException, ValidationException, QueryUpdateServiceException, SQLException
         {
+            boolean traceChanged = isTraceChanged(row, oldRow);
+            if (traceChanged)
+            {
+                // Matches the existing values by the old trace name, so this needs to happen before the update
+                deleteTraceValueForMetric((int) oldRow.get("Id"), container);
+            }
             var updatedRow = super.updateRow(user, container, row, oldRow, configParameters);
             var metricId = (int) updatedRow.get("Id");
-            deleteTraceValueForMetric(metricId, container);
+            QCMetricValueManager.clearMetric(metricId);
             TargetedMSManager.get().clearCachedEnabledQCMetrics(container);
-            calculateAndInsertTraceValuesForMetric(metricId, container, user);
+            if (traceChanged && updatedRow.get("TraceName") != null)
+            {
+                calculateAndInsertTraceValuesForMetric(metricId, container, user);
+            }
             return updatedRow;
         }
 
@@ -125,9 +141,32 @@ protected Map<String, Object> deleteRow(User user, Container container, Map<Stri
         {
             TargetedMSManager.get().clearCachedEnabledQCMetrics(container);
             deleteTraceValueForMetric((Integer) oldRow.get("id"), container);
+            QCMetricValueManager.clearMetric((Integer) oldRow.get("id"));
             return super.deleteRow(user, container, oldRow);
         }
 
+        private static boolean isTraceChanged(Map<String, Object> row, Map<String, Object> oldRow)
+        {
+            for (String column : TRACE_COLUMNS)
+            {
+                if (!row.containsKey(column))
+                {
+                    // Not part of this update, so it keeps its old value
+                    continue;
+                }
+                Object newValue = row.get(column);
+                Object oldValue = oldRow.get(column);
+                boolean same = newValue instanceof Number n && oldValue instanceof Number o
+                        ? n.doubleValue() == o.doubleValue()
+                        : Objects.equals(newValue == null ? null : newValue.toString(), oldValue == null ? null : oldValue.toString());
+                if (!same)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         private void deleteTraceValueForMetric(int metricId, Container container)
         {
             var sql = new SQLFragment(" DELETE FROM " + TargetedMSManager.getTableQCTraceMetricValues() + " WHERE metric IN ("+
@@ -142,18 +181,8 @@ private void deleteTraceValueForMetric(int metricId, Container container)
 
         private void calculateAndInsertTraceValuesForMetric(int metricId, Container container, User user)
         {
-            var qcMetricConfigurations = TargetedMSManager
-                    .getEnabledQCMetricConfigurations(_queryTable.getUserSchema())
-                    .stream()
-                    .filter(qcMetricConfiguration -> qcMetricConfiguration.getId() == metricId)
-                    .collect(Collectors.toList());
-            var runsInContainer = TargetedMSManager.getRunsInContainer(container);
-
-            for (TargetedMSRun run : runsInContainer)
-            {
-                var qcTraceMetricValues = TargetedMSManager.calculateTraceMetricValues(qcMetricConfigurations, run);
-                qcTraceMetricValues.forEach(qcTraceMetricValue -> Table.insert(user, TargetedMSManager.getTableQCTraceMetricValues(), qcTraceMetricValue));
-            }
+            // Reading the traces for all of the folder's runs can take a while, so do it in the background
+            TraceMetricBackfillJob.queue(container, user, metricId);
         }
 
     }
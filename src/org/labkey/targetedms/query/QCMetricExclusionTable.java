@@ -18,7 +18,6 @@
 import org.jetbrains.annotations.NotNull;
 import org.labkey.api.data.ContainerFilter;
 import org.labkey.api.gwt.client.AuditBehaviorType;
-import org.labkey.api.query.DefaultQueryUpdateService;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.query.QueryForeignKey;
 import org.labkey.api.query.QueryUpdateService;
@@ -60,6 +59,6 @@ public boolean hasPermission(@NotNull UserPrincipal user, @NotNull Class<? exten
     @Override
     public QueryUpdateService getUpdateService()
     {
-        return new DefaultQueryUpdateService(this, getRealTable());
+        return new QCOutlierDataUpdateService(this, getRealTable());
     }
 }
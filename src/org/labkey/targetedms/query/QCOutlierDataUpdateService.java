@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2024 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.query;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.query.DefaultQueryUpdateService;
+import org.labkey.api.query.DuplicateKeyException;
+import org.labkey.api.query.InvalidKeyException;
+import org.labkey.api.query.QueryUpdateServiceException;
+import org.labkey.api.query.ValidationException;
+import org.labkey.api.security.User;
+import org.labkey.targetedms.outliers.OutlierSummaryCache;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Update service for tables whose rows change which QC data points count as outliers, like replicate exclusions and
+ * excluded precursors, so that edits invalidate the folder's cached outlier summary.
+ */
+public class QCOutlierDataUpdateService extends DefaultQueryUpdateService
+{
+    public QCOutlierDataUpdateService(TableInfo queryTable, TableInfo dbTable)
+    {
+        super(queryTable, dbTable);
+    }
+
+    @Override
+    protected Map<String, Object> insertRow(User user, Container container, Map<String, Object> row) throws DuplicateKeyException, ValidationException, QueryUpdateServiceException, SQLException
+    {
+        OutlierSummaryCache.invalidate(container);
+        return super.insertRow(user, container, row);
+    }
+
+    @Override
+    protected Map<String, Object> updateRow(User user, Container container, Map<String, Object> row, @NotNull Map<String, Object> oldRow, @Nullable Map<Enum, Object> configParameters) throws InvalidKeyException, ValidationException, QueryUpdateServiceException, SQLException
+    {
+        OutlierSummaryCache.invalidate(container);
+        return super.updateRow(user, container, row, oldRow, configParameters);
+    }
+
+    @Override
+    protected Map<String, Object> deleteRow(User user, Container container, Map<String, Object> oldRow) throws InvalidKeyException, QueryUpdateServiceException, SQLException
+    {
+        OutlierSummaryCache.invalidate(container);
+        return super.deleteRow(user, container, oldRow);
+    }
+}
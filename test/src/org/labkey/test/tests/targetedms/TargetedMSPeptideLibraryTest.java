@@ -19,12 +19,18 @@
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 import org.labkey.api.util.Pair;
+import org.labkey.remoteapi.CommandException;
+import org.labkey.remoteapi.Connection;
+import org.labkey.remoteapi.query.Filter;
+import org.labkey.remoteapi.query.SelectRowsCommand;
+import org.labkey.remoteapi.query.SelectRowsResponse;
 import org.labkey.test.BaseWebDriverTest;
 import org.labkey.test.Locator;
 import org.labkey.test.components.CustomizeView;
 import org.labkey.test.util.DataRegionTable;
 import org.labkey.test.util.LogMethod;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -43,12 +49,13 @@ public class TargetedMSPeptideLibraryTest extends TargetedMSTest
     private static final String SKY_FILE2 = "Stergachis-SupplementaryData_2_b.sky.zip";
 
     @Test
-    public void testSteps()
+    public void testSteps() throws Exception
     {
         setupFolder(FolderType.Library); // Peptide library folder
         importData(SKY_FILE1);
         verifyRevision1();
         importData(SKY_FILE2, 2);
+        verifyPrecursorsHaveModifiedDate();
         verifyRevision2();
         verifyAndResolveConflicts();
         verifyRevision3();
@@ -94,6 +101,23 @@ protected void verifyRevision1()
         );
     }
 
+    /**
+     * Conflict resolution, and reverting to an older revision when a document is deleted, pick the most recently
+     * modified deprecated precursor, so every imported precursor needs a Modified date
+     */
+    private void verifyPrecursorsHaveModifiedDate() throws IOException, CommandException
+    {
+        log("Verify precursors have a Modified date");
+        Connection cn = createDefaultConnection();
+        SelectRowsCommand cmd = new SelectRowsCommand("targetedms", "precursor");
+        cmd.setColumns(List.of("Id", "Modified"));
+        SelectRowsResponse response = cmd.execute(cn, getCurrentContainerPath());
+        assertTrue("No precursors were imported", response.getRowCount().intValue() > 0);
+
+        cmd.addFilter("Modified", null, Filter.Operator.ISBLANK);
+        assertEquals("Precursors imported without a Modified date", 0, cmd.execute(cn, getCurrentContainerPath()).getRowCount().intValue());
+    }
+
     private void verifyLibraryPeptideCount(int totalPeptideCount)
     {
         clickTab("Peptides");